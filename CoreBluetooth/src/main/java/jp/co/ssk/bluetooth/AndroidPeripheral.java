@@ -22,6 +22,8 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.util.Locale;
 
 import jp.co.ssk.utility.Handler;
@@ -31,16 +33,24 @@ import jp.co.ssk.utility.SynchronousCallback;
 @SuppressWarnings("all")
 abstract class AndroidPeripheral {
 
+    // Null until materialized. See getHandler().
+    @Nullable
+    private volatile Handler mHandler;
+    // Held by app threads across a post to the peripheral thread. See whileInUse().
     @NonNull
-    private final Handler mHandler;
+    private final ReentrantLock mUseLock = new ReentrantLock();
+    @Nullable
+    private final Looper mLooper;
     @NonNull
     private final Context mContext;
     @NonNull
     private final BluetoothDevice mBluetoothDevice;
     @NonNull
     private final String mAddress;
+    private final long mAddressBits;
     @Nullable
-    private final String mLocalName;
+    private volatile String mLocalName;
+    private volatile boolean mLocalNameLoaded;
     @Nullable
     private BluetoothGatt mBluetoothGatt;
     @NonNull
@@ -54,52 +64,52 @@ abstract class AndroidPeripheral {
 
         @Override
         public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
-            mHandler.post(() -> _onConnectionStateChange(gatt, status, newState));
+            getHandler().post(() -> _onConnectionStateChange(gatt, status, newState));
         }
 
         @Override
         public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
-            mHandler.post(() -> _onServicesDiscovered(gatt, status));
+            getHandler().post(() -> _onServicesDiscovered(gatt, status));
         }
 
         @Override
         public void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
-            mHandler.post(() -> _onCharacteristicRead(gatt, characteristic, status));
+            getHandler().post(() -> _onCharacteristicRead(gatt, characteristic, status));
         }
 
         @Override
         public void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
-            mHandler.post(() -> _onCharacteristicWrite(gatt, characteristic, status));
+            getHandler().post(() -> _onCharacteristicWrite(gatt, characteristic, status));
         }
 
         @Override
         public void onCharacteristicChanged(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-            mHandler.post(() -> _onCharacteristicChanged(gatt, characteristic));
+            getHandler().post(() -> _onCharacteristicChanged(gatt, characteristic));
         }
 
         @Override
         public void onDescriptorRead(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
-            mHandler.post(() -> _onDescriptorRead(gatt, descriptor, status));
+            getHandler().post(() -> _onDescriptorRead(gatt, descriptor, status));
         }
 
         @Override
         public void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
-            mHandler.post(() -> _onDescriptorWrite(gatt, descriptor, status));
+            getHandler().post(() -> _onDescriptorWrite(gatt, descriptor, status));
         }
 
         @Override
         public void onReliableWriteCompleted(final BluetoothGatt gatt, final int status) {
-            mHandler.post(() -> _onReliableWriteCompleted(gatt, status));
+            getHandler().post(() -> _onReliableWriteCompleted(gatt, status));
         }
 
         @Override
         public void onReadRemoteRssi(final BluetoothGatt gatt, final int rssi, final int status) {
-            mHandler.post(() -> _onReadRemoteRssi(gatt, rssi, status));
+            getHandler().post(() -> _onReadRemoteRssi(gatt, rssi, status));
         }
 
         @Override
         public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
-            mHandler.post(() -> _onMtuChanged(gatt, mtu, status));
+            getHandler().post(() -> _onMtuChanged(gatt, mtu, status));
         }
     };
 
@@ -107,30 +117,103 @@ abstract class AndroidPeripheral {
             @NonNull Context context,
             @NonNull BluetoothDevice bluetoothDevice,
             @Nullable Looper looper) {
-        if (null == looper) {
-            HandlerThread thread = new HandlerThread("Peripheral-" + bluetoothDevice.getAddress());
-            thread.start();
-            looper = thread.getLooper();
-        }
-        mHandler = new Handler(looper);
-
+        mLooper = looper;
         mContext = context;
         mBluetoothDevice = bluetoothDevice;
         mAddress = bluetoothDevice.getAddress();
-        mLocalName = bluetoothDevice.getName();
-        mBondState = BondState.valueOf(bluetoothDevice.getBondState());
+        mAddressBits = CBAddress.pack(mAddress);
+        mBondState = BondState.None;
         mAclConnectionState = AclConnectionState.Unknown;
         mGattConnectionState = GattConnectionState.Disconnected;
         mBluetoothGatt = null;
+    }
+
+    /**
+     * A discovered peripheral is only a record of its address until it is used.
+     * The thread, the bond state query and the subclass state are set up here on first use,
+     * so a scan through a crowd of advertisers does not start a thread per address.
+     */
+    @NonNull
+    private synchronized Handler _materialize() {
+        Handler handler = mHandler;
+        if (null != handler) {
+            return handler;
+        }
+        CBLog.d("Materialize peripheral. address:" + mAddress);
+        Looper looper = mLooper;
+        if (null == looper) {
+            HandlerThread thread = new HandlerThread("Peripheral-" + mAddress);
+            thread.start();
+            looper = thread.getLooper();
+        }
+        mBondState = BondState.valueOf(mBluetoothDevice.getBondState());
 
         BluetoothManager bluetoothManager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
         if (null == bluetoothManager) {
             throw new AndroidRuntimeException("null == bluetoothManager");
         }
-        int gattConnectionState = bluetoothManager.getConnectionState(bluetoothDevice, BluetoothProfile.GATT);
+        int gattConnectionState = bluetoothManager.getConnectionState(mBluetoothDevice, BluetoothProfile.GATT);
         if (BluetoothProfile.STATE_DISCONNECTED != gattConnectionState) {
             CBLog.w("Illegal onGattConnectionStateChanged state is BluetoothProfile.STATE_DISCONNECTED != gattConnectionState");
         }
+
+        onMaterialize(looper);
+        // Published last, so a thread that sees the handler also sees the subclass state.
+        handler = new Handler(looper);
+        mHandler = handler;
+        return handler;
+    }
+
+    final boolean isMaterialized() {
+        return null != mHandler;
+    }
+
+    /**
+     * Tears down what _materialize set up and quits the peripheral's own thread.
+     * Only for a peripheral without a connection. The next use materializes it again.
+     * Never blocks: a peripheral that an app thread is using at the moment is left as it is.
+     *
+     * @return false if the peripheral is in use and was not released.
+     */
+    final synchronized boolean release() {
+        Handler handler = mHandler;
+        if (null == handler) {
+            return true;
+        }
+        if (!mUseLock.tryLock()) {
+            CBLog.d("Release skipped while in use. address:" + mAddress);
+            return false;
+        }
+        try {
+            CBLog.d("Release peripheral. address:" + mAddress);
+            mHandler = null;
+            onRelease();
+            if (null == mLooper) {
+                handler.getLooper().quitSafely();
+            }
+        } finally {
+            mUseLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Runs a call from an app thread that posts to the peripheral thread, and waits for the reply if it is synchronous.
+     * release() skips the peripheral meanwhile, so the thread is not quit between the post and the reply.
+     * The manager thread does not need this, since release() runs there.
+     */
+    final <T> T whileInUse(@NonNull Supplier<T> call) {
+        mUseLock.lock();
+        try {
+            return call.get();
+        } finally {
+            mUseLock.unlock();
+        }
+    }
+
+    // Posts from an app thread. See whileInUse().
+    final void postWhileInUse(@NonNull Runnable runnable) {
+        whileInUse(() -> getHandler().post(runnable));
     }
 
     @NonNull
@@ -138,8 +221,17 @@ abstract class AndroidPeripheral {
         return mAddress;
     }
 
+    // Packed by CBAddress.pack.
+    final long getAddressBits() {
+        return mAddressBits;
+    }
+
     @Nullable
     public final String getLocalName() {
+        if (!mLocalNameLoaded) {
+            mLocalName = mBluetoothDevice.getName();
+            mLocalNameLoaded = true;
+        }
         return mLocalName;
     }
 
@@ -150,11 +242,11 @@ abstract class AndroidPeripheral {
     @NonNull
     final GattConnectionState getGattConnectionState() {
         final GattConnectionState ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = mGattConnectionState;
         } else {
             final SynchronousCallback<GattConnectionState> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(mGattConnectionState);
                 callback.unlock();
             });
@@ -174,11 +266,11 @@ abstract class AndroidPeripheral {
     @NonNull
     final BondState getBondState() {
         final BondState ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = mBondState;
         } else {
             final SynchronousCallback<BondState> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(mBondState);
                 callback.unlock();
             });
@@ -192,11 +284,11 @@ abstract class AndroidPeripheral {
     }
 
     final void setBondState(@NonNull final BondState state) {
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             mBondState = state;
             onBondStateChanged(mBondState);
         } else {
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 mBondState = state;
                 onBondStateChanged(mBondState);
             });
@@ -206,11 +298,11 @@ abstract class AndroidPeripheral {
     @NonNull
     final AclConnectionState getAclConnectionState() {
         final AclConnectionState ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = mAclConnectionState;
         } else {
             final SynchronousCallback<AclConnectionState> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(mAclConnectionState);
                 callback.unlock();
             });
@@ -224,11 +316,11 @@ abstract class AndroidPeripheral {
     }
 
     final void setAclConnectionState(@NonNull final AclConnectionState state) {
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             mAclConnectionState = state;
             onAclConnectionStateChanged(mAclConnectionState);
         } else {
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 mAclConnectionState = state;
                 onAclConnectionStateChanged(mAclConnectionState);
             });
@@ -246,24 +338,28 @@ abstract class AndroidPeripheral {
 
     @NonNull
     final Handler getHandler() {
-        return mHandler;
+        Handler handler = mHandler;
+        if (null == handler) {
+            handler = _materialize();
+        }
+        return handler;
     }
 
     final void notifyPairingRequest(@NonNull final CBConstants.PairingVariant pairingVariant) {
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             onPairingRequest(pairingVariant);
         } else {
-            mHandler.post(() -> onPairingRequest(pairingVariant));
+            getHandler().post(() -> onPairingRequest(pairingVariant));
         }
     }
 
     final boolean createBond() {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _createBond();
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_createBond());
                 callback.unlock();
             });
@@ -278,11 +374,11 @@ abstract class AndroidPeripheral {
 
     final boolean cancelBondProcess() {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _cancelBondProcess();
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_cancelBondProcess());
                 callback.unlock();
             });
@@ -297,11 +393,11 @@ abstract class AndroidPeripheral {
 
     final boolean removeBond() {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _removeBond();
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_removeBond());
                 callback.unlock();
             });
@@ -316,11 +412,11 @@ abstract class AndroidPeripheral {
 
     final boolean setPin(final String pinCode) {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _setPin(pinCode);
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_setPin(pinCode));
                 callback.unlock();
             });
@@ -335,11 +431,11 @@ abstract class AndroidPeripheral {
 
     final boolean setPasskey(final String pinCode) {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _setPasskey(pinCode);
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_setPasskey(pinCode));
                 callback.unlock();
             });
@@ -354,11 +450,11 @@ abstract class AndroidPeripheral {
 
     final boolean hasGatt() {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = null != mBluetoothGatt;
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(null != mBluetoothGatt);
                 callback.unlock();
             });
@@ -373,11 +469,11 @@ abstract class AndroidPeripheral {
 
     final boolean connectGatt() {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _connectGatt();
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_connectGatt());
                 callback.unlock();
             });
@@ -392,11 +488,11 @@ abstract class AndroidPeripheral {
 
     final boolean disconnectGatt() {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _disconnectGatt();
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_disconnectGatt());
                 callback.unlock();
             });
@@ -411,11 +507,11 @@ abstract class AndroidPeripheral {
 
     final boolean discoverServices() {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _discoverServices();
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_discoverServices());
                 callback.unlock();
             });
@@ -430,11 +526,11 @@ abstract class AndroidPeripheral {
 
     final boolean refreshGatt() {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _refreshGatt();
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_refreshGatt());
                 callback.unlock();
             });
@@ -449,11 +545,11 @@ abstract class AndroidPeripheral {
 
     final boolean closeGatt() {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _closeGatt();
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_closeGatt());
                 callback.unlock();
             });
@@ -469,11 +565,11 @@ abstract class AndroidPeripheral {
     @NonNull
     final List<BluetoothGattService> getServices() {
         final List<BluetoothGattService> ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _getServices();
         } else {
             final SynchronousCallback<List<BluetoothGattService>> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_getServices());
                 callback.unlock();
             });
@@ -488,11 +584,11 @@ abstract class AndroidPeripheral {
 
     final boolean setCharacteristicNotification(@NonNull final BluetoothGattCharacteristic characteristic, final boolean enable) {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _setCharacteristicNotification(characteristic, enable);
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_setCharacteristicNotification(characteristic, enable));
                 callback.unlock();
             });
@@ -507,11 +603,11 @@ abstract class AndroidPeripheral {
 
     final boolean readCharacteristic(@NonNull final BluetoothGattCharacteristic characteristic) {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _readCharacteristic(characteristic);
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_readCharacteristic(characteristic));
                 callback.unlock();
             });
@@ -526,11 +622,11 @@ abstract class AndroidPeripheral {
 
     final boolean writeCharacteristic(@NonNull final BluetoothGattCharacteristic characteristic) {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _writeCharacteristic(characteristic);
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_writeCharacteristic(characteristic));
                 callback.unlock();
             });
@@ -543,13 +639,20 @@ abstract class AndroidPeripheral {
         return ret;
     }
 
+    /**
+     * Peripheral thread only. Skips the per-call OS API log, which would dominate the cost of a streamed packet.
+     */
+    final boolean streamCharacteristic(@NonNull final BluetoothGattCharacteristic characteristic) {
+        return null != mBluetoothGatt && mBluetoothGatt.writeCharacteristic(characteristic);
+    }
+
     final boolean readDescriptor(@NonNull final BluetoothGattDescriptor descriptor) {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _readDescriptor(descriptor);
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_readDescriptor(descriptor));
                 callback.unlock();
             });
@@ -564,11 +667,11 @@ abstract class AndroidPeripheral {
 
     final boolean writeDescriptor(@NonNull final BluetoothGattDescriptor descriptor) {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _writeDescriptor(descriptor);
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_writeDescriptor(descriptor));
                 callback.unlock();
             });
@@ -583,11 +686,11 @@ abstract class AndroidPeripheral {
 
     final boolean requestMtu(final int mtu) {
         final Boolean ret;
-        if (mHandler.isCurrentThread()) {
+        if (getHandler().isCurrentThread()) {
             ret = _requestMtu(mtu);
         } else {
             final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
+            getHandler().post(() -> {
                 callback.setResult(_requestMtu(mtu));
                 callback.unlock();
             });
@@ -1006,6 +1109,12 @@ abstract class AndroidPeripheral {
         return sb.toString();
     }
 
+    // Called once, on the first use of the peripheral, before getHandler() returns. looper is the peripheral's own.
+    protected abstract void onMaterialize(@NonNull Looper looper);
+
+    // Called when the peripheral is released. The thread quits after this returns.
+    protected abstract void onRelease();
+
     protected abstract void onPairingRequest(@NonNull CBConstants.PairingVariant variant);
 
     protected abstract void onBondStateChanged(@NonNull BondState bondState);
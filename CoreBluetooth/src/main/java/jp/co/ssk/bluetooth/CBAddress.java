@@ -0,0 +1,77 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+/**
+ * 48-bit Bluetooth device addresses packed into a long, most significant octet first.
+ * Packing reads the 17 characters in place and formatting uses a lookup table, so neither goes through String.format.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBAddress {
+
+    // Not a valid packed address, since those fit in 48 bits.
+    static final long INVALID = -1L;
+    static final int OCTETS = 6;
+    private static final int STRING_LENGTH = 17;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private CBAddress() {
+    }
+
+    /**
+     * @param address "AA:BB:CC:DD:EE:FF", upper or lower case.
+     * @return the packed address, or {@link #INVALID} if malformed.
+     */
+    static long pack(@NonNull String address) {
+        if (STRING_LENGTH != address.length()) {
+            return INVALID;
+        }
+        long ret = 0;
+        for (int i = 0; i < OCTETS; i++) {
+            final int pos = i * 3;
+            final int hi = hexDigit(address.charAt(pos));
+            final int lo = hexDigit(address.charAt(pos + 1));
+            if (0 > hi || 0 > lo || (OCTETS - 1 != i && ':' != address.charAt(pos + 2))) {
+                return INVALID;
+            }
+            ret = (ret << 8) | (hi << 4) | lo;
+        }
+        return ret;
+    }
+
+    // ASCII only. Character.digit would also accept other scripts' digits, e.g. full-width ones.
+    private static int hexDigit(char c) {
+        if ('0' <= c && '9' >= c) {
+            return c - '0';
+        }
+        if ('A' <= c && 'F' >= c) {
+            return c - 'A' + 10;
+        }
+        if ('a' <= c && 'f' >= c) {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * @return "AA:BB:CC:DD:EE:FF" in upper case, as returned by BluetoothDevice.getAddress().
+     */
+    @NonNull
+    static String format(long address) {
+        char[] chars = new char[STRING_LENGTH];
+        for (int i = 0; i < OCTETS; i++) {
+            final int octet = (int) (address >>> (8 * (OCTETS - 1 - i))) & 0xFF;
+            final int pos = i * 3;
+            chars[pos] = HEX[octet >>> 4];
+            chars[pos + 1] = HEX[octet & 0x0F];
+            if (OCTETS - 1 != i) {
+                chars[pos + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    static int octet(long address, int index) {
+        return (int) (address >>> (8 * (OCTETS - 1 - index))) & 0xFF;
+    }
+}
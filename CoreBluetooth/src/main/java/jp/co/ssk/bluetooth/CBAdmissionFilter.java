@@ -0,0 +1,174 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Admits an address only after it has been sighted a number of times within a window.
+ * Sightings are counted in a counting Bloom filter of 4-bit counters, so memory is fixed by the expected crowd size
+ * and does not grow with the number of distinct addresses.
+ * Two generations rotate every half window: a count is the sum over both, so a sighting is remembered
+ * for between half a window and a whole window.
+ * Counts may be overestimated by hash collisions, which admits an address early but never drops an admitted one.
+ * Not thread safe. Used only on the manager thread.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBAdmissionFilter {
+
+    static final int MAX_SIGHTINGS = 15;
+    private static final int HASH_COUNT = 7;
+    // Counters per expected address for a 1% false positive rate with 7 hashes: -ln(0.01) / ln(2)^2.
+    private static final double COUNTERS_PER_ADDRESS = 9.6;
+
+    private final int mSightings;
+    private final long mWindow;
+    private final int mExpectedAddresses;
+    private final int mCounterCount;
+    // Two 4-bit counters per byte.
+    @NonNull
+    private byte[] mCurrent;
+    @NonNull
+    private byte[] mPrevious;
+    private long mRotatedAt = -1;
+    // Addresses first counted in the current and previous generations. Drives the false positive estimate.
+    private long mCurrentDistinct;
+    private long mPreviousDistinct;
+    private long mAdmittedCount;
+    private long mRejectedCount;
+    @NonNull
+    private final int[] mIndexes = new int[HASH_COUNT];
+
+    /**
+     * @param sightings       sightings needed for admission, 2 to {@link #MAX_SIGHTINGS}.
+     * @param window          milliseconds.
+     * @param expectedAddresses distinct addresses expected per window. Beyond this the false positive rate rises.
+     */
+    CBAdmissionFilter(int sightings, long window, int expectedAddresses) {
+        if (2 > sightings || MAX_SIGHTINGS < sightings) {
+            throw new IllegalArgumentException("sightings must be in 2.." + MAX_SIGHTINGS);
+        }
+        if (0 >= window) {
+            throw new IllegalArgumentException("window must be positive.");
+        }
+        if (0 >= expectedAddresses) {
+            throw new IllegalArgumentException("expectedAddresses must be positive.");
+        }
+        mSightings = sightings;
+        mWindow = window;
+        mExpectedAddresses = expectedAddresses;
+        mCounterCount = (int) Math.min(Integer.MAX_VALUE - 1, Math.ceil(expectedAddresses * COUNTERS_PER_ADDRESS)) & ~1;
+        mCurrent = new byte[mCounterCount / 2];
+        mPrevious = new byte[mCounterCount / 2];
+    }
+
+    /**
+     * Counts a sighting.
+     *
+     * @param address packed by {@link CBAddress#pack(String)}.
+     * @param now     elapsed realtime in milliseconds.
+     * @return true once the address has been sighted often enough within the window.
+     */
+    boolean admit(long address, long now) {
+        if (0 > mRotatedAt) {
+            mRotatedAt = now;
+        } else if (mWindow / 2 <= now - mRotatedAt) {
+            if (mWindow <= now - mRotatedAt) {
+                // Silent for a whole window, so both generations are stale.
+                rotate(now);
+            }
+            rotate(now);
+        }
+        // Double hashing from one 64-bit mix.
+        long h = address;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        final int h1 = (int) h;
+        final int h2 = (int) (h >>> 32) | 1;
+        int min = MAX_SIGHTINGS;
+        int minCurrent = MAX_SIGHTINGS;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            final int index = ((h1 + i * h2) & Integer.MAX_VALUE) % mCounterCount;
+            mIndexes[i] = index;
+            final int current = counter(mCurrent, index);
+            min = Math.min(min, Math.min(MAX_SIGHTINGS, current + counter(mPrevious, index)));
+            minCurrent = Math.min(minCurrent, current);
+        }
+        if (0 == minCurrent) {
+            mCurrentDistinct++;
+        }
+        // Conservative update: only the smallest counters are raised, which keeps collisions from inflating counts.
+        for (int index : mIndexes) {
+            final int current = counter(mCurrent, index);
+            if (current == minCurrent && MAX_SIGHTINGS > current) {
+                setCounter(mCurrent, index, current + 1);
+            }
+        }
+        if (min + 1 >= mSightings) {
+            mAdmittedCount++;
+            return true;
+        }
+        mRejectedCount++;
+        return false;
+    }
+
+    /**
+     * Probability that an address never sighted in the window reads as sighted at least once,
+     * from the distinct addresses counted so far. The chance of reading as sighted N times is lower.
+     */
+    double falsePositiveRate() {
+        final double occupied = -HASH_COUNT * (double) (mCurrentDistinct + mPreviousDistinct) / mCounterCount;
+        return Math.pow(1 - Math.exp(occupied), HASH_COUNT);
+    }
+
+    long memoryBytes() {
+        return mCurrent.length + mPrevious.length;
+    }
+
+    long estimatedDistinctCount() {
+        return mCurrentDistinct + mPreviousDistinct;
+    }
+
+    long admittedCount() {
+        return mAdmittedCount;
+    }
+
+    long rejectedCount() {
+        return mRejectedCount;
+    }
+
+    @NonNull
+    CBAdmissionStatistics statistics() {
+        return new CBAdmissionStatistics(mSightings, mWindow, mExpectedAddresses, mAdmittedCount, mRejectedCount,
+                estimatedDistinctCount(), falsePositiveRate(), memoryBytes());
+    }
+
+    private void rotate(long now) {
+        byte[] recycled = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = recycled;
+        for (int i = 0; i < mCurrent.length; i++) {
+            mCurrent[i] = 0;
+        }
+        mPreviousDistinct = mCurrentDistinct;
+        mCurrentDistinct = 0;
+        mRotatedAt = now;
+        if (CBLog.OUTPUT_LOG_ENABLED) {
+            CBLog.d("Admission filter rotated. distinct:" + mPreviousDistinct
+                    + " fpr:" + String.format(Locale.US, "%.4f", falsePositiveRate())
+                    + " memory:" + memoryBytes() + "B");
+        }
+    }
+
+    private static int counter(@NonNull byte[] counters, int index) {
+        return (counters[index >>> 1] >>> ((index & 1) << 2)) & 0x0F;
+    }
+
+    private static void setCounter(@NonNull byte[] counters, int index, int value) {
+        final int shift = (index & 1) << 2;
+        counters[index >>> 1] = (byte) ((counters[index >>> 1] & ~(0x0F << shift)) | (value << shift));
+    }
+}
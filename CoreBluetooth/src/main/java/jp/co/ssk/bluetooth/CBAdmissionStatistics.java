@@ -0,0 +1,84 @@
+package jp.co.ssk.bluetooth;
+
+/**
+ * State of the first-seen admission filter.
+ *
+ * @see CBCentralManagerScanOption#AdmissionSightingsKey
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class CBAdmissionStatistics {
+
+    private final int mSightings;
+    private final long mWindow;
+    private final int mCapacity;
+    private final long mAdmittedCount;
+    private final long mRejectedCount;
+    private final long mEstimatedDistinctCount;
+    private final double mFalsePositiveRate;
+    private final long mMemoryBytes;
+
+    CBAdmissionStatistics(int sightings, long window, int capacity, long admittedCount, long rejectedCount,
+                          long estimatedDistinctCount, double falsePositiveRate, long memoryBytes) {
+        mSightings = sightings;
+        mWindow = window;
+        mCapacity = capacity;
+        mAdmittedCount = admittedCount;
+        mRejectedCount = rejectedCount;
+        mEstimatedDistinctCount = estimatedDistinctCount;
+        mFalsePositiveRate = falsePositiveRate;
+        mMemoryBytes = memoryBytes;
+    }
+
+    public int sightings() {
+        return mSightings;
+    }
+
+    // Milliseconds.
+    public long window() {
+        return mWindow;
+    }
+
+    // Distinct addresses per window the filter was sized for.
+    public int capacity() {
+        return mCapacity;
+    }
+
+    // Sightings of addresses that were not yet registered and passed the filter.
+    public long admittedCount() {
+        return mAdmittedCount;
+    }
+
+    // Sightings held back, mostly one-off advertisers.
+    public long rejectedCount() {
+        return mRejectedCount;
+    }
+
+    // Distinct addresses counted in the current and previous half window. Slightly low under collisions.
+    public long estimatedDistinctCount() {
+        return mEstimatedDistinctCount;
+    }
+
+    // Probability that an address never sighted reads as sighted, at the current fill.
+    public double falsePositiveRate() {
+        return mFalsePositiveRate;
+    }
+
+    // Fixed at creation.
+    public long memoryBytes() {
+        return mMemoryBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "CBAdmissionStatistics{" +
+                "sightings=" + mSightings +
+                ", window=" + mWindow +
+                ", capacity=" + mCapacity +
+                ", admittedCount=" + mAdmittedCount +
+                ", rejectedCount=" + mRejectedCount +
+                ", estimatedDistinctCount=" + mEstimatedDistinctCount +
+                ", falsePositiveRate=" + mFalsePositiveRate +
+                ", memoryBytes=" + mMemoryBytes +
+                '}';
+    }
+}
@@ -0,0 +1,496 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Flyweight view over a raw advertisement (AD structures).
+ * {@link #wrap(byte[], int, int)} indexes the structures in a single pass without copying,
+ * and each field is decoded only when it is accessed.
+ * An instance can be re-wrapped for every scan result, so the view is valid only until the next wrap.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class CBAdvertisementData {
+
+    // Reference
+    //   Bluetooth Assigned Numbers - Generic Access Profile
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_INCOMPLETE_SERVICE_UUIDS_16 = 0x02;
+    public static final int TYPE_COMPLETE_SERVICE_UUIDS_16 = 0x03;
+    public static final int TYPE_INCOMPLETE_SERVICE_UUIDS_32 = 0x04;
+    public static final int TYPE_COMPLETE_SERVICE_UUIDS_32 = 0x05;
+    public static final int TYPE_INCOMPLETE_SERVICE_UUIDS_128 = 0x06;
+    public static final int TYPE_COMPLETE_SERVICE_UUIDS_128 = 0x07;
+    public static final int TYPE_SHORTENED_LOCAL_NAME = 0x08;
+    public static final int TYPE_COMPLETE_LOCAL_NAME = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_SOLICITED_SERVICE_UUIDS_16 = 0x14;
+    public static final int TYPE_SOLICITED_SERVICE_UUIDS_128 = 0x15;
+    public static final int TYPE_SERVICE_DATA_16 = 0x16;
+    public static final int TYPE_SOLICITED_SERVICE_UUIDS_32 = 0x1F;
+    public static final int TYPE_SERVICE_DATA_32 = 0x20;
+    public static final int TYPE_SERVICE_DATA_128 = 0x21;
+    public static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    // ScanResult values of the extended advertising report.
+    static final int PHY_UNUSED = 0;
+    static final int PHY_LE_1M = 1;
+    static final int SID_NOT_PRESENT = 0xFF;
+    static final int PERIODIC_INTERVAL_NOT_PRESENT = 0;
+
+    static final long BASE_UUID_MSB = 0x0000000000001000L;
+    static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private static final int DEFAULT_STRUCTURE_CAPACITY = 16;
+    private static final byte[] EMPTY = new byte[0];
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @NonNull
+    private byte[] mData = EMPTY;
+    private int mOffset;
+    private int mLength;
+    private int mCount;
+    @NonNull
+    private int[] mTypes = new int[DEFAULT_STRUCTURE_CAPACITY];
+    @NonNull
+    private int[] mValueOffsets = new int[DEFAULT_STRUCTURE_CAPACITY];
+    @NonNull
+    private int[] mValueLengths = new int[DEFAULT_STRUCTURE_CAPACITY];
+
+    @Nullable
+    private String mLocalName;
+    private boolean mLocalNameDecoded;
+    @Nullable
+    private List<CBUUID> mServiceUUIDs;
+    @Nullable
+    private byte[] mManufacturerData;
+
+    private int mPrimaryPhy = PHY_LE_1M;
+    private int mSecondaryPhy = PHY_UNUSED;
+    private int mAdvertisingSid = SID_NOT_PRESENT;
+    private int mPeriodicAdvertisingInterval = PERIODIC_INTERVAL_NOT_PRESENT;
+    private boolean mIsLegacy = true;
+
+    public CBAdvertisementData() {
+    }
+
+    public CBAdvertisementData(@NonNull byte[] data) {
+        wrap(data);
+    }
+
+    @NonNull
+    public CBAdvertisementData wrap(@NonNull byte[] data) {
+        return wrap(data, 0, data.length);
+    }
+
+    @NonNull
+    public CBAdvertisementData wrap(@NonNull byte[] data, int offset, int length) {
+        if (0 > offset || 0 > length || data.length < offset + length) {
+            throw new IndexOutOfBoundsException("offset:" + offset + " length:" + length + " size:" + data.length);
+        }
+        mData = data;
+        mOffset = offset;
+        mLength = length;
+        mCount = 0;
+        mLocalName = null;
+        mLocalNameDecoded = false;
+        mServiceUUIDs = null;
+        mManufacturerData = null;
+        mPrimaryPhy = PHY_LE_1M;
+        mSecondaryPhy = PHY_UNUSED;
+        mAdvertisingSid = SID_NOT_PRESENT;
+        mPeriodicAdvertisingInterval = PERIODIC_INTERVAL_NOT_PRESENT;
+        mIsLegacy = true;
+
+        final int end = offset + length;
+        int pos = offset;
+        while (pos < end) {
+            final int structureLength = data[pos] & 0xFF;
+            // A zero length marks the start of the padding.
+            if (0 == structureLength || end < pos + 1 + structureLength) {
+                break;
+            }
+            if (mTypes.length == mCount) {
+                growIndex();
+            }
+            mTypes[mCount] = data[pos + 1] & 0xFF;
+            mValueOffsets[mCount] = pos + 2;
+            mValueLengths[mCount] = structureLength - 1;
+            mCount++;
+            pos += 1 + structureLength;
+        }
+        return this;
+    }
+
+    // Must be called after wrap.
+    void setReport(int primaryPhy, int secondaryPhy, int advertisingSid, int periodicAdvertisingInterval, boolean isLegacy) {
+        mPrimaryPhy = primaryPhy;
+        mSecondaryPhy = secondaryPhy;
+        mAdvertisingSid = advertisingSid;
+        mPeriodicAdvertisingInterval = periodicAdvertisingInterval;
+        mIsLegacy = isLegacy;
+    }
+
+    /**
+     * false for an extended advert, which is only reported when scanning with
+     * {@link CBCentralManagerScanOption#ExtendedAdvertisingKey}.
+     */
+    public boolean isLegacy() {
+        return mIsLegacy;
+    }
+
+    @NonNull
+    public CBPhy primaryPhy() {
+        return CBPhy.valueOf(mPrimaryPhy);
+    }
+
+    /**
+     * {@link CBPhy#Unused} for a legacy advert.
+     */
+    @NonNull
+    public CBPhy secondaryPhy() {
+        return CBPhy.valueOf(mSecondaryPhy);
+    }
+
+    /**
+     * Advertising set ID, 0 to 15, or -1 if not present.
+     */
+    public int advertisingSid() {
+        return SID_NOT_PRESENT == mAdvertisingSid ? -1 : mAdvertisingSid;
+    }
+
+    /**
+     * Periodic advertising interval in units of 1.25 ms, or 0 if the advertiser has no periodic advertising.
+     */
+    public int periodicAdvertisingInterval() {
+        return mPeriodicAdvertisingInterval;
+    }
+
+    // Raw report values, for copying into a CBDiscovery without a lookup.
+    int primaryPhyValue() {
+        return mPrimaryPhy;
+    }
+
+    int secondaryPhyValue() {
+        return mSecondaryPhy;
+    }
+
+    int advertisingSidValue() {
+        return mAdvertisingSid;
+    }
+
+    /**
+     * The wrapped buffer itself, not a copy.
+     */
+    @NonNull
+    public byte[] buffer() {
+        return mData;
+    }
+
+    public int offset() {
+        return mOffset;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    @NonNull
+    public byte[] copyBytes() {
+        if (0 == mLength) {
+            return EMPTY;
+        }
+        byte[] ret = new byte[mLength];
+        System.arraycopy(mData, mOffset, ret, 0, mLength);
+        return ret;
+    }
+
+    public int structureCount() {
+        return mCount;
+    }
+
+    public int structureType(int index) {
+        return mTypes[index];
+    }
+
+    /**
+     * Absolute offset of the structure's value in {@link #buffer()}.
+     */
+    public int structureValueOffset(int index) {
+        return mValueOffsets[index];
+    }
+
+    public int structureValueLength(int index) {
+        return mValueLengths[index];
+    }
+
+    /**
+     * @return index of the first structure of the type, or -1.
+     */
+    public int indexOf(int type) {
+        for (int i = 0; i < mCount; i++) {
+            if (mTypes[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return flags, or -1 if not advertised.
+     */
+    public int flags() {
+        int index = indexOf(TYPE_FLAGS);
+        if (0 > index || 0 == mValueLengths[index]) {
+            return -1;
+        }
+        return mData[mValueOffsets[index]] & 0xFF;
+    }
+
+    @Nullable
+    public String localName() {
+        if (mLocalNameDecoded) {
+            return mLocalName;
+        }
+        mLocalNameDecoded = true;
+        int index = indexOf(TYPE_COMPLETE_LOCAL_NAME);
+        if (0 > index) {
+            index = indexOf(TYPE_SHORTENED_LOCAL_NAME);
+        }
+        if (0 <= index) {
+            mLocalName = new String(mData, mValueOffsets[index], mValueLengths[index], UTF_8);
+        }
+        return mLocalName;
+    }
+
+    /**
+     * TX power level fits in a byte, so the boxed value comes from the Integer cache.
+     */
+    @Nullable
+    public Integer txPowerLevel() {
+        int index = indexOf(TYPE_TX_POWER_LEVEL);
+        if (0 > index || 0 == mValueLengths[index]) {
+            return null;
+        }
+        return (int) mData[mValueOffsets[index]];
+    }
+
+    @NonNull
+    public List<CBUUID> serviceUUIDs() {
+        if (null != mServiceUUIDs) {
+            return mServiceUUIDs;
+        }
+        List<CBUUID> uuids = new ArrayList<>();
+        for (int i = 0; i < mCount; i++) {
+            int width = serviceUuidWidth(mTypes[i]);
+            if (0 == width) {
+                continue;
+            }
+            for (int pos = mValueOffsets[i]; pos + width <= mValueOffsets[i] + mValueLengths[i]; pos += width) {
+                uuids.add(new CBUUID(new UUID(uuidMsb(pos, width), uuidLsb(pos, width))));
+            }
+        }
+        mServiceUUIDs = Collections.unmodifiableList(uuids);
+        return mServiceUUIDs;
+    }
+
+    public boolean containsServiceUUID(@NonNull UUID uuid) {
+        return containsUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), false);
+    }
+
+    public boolean containsSolicitedServiceUUID(@NonNull UUID uuid) {
+        return containsUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), true);
+    }
+
+    /**
+     * @return company identifier, or -1 if not advertised.
+     */
+    public int manufacturerId() {
+        int index = indexOf(TYPE_MANUFACTURER_SPECIFIC_DATA);
+        if (0 > index || 2 > mValueLengths[index]) {
+            return -1;
+        }
+        return readUInt16(mValueOffsets[index]);
+    }
+
+    /**
+     * @return absolute offset of the manufacturer data following the company identifier, or -1.
+     */
+    public int manufacturerDataOffset() {
+        int index = indexOf(TYPE_MANUFACTURER_SPECIFIC_DATA);
+        if (0 > index || 2 > mValueLengths[index]) {
+            return -1;
+        }
+        return mValueOffsets[index] + 2;
+    }
+
+    public int manufacturerDataLength() {
+        int index = indexOf(TYPE_MANUFACTURER_SPECIFIC_DATA);
+        if (0 > index || 2 > mValueLengths[index]) {
+            return 0;
+        }
+        return mValueLengths[index] - 2;
+    }
+
+    @Nullable
+    public byte[] manufacturerData() {
+        if (null != mManufacturerData) {
+            return mManufacturerData;
+        }
+        int offset = manufacturerDataOffset();
+        if (0 > offset) {
+            return null;
+        }
+        mManufacturerData = new byte[manufacturerDataLength()];
+        System.arraycopy(mData, offset, mManufacturerData, 0, mManufacturerData.length);
+        return mManufacturerData;
+    }
+
+    /**
+     * @return absolute offset of the service data following the UUID, or -1.
+     */
+    public int serviceDataOffset(@NonNull UUID uuid) {
+        int index = serviceDataIndex(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (0 > index) {
+            return -1;
+        }
+        return mValueOffsets[index] + serviceDataUuidWidth(mTypes[index]);
+    }
+
+    public int serviceDataLength(@NonNull UUID uuid) {
+        int index = serviceDataIndex(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (0 > index) {
+            return 0;
+        }
+        return mValueLengths[index] - serviceDataUuidWidth(mTypes[index]);
+    }
+
+    @Nullable
+    public byte[] serviceData(@NonNull CBUUID serviceUUID) {
+        UUID uuid = serviceUUID.androidUUID();
+        int offset = serviceDataOffset(uuid);
+        if (0 > offset) {
+            return null;
+        }
+        byte[] ret = new byte[serviceDataLength(uuid)];
+        System.arraycopy(mData, offset, ret, 0, ret.length);
+        return ret;
+    }
+
+    int readUInt16(int absoluteOffset) {
+        return (mData[absoluteOffset] & 0xFF) | ((mData[absoluteOffset + 1] & 0xFF) << 8);
+    }
+
+    int serviceDataIndex(long msb, long lsb) {
+        for (int i = 0; i < mCount; i++) {
+            int width = serviceDataUuidWidth(mTypes[i]);
+            if (0 == width || width > mValueLengths[i]) {
+                continue;
+            }
+            if (uuidMsb(mValueOffsets[i], width) == msb && uuidLsb(mValueOffsets[i], width) == lsb) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean containsUuid(long msb, long lsb, boolean solicited) {
+        for (int i = 0; i < mCount; i++) {
+            int width = solicited ? solicitedUuidWidth(mTypes[i]) : serviceUuidWidth(mTypes[i]);
+            if (0 == width) {
+                continue;
+            }
+            for (int pos = mValueOffsets[i]; pos + width <= mValueOffsets[i] + mValueLengths[i]; pos += width) {
+                if (uuidMsb(pos, width) == msb && uuidLsb(pos, width) == lsb) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private long uuidMsb(int pos, int width) {
+        if (16 == width) {
+            return readInt64(pos + 8);
+        }
+        long value = 2 == width ? readUInt16(pos) : (readUInt16(pos) | ((long) readUInt16(pos + 2) << 16));
+        return (value << 32) | BASE_UUID_MSB;
+    }
+
+    private long uuidLsb(int pos, int width) {
+        if (16 == width) {
+            return readInt64(pos);
+        }
+        return BASE_UUID_LSB;
+    }
+
+    // 128-bit UUIDs are little-endian in the advertisement.
+    private long readInt64(int pos) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (mData[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private void growIndex() {
+        int capacity = mTypes.length * 2;
+        int[] types = new int[capacity];
+        int[] valueOffsets = new int[capacity];
+        int[] valueLengths = new int[capacity];
+        System.arraycopy(mTypes, 0, types, 0, mCount);
+        System.arraycopy(mValueOffsets, 0, valueOffsets, 0, mCount);
+        System.arraycopy(mValueLengths, 0, valueLengths, 0, mCount);
+        mTypes = types;
+        mValueOffsets = valueOffsets;
+        mValueLengths = valueLengths;
+    }
+
+    private static int serviceUuidWidth(int type) {
+        switch (type) {
+            case TYPE_INCOMPLETE_SERVICE_UUIDS_16:
+            case TYPE_COMPLETE_SERVICE_UUIDS_16:
+                return 2;
+            case TYPE_INCOMPLETE_SERVICE_UUIDS_32:
+            case TYPE_COMPLETE_SERVICE_UUIDS_32:
+                return 4;
+            case TYPE_INCOMPLETE_SERVICE_UUIDS_128:
+            case TYPE_COMPLETE_SERVICE_UUIDS_128:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    private static int solicitedUuidWidth(int type) {
+        switch (type) {
+            case TYPE_SOLICITED_SERVICE_UUIDS_16:
+                return 2;
+            case TYPE_SOLICITED_SERVICE_UUIDS_32:
+                return 4;
+            case TYPE_SOLICITED_SERVICE_UUIDS_128:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    private static int serviceDataUuidWidth(int type) {
+        switch (type) {
+            case TYPE_SERVICE_DATA_16:
+                return 2;
+            case TYPE_SERVICE_DATA_32:
+                return 4;
+            case TYPE_SERVICE_DATA_128:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.UUID;
+
+/**
+ * A decoded beacon frame. One instance is reused for every frame delivered to a {@link CBBeaconDelegate},
+ * so the values are valid only during the callback. {@link #copy()} detaches a snapshot.
+ * Accessors for fields the frame type does not carry return 0, -1 or null as documented.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class CBBeacon {
+
+    public static final int MAX_ID_LENGTH = 20;
+    public static final int MAX_URL_LENGTH = 18;
+    // Eddystone-TLM reports 0x8000 when the beacon has no temperature sensor.
+    private static final short TEMPERATURE_NOT_SUPPORTED = (short) 0x8000;
+    private static final String[] URL_SCHEMES = {"http://www.", "https://www.", "http://", "https://"};
+    private static final String[] URL_EXPANSIONS = {
+            ".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+            ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"};
+
+    @Nullable
+    private CBBeaconType mType;
+    @NonNull
+    private final byte[] mId = new byte[MAX_ID_LENGTH];
+    private int mIdLength;
+    private int mTxPower;
+    private int mManufacturerId = -1;
+    private int mManufacturerReserved = -1;
+    @NonNull
+    private final byte[] mUrl = new byte[MAX_URL_LENGTH];
+    private int mUrlLength;
+    private int mBatteryMillivolts;
+    private short mTemperature = TEMPERATURE_NOT_SUPPORTED;
+    private long mAdvertisingCount;
+    private long mUptimeDeciseconds;
+
+    CBBeacon() {
+    }
+
+    void clear() {
+        mType = null;
+        mIdLength = 0;
+        mTxPower = 0;
+        mManufacturerId = -1;
+        mManufacturerReserved = -1;
+        mUrlLength = 0;
+        mBatteryMillivolts = 0;
+        mTemperature = TEMPERATURE_NOT_SUPPORTED;
+        mAdvertisingCount = 0;
+        mUptimeDeciseconds = 0;
+    }
+
+    void setId(@NonNull CBBeaconType type, @NonNull byte[] buf, int offset, int length) {
+        mType = type;
+        System.arraycopy(buf, offset, mId, 0, length);
+        mIdLength = length;
+    }
+
+    void setTxPower(int txPower) {
+        mTxPower = txPower;
+    }
+
+    void setManufacturerId(int manufacturerId) {
+        mManufacturerId = manufacturerId;
+    }
+
+    void setManufacturerReserved(int manufacturerReserved) {
+        mManufacturerReserved = manufacturerReserved;
+    }
+
+    // Scheme byte followed by the encoded URL.
+    void setUrl(@NonNull byte[] buf, int offset, int length) {
+        mType = CBBeaconType.EddystoneUrl;
+        System.arraycopy(buf, offset, mUrl, 0, length);
+        mUrlLength = length;
+    }
+
+    void setTelemetry(int batteryMillivolts, short temperature, long advertisingCount, long uptimeDeciseconds) {
+        mType = CBBeaconType.EddystoneTlm;
+        mBatteryMillivolts = batteryMillivolts;
+        mTemperature = temperature;
+        mAdvertisingCount = advertisingCount;
+        mUptimeDeciseconds = uptimeDeciseconds;
+    }
+
+    @NonNull
+    public CBBeaconType type() {
+        if (null == mType) {
+            throw new IllegalStateException("Not decoded.");
+        }
+        return mType;
+    }
+
+    /**
+     * iBeacon: UUID, major and minor. AltBeacon: the 20-byte beacon ID. Eddystone-UID: namespace and instance.
+     * 0 for other frames.
+     */
+    public int idLength() {
+        return mIdLength;
+    }
+
+    public int idByte(int index) {
+        if (0 > index || mIdLength <= index) {
+            throw new IndexOutOfBoundsException("index:" + index + " length:" + mIdLength);
+        }
+        return mId[index] & 0xFF;
+    }
+
+    @NonNull
+    public byte[] copyId() {
+        byte[] ret = new byte[mIdLength];
+        System.arraycopy(mId, 0, ret, 0, mIdLength);
+        return ret;
+    }
+
+    /**
+     * iBeacon and AltBeacon: the first 16 bytes of the ID as a UUID. null for other frames.
+     * Allocates. Compare with {@link #uuidMostSignificantBits()} and {@link #uuidLeastSignificantBits()} on hot paths.
+     */
+    @Nullable
+    public UUID proximityUUID() {
+        if (!hasProximityUUID()) {
+            return null;
+        }
+        return new UUID(uuidMostSignificantBits(), uuidLeastSignificantBits());
+    }
+
+    public long uuidMostSignificantBits() {
+        return hasProximityUUID() ? readInt64BE(0) : 0;
+    }
+
+    public long uuidLeastSignificantBits() {
+        return hasProximityUUID() ? readInt64BE(8) : 0;
+    }
+
+    /**
+     * iBeacon and AltBeacon. -1 for other frames.
+     */
+    public int major() {
+        return hasProximityUUID() ? CBBeaconDecoders.readUInt16BE(mId, 16) : -1;
+    }
+
+    public int minor() {
+        return hasProximityUUID() ? CBBeaconDecoders.readUInt16BE(mId, 18) : -1;
+    }
+
+    /**
+     * Calibrated power in dBm, measured at 1 m for iBeacon and AltBeacon and at 0 m for Eddystone.
+     * 0 for Eddystone-TLM.
+     */
+    public int txPower() {
+        return mTxPower;
+    }
+
+    /**
+     * AltBeacon and iBeacon. -1 for other frames.
+     */
+    public int manufacturerId() {
+        return mManufacturerId;
+    }
+
+    /**
+     * AltBeacon. -1 for other frames.
+     */
+    public int manufacturerReserved() {
+        return mManufacturerReserved;
+    }
+
+    /**
+     * Eddystone-URL, expanded. Allocates, so call it only when the URL is needed.
+     */
+    @Nullable
+    public String url() {
+        if (CBBeaconType.EddystoneUrl != mType || 0 == mUrlLength) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        final int scheme = mUrl[0] & 0xFF;
+        if (URL_SCHEMES.length > scheme) {
+            sb.append(URL_SCHEMES[scheme]);
+        }
+        for (int i = 1; i < mUrlLength; i++) {
+            final int c = mUrl[i] & 0xFF;
+            if (URL_EXPANSIONS.length > c) {
+                sb.append(URL_EXPANSIONS[c]);
+            } else if (0x20 < c && 0x7F > c) {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Eddystone-TLM. 0 if the beacon is not battery powered or for other frames.
+     */
+    public int batteryMillivolts() {
+        return mBatteryMillivolts;
+    }
+
+    /**
+     * Eddystone-TLM, in degrees Celsius. NaN if not supported or for other frames.
+     */
+    public float temperature() {
+        if (TEMPERATURE_NOT_SUPPORTED == mTemperature) {
+            return Float.NaN;
+        }
+        return mTemperature / 256.0f;
+    }
+
+    /**
+     * Eddystone-TLM. Frames advertised since power-on or reboot.
+     */
+    public long advertisingCount() {
+        return mAdvertisingCount;
+    }
+
+    /**
+     * Eddystone-TLM. Time since power-on or reboot in 0.1 s.
+     */
+    public long uptimeDeciseconds() {
+        return mUptimeDeciseconds;
+    }
+
+    @NonNull
+    public CBBeacon copy() {
+        CBBeacon ret = new CBBeacon();
+        ret.mType = mType;
+        System.arraycopy(mId, 0, ret.mId, 0, mIdLength);
+        ret.mIdLength = mIdLength;
+        ret.mTxPower = mTxPower;
+        ret.mManufacturerId = mManufacturerId;
+        ret.mManufacturerReserved = mManufacturerReserved;
+        System.arraycopy(mUrl, 0, ret.mUrl, 0, mUrlLength);
+        ret.mUrlLength = mUrlLength;
+        ret.mBatteryMillivolts = mBatteryMillivolts;
+        ret.mTemperature = mTemperature;
+        ret.mAdvertisingCount = mAdvertisingCount;
+        ret.mUptimeDeciseconds = mUptimeDeciseconds;
+        return ret;
+    }
+
+    private boolean hasProximityUUID() {
+        return CBBeaconType.IBeacon == mType || CBBeaconType.AltBeacon == mType;
+    }
+
+    private long readInt64BE(int pos) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (mId[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        if (null == mType) {
+            return "CBBeacon{}";
+        }
+        switch (mType) {
+            case IBeacon:
+            case AltBeacon:
+                return "CBBeacon{" +
+                        "type=" + mType +
+                        ", uuid=" + proximityUUID() +
+                        ", major=" + major() +
+                        ", minor=" + minor() +
+                        ", txPower=" + mTxPower +
+                        '}';
+            case EddystoneUrl:
+                return "CBBeacon{" +
+                        "type=" + mType +
+                        ", url=" + url() +
+                        ", txPower=" + mTxPower +
+                        '}';
+            case EddystoneTlm:
+                return "CBBeacon{" +
+                        "type=" + mType +
+                        ", batteryMillivolts=" + mBatteryMillivolts +
+                        ", temperature=" + temperature() +
+                        ", advertisingCount=" + mAdvertisingCount +
+                        ", uptimeDeciseconds=" + mUptimeDeciseconds +
+                        '}';
+            default:
+                StringBuilder id = new StringBuilder();
+                for (int i = 0; i < mIdLength; i++) {
+                    id.append(String.format("%02x", mId[i] & 0xFF));
+                }
+                return "CBBeacon{" +
+                        "type=" + mType +
+                        ", id=" + id +
+                        ", txPower=" + mTxPower +
+                        '}';
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses one beacon format from an advert in place.
+ * Decoders run on the manager thread for every advert routed to the beacon subscription,
+ * so an implementation must read the buffer of the advertisement data directly and must not allocate.
+ *
+ * @see CBCentralManager#subscribeBeacons(List, List, CBBeaconDelegate)
+ */
+public interface CBBeaconDecoder {
+
+    /**
+     * @param beacon cleared before the call. Filled in only when the advert is a frame of this format.
+     * @return true if the advert was decoded into the beacon.
+     */
+    boolean decode(@NonNull CBAdvertisementData advertisementData, @NonNull CBBeacon beacon);
+
+    @NonNull
+    static CBBeaconDecoder iBeacon() {
+        return CBBeaconDecoders.IBEACON;
+    }
+
+    @NonNull
+    static CBBeaconDecoder altBeacon() {
+        return CBBeaconDecoders.ALT_BEACON;
+    }
+
+    // UID, URL and unencrypted TLM frames.
+    @NonNull
+    static CBBeaconDecoder eddystone() {
+        return CBBeaconDecoders.EDDYSTONE;
+    }
+
+    @NonNull
+    static List<CBBeaconDecoder> standard() {
+        List<CBBeaconDecoder> ret = new ArrayList<>();
+        ret.add(iBeacon());
+        ret.add(altBeacon());
+        ret.add(eddystone());
+        return ret;
+    }
+}
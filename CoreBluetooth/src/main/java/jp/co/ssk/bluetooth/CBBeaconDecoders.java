@@ -0,0 +1,115 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import java.util.UUID;
+
+/**
+ * Built-in decoders. Every read is an index into the wrapped buffer, so decoding does not allocate.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBBeaconDecoders {
+
+    // Reference
+    //   Apple Proximity Beacon Specification
+    //   AltBeacon Protocol Specification v1.0
+    //   Eddystone Protocol Specification (github.com/google/eddystone)
+    static final int APPLE_COMPANY_ID = 0x004C;
+    static final UUID EDDYSTONE_SERVICE_UUID = new UUID(
+            (0xFEAAL << 32) | CBAdvertisementData.BASE_UUID_MSB, CBAdvertisementData.BASE_UUID_LSB);
+    static final int EDDYSTONE_FRAME_UID = 0x00;
+    static final int EDDYSTONE_FRAME_URL = 0x10;
+    static final int EDDYSTONE_FRAME_TLM = 0x20;
+
+    static final CBBeaconDecoder IBEACON = CBBeaconDecoders::decodeIBeacon;
+    static final CBBeaconDecoder ALT_BEACON = CBBeaconDecoders::decodeAltBeacon;
+    static final CBBeaconDecoder EDDYSTONE = CBBeaconDecoders::decodeEddystone;
+
+    private CBBeaconDecoders() {
+    }
+
+    // 0x02 0x15, UUID(16), major(2, BE), minor(2, BE), measured power(1)
+    static boolean decodeIBeacon(@NonNull CBAdvertisementData data, @NonNull CBBeacon beacon) {
+        if (APPLE_COMPANY_ID != data.manufacturerId() || 23 > data.manufacturerDataLength()) {
+            return false;
+        }
+        final byte[] buf = data.buffer();
+        final int pos = data.manufacturerDataOffset();
+        if (0x02 != buf[pos] || 0x15 != buf[pos + 1]) {
+            return false;
+        }
+        beacon.setId(CBBeaconType.IBeacon, buf, pos + 2, 20);
+        beacon.setTxPower(buf[pos + 22]);
+        beacon.setManufacturerId(APPLE_COMPANY_ID);
+        return true;
+    }
+
+    // 0xBE 0xAC, beacon ID(20), reference RSSI(1), manufacturer reserved(1)
+    static boolean decodeAltBeacon(@NonNull CBAdvertisementData data, @NonNull CBBeacon beacon) {
+        if (24 > data.manufacturerDataLength()) {
+            return false;
+        }
+        final byte[] buf = data.buffer();
+        final int pos = data.manufacturerDataOffset();
+        if ((byte) 0xBE != buf[pos] || (byte) 0xAC != buf[pos + 1]) {
+            return false;
+        }
+        beacon.setId(CBBeaconType.AltBeacon, buf, pos + 2, 20);
+        beacon.setTxPower(buf[pos + 22]);
+        beacon.setManufacturerId(data.manufacturerId());
+        beacon.setManufacturerReserved(buf[pos + 23] & 0xFF);
+        return true;
+    }
+
+    static boolean decodeEddystone(@NonNull CBAdvertisementData data, @NonNull CBBeacon beacon) {
+        final int pos = data.serviceDataOffset(EDDYSTONE_SERVICE_UUID);
+        if (0 > pos) {
+            return false;
+        }
+        final int length = data.serviceDataLength(EDDYSTONE_SERVICE_UUID);
+        final byte[] buf = data.buffer();
+        if (2 > length) {
+            return false;
+        }
+        switch (buf[pos] & 0xFF) {
+            case EDDYSTONE_FRAME_UID:
+                // frame type, TX power at 0 m(1), namespace(10), instance(6), RFU(2, optional)
+                if (18 > length) {
+                    return false;
+                }
+                beacon.setId(CBBeaconType.EddystoneUid, buf, pos + 2, 16);
+                beacon.setTxPower(buf[pos + 1]);
+                return true;
+            case EDDYSTONE_FRAME_URL:
+                // frame type, TX power at 0 m(1), scheme(1), encoded URL(0..17)
+                if (3 > length || 20 < length) {
+                    return false;
+                }
+                beacon.setUrl(buf, pos + 2, length - 2);
+                beacon.setTxPower(buf[pos + 1]);
+                return true;
+            case EDDYSTONE_FRAME_TLM:
+                // frame type, version(1), VBATT(2), TEMP(2, 8.8), ADV_CNT(4), SEC_CNT(4), all big endian.
+                // Version 1 is encrypted and needs the EID key, so it is not decoded here.
+                if (14 > length || 0x00 != buf[pos + 1]) {
+                    return false;
+                }
+                beacon.setTelemetry(
+                        readUInt16BE(buf, pos + 2),
+                        (short) readUInt16BE(buf, pos + 4),
+                        readUInt32BE(buf, pos + 6),
+                        readUInt32BE(buf, pos + 10));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static int readUInt16BE(@NonNull byte[] buf, int pos) {
+        return ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+    }
+
+    static long readUInt32BE(@NonNull byte[] buf, int pos) {
+        return ((long) readUInt16BE(buf, pos) << 16) | readUInt16BE(buf, pos + 2);
+    }
+}
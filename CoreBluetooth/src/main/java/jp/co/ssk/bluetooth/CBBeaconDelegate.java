@@ -0,0 +1,8 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+public interface CBBeaconDelegate {
+    // Called on the manager thread. The beacon is reused for the next frame, so it must not be retained after this call. Use CBBeacon.copy() to keep it.
+    void didDiscoverBeacon(@NonNull CBCentralManager central, @NonNull CBPeripheral peripheral, @NonNull CBBeacon beacon, int rssi);
+}
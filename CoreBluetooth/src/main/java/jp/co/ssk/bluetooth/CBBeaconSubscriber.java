@@ -0,0 +1,43 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Runs the decoders over each routed advert and reports the first match.
+ * The beacon is reused for every frame, so steady-state decoding does not allocate.
+ * Used only on the manager thread.
+ */
+final class CBBeaconSubscriber implements CBScanSubscription.Subscriber {
+
+    @NonNull
+    private final CBCentralManager mCentral;
+    @NonNull
+    private final CBBeaconDecoder[] mDecoders;
+    @NonNull
+    private final CBBeaconDelegate mDelegate;
+    @NonNull
+    private final CBBeacon mBeacon = new CBBeacon();
+
+    CBBeaconSubscriber(@NonNull CBCentralManager central, @NonNull List<CBBeaconDecoder> decoders, @NonNull CBBeaconDelegate delegate) {
+        if (decoders.isEmpty()) {
+            throw new IllegalArgumentException("decoders must not be empty.");
+        }
+        mCentral = central;
+        mDecoders = decoders.toArray(new CBBeaconDecoder[0]);
+        mDelegate = delegate;
+    }
+
+    @Override
+    public void didDiscover(@NonNull CBScanSubscription subscription, @NonNull CBPeripheral peripheral,
+                            @NonNull CBAdvertisementData advertisementData, int rssi) {
+        for (CBBeaconDecoder decoder : mDecoders) {
+            mBeacon.clear();
+            if (decoder.decode(advertisementData, mBeacon)) {
+                mDelegate.didDiscoverBeacon(mCentral, peripheral, mBeacon, rssi);
+                return;
+            }
+        }
+    }
+}
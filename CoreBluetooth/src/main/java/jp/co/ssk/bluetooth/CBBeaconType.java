@@ -0,0 +1,9 @@
+package jp.co.ssk.bluetooth;
+
+public enum CBBeaconType {
+    IBeacon,
+    AltBeacon,
+    EddystoneUid,
+    EddystoneUrl,
+    EddystoneTlm
+}
@@ -10,7 +10,8 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -20,14 +21,70 @@ import jp.co.ssk.utility.SynchronousCallback;
 @SuppressWarnings({"unused", "WeakerAccess"})
 public class CBCentralManager extends CBManager {
 
+    private static final long SCAN_RETRY_DELAY_MS = 5 * 1000;
+
     @NonNull
-    private final LinkedHashMap<String, CBPeripheral> mPeripherals = new LinkedHashMap<>();
+    private final CBPeripheralRegistry mPeripherals;
     @NonNull
     private final CBCentralManagerDelegate mDelegate;
     @Nullable
     private final CBCentralManagerDebugDelegate mDebugDelegate;
     @NonNull
     private final CBScanner mScanner;
+    @NonNull
+    private final CBPresenceTracker mPresenceTracker;
+    @NonNull
+    private final CBAdvertisementData mAdvertisementData = new CBAdvertisementData();
+    @NonNull
+    private final CBScanRouter mScanRouter = new CBScanRouter();
+    // Forwards the results of scanForPeripherals to the delegate.
+    @NonNull
+    private final CBScanSubscription.Subscriber mDelegateSubscriber = new CBScanSubscription.Subscriber() {
+        @Override
+        public void didDiscover(@NonNull CBScanSubscription subscription, @NonNull CBPeripheral peripheral,
+                                @NonNull CBAdvertisementData advertisementData, int rssi) {
+            if (null != mDiscoveryCoalescer) {
+                mDiscoveryCoalescer.offer(peripheral, advertisementData, rssi, peripheral.discoveredAtNanos());
+                return;
+            }
+            mDelegate.didDiscover(CBCentralManager.this, peripheral, advertisementData, rssi);
+        }
+    };
+    @NonNull
+    private final CBScanSubscription.Subscriber mConnectOnDiscoverSubscriber = new CBScanSubscription.Subscriber() {
+        @Override
+        public void didDiscover(@NonNull CBScanSubscription subscription, @NonNull CBPeripheral peripheral,
+                                @NonNull CBAdvertisementData advertisementData, int rssi) {
+            // Called for every advert of a target. Ignored unless the peripheral is disconnected.
+            peripheral.connectOnDiscover();
+        }
+    };
+    @NonNull
+    private final CBScanOptions mSubscriptionScanOptions = new CBScanOptions(null);
+    // For internal subscriptions that act on every advert.
+    @NonNull
+    private final CBScanOptions mAllowDuplicatesScanOptions = new CBScanOptions(
+            Collections.<CBCentralManagerScanOption, Object>singletonMap(CBCentralManagerScanOption.AllowDuplicatesKey, true));
+    @NonNull
+    private final Runnable mReconfigureScanRunnable = this::_reconfigureScan;
+    // Armed once per scanForPeripherals, so that reconfiguring for other subscriptions does not re-arm it.
+    @NonNull
+    private final Runnable mScanTimeoutRunnable = this::_onScanTimeout;
+    @Nullable
+    private CBScanSubscription mDelegateSubscription;
+    @Nullable
+    private CBScanOptions mDelegateScanOptions;
+    // Non-null while scanForPeripherals runs with CBCentralManagerScanOption.DiscoveryWindowKey.
+    @Nullable
+    private CBDiscoveryCoalescer mDiscoveryCoalescer;
+    // Non-null from a scan with CBCentralManagerScanOption.AdmissionSightingsKey until the next reconfiguration.
+    @Nullable
+    private CBAdmissionFilter mAdmissionFilter;
+    @Nullable
+    private List<CBScanFilter> mActiveScanFilters;
+    @Nullable
+    private CBScanOptions mActiveScanOptions;
+    private boolean mIsReconfiguringScan;
     private final CBPeripheral.PeripheralEventListenerForManager mPeripheralEventListener = new CBPeripheral.PeripheralEventListenerForManager() {
         @Override
         public void didConnect(@NonNull final CBPeripheral peripheral) {
@@ -91,6 +148,12 @@ public class CBCentralManager extends CBManager {
             }
             mDebugDelegate.onGattConnectionStateChanged(CBCentralManager.this, peripheral, newState, status);
         }
+
+        @Override
+        public void didMeasureConnectionLatency(@NonNull final CBPeripheral peripheral, final long discoveredAtNanos, final long requestedAtNanos, final long connectedAtNanos) {
+            // Lock free, so it is recorded on the peripheral thread without posting.
+            mScanner.metrics().onConnected(discoveredAtNanos, requestedAtNanos, connectedAtNanos);
+        }
     };
 
     public CBCentralManager(
@@ -105,17 +168,100 @@ public class CBCentralManager extends CBManager {
             @NonNull CBCentralManagerDelegate delegate,
             @Nullable Looper looper,
             @Nullable CBCentralManagerDebugDelegate debugDelegate) {
+        this(context, delegate, looper, debugDelegate, null);
+    }
+
+    public CBCentralManager(
+            @NonNull Context context,
+            @NonNull CBCentralManagerDelegate delegate,
+            @Nullable Looper looper,
+            @Nullable CBCentralManagerDebugDelegate debugDelegate,
+            @Nullable Map<CBCentralManagerOption, Object> options) {
         super(context, looper);
         mDelegate = delegate;
         mDebugDelegate = debugDelegate;
+        CBCentralManagerOptions centralManagerOptions = new CBCentralManagerOptions(options);
+        mPeripherals = new CBPeripheralRegistry(getHandler().getLooper(),
+                centralManagerOptions.getPeripheralCapacity(), centralManagerOptions.getPeripheralIdleTimeout());
 
         CBScanner.ScanListener scanListener = new CBScanner.ScanListener() {
             @Override
-            void onScan(@NonNull final BluetoothDevice bluetoothDevice, final int rssi, final @NonNull byte[] scanRecord) {
-                _onScan(bluetoothDevice, rssi, scanRecord);
+            void onScan(@NonNull CBScanResult result) {
+                _onScan(result);
+            }
+
+            @Override
+            void onBatchScan(@NonNull List<CBScanResult> results) {
+                _onBatchScan(results);
+            }
+
+            @Override
+            void onScanWindowFinished(@NonNull CBScanWindowStatistics statistics) {
+                mDelegate.didFinishScanWindow(CBCentralManager.this, statistics);
+            }
+
+            @Override
+            void onScanRestStarted() {
+                // Silence during a rest says nothing about presence.
+                mPresenceTracker.pause();
+            }
+
+            @Override
+            void onScanRestFinished() {
+                mPresenceTracker.resume();
+            }
+
+            @Override
+            void onScanStartFailure(@NonNull CBScanner.Reason reason) {
+                mActiveScanFilters = null;
+                if (CBScanner.Reason.StartBudgetExhausted == reason && !mScanRouter.isEmpty()) {
+                    _scheduleScanRetry();
+                } else {
+                    CBLog.e("Scan start failed. reason:" + reason.name());
+                }
+                mPresenceTracker.stop();
+            }
+
+            @Override
+            void onScanStopped(@NonNull CBScanner.Reason reason) {
+                if (mIsReconfiguringScan) {
+                    // Restarted at once, so presence carries over. _reconfigureScan stops it if the scan ends.
+                    return;
+                }
+                // Nothing is seen while not scanning, so silence no longer means absence.
+                mPresenceTracker.stop();
+                mActiveScanFilters = null;
+                mActiveScanOptions = null;
+                switch (reason) {
+                    case StartBudgetExhausted:
+                        // A duty-cycle window or a filter change could not restart the OS scan. The subscriptions stay.
+                        if (!mScanRouter.isEmpty()) {
+                            _scheduleScanRetry();
+                        }
+                        return;
+                    case Timeout:
+                        _onScanTimeout();
+                        return;
+                    case StopRequest:
+                        _scheduleReconfigureScan();
+                        return;
+                    default:
+                        break;
+                }
+                // Stopped by the system, e.g. powered off, so every subscription ends.
+                getHandler().removeCallbacks(mScanTimeoutRunnable);
+                List<CBScanSubscription> subscriptions = mScanRouter.subscriptions();
+                mScanRouter.clear();
+                mDelegateSubscription = null;
+                mDelegateScanOptions = null;
+                _setDiscoveryWindow(0);
+                for (CBScanSubscription subscription : subscriptions) {
+                    subscription.subscriber().didStop(subscription);
+                }
             }
         };
         mScanner = new CBScanner(context, scanListener, getHandler().getLooper());
+        mPresenceTracker = new CBPresenceTracker(getHandler().getLooper(), this::_onLost);
 
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(CBConstants.ACTION_PAIRING_REQUEST);
@@ -157,8 +303,44 @@ public class CBCentralManager extends CBManager {
         return ret;
     }
 
+    @NonNull
+    public EnumMap<CBScanMode, Long> scanModeStatistics() {
+        return mScanner.scanModeStatistics();
+    }
+
+    /**
+     * Scan throughput, drop counts, delivery latency and advert to connected latency. Lock free, so it can be polled from a telemetry thread
+     * without posting to the manager thread.
+     */
+    @NonNull
+    public CBScanMetricsSnapshot scanMetrics() {
+        return mScanner.metricsSnapshot();
+    }
+
+    /**
+     * @return null unless the scan runs with {@link CBCentralManagerScanOption#AdmissionSightingsKey}.
+     */
+    @Nullable
+    public CBAdmissionStatistics admissionStatistics() {
+        if (getHandler().isCurrentThread()) {
+            return null == mAdmissionFilter ? null : mAdmissionFilter.statistics();
+        }
+        final SynchronousCallback<CBAdmissionStatistics> callback = new SynchronousCallback<>();
+        getHandler().post(() -> {
+            callback.setResult(null == mAdmissionFilter ? null : mAdmissionFilter.statistics());
+            callback.unlock();
+        });
+        callback.lock();
+        return callback.getResult();
+    }
+
     public void connect(@NonNull final CBPeripheral peripheral) {
-        getHandler().post(() -> _connect(peripheral));
+        connect(peripheral, null);
+    }
+
+    public void connect(@NonNull final CBPeripheral peripheral, @Nullable Map<CBConnectPeripheralOption, Object> options) {
+        final CBConnectOptions connectOptions = new CBConnectOptions(options);
+        getHandler().post(() -> _connect(peripheral, connectOptions));
     }
 
     public void cancelPeripheralConnection(@NonNull final CBPeripheral peripheral) {
@@ -187,14 +369,127 @@ public class CBCentralManager extends CBManager {
         return peripheral;
     }
 
+    /**
+     * Reports each peripheral once until its advert payload changes, as if AllowDuplicatesKey were false.
+     * Use {@link #scanForPeripherals(List, Map)} with AllowDuplicatesKey true to receive every advert.
+     */
     public void scanForPeripherals(@NonNull final List<CBUUID> serviceUUIDs) {
-        getHandler().post(() -> _scanForPeripherals(serviceUUIDs));
+        scanForPeripherals(serviceUUIDs, null);
+    }
+
+    public void scanForPeripherals(@NonNull final List<CBUUID> serviceUUIDs, @Nullable Map<CBCentralManagerScanOption, Object> options) {
+        List<CBScanFilter> filters = new ArrayList<>();
+        for (CBUUID serviceUUID : serviceUUIDs) {
+            filters.add(CBScanFilter.withServiceUUID(serviceUUID));
+        }
+        scanForPeripheralsWithFilters(filters, options);
+    }
+
+    /**
+     * Filters are handed to the OS, so non-matching adverts never wake the process.
+     * An advert is reported when it matches any of the filters. An empty list matches everything.
+     */
+    public void scanForPeripheralsWithFilters(@NonNull final List<CBScanFilter> filters, @Nullable Map<CBCentralManagerScanOption, Object> options) {
+        final List<CBScanFilter> scanFilters = new ArrayList<>(filters);
+        final CBScanOptions scanOptions = new CBScanOptions(options);
+        getHandler().post(() -> _scanForPeripherals(scanFilters, scanOptions));
     }
 
     public void stopScan() {
         getHandler().post(this::_stopScan);
     }
 
+    /**
+     * Adds a scan consumer with its own filters. All subscriptions and {@link #scanForPeripherals}
+     * share one physical scan filtered by the union of their filters, and each result is delivered
+     * only to the subscriptions it matches.
+     * The scan options given to {@link #scanForPeripheralsWithFilters} apply to the shared scan.
+     * Repeated adverts are suppressed per subscription, with the default duplicate options.
+     *
+     * @param filters an empty list matches every advert.
+     */
+    @NonNull
+    public CBScanSubscription subscribeScan(@NonNull List<CBScanFilter> filters, @NonNull CBScanSubscription.Subscriber subscriber) {
+        return subscribeScan(filters, mSubscriptionScanOptions, subscriber);
+    }
+
+    // The options decide only how the subscription suppresses duplicates.
+    @NonNull
+    CBScanSubscription subscribeScan(@NonNull List<CBScanFilter> filters, @NonNull CBScanOptions options,
+                                     @NonNull CBScanSubscription.Subscriber subscriber) {
+        final CBScanSubscription subscription = new CBScanSubscription(this, new ArrayList<>(filters), options, subscriber);
+        getHandler().post(() -> {
+            if (CBManagerState.PoweredOn != state()) {
+                CBLog.e("Bluetooth not work.");
+                subscriber.didFailToStart(subscription, state());
+                return;
+            }
+            mScanRouter.add(subscription);
+            _scheduleReconfigureScan();
+        });
+        return subscription;
+    }
+
+    /**
+     * Decodes beacon frames from the adverts matching the filters and reports them to the delegate.
+     * The decoders run on the manager thread in the pass that routes the advert, directly over the scan record.
+     * Duplicates are not suppressed for this subscription, so every frame is reported with its RSSI,
+     * as ranging and TLM counters need.
+     *
+     * @param filters  an empty list matches every advert.
+     * @param decoders tried in order. The first that decodes the advert wins. e.g. {@link CBBeaconDecoder#standard()}.
+     */
+    @NonNull
+    public CBScanSubscription subscribeBeacons(@NonNull List<CBScanFilter> filters, @NonNull List<CBBeaconDecoder> decoders,
+                                               @NonNull CBBeaconDelegate delegate) {
+        return subscribeScan(filters, mAllowDuplicatesScanOptions, new CBBeaconSubscriber(this, decoders, delegate));
+    }
+
+    @NonNull
+    public CBScanSubscription subscribeBeacons(@NonNull CBBeaconDelegate delegate) {
+        return subscribeBeacons(new ArrayList<>(), CBBeaconDecoder.standard(), delegate);
+    }
+
+    /**
+     * Connects to a peripheral as soon as an advert matching one of the targets is discovered.
+     * The connection is requested on the manager thread in the pass that routes the advert, which saves
+     * the hop through the delegate. The request then goes to the peripheral's state machine as with
+     * {@link #connect(CBPeripheral)}, which calls connectGatt on the peripheral thread.
+     * Duplicates are not suppressed for this subscription, so a target that is disconnected and still
+     * advertising is connected again on its next advert, until the subscription is cancelled.
+     *
+     * @param targets e.g. filters with {@link CBScanFilter.Builder#setDeviceAddress(String)}.
+     */
+    @NonNull
+    public CBScanSubscription connectOnDiscover(@NonNull List<CBScanFilter> targets) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("targets must not be empty.");
+        }
+        return subscribeScan(targets, mAllowDuplicatesScanOptions, mConnectOnDiscoverSubscriber);
+    }
+
+    /**
+     * Discovery stream with flow control, for consumers that may not keep up with the scan.
+     * Each subscriber joins the shared physical scan with the filters, like {@link #subscribeScan}.
+     *
+     * @param filters  an empty list matches every advert.
+     * @param strategy what to do when a subscriber's queue is full.
+     * @param capacity queue size per subscriber.
+     */
+    @NonNull
+    public CBDiscoveryPublisher discoveries(@NonNull List<CBScanFilter> filters, @NonNull CBOverflowStrategy strategy, int capacity) {
+        return new CBDiscoveryPublisher(this, new ArrayList<>(filters), strategy, capacity);
+    }
+
+    void cancelScanSubscription(@NonNull final CBScanSubscription subscription) {
+        // Always posted, so a subscriber can cancel from inside its own callback.
+        getHandler().post(() -> {
+            if (mScanRouter.remove(subscription)) {
+                _scheduleReconfigureScan();
+            }
+        });
+    }
+
     @Override
     protected void onStateChanged(@NonNull final CBManagerState newState) {
         if (CBManagerState.PoweredOff == newState) {
@@ -206,29 +501,47 @@ public class CBCentralManager extends CBManager {
     }
 
     private void _initPeripherals() {
+        // Nothing is connected right after power on, so the old entries release their threads unless still in use.
         mPeripherals.clear();
         Set<BluetoothDevice> bondedDevices = getAdapter().getBondedDevices();
         if (null != bondedDevices) {
             for (BluetoothDevice bluetoothDevice : bondedDevices) {
-                mPeripherals.put(bluetoothDevice.getAddress(),
-                        new CBPeripheral(getContext(), bluetoothDevice, mPeripheralEventListener, getHandler().getLooper()));
+                mPeripherals.put(new CBPeripheral(getContext(), bluetoothDevice, mPeripheralEventListener, getHandler().getLooper()));
             }
         }
     }
 
     private void _deinitPeripherals() {
-        for (Map.Entry<String, CBPeripheral> entry : mPeripherals.entrySet()) {
-            CBPeripheral peripheral = entry.getValue();
+        for (CBPeripheral peripheral : mPeripherals.peripherals()) {
             peripheral.cancelConnection();
         }
     }
 
-    private void _scanForPeripherals(@NonNull final List<CBUUID> serviceUUIDs) {
+    private void _scanForPeripherals(@NonNull final List<CBScanFilter> filters, @NonNull CBScanOptions options) {
         if (CBManagerState.PoweredOn != state()) {
             CBLog.e("Bluetooth not work.");
             return;
         }
-        mScanner.scanForPeripherals(serviceUUIDs, 0);
+        if (null != mDelegateSubscription) {
+            mScanRouter.remove(mDelegateSubscription);
+        }
+        // SolicitedServiceUUIDsKey widens the match as in CoreBluetooth: an advert passes if it matches a filter
+        // or solicits one of the services. With no filters every advert passes already.
+        final List<CBScanFilter> subscriptionFilters = new ArrayList<>(filters);
+        if (!filters.isEmpty()) {
+            for (CBUUID solicitedServiceUUID : options.getSolicitedServiceUUIDs()) {
+                subscriptionFilters.add(CBScanFilter.withSolicitationUUID(solicitedServiceUUID));
+            }
+        }
+        mDelegateSubscription = new CBScanSubscription(this, subscriptionFilters, options, mDelegateSubscriber);
+        mDelegateScanOptions = options;
+        _setDiscoveryWindow(options.getDiscoveryWindow());
+        mScanRouter.add(mDelegateSubscription);
+        getHandler().removeCallbacks(mScanTimeoutRunnable);
+        if (0 < options.getScanTimeout()) {
+            getHandler().postDelayed(mScanTimeoutRunnable, options.getScanTimeout());
+        }
+        _reconfigureScan();
     }
 
     private void _stopScan() {
@@ -236,20 +549,108 @@ public class CBCentralManager extends CBManager {
             CBLog.w("Bluetooth not work.");
             return;
         }
+        _removeDelegateSubscription();
+        _reconfigureScan();
+    }
+
+    // Only the scanForPeripherals subscription asked for the timeout, so only it expires.
+    private void _onScanTimeout() {
+        CBLog.d("Scan timeout.");
+        _removeDelegateSubscription();
+        _reconfigureScan();
+    }
+
+    private void _removeDelegateSubscription() {
+        getHandler().removeCallbacks(mScanTimeoutRunnable);
+        if (null != mDelegateSubscription) {
+            mScanRouter.remove(mDelegateSubscription);
+            mDelegateSubscription = null;
+            mDelegateScanOptions = null;
+            _setDiscoveryWindow(0);
+        }
+    }
+
+    // Discoveries pending in the previous window were seen while scanning, so they are delivered rather than dropped.
+    private void _setDiscoveryWindow(long window) {
+        if (null != mDiscoveryCoalescer) {
+            mDiscoveryCoalescer.flush();
+            CBLog.d("Coalesced " + mDiscoveryCoalescer.offeredCount() + " discoveries into " + mDiscoveryCoalescer.flushCount() + " callbacks.");
+            mDiscoveryCoalescer = null;
+        }
+        if (0 < window) {
+            mDiscoveryCoalescer = new CBDiscoveryCoalescer(getHandler().getLooper(), window,
+                    discoveries -> mDelegate.didDiscover(this, discoveries));
+        }
+    }
+
+    private void _scheduleScanRetry() {
+        CBLog.w("Scan start deferred. Retry in " + SCAN_RETRY_DELAY_MS + "ms.");
+        getHandler().removeCallbacks(mReconfigureScanRunnable);
+        getHandler().postDelayed(mReconfigureScanRunnable, SCAN_RETRY_DELAY_MS);
+    }
+
+    // Coalesces a burst of subscription changes into one reconfiguration.
+    private void _scheduleReconfigureScan() {
+        getHandler().removeCallbacks(mReconfigureScanRunnable);
+        getHandler().post(mReconfigureScanRunnable);
+    }
+
+    // Brings the physical scan in line with the current subscriptions.
+    private void _reconfigureScan() {
+        getHandler().removeCallbacks(mReconfigureScanRunnable);
+        if (CBManagerState.PoweredOn != state()) {
+            return;
+        }
+        if (mScanRouter.isEmpty()) {
+            mIsReconfiguringScan = true;
+            mScanner.stopScan();
+            mIsReconfiguringScan = false;
+            mPresenceTracker.stop();
+            mActiveScanFilters = null;
+            mActiveScanOptions = null;
+            return;
+        }
+        final List<CBScanFilter> filters = mScanRouter.unionFilters();
+        final CBScanOptions options = null != mDelegateScanOptions ? mDelegateScanOptions : mSubscriptionScanOptions;
+        if (mScanner.isScanning() && filters.equals(mActiveScanFilters) && options == mActiveScanOptions) {
+            return;
+        }
+        CBLog.d("Reconfigure scan. subscriptions:" + mScanRouter.size() + " filters:" + filters);
+        mActiveScanFilters = filters;
+        if (mScanner.isScanning() && options == mActiveScanOptions) {
+            // Only the filters changed, so the duty cycle and the scan mode carry on, and presence with them.
+            mScanner.updateFilters(filters);
+            return;
+        }
+        if (options != mActiveScanOptions) {
+            mAdmissionFilter = options.isAdmissionFiltered() ? new CBAdmissionFilter(options.getAdmissionSightings(),
+                    options.getAdmissionWindow(), options.getAdmissionCapacity()) : null;
+        }
+        mActiveScanOptions = options;
+        mIsReconfiguringScan = true;
         mScanner.stopScan();
+        // The timeout belongs to the scanForPeripherals subscription, not to the shared scan.
+        mScanner.scanForPeripherals(filters, options, 0);
+        mIsReconfiguringScan = false;
+        final long presenceTimeout = options.getPresenceTimeout();
+        if (!mScanner.isScanning() || 0 == presenceTimeout) {
+            mPresenceTracker.stop();
+        } else if (presenceTimeout != mPresenceTracker.timeout()) {
+            // Restarting would forget every address, so only a new timeout does.
+            mPresenceTracker.start(presenceTimeout);
+        }
     }
 
     @Nullable
     private CBPeripheral _retrievePeripherals(@NonNull String address) {
-        CBPeripheral peripheral;
-        if (mPeripherals.containsKey(address)) {
-            peripheral = mPeripherals.get(address);
+        CBPeripheral peripheral = mPeripherals.get(address);
+        if (null != peripheral) {
             CBLog.d("From the cache.");
         } else {
             try {
                 BluetoothDevice bluetoothDevice = getAdapter().getRemoteDevice(address);
                 peripheral = new CBPeripheral(getContext(), bluetoothDevice, mPeripheralEventListener, getHandler().getLooper());
-                mPeripherals.put(address, peripheral);
+                mPeripherals.put(peripheral);
                 CBLog.d("From the OS.");
             } catch (IllegalArgumentException e) {
                 e.printStackTrace();
@@ -259,12 +660,20 @@ public class CBCentralManager extends CBManager {
         return peripheral;
     }
 
-    private void _connect(@NonNull final CBPeripheral peripheral) {
+    private void _connect(@NonNull final CBPeripheral peripheral, @NonNull final CBConnectOptions options) {
         if (CBManagerState.PoweredOn != state()) {
             CBLog.e("Bluetooth not work.");
             return;
         }
-        peripheral.connect();
+        // Tracked again if it was evicted while the app held on to it, so that its broadcasts are delivered.
+        if (peripheral != mPeripherals.get(peripheral.getAddressBits()) && !mPeripherals.put(peripheral)) {
+            // A stale instance, while the registered one for the address is connecting or connected.
+            // Connecting both would open a second GATT client to the same device.
+            CBLog.e("Stale peripheral instance. address:" + peripheral.getAddress());
+            mDelegate.didFailToConnect(this, peripheral);
+            return;
+        }
+        peripheral.connect(options);
     }
 
     private void _cancelPeripheralConnection(@NonNull final CBPeripheral peripheral) {
@@ -275,27 +684,135 @@ public class CBCentralManager extends CBManager {
         peripheral.cancelConnection();
     }
 
-    private void _onScan(@NonNull final BluetoothDevice bluetoothDevice, final int rssi, final @NonNull byte[] scanRecord) {
-        final CBPeripheral peripheral;
-        if (mPeripherals.containsKey(bluetoothDevice.getAddress())) {
-            peripheral = mPeripherals.get(bluetoothDevice.getAddress());
-        } else {
-            CBLog.i("New peripheral detected. address:" + bluetoothDevice.getAddress());
+    // Every routed advert updates admission, RSSI, presence and the discovery time before duplicates are suppressed per subscription.
+    // The peripheral is looked up, or created, only once a subscription wants the advert.
+    private void _onScan(@NonNull CBScanResult result) {
+        if (!_admit(result)) {
+            return;
+        }
+        _wrap(result);
+        mPresenceTracker.onSeen(result.address());
+        final int count = mScanRouter.route(result.address(), mAdvertisementData);
+        if (0 == count) {
+            return;
+        }
+        CBPeripheral peripheral = _peripheralFor(result);
+        _updateRssi(peripheral, result);
+        peripheral.setDiscoveredAt(result.timestampNanos());
+        boolean discovered = false;
+        for (int i = 0; i < count; i++) {
+            CBScanSubscription subscription = mScanRouter.matched(i);
+            if (subscription.isDuplicate(result)) {
+                continue;
+            }
+            if (!discovered) {
+                discovered = true;
+                mScanner.metrics().onDiscovered(result.timestampNanos());
+            }
+            subscription.subscriber().didDiscover(subscription, peripheral, mAdvertisementData, result.rssi());
+        }
+        if (!discovered) {
+            mScanner.metrics().onDuplicate();
+        }
+    }
+
+    private void _onBatchScan(@NonNull List<CBScanResult> results) {
+        List<CBDiscovery> discoveries = new ArrayList<>(results.size());
+        for (CBScanResult result : results) {
+            if (!_admit(result)) {
+                continue;
+            }
+            _wrap(result);
+            mPresenceTracker.onSeen(result.address());
+            final int count = mScanRouter.route(result.address(), mAdvertisementData);
+            if (0 == count) {
+                continue;
+            }
+            CBPeripheral peripheral = _peripheralFor(result);
+            _updateRssi(peripheral, result);
+            peripheral.setDiscoveredAt(result.timestampNanos());
+            boolean discovered = false;
+            for (int i = 0; i < count; i++) {
+                CBScanSubscription subscription = mScanRouter.matched(i);
+                if (subscription.isDuplicate(result)) {
+                    continue;
+                }
+                if (!discovered) {
+                    discovered = true;
+                    mScanner.metrics().onDiscovered(result.timestampNanos());
+                }
+                if (subscription == mDelegateSubscription && null != mDiscoveryCoalescer) {
+                    mDiscoveryCoalescer.offer(peripheral, mAdvertisementData, result.rssi(), result.timestampNanos());
+                } else if (subscription == mDelegateSubscription) {
+                    discoveries.add(new CBDiscovery(peripheral, mAdvertisementData, result.rssi(), result.timestampNanos()));
+                } else {
+                    subscription.subscriber().didDiscover(subscription, peripheral, mAdvertisementData, result.rssi());
+                }
+            }
+            if (!discovered) {
+                mScanner.metrics().onDuplicate();
+            }
+        }
+        if (!discoveries.isEmpty()) {
+            mDelegate.didDiscoverBatch(this, discoveries);
+        }
+    }
+
+    private void _onLost(@NonNull String address) {
+        CBPeripheral peripheral = mPeripherals.get(address);
+        if (null == peripheral) {
+            return;
+        }
+        CBLog.i("Peripheral lost. address:" + address);
+        // Start smoothing afresh if it comes back.
+        peripheral.rssiFilter().reset();
+        mDelegate.didLosePeripheral(this, peripheral);
+    }
+
+    private void _wrap(@NonNull CBScanResult result) {
+        mAdvertisementData.wrap(result.record(), 0, result.recordLength());
+        mAdvertisementData.setReport(result.primaryPhy(), result.secondaryPhy(), result.advertisingSid(),
+                result.periodicAdvertisingInterval(), result.isLegacy());
+    }
+
+    // mAdvertisementData must be wrapped over the result.
+    private void _updateRssi(@NonNull CBPeripheral peripheral, @NonNull CBScanResult result) {
+        // Values in -128..127 are boxed from the Integer cache, so this does not allocate.
+        Integer txPower = mAdvertisementData.txPowerLevel();
+        peripheral.rssiFilter().update(result.rssi(), null == txPower ? CBRssiFilter.UNKNOWN_TX_POWER : txPower);
+    }
+
+    // Registered peripherals bypass the filter, so only the crowd of unknown addresses is counted.
+    private boolean _admit(@NonNull CBScanResult result) {
+        return null == mAdmissionFilter
+                || mPeripherals.containsKey(result.addressBits())
+                || mAdmissionFilter.admit(result.addressBits(), result.timestampNanos() / 1000000);
+    }
+
+    @NonNull
+    private CBPeripheral _peripheralFor(@NonNull CBScanResult result) {
+        CBPeripheral peripheral = mPeripherals.get(result.addressBits());
+        if (null == peripheral) {
+            CBLog.i("New peripheral detected. address:" + result.address());
+            BluetoothDevice bluetoothDevice = result.device();
+            if (null == bluetoothDevice) {
+                bluetoothDevice = getAdapter().getRemoteDevice(result.address());
+            }
             peripheral = new CBPeripheral(getContext(), bluetoothDevice, mPeripheralEventListener, getHandler().getLooper());
-            mPeripherals.put(bluetoothDevice.getAddress(), peripheral);
+            mPeripherals.put(peripheral);
         }
-        mDelegate.didDiscover(this, peripheral, scanRecord, rssi);
+        return peripheral;
     }
 
     private void _onBroadcastReceived(@NonNull Intent intent) {
         BluetoothDevice bluetoothDevice = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
         String address = bluetoothDevice.getAddress();
         String action = intent.getAction();
-        if (!mPeripherals.containsKey(address)) {
+        CBPeripheral peripheral = mPeripherals.get(CBAddress.pack(address));
+        if (null == peripheral) {
             CBLog.w("Ignore the " + action + " broadcast. target:" + address);
             return;
         }
-        CBPeripheral peripheral = mPeripherals.get(address);
         if (CBConstants.ACTION_PAIRING_REQUEST.equals(action)) {
             CBConstants.PairingVariant pairingVariant = CBConstants.PairingVariant.valueOf(
                     intent.getIntExtra(CBConstants.EXTRA_PAIRING_VARIANT, CBConstants.PAIRING_VARIANT_UNKNOWN));
@@ -2,6 +2,8 @@ package jp.co.ssk.bluetooth;
 
 import android.support.annotation.NonNull;
 
+import java.util.List;
+
 public interface CBCentralManagerDelegate {
     void didConnect(@NonNull CBCentralManager central, @NonNull CBPeripheral peripheral);
 
@@ -11,5 +13,40 @@ public interface CBCentralManagerDelegate {
 
     void didDiscover(@NonNull CBCentralManager central, @NonNull CBPeripheral peripheral, @NonNull byte[] advertisementData, int rssi);
 
+    // The view is reused for the next scan result, so it must not be retained after this call.
+    default void didDiscover(@NonNull CBCentralManager central, @NonNull CBPeripheral peripheral, @NonNull CBAdvertisementData advertisementData, int rssi) {
+        didDiscover(central, peripheral, advertisementData.copyBytes(), rssi);
+    }
+
+    // Called once per hardware batch when scanning with CBCentralManagerScanOption.ReportDelayKey.
+    // By default each discovery goes through the view overload with its extended report, as a single discovery does.
+    default void didDiscoverBatch(@NonNull CBCentralManager central, @NonNull List<CBDiscovery> discoveries) {
+        final CBAdvertisementData view = new CBAdvertisementData();
+        for (CBDiscovery discovery : discoveries) {
+            view.wrap(discovery.advertisementData());
+            discovery.applyReport(view);
+            didDiscover(central, discovery.peripheral(), view, discovery.rssi());
+        }
+    }
+
+    // Called once per window when scanning with CBCentralManagerScanOption.DiscoveryWindowKey, with the latest discovery per address in first-seen order.
+    // Forwarded like didDiscoverBatch by default.
+    default void didDiscover(@NonNull CBCentralManager central, @NonNull List<CBDiscovery> discoveries) {
+        final CBAdvertisementData view = new CBAdvertisementData();
+        for (CBDiscovery discovery : discoveries) {
+            view.wrap(discovery.advertisementData());
+            discovery.applyReport(view);
+            didDiscover(central, discovery.peripheral(), view, discovery.rssi());
+        }
+    }
+
+    // Called when a peripheral has not been discovered for CBCentralManagerScanOption.PresenceTimeoutKey.
+    default void didLosePeripheral(@NonNull CBCentralManager central, @NonNull CBPeripheral peripheral) {
+    }
+
+    // Called at the end of every window of a scan duty-cycled with CBCentralManagerScanOption.ScanWindowKey.
+    default void didFinishScanWindow(@NonNull CBCentralManager central, @NonNull CBScanWindowStatistics statistics) {
+    }
+
     void centralManagerDidUpdateState(@NonNull CBCentralManager central, @NonNull CBManagerState newState);
 }
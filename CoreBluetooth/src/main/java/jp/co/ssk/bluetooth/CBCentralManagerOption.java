@@ -0,0 +1,13 @@
+package jp.co.ssk.bluetooth;
+
+public enum CBCentralManagerOption {
+    /**
+     * Android original options.
+     */
+
+    // int. Peripherals kept by the manager. The least recently discovered idle peripheral is evicted beyond this.
+    PeripheralCapacityKey,
+
+    // long milliseconds. An idle peripheral not discovered or used for this long is evicted. 0 disables.
+    PeripheralIdleTimeoutKey,
+}
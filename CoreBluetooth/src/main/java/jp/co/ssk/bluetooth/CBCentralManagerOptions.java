@@ -0,0 +1,52 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+
+final class CBCentralManagerOptions {
+
+    private static final int DEF_PERIPHERAL_CAPACITY = 512;
+    private static final long DEF_PERIPHERAL_IDLE_TIMEOUT = 10 * 60 * 1000;
+    private int mPeripheralCapacity = DEF_PERIPHERAL_CAPACITY;
+    private long mPeripheralIdleTimeout = DEF_PERIPHERAL_IDLE_TIMEOUT;
+
+    CBCentralManagerOptions(@Nullable Map<CBCentralManagerOption, Object> options) {
+        if (null == options) {
+            return;
+        }
+        mPeripheralCapacity = getValue(options, CBCentralManagerOption.PeripheralCapacityKey, Integer.class, DEF_PERIPHERAL_CAPACITY);
+        if (0 >= mPeripheralCapacity) {
+            throw new IllegalArgumentException("PeripheralCapacityKey must be positive.");
+        }
+        mPeripheralIdleTimeout = getValue(options, CBCentralManagerOption.PeripheralIdleTimeoutKey, Long.class, DEF_PERIPHERAL_IDLE_TIMEOUT);
+        if (0 > mPeripheralIdleTimeout) {
+            throw new IllegalArgumentException("PeripheralIdleTimeoutKey must not be negative.");
+        }
+    }
+
+    int getPeripheralCapacity() {
+        return mPeripheralCapacity;
+    }
+
+    long getPeripheralIdleTimeout() {
+        return mPeripheralIdleTimeout;
+    }
+
+    @NonNull
+    private static <T> T getValue(
+            @NonNull Map<CBCentralManagerOption, Object> options,
+            @NonNull CBCentralManagerOption key,
+            @NonNull Class<T> type,
+            @NonNull T defaultValue) {
+        Object value = options.get(key);
+        if (null == value) {
+            return defaultValue;
+        }
+        if (!type.isInstance(value)) {
+            throw new IllegalArgumentException(key.name() + " requires " + type.getSimpleName() + ".");
+        }
+        return type.cast(value);
+    }
+}
@@ -1,6 +1,73 @@
 package jp.co.ssk.bluetooth;
 
 public enum CBCentralManagerScanOption {
+    // boolean
     AllowDuplicatesKey,
+
+    // List<CBUUID>. Matched on the scanner thread since the platform filter cannot express it on this API level.
     SolicitedServiceUUIDsKey,
+
+    /**
+     * Android original options.
+     */
+
+    // int (dB). Re-deliver a duplicate when its RSSI moved at least this much. 0 disables.
+    DuplicatesRssiThresholdKey,
+
+    // int
+    DuplicatesCacheCapacityKey,
+
+    // long (ms). Lets the controller buffer results and deliver them in batches. 0 disables.
+    ReportDelayKey,
+
+    // CBScanMode. The fixed mode, or the initial mode of the adaptive scheduler.
+    ScanModeKey,
+
+    // boolean
+    AdaptiveScanModeKey,
+
+    // List<String> of addresses that the adaptive scheduler waits for.
+    TargetPeripheralsKey,
+
+    // CBScanPredicate evaluated on the scanner thread before a peripheral is created.
+    ScanPredicateKey,
+
+    // long milliseconds of silence after which didLosePeripheral is called. 0 disables tracking. Rests of a duty-cycled scan do not count.
+    PresenceTimeoutKey,
+
+    // java.io.File to record every scan result to, for replay.
+    ScanRecordFileKey,
+
+    // long milliseconds after which the scan stops by itself. 0 scans until stopped.
+    ScanTimeoutKey,
+
+    // long milliseconds. With a positive window the scan is duty-cycled: scan for the window, then rest.
+    ScanWindowKey,
+
+    // long milliseconds of rest between windows.
+    ScanRestKey,
+
+    // long milliseconds. Up to this much is added at random to each rest.
+    ScanJitterKey,
+
+    // boolean. Lengthens the window while new peripherals keep appearing.
+    AdaptiveScanWindowKey,
+
+    // boolean. Also reports BLE 5 extended adverts (ScanSettings.setLegacy(false)). Android 8.0 or later with controller support, ignored otherwise.
+    ExtendedAdvertisingKey,
+
+    // CBPhy to scan on. LECoded scans for long-range adverts. Requires ExtendedAdvertisingKey.
+    ScanPhyKey,
+
+    // long milliseconds. Coalesces discoveries and calls didDiscover(central, List) once per window with the latest per address. 0 delivers each advert.
+    DiscoveryWindowKey,
+
+    // int. A new address reaches the peripheral registry only after this many sightings within AdmissionWindowKey. 0 or 1 disables.
+    AdmissionSightingsKey,
+
+    // long milliseconds over which sightings are counted.
+    AdmissionWindowKey,
+
+    // int distinct addresses expected per window. Sizes the admission filter, which does not grow beyond it.
+    AdmissionCapacityKey,
 }
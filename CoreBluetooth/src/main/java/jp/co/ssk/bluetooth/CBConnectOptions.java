@@ -0,0 +1,45 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+
+final class CBConnectOptions {
+
+    static final int DEFAULT_MTU = 23;
+    static final int MAX_MTU = 517;
+    private static final int DEF_REQUEST_MTU = 0;
+    private int mRequestMtu = DEF_REQUEST_MTU;
+
+    CBConnectOptions(@Nullable Map<CBConnectPeripheralOption, Object> options) {
+        if (null == options) {
+            return;
+        }
+        mRequestMtu = getValue(options, CBConnectPeripheralOption.RequestMtuKey, Integer.class, DEF_REQUEST_MTU);
+        if (0 != mRequestMtu && (DEFAULT_MTU > mRequestMtu || MAX_MTU < mRequestMtu)) {
+            throw new IllegalArgumentException("RequestMtuKey must be 0 or in " + DEFAULT_MTU + ".." + MAX_MTU + ".");
+        }
+    }
+
+    // 0 skips negotiation.
+    int getRequestMtu() {
+        return mRequestMtu;
+    }
+
+    @NonNull
+    private static <T> T getValue(
+            @NonNull Map<CBConnectPeripheralOption, Object> options,
+            @NonNull CBConnectPeripheralOption key,
+            @NonNull Class<T> type,
+            @NonNull T defaultValue) {
+        Object value = options.get(key);
+        if (null == value) {
+            return defaultValue;
+        }
+        if (!type.isInstance(value)) {
+            throw new IllegalArgumentException(key.name() + " requires " + type.getSimpleName() + ".");
+        }
+        return type.cast(value);
+    }
+}
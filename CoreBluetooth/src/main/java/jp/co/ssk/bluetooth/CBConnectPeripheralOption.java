@@ -22,5 +22,8 @@ public enum CBConnectPeripheralOption {
     AutoEnterThePinCodeKey,
 
 
-    StableConnectionKey
+    StableConnectionKey,
+
+    // int. ATT MTU requested once services are discovered, 23 to 517. A refusal keeps the connection at 23. 0 skips negotiation.
+    RequestMtuKey,
 }
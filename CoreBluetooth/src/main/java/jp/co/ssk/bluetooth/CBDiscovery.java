@@ -0,0 +1,117 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class CBDiscovery {
+
+    @NonNull
+    private final CBPeripheral mPeripheral;
+    @NonNull
+    private final byte[] mAdvertisementData;
+    private final int mRssi;
+    private final long mTimestampNanos;
+    // Extended advertising report, as in CBAdvertisementData.
+    private final int mPrimaryPhy;
+    private final int mSecondaryPhy;
+    private final int mAdvertisingSid;
+    private final int mPeriodicAdvertisingInterval;
+    private final boolean mIsLegacy;
+
+    CBDiscovery(@NonNull CBPeripheral peripheral, @NonNull byte[] advertisementData, int rssi, long timestampNanos) {
+        this(peripheral, advertisementData, rssi, timestampNanos, CBAdvertisementData.PHY_LE_1M, CBAdvertisementData.PHY_UNUSED,
+                CBAdvertisementData.SID_NOT_PRESENT, CBAdvertisementData.PERIODIC_INTERVAL_NOT_PRESENT, true);
+    }
+
+    /**
+     * Copies the advert and its report out of the view.
+     */
+    CBDiscovery(@NonNull CBPeripheral peripheral, @NonNull CBAdvertisementData advertisementData, int rssi, long timestampNanos) {
+        this(peripheral, advertisementData.copyBytes(), rssi, timestampNanos,
+                advertisementData.primaryPhyValue(), advertisementData.secondaryPhyValue(), advertisementData.advertisingSidValue(),
+                advertisementData.periodicAdvertisingInterval(), advertisementData.isLegacy());
+    }
+
+    CBDiscovery(@NonNull CBPeripheral peripheral, @NonNull byte[] advertisementData, int rssi, long timestampNanos,
+                int primaryPhy, int secondaryPhy, int advertisingSid, int periodicAdvertisingInterval, boolean isLegacy) {
+        mPeripheral = peripheral;
+        mAdvertisementData = advertisementData;
+        mRssi = rssi;
+        mTimestampNanos = timestampNanos;
+        mPrimaryPhy = primaryPhy;
+        mSecondaryPhy = secondaryPhy;
+        mAdvertisingSid = advertisingSid;
+        mPeriodicAdvertisingInterval = periodicAdvertisingInterval;
+        mIsLegacy = isLegacy;
+    }
+
+    @NonNull
+    public CBPeripheral peripheral() {
+        return mPeripheral;
+    }
+
+    @NonNull
+    public byte[] advertisementData() {
+        return mAdvertisementData;
+    }
+
+    public int rssi() {
+        return mRssi;
+    }
+
+    /**
+     * Elapsed realtime at which the advert was received.
+     */
+    public long timestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * @see CBAdvertisementData#isLegacy()
+     */
+    public boolean isLegacy() {
+        return mIsLegacy;
+    }
+
+    @NonNull
+    public CBPhy primaryPhy() {
+        return CBPhy.valueOf(mPrimaryPhy);
+    }
+
+    /**
+     * {@link CBPhy#Unused} for a legacy advert.
+     */
+    @NonNull
+    public CBPhy secondaryPhy() {
+        return CBPhy.valueOf(mSecondaryPhy);
+    }
+
+    /**
+     * Advertising set ID, 0 to 15, or -1 if not present.
+     */
+    public int advertisingSid() {
+        return CBAdvertisementData.SID_NOT_PRESENT == mAdvertisingSid ? -1 : mAdvertisingSid;
+    }
+
+    /**
+     * Periodic advertising interval in units of 1.25 ms, or 0 if the advertiser has no periodic advertising.
+     */
+    public int periodicAdvertisingInterval() {
+        return mPeriodicAdvertisingInterval;
+    }
+
+    // Sets the report on a view wrapped over advertisementData().
+    void applyReport(@NonNull CBAdvertisementData advertisementData) {
+        advertisementData.setReport(mPrimaryPhy, mSecondaryPhy, mAdvertisingSid, mPeriodicAdvertisingInterval, mIsLegacy);
+    }
+
+    @Override
+    public String toString() {
+        return "CBDiscovery{" +
+                "address=" + mPeripheral.getAddress() +
+                ", rssi=" + mRssi +
+                ", timestampNanos=" + mTimestampNanos +
+                ", legacy=" + mIsLegacy +
+                '}';
+    }
+}
@@ -0,0 +1,136 @@
+package jp.co.ssk.bluetooth;
+
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import jp.co.ssk.utility.Handler;
+
+/**
+ * Collects discoveries over a window and hands over the latest one per address in a single call.
+ * The window opens with the first discovery after a flush, so an idle scan posts nothing.
+ * Pending entries are pooled and their record buffers reused, so a repeat sighting within the window does not allocate.
+ * A flush still allocates a CBDiscovery and a record copy per entry, since the app keeps them.
+ * The pooling only saves the copies a busy address would otherwise make between flushes.
+ * Not thread safe. Used only on the manager thread.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBDiscoveryCoalescer {
+
+    interface Listener {
+        void onFlush(@NonNull List<CBDiscovery> discoveries);
+    }
+
+    @NonNull
+    private final Handler mHandler;
+    @NonNull
+    private final Listener mListener;
+    private final long mWindow;
+    @NonNull
+    private final LinkedHashMap<String, Entry> mPending = new LinkedHashMap<>();
+    @NonNull
+    private final List<Entry> mPool = new ArrayList<>();
+    @NonNull
+    private final Runnable mFlushRunnable = this::flush;
+    private boolean mFlushScheduled;
+    private long mOfferedCount;
+    private long mFlushCount;
+
+    CBDiscoveryCoalescer(@NonNull Looper looper, long window, @NonNull Listener listener) {
+        this(new Handler(looper), window, listener);
+    }
+
+    // Flushes are posted to the handler, whose thread must be the manager thread.
+    CBDiscoveryCoalescer(@NonNull Handler handler, long window, @NonNull Listener listener) {
+        if (0 >= window) {
+            throw new IllegalArgumentException("window must be positive.");
+        }
+        mHandler = handler;
+        mWindow = window;
+        mListener = listener;
+    }
+
+    void offer(@NonNull CBPeripheral peripheral, @NonNull CBAdvertisementData advertisementData, int rssi, long timestampNanos) {
+        Entry entry = mPending.get(peripheral.getAddress());
+        if (null == entry) {
+            entry = mPool.isEmpty() ? new Entry() : mPool.remove(mPool.size() - 1);
+            mPending.put(peripheral.getAddress(), entry);
+        }
+        entry.set(peripheral, advertisementData, rssi, timestampNanos);
+        mOfferedCount++;
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, mWindow);
+        }
+    }
+
+    /**
+     * Delivers the pending discoveries now, if any.
+     */
+    void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushScheduled = false;
+        if (mPending.isEmpty()) {
+            return;
+        }
+        List<CBDiscovery> discoveries = new ArrayList<>(mPending.size());
+        for (Entry entry : mPending.values()) {
+            discoveries.add(entry.toDiscovery());
+            mPool.add(entry);
+        }
+        mPending.clear();
+        mFlushCount++;
+        mListener.onFlush(discoveries);
+    }
+
+    long offeredCount() {
+        return mOfferedCount;
+    }
+
+    long flushCount() {
+        return mFlushCount;
+    }
+
+    private static final class Entry {
+        private CBPeripheral mPeripheral;
+        @NonNull
+        private byte[] mRecord = new byte[62];
+        private int mRecordLength;
+        private int mRssi;
+        private long mTimestampNanos;
+        private int mPrimaryPhy;
+        private int mSecondaryPhy;
+        private int mAdvertisingSid;
+        private int mPeriodicAdvertisingInterval;
+        private boolean mIsLegacy;
+
+        void set(@NonNull CBPeripheral peripheral, @NonNull CBAdvertisementData advertisementData, int rssi, long timestampNanos) {
+            mPeripheral = peripheral;
+            mRecordLength = advertisementData.length();
+            if (mRecord.length < mRecordLength) {
+                mRecord = new byte[mRecordLength];
+            }
+            System.arraycopy(advertisementData.buffer(), advertisementData.offset(), mRecord, 0, mRecordLength);
+            mRssi = rssi;
+            mTimestampNanos = timestampNanos;
+            mPrimaryPhy = advertisementData.primaryPhyValue();
+            mSecondaryPhy = advertisementData.secondaryPhyValue();
+            mAdvertisingSid = advertisementData.advertisingSidValue();
+            mPeriodicAdvertisingInterval = advertisementData.periodicAdvertisingInterval();
+            mIsLegacy = advertisementData.isLegacy();
+        }
+
+        @NonNull
+        CBDiscovery toDiscovery() {
+            byte[] record = new byte[mRecordLength];
+            System.arraycopy(mRecord, 0, record, 0, mRecordLength);
+            CBDiscovery ret = new CBDiscovery(mPeripheral, record, mRssi, mTimestampNanos,
+                    mPrimaryPhy, mSecondaryPhy, mAdvertisingSid, mPeriodicAdvertisingInterval, mIsLegacy);
+            mPeripheral = null;
+            return ret;
+        }
+    }
+}
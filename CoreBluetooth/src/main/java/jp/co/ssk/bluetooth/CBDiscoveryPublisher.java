@@ -0,0 +1,322 @@
+package jp.co.ssk.bluetooth;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.co.ssk.utility.Handler;
+
+/**
+ * Discovery stream with request(n) flow control, modelled on java.util.concurrent.Flow,
+ * which is not available at this API level.
+ * Every subscriber has its own bounded queue and is called on its own thread,
+ * so a slow consumer never holds up the manager thread, connection events or GATT events.
+ * Created by {@link CBCentralManager#discoveries(List, CBOverflowStrategy, int)}.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class CBDiscoveryPublisher {
+
+    public interface Subscriber {
+        void onSubscribe(@NonNull Subscription subscription);
+
+        void onNext(@NonNull CBDiscovery discovery);
+
+        // e.g. the scan could not start because Bluetooth is off, or the Buffer strategy overflowed. The thread is quit after this call.
+        void onError(@NonNull Throwable throwable);
+
+        // Called when the system stops the scan, after the queued discoveries are delivered.
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * Adds n to the outstanding demand. Long.MAX_VALUE means unbounded.
+         */
+        void request(long n);
+
+        void cancel();
+    }
+
+    @NonNull
+    private final CBCentralManager mCentral;
+    @NonNull
+    private final List<CBScanFilter> mFilters;
+    @NonNull
+    private final CBOverflowStrategy mStrategy;
+    private final int mCapacity;
+
+    CBDiscoveryPublisher(@NonNull CBCentralManager central, @NonNull List<CBScanFilter> filters,
+                         @NonNull CBOverflowStrategy strategy, int capacity) {
+        if (0 >= capacity) {
+            throw new IllegalArgumentException("capacity must be positive.");
+        }
+        mCentral = central;
+        mFilters = filters;
+        mStrategy = strategy;
+        mCapacity = capacity;
+    }
+
+    /**
+     * The subscriber is called on a thread of its own.
+     */
+    public void subscribe(@NonNull Subscriber subscriber) {
+        subscribe(subscriber, null);
+    }
+
+    /**
+     * @param looper the looper the subscriber is called on. A dedicated thread is started if null.
+     */
+    public void subscribe(@NonNull Subscriber subscriber, @Nullable Looper looper) {
+        HandlerThread thread = null;
+        if (null == looper) {
+            thread = new HandlerThread("DiscoverySubscriberThread");
+            thread.start();
+            looper = thread.getLooper();
+        }
+        new DiscoverySubscription(subscriber, new Handler(looper), thread).start();
+    }
+
+    // The subscriber is called on the handler's thread.
+    void subscribeOn(@NonNull Subscriber subscriber, @NonNull Handler handler) {
+        new DiscoverySubscription(subscriber, handler, null).start();
+    }
+
+    private final class DiscoverySubscription implements Subscription, CBScanSubscription.Subscriber {
+        @NonNull
+        private final Subscriber mSubscriber;
+        @NonNull
+        private final Handler mHandler;
+        @Nullable
+        private final HandlerThread mThread;
+        @NonNull
+        private final Object mLock = new Object();
+        @NonNull
+        private final Runnable mDrainRunnable = this::_drain;
+        // Guarded by mLock.
+        @NonNull
+        private final ArrayDeque<CBDiscovery> mQueue = new ArrayDeque<>();
+        @NonNull
+        private final LinkedHashMap<String, CBDiscovery> mLatest = new LinkedHashMap<>();
+        private long mRequested;
+        private boolean mDrainScheduled;
+        private boolean mTerminated;
+        private boolean mCompleted;
+        @Nullable
+        private Throwable mError;
+        private long mDroppedCount;
+        @Nullable
+        private CBScanSubscription mScanSubscription;
+
+        // The thread, if any, is quit when the subscription terminates.
+        DiscoverySubscription(@NonNull Subscriber subscriber, @NonNull Handler handler, @Nullable HandlerThread thread) {
+            mSubscriber = subscriber;
+            mHandler = handler;
+            mThread = thread;
+        }
+
+        void start() {
+            mHandler.post(() -> mSubscriber.onSubscribe(this));
+            CBScanSubscription scanSubscription = mCentral.subscribeScan(mFilters, this);
+            synchronized (mLock) {
+                if (!mTerminated && null == mError) {
+                    mScanSubscription = scanSubscription;
+                    return;
+                }
+            }
+            // Cancelled or failed from onSubscribe before the scan subscription was known.
+            scanSubscription.cancel();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (mLock) {
+                if (mTerminated || null != mError) {
+                    return;
+                }
+                if (0 >= n) {
+                    _terminate(new IllegalArgumentException("request must be positive. " + n));
+                    return;
+                }
+                mRequested = Long.MAX_VALUE - mRequested <= n ? Long.MAX_VALUE : mRequested + n;
+                _scheduleDrain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            CBScanSubscription scanSubscription;
+            synchronized (mLock) {
+                if (mTerminated || null != mError) {
+                    return;
+                }
+                mTerminated = true;
+                mQueue.clear();
+                mLatest.clear();
+                scanSubscription = mScanSubscription;
+            }
+            if (null != scanSubscription) {
+                scanSubscription.cancel();
+            }
+            mHandler.post(this::_quit);
+        }
+
+        // Manager thread.
+        @Override
+        public void didDiscover(@NonNull CBScanSubscription subscription, @NonNull CBPeripheral peripheral,
+                                @NonNull CBAdvertisementData advertisementData, int rssi) {
+            synchronized (mLock) {
+                if (mTerminated || null != mError) {
+                    return;
+                }
+                final CBDiscovery discovery = new CBDiscovery(peripheral, advertisementData, rssi, peripheral.discoveredAtNanos());
+                switch (mStrategy) {
+                    case DropOldest:
+                        if (mQueue.size() >= mCapacity) {
+                            mQueue.poll();
+                            mDroppedCount++;
+                        }
+                        mQueue.add(discovery);
+                        break;
+                    case KeepLatestPerAddress:
+                        if (null != mLatest.put(peripheral.getAddress(), discovery)) {
+                            mDroppedCount++;
+                        } else if (mLatest.size() > mCapacity) {
+                            Iterator<Map.Entry<String, CBDiscovery>> it = mLatest.entrySet().iterator();
+                            it.next();
+                            it.remove();
+                            mDroppedCount++;
+                        }
+                        break;
+                    case Buffer:
+                        if (mQueue.size() >= mCapacity) {
+                            _terminate(new IllegalStateException("Discovery buffer overflow. capacity:" + mCapacity));
+                            return;
+                        }
+                        mQueue.add(discovery);
+                        break;
+                }
+                _scheduleDrain();
+            }
+        }
+
+        // Manager thread.
+        @Override
+        public void didStop(@NonNull CBScanSubscription subscription) {
+            synchronized (mLock) {
+                if (mTerminated || null != mError) {
+                    return;
+                }
+                mCompleted = true;
+                _scheduleDrain();
+            }
+        }
+
+        // Manager thread.
+        @Override
+        public void didFailToStart(@NonNull CBScanSubscription subscription, @NonNull CBManagerState state) {
+            synchronized (mLock) {
+                if (mTerminated || null != mError) {
+                    return;
+                }
+                _terminate(new IllegalStateException("Scan not started. state:" + state.name()));
+            }
+        }
+
+        // Must hold mLock.
+        private void _scheduleDrain() {
+            if (!mDrainScheduled) {
+                mDrainScheduled = true;
+                mHandler.post(mDrainRunnable);
+            }
+        }
+
+        // Must hold mLock. The error is delivered by the next drain, ahead of any queued discovery.
+        private void _terminate(@NonNull Throwable error) {
+            mError = error;
+            mQueue.clear();
+            mLatest.clear();
+            if (null != mScanSubscription) {
+                mScanSubscription.cancel();
+            }
+            _scheduleDrain();
+        }
+
+        // Subscriber thread. Callbacks are made outside mLock so that the manager thread never waits on a subscriber.
+        private void _drain() {
+            while (true) {
+                final CBDiscovery discovery;
+                Throwable error = null;
+                boolean complete = false;
+                synchronized (mLock) {
+                    if (null != mError) {
+                        error = mError;
+                        mError = null;
+                        mTerminated = true;
+                        mDrainScheduled = false;
+                        discovery = null;
+                    } else if (mTerminated) {
+                        mDrainScheduled = false;
+                        return;
+                    } else {
+                        discovery = _poll();
+                        if (null == discovery) {
+                            mDrainScheduled = false;
+                            if (!mCompleted || !mQueue.isEmpty() || !mLatest.isEmpty()) {
+                                return;
+                            }
+                            mTerminated = true;
+                            complete = true;
+                        } else if (Long.MAX_VALUE != mRequested) {
+                            mRequested--;
+                        }
+                    }
+                }
+                if (null != error) {
+                    mSubscriber.onError(error);
+                    _quit();
+                    return;
+                }
+                if (complete) {
+                    if (0 < mDroppedCount) {
+                        CBLog.d("Dropped " + mDroppedCount + " discoveries for a slow subscriber.");
+                    }
+                    mSubscriber.onComplete();
+                    _quit();
+                    return;
+                }
+                mSubscriber.onNext(discovery);
+            }
+        }
+
+        // Must hold mLock. Null when there is nothing to deliver or no demand.
+        @Nullable
+        private CBDiscovery _poll() {
+            if (0 == mRequested) {
+                return null;
+            }
+            if (CBOverflowStrategy.KeepLatestPerAddress == mStrategy) {
+                Iterator<Map.Entry<String, CBDiscovery>> it = mLatest.entrySet().iterator();
+                if (!it.hasNext()) {
+                    return null;
+                }
+                CBDiscovery ret = it.next().getValue();
+                it.remove();
+                return ret;
+            }
+            return mQueue.poll();
+        }
+
+        private void _quit() {
+            if (null != mThread) {
+                mThread.quitSafely();
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Open-addressing map from a non-negative long to an object, with linear probing and backward-shift deletion.
+ * Lookups hash the key with a 64-bit finalizer and compare primitives, so they neither box nor allocate.
+ * Not thread safe.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBLongMap<V> {
+
+    private static final long EMPTY = -1L;
+    private static final int MIN_CAPACITY = 16;
+
+    @NonNull
+    private long[] mKeys;
+    @NonNull
+    private Object[] mValues;
+    private int mMask;
+    private int mSize;
+    // Grows when the table is half full, which keeps probe sequences short.
+    private int mThreshold;
+
+    CBLongMap() {
+        this(MIN_CAPACITY);
+    }
+
+    CBLongMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 2 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        for (int i = index(key); ; i = (i + 1) & mMask) {
+            final long k = mKeys[i];
+            if (key == k) {
+                return (V) mValues[i];
+            }
+            if (EMPTY == k) {
+                return null;
+            }
+        }
+    }
+
+    boolean containsKey(long key) {
+        return null != get(key);
+    }
+
+    /**
+     * @return the previous value, or null.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    V put(long key, @NonNull V value) {
+        if (0 > key) {
+            throw new IllegalArgumentException("key must not be negative. " + key);
+        }
+        for (int i = index(key); ; i = (i + 1) & mMask) {
+            final long k = mKeys[i];
+            if (key == k) {
+                V ret = (V) mValues[i];
+                mValues[i] = value;
+                return ret;
+            }
+            if (EMPTY == k) {
+                mKeys[i] = key;
+                mValues[i] = value;
+                if (++mSize > mThreshold) {
+                    rehash(mKeys.length << 1);
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the removed value, or null.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        for (int i = index(key); ; i = (i + 1) & mMask) {
+            final long k = mKeys[i];
+            if (EMPTY == k) {
+                return null;
+            }
+            if (key == k) {
+                V ret = (V) mValues[i];
+                shiftBack(i);
+                mSize--;
+                return ret;
+            }
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < mKeys.length; i++) {
+            mKeys[i] = EMPTY;
+            mValues[i] = null;
+        }
+        mSize = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return 0 == mSize;
+    }
+
+    // Moves the following entries of the probe sequence into the hole, so no tombstones are needed.
+    private void shiftBack(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mMask;
+            final long k = mKeys[i];
+            if (EMPTY == k) {
+                break;
+            }
+            final int home = index(k);
+            // The entry may fill the hole unless its home lies cyclically in (hole, i].
+            if (((i - home) & mMask) >= ((i - hole) & mMask)) {
+                mKeys[hole] = k;
+                mValues[hole] = mValues[i];
+                hole = i;
+            }
+        }
+        mKeys[hole] = EMPTY;
+        mValues[hole] = null;
+    }
+
+    private void rehash(int capacity) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        allocate(capacity);
+        for (int j = 0; j < keys.length; j++) {
+            final long key = keys[j];
+            if (EMPTY == key) {
+                continue;
+            }
+            int i = index(key);
+            while (EMPTY != mKeys[i]) {
+                i = (i + 1) & mMask;
+            }
+            mKeys[i] = key;
+            mValues[i] = values[j];
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mKeys[i] = EMPTY;
+        }
+        mMask = capacity - 1;
+        mThreshold = capacity / 2;
+    }
+
+    private int index(long key) {
+        // MurmurHash3 fmix64. Vendor prefixes make the high octets of nearby addresses alike.
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & mMask;
+    }
+}
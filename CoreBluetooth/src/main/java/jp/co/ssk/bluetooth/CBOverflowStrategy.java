@@ -0,0 +1,15 @@
+package jp.co.ssk.bluetooth;
+
+/**
+ * What a discovery stream does when its subscriber falls behind and the queue is full.
+ *
+ * @see CBDiscoveryPublisher
+ */
+public enum CBOverflowStrategy {
+    // Discards the oldest queued discovery.
+    DropOldest,
+    // Replaces the queued discovery of the same address in place. The capacity bounds the number of addresses.
+    KeepLatestPerAddress,
+    // Terminates the subscription with onError.
+    Buffer
+}
@@ -6,6 +6,7 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.content.Context;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
@@ -20,6 +21,10 @@ import jp.co.ssk.utility.SynchronousCallback;
 public final class CBPeripheral extends AndroidPeripheral {
 
     private static final int EVENT_TIMEOUT = 30 * 1000;
+    // ATT opcode and handle.
+    private static final int ATT_WRITE_HEADER_SIZE = 3;
+    // Longest attribute value. Writes with response up to this are split by the stack into prepared writes.
+    private static final int MAX_ATTRIBUTE_VALUE_LENGTH = 512;
 
     @NonNull
     private final LinkedList<ValueUpdatingEvent> mValueUpdatingEventQueue = new LinkedList<>();
@@ -27,8 +32,21 @@ public final class CBPeripheral extends AndroidPeripheral {
     private final PeripheralEventListenerForManager mPeripheralEventListenerForManager;
     @NonNull
     private final Handler mPeripheralDelegateHandler;
+    // Created with the peripheral thread on first use, and replaced when materialized again after a release.
+    // Kept on release, so code still running on the old thread never sees null. Access through stateMachine() and writeStream().
+    @Nullable
+    private volatile Runtime mRuntime;
+    @NonNull
+    private final CBRssiFilter mRssiFilter = new CBRssiFilter();
+    // Connection latency measurement. Written on the manager thread, read on the peripheral thread.
+    private volatile long mDiscoveredAtNanos;
+    private volatile long mConnectRequestedAtNanos;
+    private volatile boolean mIsConnectOnDiscover;
+    // Mirrors the state machine without a hop to the peripheral thread. Read by the registry on the manager thread.
     @NonNull
-    private final CBPeripheralStateMachine mPeripheralStateMachine;
+    private volatile CBPeripheralState mLastKnownState = CBPeripheralState.Disconnected;
+    // Negotiated ATT MTU. Written on the peripheral thread.
+    private volatile int mMtu = CBConnectOptions.DEFAULT_MTU;
     @NonNull
     private List<CBService> mServices = new ArrayList<>();
     private boolean mIsValueUpdatingEventRunning = false;
@@ -48,13 +66,18 @@ public final class CBPeripheral extends AndroidPeripheral {
         super(context, bluetoothDevice, null);
         mPeripheralEventListenerForManager = peripheralEventListenerForManager;
         mPeripheralDelegateHandler = new Handler(looperOfManager);
+    }
 
+    @Override
+    protected void onMaterialize(@NonNull Looper looper) {
         final CBPeripheralStateMachine.EventListener peripheralStateMachineEventListener = new CBPeripheralStateMachine.EventListener() {
             @Override
             public void didConnect() {
+                _logConnectionLatency();
                 mServices = createCBServices(CBPeripheral.this);
                 mValueUpdatingEventQueue.clear();
                 mIsValueUpdatingEventRunning = false;
+                writeStream().clear();
                 mPeripheralEventListenerForManager.didConnect(CBPeripheral.this);
             }
 
@@ -65,12 +88,14 @@ public final class CBPeripheral extends AndroidPeripheral {
 
             @Override
             public void didDisconnectPeripheral() {
+                writeStream().fail(CBStatusCode.GATT_INTERNAL_ERROR);
+                writeStream().clear();
                 mPeripheralEventListenerForManager.didDisconnectPeripheral(CBPeripheral.this);
             }
 
             @Override
             public void onStateChanged(@NonNull CBPeripheralState newState) {
-                mPeripheralEventListenerForManager.onStateChanged(CBPeripheral.this, newState);
+                onStateMachineStateChanged(newState);
             }
 
             @Override
@@ -79,12 +104,78 @@ public final class CBPeripheral extends AndroidPeripheral {
             }
         };
 
-        mPeripheralStateMachine = new CBPeripheralStateMachine(this, peripheralStateMachineEventListener, getHandler().getLooper());
+        final CBPeripheralStateMachine stateMachine = new CBPeripheralStateMachine(this, peripheralStateMachineEventListener, looper);
+        final CBWriteStream writeStream = new CBWriteStream(looper, CBWriteStream.DEF_CAPACITY, new CBWriteStream.Transport() {
+            @Override
+            public boolean write(@NonNull CBCharacteristic characteristic, @NonNull byte[] value) {
+                final BluetoothGattCharacteristic bluetoothGattCharacteristic = characteristic.getBluetoothGattCharacteristic();
+                bluetoothGattCharacteristic.setValue(value);
+                bluetoothGattCharacteristic.setWriteType(CBCharacteristicWriteType.WithoutResponse.value());
+                return streamCharacteristic(bluetoothGattCharacteristic);
+            }
+
+            @Override
+            public boolean isBusy() {
+                return mIsValueUpdatingEventRunning || !mValueUpdatingEventQueue.isEmpty();
+            }
+
+            @Override
+            public void onIdle() {
+                if (!mValueUpdatingEventQueue.isEmpty()) {
+                    _startValueUpdatingEvent();
+                }
+            }
+
+            @Override
+            public void onReady() {
+                _isReadyToSendWriteWithoutResponse();
+            }
+
+            @Override
+            public void onFailed(@NonNull CBCharacteristic characteristic, int status) {
+                _didWriteValueFor(characteristic, status);
+            }
+        });
+        // One reference, so the state machine and the write stream are always read as a pair.
+        mRuntime = new Runtime(stateMachine, writeStream);
+    }
+
+    @Override
+    protected void onRelease() {
+        mLastKnownState = CBPeripheralState.Disconnected;
+    }
+
+    /**
+     * true if the peripheral may be evicted: never used, or used and back to disconnected.
+     */
+    boolean isIdle() {
+        return !isMaterialized() || CBPeripheralState.Disconnected == mLastKnownState;
+    }
+
+    @NonNull
+    private CBPeripheralStateMachine stateMachine() {
+        return runtime().stateMachine;
+    }
+
+    @NonNull
+    private CBWriteStream writeStream() {
+        return runtime().writeStream;
+    }
+
+    // Materializes on first use. Non-null once materialized, since the runtime is published before the handler.
+    @NonNull
+    private Runtime runtime() {
+        getHandler();
+        Runtime runtime = mRuntime;
+        if (null == runtime) {
+            throw new UnknownError("null == runtime");
+        }
+        return runtime;
     }
 
     public void delegate(@Nullable final CBPeripheralDelegate delegate) {
         CBLog.vMethodIn();
-        getHandler().post(() -> mDelegate = delegate);
+        postWhileInUse(() -> mDelegate = delegate);
     }
 
     public void discoverServices(@NonNull List<CBUUID> serviceUUIDs) {
@@ -99,13 +190,15 @@ public final class CBPeripheral extends AndroidPeripheral {
         if (getHandler().isCurrentThread()) {
             ret = mServices;
         } else {
-            final SynchronousCallback<List<CBService>> callback = new SynchronousCallback<>();
-            getHandler().post(() -> {
-                callback.setResult(mServices);
-                callback.unlock();
+            ret = whileInUse(() -> {
+                final SynchronousCallback<List<CBService>> callback = new SynchronousCallback<>();
+                getHandler().post(() -> {
+                    callback.setResult(mServices);
+                    callback.unlock();
+                });
+                callback.lock();
+                return callback.getResult();
             });
-            callback.lock();
-            ret = callback.getResult();
             if (null == ret) {
                 throw new UnknownError("null == ret");
             }
@@ -121,7 +214,7 @@ public final class CBPeripheral extends AndroidPeripheral {
 
     public void readValue(@NonNull final CBCharacteristic characteristic) {
         CBLog.vMethodIn();
-        getHandler().post(() -> {
+        postWhileInUse(() -> {
             mValueUpdatingEventQueue.add(new ValueUpdatingEvent(ValueUpdatingEvent.Type.ReadCharacteristic, characteristic));
             _startValueUpdatingEvent();
         });
@@ -129,7 +222,7 @@ public final class CBPeripheral extends AndroidPeripheral {
 
     public void readValue(@NonNull final CBDescriptor descriptor) {
         CBLog.vMethodIn();
-        getHandler().post(() -> {
+        postWhileInUse(() -> {
             mValueUpdatingEventQueue.add(new ValueUpdatingEvent(ValueUpdatingEvent.Type.ReadDescriptor, descriptor));
             _startValueUpdatingEvent();
         });
@@ -137,18 +230,65 @@ public final class CBPeripheral extends AndroidPeripheral {
 
     public void writeValue(@NonNull final byte[] data, @NonNull final CBCharacteristic characteristic, @NonNull final CBCharacteristicWriteType type) {
         CBLog.vMethodIn();
-        characteristic.getBluetoothGattCharacteristic().setValue(data);
-        characteristic.getBluetoothGattCharacteristic().setWriteType(type.value());
-        getHandler().post(() -> {
-            mValueUpdatingEventQueue.add(new ValueUpdatingEvent(ValueUpdatingEvent.Type.WriteCharacteristic, characteristic));
+        // Applied when the event is issued, since streamed packets share the characteristic's value.
+        final byte[] value = data.clone();
+        postWhileInUse(() -> {
+            mValueUpdatingEventQueue.add(new ValueUpdatingEvent(ValueUpdatingEvent.Type.WriteCharacteristic, characteristic, value, type.value()));
+            _startValueUpdatingEvent();
+        });
+    }
+
+    /**
+     * Queues a write without response on the streaming lane, which issues packets back to back
+     * rather than one per round trip of the operation queue. Packets keep their order among themselves,
+     * and the operation queue may run between them.
+     * Completions are not reported. A failure empties the lane and is reported once by didWriteValueFor.
+     * A packet longer than {@link #maximumWriteValueLength} for WithoutResponse is truncated by the stack.
+     *
+     * @return false if the lane is full or the peripheral is not connected.
+     * isReadyToSendWriteWithoutResponse is called when a full lane has room again.
+     */
+    public boolean writeValueWithoutResponse(@NonNull final byte[] data, @NonNull final CBCharacteristic characteristic) {
+        if (CBPeripheralState.Connected != mLastKnownState) {
+            return false;
+        }
+        return whileInUse(() -> writeStream().offer(characteristic, data));
+    }
+
+    public boolean canSendWriteWithoutResponse() {
+        return CBPeripheralState.Connected == mLastKnownState && whileInUse(() -> writeStream().hasRoom());
+    }
+
+    /**
+     * Writes a payload of any length as consecutive writes of MTU - 3 bytes,
+     * the MTU being the one in effect when the first chunk is issued.
+     * The chunks occupy one operation queue entry and go out as each write completes, without a round trip through the queue.
+     * didWriteValueFor is called once, after the last chunk or at the first failure.
+     */
+    public void writeValueInChunks(@NonNull final byte[] data, @NonNull final CBCharacteristic characteristic, @NonNull final CBCharacteristicWriteType type) {
+        CBLog.vMethodIn();
+        final byte[] value = data.clone();
+        postWhileInUse(() -> {
+            mValueUpdatingEventQueue.add(new ValueUpdatingEvent(ValueUpdatingEvent.Type.WriteCharacteristicInChunks, characteristic, value, type.value()));
             _startValueUpdatingEvent();
         });
     }
 
+    /**
+     * Longest value a single write of the type carries at the negotiated MTU.
+     * A longer WithResponse value up to 512 bytes is sent by the stack as a prepared write.
+     */
+    public int maximumWriteValueLength(@NonNull CBCharacteristicWriteType type) {
+        if (CBCharacteristicWriteType.WithResponse == type) {
+            return MAX_ATTRIBUTE_VALUE_LENGTH;
+        }
+        return mMtu - ATT_WRITE_HEADER_SIZE;
+    }
+
     public void writeValue(@NonNull final byte[] data, @NonNull final CBDescriptor descriptor) {
         CBLog.vMethodIn();
         descriptor.getBluetoothGattDescriptor().setValue(data);
-        getHandler().post(() -> {
+        postWhileInUse(() -> {
             mValueUpdatingEventQueue.add(new ValueUpdatingEvent(ValueUpdatingEvent.Type.WriteDescriptor, descriptor));
             _startValueUpdatingEvent();
         });
@@ -156,20 +296,68 @@ public final class CBPeripheral extends AndroidPeripheral {
 
     public void setNotifyValue(final boolean enabled, @NonNull final CBCharacteristic characteristic) {
         CBLog.vMethodIn();
-        getHandler().post(() -> {
+        postWhileInUse(() -> {
             mValueUpdatingEventQueue.add(new ValueUpdatingEvent(ValueUpdatingEvent.Type.Notify, characteristic, enabled));
             _startValueUpdatingEvent();
         });
     }
 
+    /**
+     * Exponentially weighted moving average of the advertised RSSI, updated on every discovery.
+     * Safe to call from any thread without blocking.
+     *
+     * @return dBm, or NaN if the peripheral has not been discovered by a scan.
+     */
+    public float smoothedRssi() {
+        return mRssiFilter.mean();
+    }
+
+    /**
+     * May come from a later discovery than {@link #smoothedRssi()}. Use {@link #rssiSnapshot()} for a consistent pair.
+     *
+     * @return dBm squared, or NaN if the peripheral has not been discovered by a scan.
+     */
+    public float rssiVariance() {
+        return mRssiFilter.variance();
+    }
+
+    /**
+     * Smoothed RSSI and its variance from the same discovery.
+     * Safe to call from any thread without blocking.
+     */
+    @NonNull
+    public CBRssiSnapshot rssiSnapshot() {
+        return mRssiFilter.snapshot();
+    }
+
+    /**
+     * Rough distance from the smoothed RSSI and the advertised TX power level.
+     *
+     * @return meters, or NaN if not discovered or the advert carries no TX power level.
+     */
+    public double estimatedDistance() {
+        return mRssiFilter.estimatedDistance();
+    }
+
+    @NonNull
+    CBRssiFilter rssiFilter() {
+        return mRssiFilter;
+    }
+
     @NonNull
     public CBPeripheralState state() {
-        return mPeripheralStateMachine.getState();
+        if (!isMaterialized()) {
+            return CBPeripheralState.Disconnected;
+        }
+        return whileInUse(() -> stateMachine().getState());
     }
 
     @NonNull
     public CBPeripheralDetailedState detailedState() {
-        return mPeripheralStateMachine.getDetailedState();
+        if (!isMaterialized()) {
+            return CBPeripheralDetailedState.Unconnected;
+        }
+        return whileInUse(() -> stateMachine().getDetailedState());
     }
 
     private void _startValueUpdatingEvent() {
@@ -183,11 +371,16 @@ public final class CBPeripheral extends AndroidPeripheral {
             CBLog.d("Value Updating Event Running.");
             return;
         }
+        if (writeStream().isInFlight()) {
+            // Started again when the last streamed packet completes.
+            CBLog.d("Write stream in flight.");
+            return;
+        }
         mIsValueUpdatingEventRunning = true;
 
         ValueUpdatingEvent event = mValueUpdatingEventQueue.peek();
 
-        if (!mPeripheralStateMachine.isConnected()) {
+        if (!stateMachine().isConnected()) {
             CBLog.e("!mPeripheralStateMachine.isConnected()");
             _confirmValueUpdatingEvent(CBStatusCode.GATT_INTERNAL_ERROR);
             return;
@@ -202,8 +395,16 @@ public final class CBPeripheral extends AndroidPeripheral {
                 result = _readValue(event.descriptor);
                 break;
             case WriteCharacteristic:
-                result = _writeValue(event.characteristic);
+                result = _writeValue(event.characteristic, event.bytesArg, event.intArg);
                 break;
+            case WriteCharacteristicInChunks: {
+                // One PDU per chunk whatever the write type, so no chunk needs a prepared write.
+                final int chunkLength = maximumWriteValueLength(CBCharacteristicWriteType.WithoutResponse);
+                CBLog.d("Write " + event.bytesArg.length + " bytes in chunks of " + chunkLength + ".");
+                event.chunk = new byte[Math.min(chunkLength, event.bytesArg.length)];
+                result = _writeNextChunk(event);
+                break;
+            }
             case WriteDescriptor:
                 result = _writeValue(event.descriptor);
                 break;
@@ -241,6 +442,7 @@ public final class CBPeripheral extends AndroidPeripheral {
                 _didUpdateValueFor(event.descriptor, status);
                 break;
             case WriteCharacteristic:
+            case WriteCharacteristicInChunks:
                 _didWriteValueFor(event.characteristic, status);
                 break;
             case WriteDescriptor:
@@ -253,6 +455,8 @@ public final class CBPeripheral extends AndroidPeripheral {
 
         if (!mValueUpdatingEventQueue.isEmpty()) {
             _startValueUpdatingEvent();
+        } else {
+            writeStream().drain();
         }
     }
 
@@ -283,9 +487,13 @@ public final class CBPeripheral extends AndroidPeripheral {
     }
 
     private boolean _writeValue(
-            @NonNull CBCharacteristic characteristic) {
+            @NonNull CBCharacteristic characteristic,
+            @NonNull byte[] value,
+            int writeType) {
         CBLog.vMethodIn(characteristic.uuid().toString());
 
+        characteristic.getBluetoothGattCharacteristic().setValue(value);
+        characteristic.getBluetoothGattCharacteristic().setWriteType(writeType);
         boolean result = writeCharacteristic(characteristic.getBluetoothGattCharacteristic());
         if (!result) {
             CBLog.e("writeCharacteristic() failed.");
@@ -295,6 +503,22 @@ public final class CBPeripheral extends AndroidPeripheral {
         return true;
     }
 
+    // The stack copies the value when the write is issued, so full chunks share one buffer.
+    private boolean _writeNextChunk(@NonNull ValueUpdatingEvent event) {
+        final int length = Math.min(event.chunk.length, event.bytesArg.length - event.offset);
+        final byte[] chunk = length == event.chunk.length ? event.chunk : new byte[length];
+        System.arraycopy(event.bytesArg, event.offset, chunk, 0, length);
+        event.offset += length;
+        final BluetoothGattCharacteristic bluetoothGattCharacteristic = event.characteristic.getBluetoothGattCharacteristic();
+        bluetoothGattCharacteristic.setValue(chunk);
+        bluetoothGattCharacteristic.setWriteType(event.intArg);
+        if (!streamCharacteristic(bluetoothGattCharacteristic)) {
+            CBLog.e("writeCharacteristic() failed. offset:" + (event.offset - length));
+            return false;
+        }
+        return true;
+    }
+
     private boolean _writeValue(
             @NonNull final CBDescriptor descriptor) {
         CBLog.vMethodIn(descriptor.uuid().toString());
@@ -404,6 +628,16 @@ public final class CBPeripheral extends AndroidPeripheral {
         mPeripheralDelegateHandler.post(() -> delegate.didWriteValueFor(CBPeripheral.this, descriptor, status));
     }
 
+    private void _isReadyToSendWriteWithoutResponse() {
+        CBLog.vMethodIn();
+        if (null == mDelegate) {
+            CBLog.w("null == mDelegate");
+            return;
+        }
+        final CBPeripheralDelegate delegate = mDelegate;
+        mPeripheralDelegateHandler.post(() -> delegate.isReadyToSendWriteWithoutResponse(CBPeripheral.this));
+    }
+
     private void _didUpdateNotificationStateFor(@NonNull final CBCharacteristic characteristic, final int status) {
         CBLog.vMethodIn(characteristic.uuid().toString());
         if (null == mDelegate) {
@@ -429,35 +663,38 @@ public final class CBPeripheral extends AndroidPeripheral {
     @Override
     protected void onPairingRequest(@NonNull final CBConstants.PairingVariant variant) {
         CBLog.vMethodIn(variant.name());
-        mPeripheralStateMachine.onPairingRequest(variant);
+        stateMachine().onPairingRequest(variant);
         mPeripheralEventListenerForManager.onPairingRequest(this, variant);
     }
 
     @Override
     protected void onBondStateChanged(@NonNull BondState newState) {
         CBLog.vMethodIn(newState.name());
-        mPeripheralStateMachine.onBondStateChanged(newState);
+        stateMachine().onBondStateChanged(newState);
         mPeripheralEventListenerForManager.onBondStateChanged(this, newState);
     }
 
     @Override
     protected void onAclConnectionStateChanged(@NonNull AclConnectionState newState) {
         CBLog.vMethodIn(newState.name());
-        mPeripheralStateMachine.onAclConnectionStateChanged(newState);
+        stateMachine().onAclConnectionStateChanged(newState);
         mPeripheralEventListenerForManager.onAclConnectionStateChanged(this, newState);
     }
 
     @Override
     protected void onGattConnectionStateChanged(@NonNull GattConnectionState newState, int status) {
         CBLog.vMethodIn(newState.name());
-        mPeripheralStateMachine.onGattConnectionStateChanged(newState, status);
+        if (GattConnectionState.Disconnected == newState) {
+            mMtu = CBConnectOptions.DEFAULT_MTU;
+        }
+        stateMachine().onGattConnectionStateChanged(newState, status);
         mPeripheralEventListenerForManager.onGattConnectionStateChanged(this, newState, status);
     }
 
     @Override
     protected void onServicesDiscovered(int status) {
         CBLog.vMethodIn();
-        mPeripheralStateMachine.onServicesDiscovered(status);
+        stateMachine().onServicesDiscovered(status);
     }
 
     @Override
@@ -474,6 +711,20 @@ public final class CBPeripheral extends AndroidPeripheral {
 
     @Override
     protected void onCharacteristicWrite(@NonNull BluetoothGattCharacteristic bluetoothGattCharacteristic, final int status) {
+        if (writeStream().onWritten(status)) {
+            return;
+        }
+        final ValueUpdatingEvent event = mValueUpdatingEventQueue.peek();
+        if (mIsValueUpdatingEventRunning && null != event && ValueUpdatingEvent.Type.WriteCharacteristicInChunks == event.type
+                && CBStatusCode.GATT_SUCCESS == status && event.offset < event.bytesArg.length) {
+            getHandler().removeCallbacks(mEventTimeoutRunnable);
+            if (!_writeNextChunk(event)) {
+                _confirmValueUpdatingEvent(CBStatusCode.GATT_INTERNAL_ERROR);
+                return;
+            }
+            getHandler().postDelayed(mEventTimeoutRunnable, EVENT_TIMEOUT);
+            return;
+        }
         CBLog.vMethodIn();
         _confirmValueUpdatingEvent(status);
     }
@@ -507,15 +758,76 @@ public final class CBPeripheral extends AndroidPeripheral {
 
     @Override
     protected void onMtuChanged(int mtu, int status) {
+        CBLog.vMethodIn();
+        if (CBStatusCode.GATT_SUCCESS == status) {
+            mMtu = mtu;
+        }
+        stateMachine().onMtuChanged(mtu, status);
+    }
 
+    // Called on the peripheral thread for every state the state machine enters.
+    void onStateMachineStateChanged(@NonNull CBPeripheralState newState) {
+        mLastKnownState = newState;
+        mPeripheralEventListenerForManager.onStateChanged(this, newState);
     }
 
-    void connect() {
-        mPeripheralStateMachine.connect();
+    void connect(@NonNull CBConnectOptions options) {
+        mIsConnectOnDiscover = false;
+        if (CBPeripheralState.Disconnected == mLastKnownState) {
+            mConnectRequestedAtNanos = SystemClock.elapsedRealtimeNanos();
+            // Held until the state machine reports, so the peripheral is not evicted in between.
+            // Only from disconnected: in any other state the state machine ignores Connect and reports nothing.
+            mLastKnownState = CBPeripheralState.Connecting;
+        }
+        stateMachine().connect(options.getRequestMtu());
+    }
+
+    // Called on the manager thread for every advert of a target, without a hop through the delegate.
+    void connectOnDiscover() {
+        if (CBPeripheralState.Disconnected != mLastKnownState) {
+            // Connecting or connected. Most adverts of a target end here.
+            return;
+        }
+        mIsConnectOnDiscover = true;
+        mConnectRequestedAtNanos = SystemClock.elapsedRealtimeNanos();
+        mLastKnownState = CBPeripheralState.Connecting;
+        stateMachine().connect();
+    }
+
+    void setDiscoveredAt(long timestampNanos) {
+        mDiscoveredAtNanos = timestampNanos;
+    }
+
+    long discoveredAtNanos() {
+        return mDiscoveredAtNanos;
+    }
+
+    private void _logConnectionLatency() {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final long requestedAt = mConnectRequestedAtNanos;
+        final long discoveredAt = mDiscoveredAtNanos;
+        if (0 == requestedAt) {
+            return;
+        }
+        final String path = mIsConnectOnDiscover ? "OnDiscover" : "Delegate";
+        if (0 < discoveredAt && discoveredAt <= requestedAt) {
+            CBLog.i("Connection latency(" + path + ")"
+                    + " advert->request:" + (requestedAt - discoveredAt) / 1000000 + "ms"
+                    + " request->connected:" + (now - requestedAt) / 1000000 + "ms"
+                    + " total:" + (now - discoveredAt) / 1000000 + "ms");
+        } else {
+            CBLog.i("Connection latency(" + path + ") request->connected:" + (now - requestedAt) / 1000000 + "ms");
+        }
+        mConnectRequestedAtNanos = 0;
+        mPeripheralEventListenerForManager.didMeasureConnectionLatency(this, discoveredAt, requestedAt, now);
     }
 
     void cancelConnection() {
-        mPeripheralStateMachine.cancelConnection();
+        if (!isMaterialized()) {
+            // Never used, so there is nothing to cancel.
+            return;
+        }
+        stateMachine().cancelConnection();
     }
 
     @NonNull
@@ -534,6 +846,18 @@ public final class CBPeripheral extends AndroidPeripheral {
         }
     }
 
+    private static final class Runtime {
+        @NonNull
+        final CBPeripheralStateMachine stateMachine;
+        @NonNull
+        final CBWriteStream writeStream;
+
+        Runtime(@NonNull CBPeripheralStateMachine stateMachine, @NonNull CBWriteStream writeStream) {
+            this.stateMachine = stateMachine;
+            this.writeStream = writeStream;
+        }
+    }
+
     interface PeripheralEventListenerForManager {
 
         void didConnect(@NonNull CBPeripheral peripheral);
@@ -553,6 +877,9 @@ public final class CBPeripheral extends AndroidPeripheral {
         void onAclConnectionStateChanged(@NonNull CBPeripheral peripheral, @NonNull AclConnectionState aclConnectionState);
 
         void onGattConnectionStateChanged(@NonNull CBPeripheral peripheral, @NonNull GattConnectionState gattConnectionState, int status);
+
+        // Called on the peripheral thread, before didConnect. Timestamps are elapsedRealtimeNanos.
+        void didMeasureConnectionLatency(@NonNull CBPeripheral peripheral, long discoveredAtNanos, long requestedAtNanos, long connectedAtNanos);
     }
 
     private static class ValueUpdatingEvent {
@@ -562,6 +889,10 @@ public final class CBPeripheral extends AndroidPeripheral {
         final CBDescriptor descriptor;
         final byte[] bytesArg;
         final boolean boolArg;
+        final int intArg;
+        // WriteCharacteristicInChunks progress.
+        int offset;
+        byte[] chunk;
 
         ValueUpdatingEvent(@NonNull Type type, @NonNull CBCharacteristic characteristic) {
             this.type = type;
@@ -569,6 +900,7 @@ public final class CBPeripheral extends AndroidPeripheral {
             this.descriptor = null;
             this.bytesArg = null;
             this.boolArg = false;
+            this.intArg = 0;
         }
 
         ValueUpdatingEvent(@NonNull Type type, @NonNull CBCharacteristic characteristic, boolean boolArg) {
@@ -577,6 +909,16 @@ public final class CBPeripheral extends AndroidPeripheral {
             this.descriptor = null;
             this.bytesArg = null;
             this.boolArg = boolArg;
+            this.intArg = 0;
+        }
+
+        ValueUpdatingEvent(@NonNull Type type, @NonNull CBCharacteristic characteristic, @NonNull byte[] bytesArg, int intArg) {
+            this.type = type;
+            this.characteristic = characteristic;
+            this.descriptor = null;
+            this.bytesArg = bytesArg;
+            this.boolArg = false;
+            this.intArg = intArg;
         }
 
         ValueUpdatingEvent(@NonNull Type type, @NonNull CBDescriptor descriptor) {
@@ -585,10 +927,11 @@ public final class CBPeripheral extends AndroidPeripheral {
             this.descriptor = descriptor;
             this.bytesArg = null;
             this.boolArg = false;
+            this.intArg = 0;
         }
 
         enum Type {
-            ReadCharacteristic, ReadDescriptor, WriteCharacteristic, WriteDescriptor, Notify
+            ReadCharacteristic, ReadDescriptor, WriteCharacteristic, WriteCharacteristicInChunks, WriteDescriptor, Notify
         }
     }
 }
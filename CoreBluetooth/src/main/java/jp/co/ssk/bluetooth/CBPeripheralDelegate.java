@@ -22,4 +22,8 @@ public interface CBPeripheralDelegate {
     void didUpdateNotificationStateFor(@NonNull CBPeripheral peripheral, @NonNull CBCharacteristic characteristic, int status/*, Error error*/);
 
     void didReadRSSI(@NonNull CBPeripheral peripheral, int rssi, int status/*, Error error*/);
+
+    // Called when writeValueWithoutResponse has room again after it returned false.
+    default void isReadyToSendWriteWithoutResponse(@NonNull CBPeripheral peripheral) {
+    }
 }
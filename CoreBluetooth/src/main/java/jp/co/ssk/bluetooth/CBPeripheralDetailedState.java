@@ -7,6 +7,7 @@ public enum CBPeripheralDetailedState {
     ConnectionFailed,
     GattConnecting,
     ServiceDiscovering,
+    MtuRequesting,
     ConnectCanceling,
     CleanupConnection,
     ConnectionRetryReady,
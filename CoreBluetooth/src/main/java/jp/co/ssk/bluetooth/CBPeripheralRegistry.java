@@ -0,0 +1,245 @@
+package jp.co.ssk.bluetooth;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.co.ssk.utility.Handler;
+
+/**
+ * Peripherals known to the manager, bounded by capacity and idle time.
+ * Keyed by the packed address in a primitive map, so a lookup per scan result neither hashes a String nor boxes.
+ * Entries are also linked in order of last use, so the eviction scan starts at the stalest entry and
+ * stops at the first one that is neither expired nor over capacity.
+ * A peripheral that is connecting, connected or disconnecting is never evicted.
+ * An evicted peripheral releases its thread and state machine. It materializes again if the app still uses it.
+ * Not thread safe. Used only on the manager thread.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBPeripheralRegistry {
+
+    private static final long MIN_SWEEP_INTERVAL_MS = 1000;
+    private static final long MAX_SWEEP_INTERVAL_MS = 60 * 1000;
+    // Sweeps per idle timeout. Bounds how long an expired entry lingers to 1/SWEEPS_PER_TIMEOUT of the timeout.
+    private static final long SWEEPS_PER_TIMEOUT = 4;
+
+    @NonNull
+    private final Handler mHandler;
+    private final int mCapacity;
+    private final long mIdleTimeout;
+    @NonNull
+    private final CBLongMap<Entry> mEntries;
+    // Least recently used first.
+    @Nullable
+    private Entry mHead;
+    @Nullable
+    private Entry mTail;
+    @NonNull
+    private final Runnable mSweepRunnable = this::_sweep;
+    private boolean mIsSweepScheduled;
+    private long mEvictedCount;
+
+    CBPeripheralRegistry(@NonNull Looper looper, int capacity, long idleTimeout) {
+        if (0 >= capacity) {
+            throw new IllegalArgumentException("capacity must be positive.");
+        }
+        if (0 > idleTimeout) {
+            throw new IllegalArgumentException("idleTimeout must not be negative.");
+        }
+        mHandler = new Handler(looper);
+        mCapacity = capacity;
+        mIdleTimeout = idleTimeout;
+        mEntries = new CBLongMap<>(capacity);
+    }
+
+    /**
+     * Marks the entry as used now.
+     *
+     * @param address packed by {@link CBAddress#pack(String)}.
+     */
+    @Nullable
+    CBPeripheral get(long address) {
+        Entry entry = mEntries.get(address);
+        if (null == entry) {
+            return null;
+        }
+        entry.mLastUsed = SystemClock.elapsedRealtime();
+        _moveToTail(entry);
+        return entry.mPeripheral;
+    }
+
+    @Nullable
+    CBPeripheral get(@NonNull String address) {
+        return get(CBAddress.pack(address));
+    }
+
+    boolean containsKey(long address) {
+        return mEntries.containsKey(address);
+    }
+
+    boolean containsKey(@NonNull String address) {
+        return containsKey(CBAddress.pack(address));
+    }
+
+    /**
+     * A registered instance for the same address is replaced only if it is idle, and is released.
+     *
+     * @return false if another instance for the address is in use, which stays registered.
+     */
+    boolean put(@NonNull CBPeripheral peripheral) {
+        final long address = peripheral.getAddressBits();
+        if (CBAddress.INVALID == address) {
+            throw new IllegalArgumentException("Malformed address. " + peripheral.getAddress());
+        }
+        Entry entry = mEntries.get(address);
+        if (null == entry) {
+            entry = new Entry(address, peripheral);
+            mEntries.put(address, entry);
+        } else if (entry.mPeripheral != peripheral) {
+            if (!entry.mPeripheral.isIdle() || !entry.mPeripheral.release()) {
+                CBLog.w("Another instance of the peripheral is in use. address:" + peripheral.getAddress());
+                return false;
+            }
+            entry.mPeripheral = peripheral;
+        }
+        entry.mLastUsed = SystemClock.elapsedRealtime();
+        _moveToTail(entry);
+        if (mCapacity < mEntries.size()) {
+            _evict(SystemClock.elapsedRealtime());
+        }
+        _scheduleSweep();
+        return true;
+    }
+
+    @NonNull
+    List<CBPeripheral> peripherals() {
+        List<CBPeripheral> ret = new ArrayList<>(mEntries.size());
+        for (Entry entry = mHead; null != entry; entry = entry.mNext) {
+            ret.add(entry.mPeripheral);
+        }
+        return ret;
+    }
+
+    /**
+     * Removes every idle entry and releases the threads, e.g. after the adapter was off.
+     * A peripheral still winding down its connection or in use by an app thread stays.
+     */
+    void clear() {
+        Entry entry = mHead;
+        while (null != entry) {
+            final Entry next = entry.mNext;
+            if (entry.mPeripheral.isIdle() && entry.mPeripheral.release()) {
+                mEntries.remove(entry.mAddress);
+                _unlink(entry);
+            }
+            entry = next;
+        }
+        if (mEntries.isEmpty()) {
+            mHandler.removeCallbacks(mSweepRunnable);
+            mIsSweepScheduled = false;
+        }
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    long evictedCount() {
+        return mEvictedCount;
+    }
+
+    private void _sweep() {
+        mIsSweepScheduled = false;
+        _evict(SystemClock.elapsedRealtime());
+        _scheduleSweep();
+    }
+
+    private void _scheduleSweep() {
+        if (mIsSweepScheduled || 0 == mIdleTimeout || mEntries.isEmpty()) {
+            return;
+        }
+        mIsSweepScheduled = true;
+        mHandler.postDelayed(mSweepRunnable,
+                Math.max(MIN_SWEEP_INTERVAL_MS, Math.min(MAX_SWEEP_INTERVAL_MS, mIdleTimeout / SWEEPS_PER_TIMEOUT)));
+    }
+
+    private void _evict(long now) {
+        int evicted = 0;
+        Entry entry = mHead;
+        while (null != entry) {
+            final Entry next = entry.mNext;
+            final boolean isExpired = 0 < mIdleTimeout && mIdleTimeout <= now - entry.mLastUsed;
+            if (!isExpired && mCapacity >= mEntries.size()) {
+                // Everything after this entry was used more recently.
+                break;
+            }
+            if (null == next) {
+                // The most recently used entry stays, or a new peripheral would be evicted as it is returned.
+                break;
+            }
+            if (entry.mPeripheral.isIdle() && entry.mPeripheral.release()) {
+                mEntries.remove(entry.mAddress);
+                _unlink(entry);
+                evicted++;
+            }
+            entry = next;
+        }
+        if (0 < evicted) {
+            mEvictedCount += evicted;
+            CBLog.d("Evicted " + evicted + " peripherals. size:" + mEntries.size());
+        }
+        if (mCapacity < mEntries.size()) {
+            CBLog.w("Peripheral registry over capacity because " + mEntries.size() + " peripherals are in use.");
+        }
+    }
+
+    private void _moveToTail(@NonNull Entry entry) {
+        if (mTail == entry) {
+            return;
+        }
+        _unlink(entry);
+        entry.mPrev = mTail;
+        if (null == mTail) {
+            mHead = entry;
+        } else {
+            mTail.mNext = entry;
+        }
+        mTail = entry;
+    }
+
+    // Also safe for an entry that is not linked yet.
+    private void _unlink(@NonNull Entry entry) {
+        if (null != entry.mPrev) {
+            entry.mPrev.mNext = entry.mNext;
+        } else if (mHead == entry) {
+            mHead = entry.mNext;
+        }
+        if (null != entry.mNext) {
+            entry.mNext.mPrev = entry.mPrev;
+        } else if (mTail == entry) {
+            mTail = entry.mPrev;
+        }
+        entry.mPrev = null;
+        entry.mNext = null;
+    }
+
+    private static final class Entry {
+        private final long mAddress;
+        @NonNull
+        private CBPeripheral mPeripheral;
+        private long mLastUsed;
+        @Nullable
+        private Entry mPrev;
+        @Nullable
+        private Entry mNext;
+
+        Entry(long address, @NonNull CBPeripheral peripheral) {
+            mAddress = address;
+            mPeripheral = peripheral;
+        }
+    }
+}
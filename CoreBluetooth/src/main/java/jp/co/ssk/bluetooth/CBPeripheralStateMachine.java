@@ -24,6 +24,7 @@ final class CBPeripheralStateMachine extends StateMachine {
         sStateMap.put(CBPeripheralDetailedState.ConnectionFailed, CBPeripheralState.Disconnected);
         sStateMap.put(CBPeripheralDetailedState.GattConnecting, CBPeripheralState.Connecting);
         sStateMap.put(CBPeripheralDetailedState.ServiceDiscovering, CBPeripheralState.Connecting);
+        sStateMap.put(CBPeripheralDetailedState.MtuRequesting, CBPeripheralState.Connecting);
         sStateMap.put(CBPeripheralDetailedState.ConnectCanceling, CBPeripheralState.Connecting);
         sStateMap.put(CBPeripheralDetailedState.CleanupConnection, CBPeripheralState.Connecting);
         sStateMap.put(CBPeripheralDetailedState.ConnectionRetryReady, CBPeripheralState.Connecting);
@@ -36,6 +37,7 @@ final class CBPeripheralStateMachine extends StateMachine {
     private final State mConnectionFailedState = new ConnectionFailedState();
     private final State mGattConnectingState = new GattConnectingState();
     private final State mServiceDiscoveringState = new ServicesDiscoveringState();
+    private final State mMtuRequestingState = new MtuRequestingState();
     private final State mConnectCancelingState = new ConnectCancelingState();
     private final State mCleanupConnectionState = new CleanupConnectionState();
     private final State mConnectionRetryReadyState = new ConnectionRetryReadyState();
@@ -48,6 +50,8 @@ final class CBPeripheralStateMachine extends StateMachine {
     @NonNull
     private final CBConfig mConfig;
     private int mConnectionRetryCount;
+    // Set by connect and kept across retries. 0 skips MtuRequestingState.
+    private int mRequestMtu;
     private boolean mIsShowPairingDialog;
     @NonNull
     private CBPeripheralState mState;
@@ -81,6 +85,7 @@ final class CBPeripheralStateMachine extends StateMachine {
         addState(connectingState, defaultState);
         addState(mGattConnectingState, connectingState);
         addState(mServiceDiscoveringState, connectingState);
+        addState(mMtuRequestingState, connectingState);
         addState(mConnectCancelingState, connectingState);
         addState(mCleanupConnectionState, connectingState);
         addState(mConnectionRetryReadyState, connectingState);
@@ -158,7 +163,14 @@ final class CBPeripheralStateMachine extends StateMachine {
     }
 
     void connect() {
-        sendMessageSyncIf(Event.Connect.ordinal());
+        connect(0);
+    }
+
+    /**
+     * @param requestMtu ATT MTU to negotiate once services are discovered. 0 skips negotiation.
+     */
+    void connect(int requestMtu) {
+        sendMessageSyncIf(Event.Connect.ordinal(), requestMtu);
     }
 
     void cancelConnection() {
@@ -219,6 +231,14 @@ final class CBPeripheralStateMachine extends StateMachine {
         }
     }
 
+    void onMtuChanged(int mtu, int status) {
+        if (CBStatusCode.GATT_SUCCESS == status) {
+            sendMessageSyncIf(Event.MtuChangeSuccess.ordinal(), mtu);
+        } else {
+            sendMessageSyncIf(Event.MtuChangeFailure.ordinal(), status);
+        }
+    }
+
     @Override
     protected void outputProcessMessageLogTrigger(@NonNull String currentStateName, @NonNull Message msg) {
         CBLog.d("processMessage: " + currentStateName + " " + Event.values()[msg.what]);
@@ -265,7 +285,7 @@ final class CBPeripheralStateMachine extends StateMachine {
         Yes, No
     }
 
-    private enum Event {
+    enum Event {
         Connect,
         CancelConnection,
         PairingRequest,
@@ -278,6 +298,8 @@ final class CBPeripheralStateMachine extends StateMachine {
         GattDisconnected,
         DiscoverServicesSuccess,
         DiscoverServicesFailure,
+        MtuChangeSuccess,
+        MtuChangeFailure,
 
         GattConnectingTimeout,
         GattConnectionStabled,
@@ -288,6 +310,8 @@ final class CBPeripheralStateMachine extends StateMachine {
         ExecDiscoverServices,
         ServicesDiscoveringTimeout,
 
+        MtuRequestingTimeout,
+
         ConnectCancelingTimeout,
 
         GattClosed,
@@ -335,6 +359,7 @@ final class CBPeripheralStateMachine extends StateMachine {
         public boolean processMessage(@NonNull CBPeripheralStateMachine owner, @NonNull Message msg) {
             switch (Event.values()[msg.what]) {
                 case Connect:
+                    owner.mRequestMtu = null == msg.obj ? 0 : (Integer) msg.obj;
                     owner.transitionTo(owner.mGattConnectingState);
                     break;
                 default:
@@ -423,8 +448,11 @@ final class CBPeripheralStateMachine extends StateMachine {
             if (owner.mConfig.isUseCreateBond() && !owner.getPeripheral().isBonded()) {
                 mNeedPairing = true;
                 owner.sendMessage(Event.RequireCreateBond.ordinal());
+                owner.sendMessage(Event.RequireConnectGatt.ordinal());
+            } else if (!owner.getPeripheral().connectGatt()) {
+                // Nothing has to precede connectGatt, so it is issued without another message hop.
+                owner.sendMessage(Event.UnknownError.ordinal());
             }
-            owner.sendMessage(Event.RequireConnectGatt.ordinal());
             owner.sendMessageDelayed(Event.GattConnectingTimeout.ordinal(), GATT_CONNECTING_TIMEOUT_MS);
         }
 
@@ -550,7 +578,7 @@ final class CBPeripheralStateMachine extends StateMachine {
                     owner.removeMessages(Event.ExecDiscoverServices.ordinal());
                     if (verifyServices(owner)) {
                         CBLog.i("Discover services success.");
-                        owner.transitionTo(owner.mConnectedState);
+                        owner.transitionTo(0 < owner.mRequestMtu ? owner.mMtuRequestingState : owner.mConnectedState);
                     } else {
                         CBLog.e("Verify services failed.");
                         owner.mConnectionRetry = ConnectionRetry.Yes;
@@ -598,6 +626,48 @@ final class CBPeripheralStateMachine extends StateMachine {
         }
     }
 
+    // The connection is usable at the default MTU, so a refusal or a timeout still completes the connection.
+    static class MtuRequestingState extends State<CBPeripheralStateMachine> {
+
+        static final long MTU_REQUESTING_TIMEOUT_MS = 5 * 1000;
+
+        @Override
+        public void enter(@NonNull CBPeripheralStateMachine owner) {
+            owner.setDetailedState(CBPeripheralDetailedState.MtuRequesting);
+            if (!owner.getPeripheral().requestMtu(owner.mRequestMtu)) {
+                owner.sendMessage(Event.MtuChangeFailure.ordinal(), CBStatusCode.GATT_INTERNAL_ERROR);
+                return;
+            }
+            owner.sendMessageDelayed(Event.MtuRequestingTimeout.ordinal(), MTU_REQUESTING_TIMEOUT_MS);
+        }
+
+        @Override
+        public void exit(@NonNull CBPeripheralStateMachine owner) {
+            owner.removeMessages(Event.MtuRequestingTimeout.ordinal());
+        }
+
+        @Override
+        public boolean processMessage(@NonNull CBPeripheralStateMachine owner, @NonNull Message msg) {
+            switch (Event.values()[msg.what]) {
+                case MtuChangeSuccess:
+                    CBLog.i("MTU changed. mtu:" + msg.obj);
+                    owner.transitionTo(owner.mConnectedState);
+                    break;
+                case MtuChangeFailure:
+                    CBLog.w("MTU change failed. status:" + msg.obj);
+                    owner.transitionTo(owner.mConnectedState);
+                    break;
+                case MtuRequestingTimeout:
+                    CBLog.w("MTU requesting timeout.");
+                    owner.transitionTo(owner.mConnectedState);
+                    break;
+                default:
+                    return StateMachine.NOT_HANDLED;
+            }
+            return StateMachine.HANDLED;
+        }
+    }
+
     private static class ConnectCancelingState extends State<CBPeripheralStateMachine> {
 
         private static final long CONNECT_CANCELING_TIMEOUT_MS = 15 * 1000;
@@ -0,0 +1,33 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+// Values of BluetoothDevice.PHY_LE_* and ScanSettings.PHY_LE_ALL_SUPPORTED.
+public enum CBPhy {
+    // No secondary advertising channel, i.e. a legacy advert.
+    Unused(0),
+    LE1M(1),
+    LE2M(2),
+    LECoded(3),
+    // Scan only. Scans on every PHY the controller supports.
+    AllSupported(255);
+    int value;
+
+    CBPhy(int value) {
+        this.value = value;
+    }
+
+    int value() {
+        return this.value;
+    }
+
+    @NonNull
+    static CBPhy valueOf(int value) {
+        for (CBPhy phy : values()) {
+            if (phy.value == value) {
+                return phy;
+            }
+        }
+        return Unused;
+    }
+}
@@ -0,0 +1,251 @@
+package jp.co.ssk.bluetooth;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+
+import jp.co.ssk.utility.Handler;
+
+/**
+ * Reports addresses that have not been seen for the silence window.
+ * Expiry is driven by a hashed timing wheel with a single tick runnable, so a sighting is O(1)
+ * and a tick touches only one bucket regardless of how many devices are tracked.
+ * A sighting only updates the last-seen time. The entry is rescheduled lazily when its bucket fires.
+ * While paused, e.g. during a duty-cycle rest, silence does not count toward the window.
+ * Not thread safe. Used only on the manager thread.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBPresenceTracker {
+
+    interface Listener {
+        void onLost(@NonNull String address);
+    }
+
+    private static final int WHEEL_SIZE = 512;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final long MIN_TICK_MS = 50;
+    private static final long MAX_TICK_MS = 1000;
+    // Ticks per silence window. Bounds how late a loss is reported to 1/TICKS_PER_TIMEOUT of the window.
+    private static final long TICKS_PER_TIMEOUT = 8;
+
+    @NonNull
+    private final Handler mHandler;
+    @NonNull
+    private final Listener mListener;
+    @NonNull
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    @NonNull
+    private final Entry[] mWheel = new Entry[WHEEL_SIZE];
+    @NonNull
+    private final Runnable mTickRunnable = () -> tick(SystemClock.elapsedRealtime());
+    private long mTimeout;
+    private long mTickDuration;
+    // Last tick whose bucket was processed.
+    private long mCurrentTick;
+    private boolean mIsTicking;
+    // elapsedRealtime when paused, or -1.
+    private long mPausedAt = -1;
+
+    CBPresenceTracker(@NonNull Looper looper, @NonNull Listener listener) {
+        mHandler = new Handler(looper);
+        mListener = listener;
+    }
+
+    void start(long timeout) {
+        start(timeout, SystemClock.elapsedRealtime());
+    }
+
+    // The overloads taking now are for tests, which drive the clock themselves.
+    void start(long timeout, long now) {
+        if (0 >= timeout) {
+            throw new IllegalArgumentException("timeout must be positive.");
+        }
+        stop();
+        mTimeout = timeout;
+        mTickDuration = Math.max(MIN_TICK_MS, Math.min(MAX_TICK_MS, timeout / TICKS_PER_TIMEOUT));
+        mCurrentTick = now / mTickDuration;
+    }
+
+    /**
+     * Forgets every tracked address without reporting it.
+     */
+    void stop() {
+        mHandler.removeCallbacks(mTickRunnable);
+        mIsTicking = false;
+        mPausedAt = -1;
+        mEntries.clear();
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            mWheel[i] = null;
+        }
+        mTimeout = 0;
+    }
+
+    boolean isRunning() {
+        return 0 < mTimeout;
+    }
+
+    void pause() {
+        pause(SystemClock.elapsedRealtime());
+    }
+
+    void pause(long now) {
+        if (!isRunning() || isPaused()) {
+            return;
+        }
+        mPausedAt = now;
+        mHandler.removeCallbacks(mTickRunnable);
+    }
+
+    void resume() {
+        resume(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Shifts every last-seen time by the pause, so that addresses get the full window again.
+     */
+    void resume(long now) {
+        if (!isPaused()) {
+            return;
+        }
+        final long pause = now - mPausedAt;
+        mPausedAt = -1;
+        for (Entry entry : mEntries.values()) {
+            entry.lastSeen = Math.min(now, entry.lastSeen + pause);
+        }
+        if (mIsTicking) {
+            mHandler.postDelayed(mTickRunnable, mTickDuration);
+        }
+    }
+
+    boolean isPaused() {
+        return 0 <= mPausedAt;
+    }
+
+    void onSeen(@NonNull String address) {
+        onSeen(address, SystemClock.elapsedRealtime());
+    }
+
+    void onSeen(@NonNull String address, long now) {
+        if (!isRunning()) {
+            return;
+        }
+        Entry entry = mEntries.get(address);
+        if (null != entry) {
+            entry.lastSeen = now;
+            return;
+        }
+        entry = new Entry(address, now);
+        mEntries.put(address, entry);
+        _schedule(entry, now + mTimeout);
+        if (!mIsTicking) {
+            mIsTicking = true;
+            mCurrentTick = now / mTickDuration;
+            if (!isPaused()) {
+                mHandler.postDelayed(mTickRunnable, mTickDuration);
+            }
+        }
+    }
+
+    /**
+     * @return elapsedRealtime of the last sighting, or -1 if the address is not tracked.
+     */
+    long lastSeen(@NonNull String address) {
+        Entry entry = mEntries.get(address);
+        return null == entry ? -1 : entry.lastSeen;
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    long timeout() {
+        return mTimeout;
+    }
+
+    // Posted every tick while addresses are tracked.
+    void tick(long now) {
+        if (!isRunning() || isPaused()) {
+            return;
+        }
+        final long targetTick = now / mTickDuration;
+        // After a long stall every bucket has been passed at least once, so one lap is enough.
+        final long firstTick = Math.max(mCurrentTick + 1, targetTick - WHEEL_MASK);
+        for (long tick = firstTick; tick <= targetTick; tick++) {
+            _expire(tick, now);
+        }
+        mCurrentTick = targetTick;
+        if (mEntries.isEmpty()) {
+            mIsTicking = false;
+            return;
+        }
+        mHandler.postDelayed(mTickRunnable, mTickDuration);
+    }
+
+    private void _expire(long tick, long now) {
+        Entry entry = mWheel[(int) (tick & WHEEL_MASK)];
+        while (null != entry) {
+            final Entry next = entry.next;
+            if (entry.deadlineTick <= tick) {
+                _unlink(entry);
+                final long expiry = entry.lastSeen + mTimeout;
+                if (expiry <= now) {
+                    mEntries.remove(entry.address);
+                    mListener.onLost(entry.address);
+                    if (!isRunning()) {
+                        // The listener stopped the tracker.
+                        return;
+                    }
+                } else {
+                    _schedule(entry, expiry);
+                }
+            }
+            entry = next;
+        }
+    }
+
+    private void _schedule(@NonNull Entry entry, long expiry) {
+        // Round up so an entry never fires before its expiry.
+        entry.deadlineTick = (expiry + mTickDuration - 1) / mTickDuration;
+        final int bucket = (int) (entry.deadlineTick & WHEEL_MASK);
+        entry.bucket = bucket;
+        entry.prev = null;
+        entry.next = mWheel[bucket];
+        if (null != entry.next) {
+            entry.next.prev = entry;
+        }
+        mWheel[bucket] = entry;
+    }
+
+    private void _unlink(@NonNull Entry entry) {
+        if (null != entry.prev) {
+            entry.prev.next = entry.next;
+        } else {
+            mWheel[entry.bucket] = entry.next;
+        }
+        if (null != entry.next) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    private static final class Entry {
+        @NonNull
+        final String address;
+        long lastSeen;
+        long deadlineTick;
+        int bucket;
+        @Nullable
+        Entry prev;
+        @Nullable
+        Entry next;
+
+        Entry(@NonNull String address, long lastSeen) {
+            this.address = address;
+            this.lastSeen = lastSeen;
+        }
+    }
+}
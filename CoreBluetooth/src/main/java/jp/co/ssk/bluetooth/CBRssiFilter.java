@@ -0,0 +1,98 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Exponentially weighted moving average and variance of RSSI samples.
+ * Updated only on the scanner thread. The mean and the variance are published together
+ * in a single volatile long. {@link #snapshot()} reads it once, so readers on any thread get a
+ * consistent pair without locking. {@link #mean()} and {@link #variance()} each read it on their own.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBRssiFilter {
+
+    static final float ALPHA = 0.25f;
+    // Free space. Indoor environments are typically 2.0 to 4.0.
+    static final double PATH_LOSS_EXPONENT = 2.0;
+    // The TX Power Level AD type is the output power at 0 m. Android quotes 41 dB of loss at 1 m.
+    static final int LOSS_AT_ONE_METER = 41;
+    static final int UNKNOWN_TX_POWER = Integer.MIN_VALUE;
+    private static final long NO_SAMPLE = packed(Float.NaN, Float.NaN);
+
+    // Owned by the scanner thread.
+    private float mMean;
+    private float mVariance;
+    private boolean mHasSample;
+
+    private volatile long mPublished = NO_SAMPLE;
+    private volatile int mTxPower = UNKNOWN_TX_POWER;
+
+    void update(int rssi, int txPower) {
+        if (!mHasSample) {
+            mMean = rssi;
+            mVariance = 0.0f;
+            mHasSample = true;
+        } else {
+            final float diff = rssi - mMean;
+            final float increment = ALPHA * diff;
+            mMean += increment;
+            mVariance = (1.0f - ALPHA) * (mVariance + diff * increment);
+        }
+        mPublished = packed(mMean, mVariance);
+        if (UNKNOWN_TX_POWER != txPower) {
+            mTxPower = txPower;
+        }
+    }
+
+    void reset() {
+        mHasSample = false;
+        mPublished = NO_SAMPLE;
+        mTxPower = UNKNOWN_TX_POWER;
+    }
+
+    @NonNull
+    CBRssiSnapshot snapshot() {
+        final long published = mPublished;
+        return new CBRssiSnapshot(mean(published), variance(published));
+    }
+
+    /**
+     * @return NaN before the first sample.
+     */
+    float mean() {
+        return mean(mPublished);
+    }
+
+    /**
+     * @return NaN before the first sample.
+     */
+    float variance() {
+        return variance(mPublished);
+    }
+
+    /**
+     * Log-distance path loss model.
+     *
+     * @return meters, or NaN before the first sample or when the advert carries no TX power.
+     */
+    double estimatedDistance() {
+        final int txPower = mTxPower;
+        final float mean = mean();
+        if (UNKNOWN_TX_POWER == txPower || Float.isNaN(mean)) {
+            return Double.NaN;
+        }
+        return Math.pow(10.0, (txPower - LOSS_AT_ONE_METER - mean) / (10.0 * PATH_LOSS_EXPONENT));
+    }
+
+    private static float mean(long published) {
+        return Float.intBitsToFloat((int) (published >>> 32));
+    }
+
+    private static float variance(long published) {
+        return Float.intBitsToFloat((int) published);
+    }
+
+    private static long packed(float mean, float variance) {
+        return ((long) Float.floatToRawIntBits(mean) << 32) | (Float.floatToRawIntBits(variance) & 0xFFFFFFFFL);
+    }
+}
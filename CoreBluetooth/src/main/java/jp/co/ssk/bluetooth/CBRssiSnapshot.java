@@ -0,0 +1,40 @@
+package jp.co.ssk.bluetooth;
+
+/**
+ * Smoothed RSSI and its variance, taken from the same update.
+ *
+ * @see CBPeripheral#rssiSnapshot()
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class CBRssiSnapshot {
+
+    private final float mMean;
+    private final float mVariance;
+
+    CBRssiSnapshot(float mean, float variance) {
+        mMean = mean;
+        mVariance = variance;
+    }
+
+    /**
+     * @return dBm, or NaN if the peripheral has not been discovered by a scan.
+     */
+    public float mean() {
+        return mMean;
+    }
+
+    /**
+     * @return dBm squared, or NaN if the peripheral has not been discovered by a scan.
+     */
+    public float variance() {
+        return mVariance;
+    }
+
+    @Override
+    public String toString() {
+        return "CBRssiSnapshot{" +
+                "mean=" + mMean +
+                ", variance=" + mVariance +
+                '}';
+    }
+}
@@ -0,0 +1,92 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Suppresses repeated adverts per address with a bounded LRU cache.
+ * An advert passes when the address is new (or was evicted), the payload changed,
+ * or the RSSI moved by at least the threshold since the last delivered advert.
+ */
+final class CBScanDuplicateFilter {
+
+    private final int mRssiThreshold;
+    @NonNull
+    private final LinkedHashMap<String, Entry> mEntries;
+    @Nullable
+    private Entry mRecycledEntry;
+    private long mSuppressedCount;
+
+    CBScanDuplicateFilter(final int capacity, int rssiThreshold) {
+        mRssiThreshold = rssiThreshold;
+        mEntries = new LinkedHashMap<String, Entry>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (capacity >= size()) {
+                    return false;
+                }
+                mRecycledEntry = eldest.getValue();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return true if the advert should be dropped.
+     */
+    boolean isDuplicate(@NonNull CBScanResult result) {
+        final int payloadHash = hash(result.record(), result.recordLength());
+        Entry entry = mEntries.get(result.address());
+        if (null == entry) {
+            entry = null != mRecycledEntry ? mRecycledEntry : new Entry();
+            mRecycledEntry = null;
+            entry.set(payloadHash, result.recordLength(), result.rssi());
+            mEntries.put(result.address(), entry);
+            return false;
+        }
+        if (entry.payloadHash != payloadHash || entry.payloadLength != result.recordLength()) {
+            entry.set(payloadHash, result.recordLength(), result.rssi());
+            return false;
+        }
+        if (0 < mRssiThreshold && mRssiThreshold <= Math.abs(result.rssi() - entry.rssi)) {
+            entry.rssi = result.rssi();
+            return false;
+        }
+        mSuppressedCount++;
+        return true;
+    }
+
+    void clear() {
+        mEntries.clear();
+        mSuppressedCount = 0;
+    }
+
+    long suppressedCount() {
+        return mSuppressedCount;
+    }
+
+    // FNV-1a
+    private static int hash(@NonNull byte[] data, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            hash ^= data[i] & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    private static final class Entry {
+        int payloadHash;
+        int payloadLength;
+        int rssi;
+
+        void set(int payloadHash, int payloadLength, int rssi) {
+            this.payloadHash = payloadHash;
+            this.payloadLength = payloadLength;
+            this.rssi = rssi;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Window, rest and statistics of a duty-cycled scan. CBScanner turns the OS scan on and off.
+ * Jitter adds a random 0..jitter to every rest, so that devices advertising at a fixed
+ * period do not stay in phase with the rests.
+ * With adaptive growth a window that found new peripherals makes the next one longer,
+ * up to {@link #MAX_GROWTH} times the configured window, and a quiet window shrinks it back.
+ */
+final class CBScanDutyCycle {
+
+    static final double GROWTH_FACTOR = 1.5;
+    static final int MAX_GROWTH = 4;
+    private static final int SEEN_ADDRESSES_CAPACITY = 4096;
+
+    private final long mBaseWindow;
+    private final long mRest;
+    private final long mJitter;
+    private final boolean mAdaptive;
+    @NonNull
+    private final Random mRandom = new Random();
+    @NonNull
+    private final Set<String> mSeenAddresses = new HashSet<>();
+    private long mWindow;
+    private int mWindowIndex;
+    private long mWindowStartedAt;
+    private int mResultCount;
+    private int mNewPeripheralCount;
+
+    CBScanDutyCycle(long window, long rest, long jitter, boolean adaptive) {
+        mBaseWindow = window;
+        mRest = rest;
+        mJitter = jitter;
+        mAdaptive = adaptive;
+        mWindow = window;
+    }
+
+    long window() {
+        return mWindow;
+    }
+
+    void startWindow(long now) {
+        mWindowStartedAt = now;
+        mResultCount = 0;
+        mNewPeripheralCount = 0;
+    }
+
+    void onResult(@NonNull String address) {
+        mResultCount++;
+        if (mSeenAddresses.size() >= SEEN_ADDRESSES_CAPACITY) {
+            // Bounded memory. Forgotten addresses are counted as new once more.
+            mSeenAddresses.clear();
+        }
+        if (mSeenAddresses.add(address)) {
+            mNewPeripheralCount++;
+        }
+    }
+
+    /**
+     * @param stopped true if the scan stops with this window, so there is no next rest.
+     */
+    @NonNull
+    CBScanWindowStatistics finishWindow(long now, boolean stopped) {
+        if (mAdaptive) {
+            if (0 < mNewPeripheralCount) {
+                mWindow = Math.min(mBaseWindow * MAX_GROWTH, (long) (mWindow * GROWTH_FACTOR));
+            } else {
+                mWindow = Math.max(mBaseWindow, (long) (mWindow / GROWTH_FACTOR));
+            }
+        }
+        long rest = 0;
+        if (!stopped) {
+            rest = mRest + (0 < mJitter ? (long) (mRandom.nextDouble() * mJitter) : 0);
+        }
+        return new CBScanWindowStatistics(mWindowIndex++, mWindowStartedAt, now - mWindowStartedAt,
+                mResultCount, mNewPeripheralCount, mWindow, rest);
+    }
+}
@@ -0,0 +1,376 @@
+package jp.co.ssk.bluetooth;
+
+import android.annotation.TargetApi;
+import android.bluetooth.le.ScanFilter;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.UUID;
+
+import jp.co.ssk.utility.Reflect;
+
+/**
+ * Scan filter compiled to a platform {@link ScanFilter}, so that the controller or the
+ * Bluetooth stack drops non-matching adverts before they reach the process.
+ * All the conditions that are set must match.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class CBScanFilter {
+
+    // Build.VERSION_CODES.Q, which the compile SDK does not know yet.
+    private static final int SOLICITATION_FILTER_API_LEVEL = 29;
+
+    @Nullable
+    private final CBUUID mServiceUUID;
+    @Nullable
+    private final UUID mServiceAndroidUUID;
+    @Nullable
+    private final CBUUID mServiceDataUUID;
+    @Nullable
+    private final UUID mServiceDataAndroidUUID;
+    @Nullable
+    private final byte[] mServiceData;
+    @Nullable
+    private final byte[] mServiceDataMask;
+    private final int mManufacturerId;
+    @Nullable
+    private final byte[] mManufacturerData;
+    @Nullable
+    private final byte[] mManufacturerDataMask;
+    @Nullable
+    private final CBUUID mSolicitationUUID;
+    @Nullable
+    private final UUID mSolicitationAndroidUUID;
+    @Nullable
+    private final String mDeviceAddress;
+    @Nullable
+    private final String mDeviceName;
+    // UTF-8, as the name appears in the advert, so matching compares bytes in place.
+    @Nullable
+    private final byte[] mDeviceNameBytes;
+
+    private CBScanFilter(@NonNull Builder builder) {
+        mServiceUUID = builder.mServiceUUID;
+        mServiceAndroidUUID = null == mServiceUUID ? null : mServiceUUID.androidUUID();
+        mServiceDataUUID = builder.mServiceDataUUID;
+        mServiceDataAndroidUUID = null == mServiceDataUUID ? null : mServiceDataUUID.androidUUID();
+        mServiceData = builder.mServiceData;
+        mServiceDataMask = builder.mServiceDataMask;
+        mManufacturerId = builder.mManufacturerId;
+        mManufacturerData = builder.mManufacturerData;
+        mManufacturerDataMask = builder.mManufacturerDataMask;
+        mSolicitationUUID = builder.mSolicitationUUID;
+        mSolicitationAndroidUUID = null == mSolicitationUUID ? null : mSolicitationUUID.androidUUID();
+        mDeviceAddress = builder.mDeviceAddress;
+        mDeviceName = builder.mDeviceName;
+        mDeviceNameBytes = null == mDeviceName ? null : mDeviceName.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @NonNull
+    public static CBScanFilter withServiceUUID(@NonNull CBUUID serviceUUID) {
+        return new Builder().setServiceUUID(serviceUUID).build();
+    }
+
+    @NonNull
+    public static CBScanFilter withSolicitationUUID(@NonNull CBUUID solicitationUUID) {
+        return new Builder().setSolicitationUUID(solicitationUUID).build();
+    }
+
+    @Nullable
+    public CBUUID serviceUUID() {
+        return mServiceUUID;
+    }
+
+    @Nullable
+    public CBUUID solicitationUUID() {
+        return mSolicitationUUID;
+    }
+
+    @Nullable
+    public CBUUID serviceDataUUID() {
+        return mServiceDataUUID;
+    }
+
+    /**
+     * @return company identifier, or -1 if not set.
+     */
+    public int manufacturerId() {
+        return mManufacturerId;
+    }
+
+    @Nullable
+    public String deviceAddress() {
+        return mDeviceAddress;
+    }
+
+    @Nullable
+    public String deviceName() {
+        return mDeviceName;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @NonNull
+    ScanFilter toScanFilter() {
+        ScanFilter.Builder builder = new ScanFilter.Builder();
+        if (null != mServiceAndroidUUID) {
+            builder.setServiceUuid(new ParcelUuid(mServiceAndroidUUID));
+        }
+        if (null != mServiceDataAndroidUUID && null != mServiceData) {
+            builder.setServiceData(new ParcelUuid(mServiceDataAndroidUUID), mServiceData, mServiceDataMask);
+        }
+        if (0 <= mManufacturerId && null != mManufacturerData) {
+            builder.setManufacturerData(mManufacturerId, mManufacturerData, mManufacturerDataMask);
+        }
+        if (null != mDeviceAddress) {
+            builder.setDeviceAddress(mDeviceAddress);
+        }
+        if (null != mDeviceName) {
+            builder.setDeviceName(mDeviceName);
+        }
+        if (isExactOnPlatform() && null != mSolicitationAndroidUUID) {
+            try {
+                Reflect.invokeMethod(builder, "setServiceSolicitationUuid",
+                        new Class<?>[]{ParcelUuid.class}, new Object[]{new ParcelUuid(mSolicitationAndroidUUID)});
+            } catch (IllegalAccessException | NoSuchMethodException | IllegalArgumentException | InvocationTargetException e) {
+                // The OS passes the adverts through and the solicitation is matched in software.
+                CBLog.e(e.getMessage());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * false if the platform filter passes more than this filter matches, so the adverts must still be matched in software.
+     * Solicitation filtering came with API 29.
+     */
+    boolean isExactOnPlatform() {
+        return null == mSolicitationUUID || SOLICITATION_FILTER_API_LEVEL <= Build.VERSION.SDK_INT;
+    }
+
+    /**
+     * Software evaluation with the same semantics as the platform filter.
+     * Used to route adverts of the shared scan to subscriptions. Must not allocate.
+     */
+    boolean matches(@NonNull String address, @NonNull CBAdvertisementData data) {
+        if (null != mDeviceAddress && !mDeviceAddress.equals(address)) {
+            return false;
+        }
+        if (null != mServiceAndroidUUID && !data.containsServiceUUID(mServiceAndroidUUID)) {
+            return false;
+        }
+        if (null != mSolicitationAndroidUUID && !data.containsSolicitedServiceUUID(mSolicitationAndroidUUID)) {
+            return false;
+        }
+        if (null != mDeviceNameBytes && !matchesName(data, mDeviceNameBytes)) {
+            return false;
+        }
+        if (null != mServiceDataAndroidUUID && null != mServiceData) {
+            int offset = data.serviceDataOffset(mServiceDataAndroidUUID);
+            if (0 > offset || !matchesMasked(data.buffer(), offset, data.serviceDataLength(mServiceDataAndroidUUID),
+                    mServiceData, mServiceDataMask)) {
+                return false;
+            }
+        }
+        if (0 <= mManufacturerId && null != mManufacturerData && !matchesManufacturerData(data)) {
+            return false;
+        }
+        return true;
+    }
+
+    // Any manufacturer specific structure of the company may match, as adverts can carry several.
+    private boolean matchesManufacturerData(@NonNull CBAdvertisementData data) {
+        final byte[] buffer = data.buffer();
+        for (int i = 0; i < data.structureCount(); i++) {
+            if (CBAdvertisementData.TYPE_MANUFACTURER_SPECIFIC_DATA != data.structureType(i) || 2 > data.structureValueLength(i)) {
+                continue;
+            }
+            final int offset = data.structureValueOffset(i);
+            if (mManufacturerId == ((buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8))
+                    && matchesMasked(buffer, offset + 2, data.structureValueLength(i) - 2, mManufacturerData, mManufacturerDataMask)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The complete local name, or else the shortened one, as CBAdvertisementData#localName() decodes it.
+    private static boolean matchesName(@NonNull CBAdvertisementData data, @NonNull byte[] name) {
+        int index = data.indexOf(CBAdvertisementData.TYPE_COMPLETE_LOCAL_NAME);
+        if (0 > index) {
+            index = data.indexOf(CBAdvertisementData.TYPE_SHORTENED_LOCAL_NAME);
+        }
+        if (0 > index || name.length != data.structureValueLength(index)) {
+            return false;
+        }
+        final byte[] buffer = data.buffer();
+        final int offset = data.structureValueOffset(index);
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] != buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesMasked(@NonNull byte[] buffer, int offset, int length,
+                                         @NonNull byte[] pattern, @Nullable byte[] mask) {
+        if (length < pattern.length) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            int m = null == mask ? 0xFF : mask[i];
+            if ((buffer[offset + i] & m) != (pattern[i] & m)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CBScanFilter)) {
+            return false;
+        }
+        CBScanFilter src = (CBScanFilter) obj;
+        return equalsNullable(mServiceUUID, src.mServiceUUID) &&
+                equalsNullable(mServiceDataUUID, src.mServiceDataUUID) &&
+                Arrays.equals(mServiceData, src.mServiceData) &&
+                Arrays.equals(mServiceDataMask, src.mServiceDataMask) &&
+                mManufacturerId == src.mManufacturerId &&
+                Arrays.equals(mManufacturerData, src.mManufacturerData) &&
+                Arrays.equals(mManufacturerDataMask, src.mManufacturerDataMask) &&
+                equalsNullable(mSolicitationUUID, src.mSolicitationUUID) &&
+                equalsNullable(mDeviceAddress, src.mDeviceAddress) &&
+                equalsNullable(mDeviceName, src.mDeviceName);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = null == mServiceUUID ? 0 : mServiceUUID.uuidString().hashCode();
+        result = 31 * result + (null == mServiceDataUUID ? 0 : mServiceDataUUID.uuidString().hashCode());
+        result = 31 * result + Arrays.hashCode(mServiceData);
+        result = 31 * result + Arrays.hashCode(mServiceDataMask);
+        result = 31 * result + mManufacturerId;
+        result = 31 * result + Arrays.hashCode(mManufacturerData);
+        result = 31 * result + Arrays.hashCode(mManufacturerDataMask);
+        result = 31 * result + (null == mSolicitationUUID ? 0 : mSolicitationUUID.uuidString().hashCode());
+        result = 31 * result + (null == mDeviceAddress ? 0 : mDeviceAddress.hashCode());
+        result = 31 * result + (null == mDeviceName ? 0 : mDeviceName.hashCode());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "CBScanFilter{" +
+                "serviceUUID=" + mServiceUUID +
+                ", serviceDataUUID=" + mServiceDataUUID +
+                ", manufacturerId=" + mManufacturerId +
+                ", solicitationUUID=" + mSolicitationUUID +
+                ", deviceAddress=" + mDeviceAddress +
+                ", deviceName=" + mDeviceName +
+                '}';
+    }
+
+    private static boolean equalsNullable(@Nullable Object a, @Nullable Object b) {
+        return null == a ? null == b : a.equals(b);
+    }
+
+    public static final class Builder {
+        @Nullable
+        private CBUUID mServiceUUID;
+        @Nullable
+        private CBUUID mServiceDataUUID;
+        @Nullable
+        private byte[] mServiceData;
+        @Nullable
+        private byte[] mServiceDataMask;
+        private int mManufacturerId = -1;
+        @Nullable
+        private byte[] mManufacturerData;
+        @Nullable
+        private byte[] mManufacturerDataMask;
+        @Nullable
+        private CBUUID mSolicitationUUID;
+        @Nullable
+        private String mDeviceAddress;
+        @Nullable
+        private String mDeviceName;
+
+        @NonNull
+        public Builder setServiceUUID(@NonNull CBUUID serviceUUID) {
+            mServiceUUID = serviceUUID;
+            return this;
+        }
+
+        @NonNull
+        public Builder setServiceData(@NonNull CBUUID serviceUUID, @NonNull byte[] data) {
+            return setServiceData(serviceUUID, data, null);
+        }
+
+        @NonNull
+        public Builder setServiceData(@NonNull CBUUID serviceUUID, @NonNull byte[] data, @Nullable byte[] mask) {
+            if (null != mask && mask.length != data.length) {
+                throw new IllegalArgumentException("mask.length != data.length");
+            }
+            mServiceDataUUID = serviceUUID;
+            mServiceData = data.clone();
+            mServiceDataMask = null == mask ? null : mask.clone();
+            return this;
+        }
+
+        @NonNull
+        public Builder setManufacturerData(int manufacturerId, @NonNull byte[] data) {
+            return setManufacturerData(manufacturerId, data, null);
+        }
+
+        @NonNull
+        public Builder setManufacturerData(int manufacturerId, @NonNull byte[] data, @Nullable byte[] mask) {
+            if (0 > manufacturerId || 0xFFFF < manufacturerId) {
+                throw new IllegalArgumentException("Invalid manufacturerId. " + manufacturerId);
+            }
+            if (null != mask && mask.length != data.length) {
+                throw new IllegalArgumentException("mask.length != data.length");
+            }
+            mManufacturerId = manufacturerId;
+            mManufacturerData = data.clone();
+            mManufacturerDataMask = null == mask ? null : mask.clone();
+            return this;
+        }
+
+        /**
+         * Matches adverts that solicit the service, i.e. peripherals looking for a central that offers it.
+         * Filtered by the OS from API 29, and in software before.
+         */
+        @NonNull
+        public Builder setSolicitationUUID(@NonNull CBUUID solicitationUUID) {
+            mSolicitationUUID = solicitationUUID;
+            return this;
+        }
+
+        @NonNull
+        public Builder setDeviceAddress(@NonNull String deviceAddress) {
+            mDeviceAddress = deviceAddress.toUpperCase(Locale.US);
+            return this;
+        }
+
+        @NonNull
+        public Builder setDeviceName(@NonNull String deviceName) {
+            mDeviceName = deviceName;
+            return this;
+        }
+
+        @NonNull
+        public CBScanFilter build() {
+            return new CBScanFilter(this);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package jp.co.ssk.bluetooth;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lifetime counters and latency histograms of the scan pipeline.
+ * Written from the OS callback thread, the scanner thread and the peripheral threads, read from any thread.
+ * Everything is lock free, so recording never blocks the pipeline and a snapshot never blocks the recorder.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBScanMetrics {
+
+    // Bucket i holds latencies in [2^(i-1), 2^i) microseconds. Bucket 0 holds 0.
+    static final int BUCKET_COUNT = 40;
+
+    private final long mCreatedAt = SystemClock.elapsedRealtime();
+    @NonNull
+    private final LongAdder mOsCallbackCount = new LongAdder();
+    @NonNull
+    private final LongAdder mOsBatchCount = new LongAdder();
+    @NonNull
+    private final LongAdder mDroppedAfterStopCount = new LongAdder();
+    @NonNull
+    private final LongAdder mFilteredCount = new LongAdder();
+    @NonNull
+    private final LongAdder mDuplicateCount = new LongAdder();
+    @NonNull
+    private final LongAdder mDeliveredCount = new LongAdder();
+    // OS callback to ScanListener.onScan.
+    @NonNull
+    private final AtomicLongArray mQueueLatency = new AtomicLongArray(BUCKET_COUNT);
+    // OS callback to the delegate.
+    @NonNull
+    private final AtomicLongArray mDiscoverLatency = new AtomicLongArray(BUCKET_COUNT);
+    @NonNull
+    private final LongAdder mConnectedCount = new LongAdder();
+    // Advert to CBCentralManager.connect taking effect on the manager thread.
+    @NonNull
+    private final AtomicLongArray mConnectRequestLatency = new AtomicLongArray(BUCKET_COUNT);
+    // Connect request to didConnect: the state machine, connectGatt on the peripheral thread, then the link.
+    @NonNull
+    private final AtomicLongArray mConnectLatency = new AtomicLongArray(BUCKET_COUNT);
+    // Advert to didConnect.
+    @NonNull
+    private final AtomicLongArray mAdvertToConnectedLatency = new AtomicLongArray(BUCKET_COUNT);
+
+    void onOsCallback() {
+        mOsCallbackCount.increment();
+    }
+
+    void onOsBatch(int resultCount) {
+        mOsBatchCount.increment();
+        mOsCallbackCount.add(resultCount);
+    }
+
+    void onDroppedAfterStop() {
+        mDroppedAfterStopCount.increment();
+    }
+
+    void onFiltered() {
+        mFilteredCount.increment();
+    }
+
+    void onDuplicate() {
+        mDuplicateCount.increment();
+    }
+
+    void onDelivered(long callbackTimestampNanos) {
+        mDeliveredCount.increment();
+        record(mQueueLatency, callbackTimestampNanos);
+    }
+
+    void onDiscovered(long callbackTimestampNanos) {
+        record(mDiscoverLatency, callbackTimestampNanos);
+    }
+
+    // discoveredAtNanos is 0 when the peripheral was connected without being seen by this scan.
+    void onConnected(long discoveredAtNanos, long requestedAtNanos, long connectedAtNanos) {
+        mConnectedCount.increment();
+        recordMicros(mConnectLatency, (connectedAtNanos - requestedAtNanos) / 1000);
+        if (0 < discoveredAtNanos && discoveredAtNanos <= requestedAtNanos) {
+            recordMicros(mConnectRequestLatency, (requestedAtNanos - discoveredAtNanos) / 1000);
+            recordMicros(mAdvertToConnectedLatency, (connectedAtNanos - discoveredAtNanos) / 1000);
+        }
+    }
+
+    @NonNull
+    CBScanMetricsSnapshot snapshot(long ringDroppedCount) {
+        return new CBScanMetricsSnapshot(
+                SystemClock.elapsedRealtime(),
+                mCreatedAt,
+                mOsCallbackCount.sum(),
+                mOsBatchCount.sum(),
+                ringDroppedCount,
+                mDroppedAfterStopCount.sum(),
+                mFilteredCount.sum(),
+                mDuplicateCount.sum(),
+                mDeliveredCount.sum(),
+                copy(mQueueLatency),
+                copy(mDiscoverLatency),
+                mConnectedCount.sum(),
+                copy(mConnectRequestLatency),
+                copy(mConnectLatency),
+                copy(mAdvertToConnectedLatency));
+    }
+
+    private static void record(@NonNull AtomicLongArray histogram, long callbackTimestampNanos) {
+        recordMicros(histogram, (SystemClock.elapsedRealtimeNanos() - callbackTimestampNanos) / 1000);
+    }
+
+    private static void recordMicros(@NonNull AtomicLongArray histogram, long micros) {
+        micros = Math.max(0, micros);
+        histogram.incrementAndGet(Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros)));
+    }
+
+    @NonNull
+    private static long[] copy(@NonNull AtomicLongArray histogram) {
+        long[] ret = new long[histogram.length()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = histogram.get(i);
+        }
+        return ret;
+    }
+}
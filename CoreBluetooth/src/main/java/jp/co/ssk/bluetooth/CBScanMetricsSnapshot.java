@@ -0,0 +1,216 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Point-in-time copy of the scan pipeline metrics. Counters are totals since the manager was created.
+ * Rates over an interval are computed from two snapshots.
+ * The counters are read one by one without a lock, so a snapshot taken under load may be off by a few
+ * results between counters.
+ *
+ * @see CBCentralManager#scanMetrics()
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class CBScanMetricsSnapshot {
+
+    private final long mCapturedAt;
+    private final long mCreatedAt;
+    private final long mOsCallbackCount;
+    private final long mOsBatchCount;
+    private final long mRingDroppedCount;
+    private final long mDroppedAfterStopCount;
+    private final long mFilteredCount;
+    private final long mDuplicateCount;
+    private final long mDeliveredCount;
+    @NonNull
+    private final long[] mQueueLatency;
+    @NonNull
+    private final long[] mDiscoverLatency;
+    private final long mConnectedCount;
+    @NonNull
+    private final long[] mConnectRequestLatency;
+    @NonNull
+    private final long[] mConnectLatency;
+    @NonNull
+    private final long[] mAdvertToConnectedLatency;
+
+    CBScanMetricsSnapshot(long capturedAt, long createdAt, long osCallbackCount, long osBatchCount,
+                          long ringDroppedCount, long droppedAfterStopCount, long filteredCount,
+                          long duplicateCount, long deliveredCount,
+                          @NonNull long[] queueLatency, @NonNull long[] discoverLatency,
+                          long connectedCount, @NonNull long[] connectRequestLatency,
+                          @NonNull long[] connectLatency, @NonNull long[] advertToConnectedLatency) {
+        mCapturedAt = capturedAt;
+        mCreatedAt = createdAt;
+        mOsCallbackCount = osCallbackCount;
+        mOsBatchCount = osBatchCount;
+        mRingDroppedCount = ringDroppedCount;
+        mDroppedAfterStopCount = droppedAfterStopCount;
+        mFilteredCount = filteredCount;
+        mDuplicateCount = duplicateCount;
+        mDeliveredCount = deliveredCount;
+        mQueueLatency = queueLatency;
+        mDiscoverLatency = discoverLatency;
+        mConnectedCount = connectedCount;
+        mConnectRequestLatency = connectRequestLatency;
+        mConnectLatency = connectLatency;
+        mAdvertToConnectedLatency = advertToConnectedLatency;
+    }
+
+    // elapsedRealtime milliseconds.
+    public long capturedAt() {
+        return mCapturedAt;
+    }
+
+    // Results handed over by the OS, single or batched.
+    public long osCallbackCount() {
+        return mOsCallbackCount;
+    }
+
+    public long osBatchCount() {
+        return mOsBatchCount;
+    }
+
+    // Dropped because the scanner thread fell behind and the result ring was full.
+    public long ringDroppedCount() {
+        return mRingDroppedCount;
+    }
+
+    // Arrived after the scan was stopped.
+    public long droppedAfterStopCount() {
+        return mDroppedAfterStopCount;
+    }
+
+    // Rejected by the scan predicate.
+    public long filteredCount() {
+        return mFilteredCount;
+    }
+
+    // Suppressed as a repeat by every subscription the result matched.
+    public long duplicateCount() {
+        return mDuplicateCount;
+    }
+
+    public long deliveredCount() {
+        return mDeliveredCount;
+    }
+
+    // Connections that reached didConnect, whether or not they started from an advert.
+    public long connectedCount() {
+        return mConnectedCount;
+    }
+
+    public double osCallbacksPerSecond(@NonNull CBScanMetricsSnapshot previous) {
+        return rate(mOsCallbackCount - previous.mOsCallbackCount, mCapturedAt - previous.mCapturedAt);
+    }
+
+    public double deliveredPerSecond(@NonNull CBScanMetricsSnapshot previous) {
+        return rate(mDeliveredCount - previous.mDeliveredCount, mCapturedAt - previous.mCapturedAt);
+    }
+
+    // Average since the manager was created.
+    public double osCallbacksPerSecond() {
+        return rate(mOsCallbackCount, mCapturedAt - mCreatedAt);
+    }
+
+    /**
+     * Upper bound in microseconds of the given quantile of the OS callback to ScanListener.onScan latency,
+     * which is mostly time spent in the handler queue.
+     *
+     * @param quantile 0.0 to 1.0, e.g. 0.99.
+     */
+    public long queueLatencyMicros(double quantile) {
+        return quantile(mQueueLatency, quantile);
+    }
+
+    /**
+     * Upper bound in microseconds of the given quantile of the OS callback to didDiscover latency.
+     */
+    public long discoverLatencyMicros(double quantile) {
+        return quantile(mDiscoverLatency, quantile);
+    }
+
+    /**
+     * Upper bound in microseconds of the given quantile of the advert to connect request latency.
+     * The request is counted when it reaches the manager thread, either from connect-on-discover
+     * or from CBCentralManager.connect.
+     */
+    public long connectRequestLatencyMicros(double quantile) {
+        return quantile(mConnectRequestLatency, quantile);
+    }
+
+    /**
+     * Upper bound in microseconds of the given quantile of the connect request to didConnect latency.
+     */
+    public long connectLatencyMicros(double quantile) {
+        return quantile(mConnectLatency, quantile);
+    }
+
+    /**
+     * Upper bound in microseconds of the given quantile of the advert to didConnect latency.
+     */
+    public long advertToConnectedLatencyMicros(double quantile) {
+        return quantile(mAdvertToConnectedLatency, quantile);
+    }
+
+    /**
+     * Power-of-two buckets. Bucket i counts latencies below 2^i microseconds and at least 2^(i-1).
+     */
+    @NonNull
+    public long[] queueLatencyHistogram() {
+        return mQueueLatency.clone();
+    }
+
+    @NonNull
+    public long[] discoverLatencyHistogram() {
+        return mDiscoverLatency.clone();
+    }
+
+    private static double rate(long count, long millis) {
+        if (0 >= millis) {
+            return 0.0;
+        }
+        return count * 1000.0 / millis;
+    }
+
+    private static long quantile(@NonNull long[] histogram, double quantile) {
+        if (0.0 > quantile || 1.0 < quantile) {
+            throw new IllegalArgumentException("quantile must be in 0.0..1.0");
+        }
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (0 == total) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * quantile));
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return 0 == i ? 0 : 1L << i;
+            }
+        }
+        return 1L << (histogram.length - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "CBScanMetricsSnapshot{" +
+                "osCallbackCount=" + mOsCallbackCount +
+                ", osBatchCount=" + mOsBatchCount +
+                ", ringDroppedCount=" + mRingDroppedCount +
+                ", droppedAfterStopCount=" + mDroppedAfterStopCount +
+                ", filteredCount=" + mFilteredCount +
+                ", duplicateCount=" + mDuplicateCount +
+                ", deliveredCount=" + mDeliveredCount +
+                ", queueLatencyP99=" + queueLatencyMicros(0.99) + "us" +
+                ", discoverLatencyP99=" + discoverLatencyMicros(0.99) + "us" +
+                ", connectedCount=" + mConnectedCount +
+                ", connectRequestLatencyP99=" + connectRequestLatencyMicros(0.99) + "us" +
+                ", connectLatencyP99=" + connectLatencyMicros(0.99) + "us" +
+                ", advertToConnectedLatencyP99=" + advertToConnectedLatencyMicros(0.99) + "us" +
+                '}';
+    }
+}
@@ -0,0 +1,19 @@
+package jp.co.ssk.bluetooth;
+
+import android.bluetooth.le.ScanSettings;
+
+public enum CBScanMode {
+    LowLatency(ScanSettings.SCAN_MODE_LOW_LATENCY),
+    Balanced(ScanSettings.SCAN_MODE_BALANCED),
+    LowPower(ScanSettings.SCAN_MODE_LOW_POWER),
+    Opportunistic(ScanSettings.SCAN_MODE_OPPORTUNISTIC);
+    int value;
+
+    CBScanMode(int value) {
+        this.value = value;
+    }
+
+    int value() {
+        return this.value;
+    }
+}
@@ -0,0 +1,130 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Chooses the scan mode from the discovery rate and the targets that are still missing.
+ * <ul>
+ * <li>All targets found: {@link CBScanMode#Opportunistic}.</li>
+ * <li>New peripherals found: {@link CBScanMode#LowLatency} while targets are missing or the rate is high,
+ * otherwise {@link CBScanMode#Balanced}.</li>
+ * <li>Nothing new for {@link #IDLE_INTERVALS_TO_STEP_DOWN} intervals: one step down, at most to {@link CBScanMode#LowPower}.</li>
+ * </ul>
+ */
+final class CBScanModeScheduler {
+
+    static final long EVALUATION_INTERVAL_MS = 5 * 1000;
+    private static final double HIGH_DISCOVERY_RATE_PER_SEC = 1.0;
+    private static final int IDLE_INTERVALS_TO_STEP_DOWN = 2;
+    private static final int SEEN_ADDRESSES_CAPACITY = 4096;
+
+    @NonNull
+    private final Set<String> mMissingTargets = new HashSet<>();
+    private final boolean mHasTargets;
+    @NonNull
+    private final Set<String> mSeenAddresses = new HashSet<>();
+    @NonNull
+    private final long[] mTimeInMode = new long[CBScanMode.values().length];
+    @NonNull
+    private CBScanMode mMode;
+    private long mModeEnteredAt;
+    private int mNewDiscoveryCount;
+    private int mIdleIntervalCount;
+
+    CBScanModeScheduler(@NonNull List<String> targetAddresses, @NonNull CBScanMode initialMode, long now) {
+        for (String address : targetAddresses) {
+            mMissingTargets.add(address.toUpperCase(Locale.US));
+        }
+        mHasTargets = !mMissingTargets.isEmpty();
+        mMode = initialMode;
+        mModeEnteredAt = now;
+    }
+
+    @NonNull
+    CBScanMode getMode() {
+        return mMode;
+    }
+
+    void onResult(@NonNull String address) {
+        if (mSeenAddresses.size() >= SEEN_ADDRESSES_CAPACITY) {
+            // Bounded memory. Forgotten addresses are counted as new once more, which only nudges the rate.
+            mSeenAddresses.clear();
+        }
+        if (mSeenAddresses.add(address)) {
+            mNewDiscoveryCount++;
+            mMissingTargets.remove(address);
+        }
+    }
+
+    /**
+     * @return the mode for the next interval.
+     */
+    @NonNull
+    CBScanMode evaluate(long now) {
+        final double rate = mNewDiscoveryCount * 1000.0 / EVALUATION_INTERVAL_MS;
+        final CBScanMode nextMode;
+        if (mHasTargets && mMissingTargets.isEmpty()) {
+            nextMode = CBScanMode.Opportunistic;
+        } else if (0 < mNewDiscoveryCount) {
+            mIdleIntervalCount = 0;
+            if (!mMissingTargets.isEmpty() || HIGH_DISCOVERY_RATE_PER_SEC <= rate) {
+                nextMode = CBScanMode.LowLatency;
+            } else {
+                nextMode = CBScanMode.Balanced;
+            }
+        } else if (IDLE_INTERVALS_TO_STEP_DOWN <= ++mIdleIntervalCount) {
+            mIdleIntervalCount = 0;
+            nextMode = stepDown(mMode);
+        } else {
+            nextMode = mMode;
+        }
+        mNewDiscoveryCount = 0;
+        setMode(nextMode, now);
+        return nextMode;
+    }
+
+    @NonNull
+    EnumMap<CBScanMode, Long> finish(long now) {
+        setMode(mMode, now);
+        return timeInMode(now);
+    }
+
+    @NonNull
+    EnumMap<CBScanMode, Long> timeInMode(long now) {
+        EnumMap<CBScanMode, Long> ret = new EnumMap<>(CBScanMode.class);
+        for (CBScanMode mode : CBScanMode.values()) {
+            long time = mTimeInMode[mode.ordinal()];
+            if (mode == mMode) {
+                time += now - mModeEnteredAt;
+            }
+            ret.put(mode, time);
+        }
+        return ret;
+    }
+
+    void setMode(@NonNull CBScanMode mode, long now) {
+        mTimeInMode[mMode.ordinal()] += now - mModeEnteredAt;
+        mModeEnteredAt = now;
+        mMode = mode;
+    }
+
+    @NonNull
+    private static CBScanMode stepDown(@NonNull CBScanMode mode) {
+        switch (mode) {
+            case LowLatency:
+                return CBScanMode.Balanced;
+            case Balanced:
+            case LowPower:
+                return CBScanMode.LowPower;
+            default:
+                // Opportunistic only follows "all targets found".
+                return CBScanMode.LowPower;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+final class CBScanOptions {
+
+    private static final boolean DEF_ALLOW_DUPLICATES = false;
+    private static final int DEF_DUPLICATES_RSSI_THRESHOLD = 0;
+    private static final int DEF_DUPLICATES_CACHE_CAPACITY = 1024;
+    private static final long DEF_REPORT_DELAY = 0;
+    private static final CBScanMode DEF_SCAN_MODE = CBScanMode.LowLatency;
+    private static final boolean DEF_ADAPTIVE_SCAN_MODE = false;
+    private static final long DEF_PRESENCE_TIMEOUT = 0;
+    private static final long DEF_SCAN_TIMEOUT = 0;
+    private static final long DEF_SCAN_WINDOW = 0;
+    private static final long DEF_SCAN_REST = 0;
+    private static final long DEF_SCAN_JITTER = 0;
+    private static final boolean DEF_ADAPTIVE_SCAN_WINDOW = false;
+    private static final long DEF_DISCOVERY_WINDOW = 0;
+    private static final boolean DEF_EXTENDED_ADVERTISING = false;
+    private static final CBPhy DEF_SCAN_PHY = CBPhy.LE1M;
+    private static final int DEF_ADMISSION_SIGHTINGS = 0;
+    private static final long DEF_ADMISSION_WINDOW = 60 * 1000;
+    private static final int DEF_ADMISSION_CAPACITY = 65536;
+    private boolean mAllowDuplicates = DEF_ALLOW_DUPLICATES;
+    private int mDuplicatesRssiThreshold = DEF_DUPLICATES_RSSI_THRESHOLD;
+    private int mDuplicatesCacheCapacity = DEF_DUPLICATES_CACHE_CAPACITY;
+    private long mReportDelay = DEF_REPORT_DELAY;
+    @NonNull
+    private CBScanMode mScanMode = DEF_SCAN_MODE;
+    private boolean mAdaptiveScanMode = DEF_ADAPTIVE_SCAN_MODE;
+    @NonNull
+    private List<String> mTargetPeripherals = new ArrayList<>();
+    @NonNull
+    private List<CBUUID> mSolicitedServiceUUIDs = new ArrayList<>();
+    @Nullable
+    private CBScanProgram mScanProgram;
+    private long mPresenceTimeout = DEF_PRESENCE_TIMEOUT;
+    @Nullable
+    private File mScanRecordFile;
+    private long mScanTimeout = DEF_SCAN_TIMEOUT;
+    private long mScanWindow = DEF_SCAN_WINDOW;
+    private long mScanRest = DEF_SCAN_REST;
+    private long mScanJitter = DEF_SCAN_JITTER;
+    private boolean mAdaptiveScanWindow = DEF_ADAPTIVE_SCAN_WINDOW;
+    private long mDiscoveryWindow = DEF_DISCOVERY_WINDOW;
+    private boolean mExtendedAdvertising = DEF_EXTENDED_ADVERTISING;
+    @NonNull
+    private CBPhy mScanPhy = DEF_SCAN_PHY;
+    private int mAdmissionSightings = DEF_ADMISSION_SIGHTINGS;
+    private long mAdmissionWindow = DEF_ADMISSION_WINDOW;
+    private int mAdmissionCapacity = DEF_ADMISSION_CAPACITY;
+
+    CBScanOptions(@Nullable Map<CBCentralManagerScanOption, Object> options) {
+        if (null == options) {
+            return;
+        }
+        mAllowDuplicates = getValue(options, CBCentralManagerScanOption.AllowDuplicatesKey, Boolean.class, DEF_ALLOW_DUPLICATES);
+        mDuplicatesRssiThreshold = getValue(options, CBCentralManagerScanOption.DuplicatesRssiThresholdKey, Integer.class, DEF_DUPLICATES_RSSI_THRESHOLD);
+        mDuplicatesCacheCapacity = getValue(options, CBCentralManagerScanOption.DuplicatesCacheCapacityKey, Integer.class, DEF_DUPLICATES_CACHE_CAPACITY);
+        if (0 >= mDuplicatesCacheCapacity) {
+            throw new IllegalArgumentException("DuplicatesCacheCapacityKey must be positive.");
+        }
+        mReportDelay = getValue(options, CBCentralManagerScanOption.ReportDelayKey, Long.class, DEF_REPORT_DELAY);
+        if (0 > mReportDelay) {
+            throw new IllegalArgumentException("ReportDelayKey must not be negative.");
+        }
+        mScanMode = getValue(options, CBCentralManagerScanOption.ScanModeKey, CBScanMode.class, DEF_SCAN_MODE);
+        mAdaptiveScanMode = getValue(options, CBCentralManagerScanOption.AdaptiveScanModeKey, Boolean.class, DEF_ADAPTIVE_SCAN_MODE);
+        List<?> targets = getValue(options, CBCentralManagerScanOption.TargetPeripheralsKey, List.class, mTargetPeripherals);
+        for (Object target : targets) {
+            if (!(target instanceof String)) {
+                throw new IllegalArgumentException("TargetPeripheralsKey requires a list of addresses.");
+            }
+        }
+        mTargetPeripherals = new ArrayList<>();
+        for (Object target : targets) {
+            mTargetPeripherals.add((String) target);
+        }
+        List<?> solicitedServiceUUIDs = getValue(options, CBCentralManagerScanOption.SolicitedServiceUUIDsKey, List.class, new ArrayList<>());
+        for (Object uuid : solicitedServiceUUIDs) {
+            if (!(uuid instanceof CBUUID)) {
+                throw new IllegalArgumentException("SolicitedServiceUUIDsKey requires a list of CBUUID.");
+            }
+            mSolicitedServiceUUIDs.add((CBUUID) uuid);
+        }
+        Object predicate = options.get(CBCentralManagerScanOption.ScanPredicateKey);
+        if (null != predicate) {
+            if (!(predicate instanceof CBScanPredicate)) {
+                throw new IllegalArgumentException("ScanPredicateKey requires CBScanPredicate.");
+            }
+            mScanProgram = new CBScanProgram((CBScanPredicate) predicate);
+        }
+        mPresenceTimeout = getValue(options, CBCentralManagerScanOption.PresenceTimeoutKey, Long.class, DEF_PRESENCE_TIMEOUT);
+        if (0 > mPresenceTimeout) {
+            throw new IllegalArgumentException("PresenceTimeoutKey must not be negative.");
+        }
+        Object scanRecordFile = options.get(CBCentralManagerScanOption.ScanRecordFileKey);
+        if (null != scanRecordFile) {
+            if (!(scanRecordFile instanceof File)) {
+                throw new IllegalArgumentException("ScanRecordFileKey requires File.");
+            }
+            mScanRecordFile = (File) scanRecordFile;
+        }
+        mScanTimeout = getValue(options, CBCentralManagerScanOption.ScanTimeoutKey, Long.class, DEF_SCAN_TIMEOUT);
+        if (0 > mScanTimeout || Integer.MAX_VALUE < mScanTimeout) {
+            throw new IllegalArgumentException("ScanTimeoutKey out of range.");
+        }
+        mScanWindow = getValue(options, CBCentralManagerScanOption.ScanWindowKey, Long.class, DEF_SCAN_WINDOW);
+        mScanRest = getValue(options, CBCentralManagerScanOption.ScanRestKey, Long.class, DEF_SCAN_REST);
+        mScanJitter = getValue(options, CBCentralManagerScanOption.ScanJitterKey, Long.class, DEF_SCAN_JITTER);
+        if (0 > mScanWindow || 0 > mScanRest || 0 > mScanJitter) {
+            throw new IllegalArgumentException("ScanWindowKey, ScanRestKey and ScanJitterKey must not be negative.");
+        }
+        if (0 < mScanWindow && 0 == mScanRest) {
+            throw new IllegalArgumentException("ScanRestKey must be positive for a duty-cycled scan.");
+        }
+        mAdaptiveScanWindow = getValue(options, CBCentralManagerScanOption.AdaptiveScanWindowKey, Boolean.class, DEF_ADAPTIVE_SCAN_WINDOW);
+        mDiscoveryWindow = getValue(options, CBCentralManagerScanOption.DiscoveryWindowKey, Long.class, DEF_DISCOVERY_WINDOW);
+        if (0 > mDiscoveryWindow) {
+            throw new IllegalArgumentException("DiscoveryWindowKey must not be negative.");
+        }
+        mExtendedAdvertising = getValue(options, CBCentralManagerScanOption.ExtendedAdvertisingKey, Boolean.class, DEF_EXTENDED_ADVERTISING);
+        mScanPhy = getValue(options, CBCentralManagerScanOption.ScanPhyKey, CBPhy.class, DEF_SCAN_PHY);
+        if (CBPhy.Unused == mScanPhy || CBPhy.LE2M == mScanPhy) {
+            throw new IllegalArgumentException("ScanPhyKey must be LE1M, LECoded or AllSupported.");
+        }
+        if (DEF_SCAN_PHY != mScanPhy && !mExtendedAdvertising) {
+            throw new IllegalArgumentException("ScanPhyKey requires ExtendedAdvertisingKey.");
+        }
+        mAdmissionSightings = getValue(options, CBCentralManagerScanOption.AdmissionSightingsKey, Integer.class, DEF_ADMISSION_SIGHTINGS);
+        if (0 > mAdmissionSightings || CBAdmissionFilter.MAX_SIGHTINGS < mAdmissionSightings) {
+            throw new IllegalArgumentException("AdmissionSightingsKey must be in 0.." + CBAdmissionFilter.MAX_SIGHTINGS + ".");
+        }
+        mAdmissionWindow = getValue(options, CBCentralManagerScanOption.AdmissionWindowKey, Long.class, DEF_ADMISSION_WINDOW);
+        if (0 >= mAdmissionWindow) {
+            throw new IllegalArgumentException("AdmissionWindowKey must be positive.");
+        }
+        mAdmissionCapacity = getValue(options, CBCentralManagerScanOption.AdmissionCapacityKey, Integer.class, DEF_ADMISSION_CAPACITY);
+        if (0 >= mAdmissionCapacity) {
+            throw new IllegalArgumentException("AdmissionCapacityKey must be positive.");
+        }
+    }
+
+    boolean isAllowDuplicates() {
+        return mAllowDuplicates;
+    }
+
+    int getDuplicatesRssiThreshold() {
+        return mDuplicatesRssiThreshold;
+    }
+
+    int getDuplicatesCacheCapacity() {
+        return mDuplicatesCacheCapacity;
+    }
+
+    long getReportDelay() {
+        return mReportDelay;
+    }
+
+    @NonNull
+    CBScanMode getScanMode() {
+        return mScanMode;
+    }
+
+    boolean isAdaptiveScanMode() {
+        return mAdaptiveScanMode;
+    }
+
+    @NonNull
+    List<String> getTargetPeripherals() {
+        return mTargetPeripherals;
+    }
+
+    @NonNull
+    List<CBUUID> getSolicitedServiceUUIDs() {
+        return mSolicitedServiceUUIDs;
+    }
+
+    @Nullable
+    CBScanProgram getScanProgram() {
+        return mScanProgram;
+    }
+
+    long getPresenceTimeout() {
+        return mPresenceTimeout;
+    }
+
+    @Nullable
+    File getScanRecordFile() {
+        return mScanRecordFile;
+    }
+
+    int getScanTimeout() {
+        return (int) mScanTimeout;
+    }
+
+    boolean isDutyCycled() {
+        return 0 < mScanWindow;
+    }
+
+    long getScanWindow() {
+        return mScanWindow;
+    }
+
+    long getScanRest() {
+        return mScanRest;
+    }
+
+    long getScanJitter() {
+        return mScanJitter;
+    }
+
+    boolean isAdaptiveScanWindow() {
+        return mAdaptiveScanWindow;
+    }
+
+    long getDiscoveryWindow() {
+        return mDiscoveryWindow;
+    }
+
+    boolean isExtendedAdvertising() {
+        return mExtendedAdvertising;
+    }
+
+    @NonNull
+    CBPhy getScanPhy() {
+        return mScanPhy;
+    }
+
+    boolean isAdmissionFiltered() {
+        return 1 < mAdmissionSightings;
+    }
+
+    int getAdmissionSightings() {
+        return mAdmissionSightings;
+    }
+
+    long getAdmissionWindow() {
+        return mAdmissionWindow;
+    }
+
+    int getAdmissionCapacity() {
+        return mAdmissionCapacity;
+    }
+
+    @NonNull
+    private static <T> T getValue(
+            @NonNull Map<CBCentralManagerScanOption, Object> options,
+            @NonNull CBCentralManagerScanOption key,
+            @NonNull Class<T> type,
+            @NonNull T defaultValue) {
+        Object value = options.get(key);
+        if (null == value) {
+            return defaultValue;
+        }
+        if (!type.isInstance(value)) {
+            throw new IllegalArgumentException(key.name() + " requires " + type.getSimpleName() + ".");
+        }
+        return type.cast(value);
+    }
+}
@@ -0,0 +1,148 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Software scan condition for what the controller cannot evaluate,
+ * such as byte patterns at arbitrary offsets, RSSI floors and OR/NOT combinations.
+ * Passed with {@link CBCentralManagerScanOption#ScanPredicateKey} and compiled once per scan
+ * into a flat program that runs on the scanner thread before any peripheral is created.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class CBScanPredicate {
+
+    static final int KIND_RSSI_AT_LEAST = 0;
+    static final int KIND_LENGTH_AT_LEAST = 1;
+    static final int KIND_BYTES_AT = 2;
+    static final int KIND_SERVICE_UUID = 3;
+    static final int KIND_MANUFACTURER_ID = 4;
+    static final int KIND_AND = 5;
+    static final int KIND_OR = 6;
+    static final int KIND_NOT = 7;
+
+    final int mKind;
+    final int mValue;
+    @Nullable
+    final byte[] mPattern;
+    @Nullable
+    final byte[] mMask;
+    @Nullable
+    final UUID mUUID;
+    @NonNull
+    final CBScanPredicate[] mChildren;
+
+    private CBScanPredicate(int kind, int value, @Nullable byte[] pattern, @Nullable byte[] mask,
+                            @Nullable UUID uuid, @NonNull CBScanPredicate[] children) {
+        mKind = kind;
+        mValue = value;
+        mPattern = pattern;
+        mMask = mask;
+        mUUID = uuid;
+        mChildren = children;
+    }
+
+    @NonNull
+    public static CBScanPredicate rssiAtLeast(int rssi) {
+        return new CBScanPredicate(KIND_RSSI_AT_LEAST, rssi, null, null, null, new CBScanPredicate[0]);
+    }
+
+    @NonNull
+    public static CBScanPredicate lengthAtLeast(int length) {
+        if (0 > length) {
+            throw new IllegalArgumentException("length must not be negative.");
+        }
+        return new CBScanPredicate(KIND_LENGTH_AT_LEAST, length, null, null, null, new CBScanPredicate[0]);
+    }
+
+    /**
+     * @param offset offset in the raw scan record.
+     */
+    @NonNull
+    public static CBScanPredicate bytesAt(int offset, @NonNull byte[] pattern) {
+        return bytesAt(offset, pattern, null);
+    }
+
+    @NonNull
+    public static CBScanPredicate bytesAt(int offset, @NonNull byte[] pattern, @Nullable byte[] mask) {
+        if (0 > offset) {
+            throw new IllegalArgumentException("offset must not be negative.");
+        }
+        if (0 == pattern.length) {
+            throw new IllegalArgumentException("pattern must not be empty.");
+        }
+        if (null != mask && mask.length != pattern.length) {
+            throw new IllegalArgumentException("mask.length != pattern.length");
+        }
+        return new CBScanPredicate(KIND_BYTES_AT, offset, pattern.clone(),
+                null == mask ? null : mask.clone(), null, new CBScanPredicate[0]);
+    }
+
+    @NonNull
+    public static CBScanPredicate serviceUUID(@NonNull CBUUID serviceUUID) {
+        return new CBScanPredicate(KIND_SERVICE_UUID, 0, null, null, serviceUUID.androidUUID(), new CBScanPredicate[0]);
+    }
+
+    @NonNull
+    public static CBScanPredicate manufacturerId(int manufacturerId) {
+        if (0 > manufacturerId || 0xFFFF < manufacturerId) {
+            throw new IllegalArgumentException("Invalid manufacturerId. " + manufacturerId);
+        }
+        return new CBScanPredicate(KIND_MANUFACTURER_ID, manufacturerId, null, null, null, new CBScanPredicate[0]);
+    }
+
+    @NonNull
+    public static CBScanPredicate and(@NonNull CBScanPredicate... predicates) {
+        return combine(KIND_AND, predicates);
+    }
+
+    @NonNull
+    public static CBScanPredicate or(@NonNull CBScanPredicate... predicates) {
+        return combine(KIND_OR, predicates);
+    }
+
+    @NonNull
+    public static CBScanPredicate not(@NonNull CBScanPredicate predicate) {
+        return new CBScanPredicate(KIND_NOT, 0, null, null, null, new CBScanPredicate[]{predicate});
+    }
+
+    @NonNull
+    private static CBScanPredicate combine(int kind, @NonNull CBScanPredicate[] predicates) {
+        if (0 == predicates.length) {
+            throw new IllegalArgumentException("predicates must not be empty.");
+        }
+        for (CBScanPredicate predicate : predicates) {
+            if (null == predicate) {
+                throw new IllegalArgumentException("predicates must not contain null.");
+            }
+        }
+        return new CBScanPredicate(kind, 0, null, null, null, predicates.clone());
+    }
+
+    @Override
+    public String toString() {
+        switch (mKind) {
+            case KIND_RSSI_AT_LEAST:
+                return "rssi>=" + mValue;
+            case KIND_LENGTH_AT_LEAST:
+                return "length>=" + mValue;
+            case KIND_BYTES_AT:
+                return "bytes@" + mValue + "=" + Arrays.toString(mPattern);
+            case KIND_SERVICE_UUID:
+                return "service=" + mUUID;
+            case KIND_MANUFACTURER_ID:
+                return "manufacturer=" + mValue;
+            case KIND_AND:
+                return "and" + Arrays.toString(mChildren);
+            case KIND_OR:
+                return "or" + Arrays.toString(mChildren);
+            case KIND_NOT:
+                return "not[" + mChildren[0] + "]";
+            default:
+                throw new IllegalStateException("Unknown kind. " + mKind);
+        }
+    }
+}
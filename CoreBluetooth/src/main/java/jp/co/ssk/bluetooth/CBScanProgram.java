@@ -0,0 +1,287 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@link CBScanPredicate} compiled to a flat instruction array.
+ * Evaluation uses a single boolean register and conditional jumps, so AND/OR short-circuit
+ * without recursion and without allocation.
+ * A length and anchor byte prefilter rejects most non-matching records before the program runs.
+ * Not thread safe. Used only on the scanner thread.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBScanProgram {
+
+    // Each instruction is (opcode, operand0, operand1).
+    private static final int OP_RSSI_AT_LEAST = 0;
+    private static final int OP_LENGTH_AT_LEAST = 1;
+    private static final int OP_BYTES_AT = 2;
+    private static final int OP_SERVICE_UUID = 3;
+    private static final int OP_MANUFACTURER_ID = 4;
+    private static final int OP_NOT = 5;
+    private static final int OP_JUMP_IF_FALSE = 6;
+    private static final int OP_JUMP_IF_TRUE = 7;
+    private static final int INSTRUCTION_SIZE = 3;
+    private static final int NO_ANCHOR = -1;
+
+    @NonNull
+    private final int[] mCode;
+    @NonNull
+    private final byte[][] mPatterns;
+    @NonNull
+    private final byte[][] mMasks;
+    @NonNull
+    private final UUID[] mUUIDs;
+    private final boolean mNeedsIndex;
+    private final int mMinLength;
+    private final int mAnchorOffset;
+    private final byte mAnchorValue;
+
+    private long mPrefilterRejectedCount;
+    private long mEvaluatedCount;
+    private long mMatchedCount;
+
+    CBScanProgram(@NonNull CBScanPredicate predicate) {
+        Compiler compiler = new Compiler();
+        compiler.emit(predicate);
+        mCode = compiler.code();
+        mPatterns = compiler.mPatterns.toArray(new byte[0][]);
+        mMasks = compiler.mMasks.toArray(new byte[0][]);
+        mUUIDs = compiler.mUUIDs.toArray(new UUID[0]);
+        mNeedsIndex = compiler.mNeedsIndex;
+        mMinLength = minLength(predicate);
+        CBScanPredicate anchor = anchor(predicate);
+        if (null != anchor && null != anchor.mPattern) {
+            mAnchorOffset = anchor.mValue;
+            mAnchorValue = anchor.mPattern[0];
+        } else {
+            mAnchorOffset = NO_ANCHOR;
+            mAnchorValue = 0;
+        }
+    }
+
+    /**
+     * @param data re-wrapped over the result only when the program inspects AD structures.
+     */
+    boolean evaluate(@NonNull CBScanResult result, @NonNull CBAdvertisementData data) {
+        final byte[] record = result.record();
+        final int length = result.recordLength();
+        if (length < mMinLength || (NO_ANCHOR != mAnchorOffset && record[mAnchorOffset] != mAnchorValue)) {
+            mPrefilterRejectedCount++;
+            return false;
+        }
+        mEvaluatedCount++;
+        if (mNeedsIndex) {
+            data.wrap(record, 0, length);
+        }
+        final int[] code = mCode;
+        boolean acc = true;
+        int pc = 0;
+        while (pc < code.length) {
+            final int operand0 = code[pc + 1];
+            final int operand1 = code[pc + 2];
+            switch (code[pc]) {
+                case OP_RSSI_AT_LEAST:
+                    acc = result.rssi() >= operand0;
+                    break;
+                case OP_LENGTH_AT_LEAST:
+                    acc = length >= operand0;
+                    break;
+                case OP_BYTES_AT:
+                    acc = matchesAt(record, length, operand0, mPatterns[operand1], mMasks[operand1]);
+                    break;
+                case OP_SERVICE_UUID:
+                    acc = data.containsServiceUUID(mUUIDs[operand0]);
+                    break;
+                case OP_MANUFACTURER_ID:
+                    acc = data.manufacturerId() == operand0;
+                    break;
+                case OP_NOT:
+                    acc = !acc;
+                    break;
+                case OP_JUMP_IF_FALSE:
+                    if (!acc) {
+                        pc = operand0;
+                        continue;
+                    }
+                    break;
+                case OP_JUMP_IF_TRUE:
+                    if (acc) {
+                        pc = operand0;
+                        continue;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode. " + code[pc]);
+            }
+            pc += INSTRUCTION_SIZE;
+        }
+        if (acc) {
+            mMatchedCount++;
+        }
+        return acc;
+    }
+
+    long prefilterRejectedCount() {
+        return mPrefilterRejectedCount;
+    }
+
+    long evaluatedCount() {
+        return mEvaluatedCount;
+    }
+
+    long matchedCount() {
+        return mMatchedCount;
+    }
+
+    int instructionCount() {
+        return mCode.length / INSTRUCTION_SIZE;
+    }
+
+    private static boolean matchesAt(@NonNull byte[] record, int length, int offset,
+                                     @NonNull byte[] pattern, byte[] mask) {
+        if (length - offset < pattern.length) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            int m = null == mask ? 0xFF : mask[i];
+            if ((record[offset + i] & m) != (pattern[i] & m)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Shortest record that can possibly match.
+    private static int minLength(@NonNull CBScanPredicate predicate) {
+        switch (predicate.mKind) {
+            case CBScanPredicate.KIND_LENGTH_AT_LEAST:
+                return predicate.mValue;
+            case CBScanPredicate.KIND_BYTES_AT:
+                //noinspection ConstantConditions
+                return predicate.mValue + predicate.mPattern.length;
+            case CBScanPredicate.KIND_AND: {
+                int ret = 0;
+                for (CBScanPredicate child : predicate.mChildren) {
+                    ret = Math.max(ret, minLength(child));
+                }
+                return ret;
+            }
+            case CBScanPredicate.KIND_OR: {
+                int ret = Integer.MAX_VALUE;
+                for (CBScanPredicate child : predicate.mChildren) {
+                    ret = Math.min(ret, minLength(child));
+                }
+                return ret;
+            }
+            default:
+                return 0;
+        }
+    }
+
+    // A byte pattern that every match must satisfy, with an unmasked first byte.
+    private static CBScanPredicate anchor(@NonNull CBScanPredicate predicate) {
+        switch (predicate.mKind) {
+            case CBScanPredicate.KIND_BYTES_AT:
+                return null == predicate.mMask || (byte) 0xFF == predicate.mMask[0] ? predicate : null;
+            case CBScanPredicate.KIND_AND:
+                for (CBScanPredicate child : predicate.mChildren) {
+                    CBScanPredicate ret = anchor(child);
+                    if (null != ret) {
+                        return ret;
+                    }
+                }
+                return null;
+            case CBScanPredicate.KIND_OR:
+                if (1 == predicate.mChildren.length) {
+                    return anchor(predicate.mChildren[0]);
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private static final class Compiler {
+        @NonNull
+        private final List<Integer> mCode = new ArrayList<>();
+        @NonNull
+        private final List<byte[]> mPatterns = new ArrayList<>();
+        @NonNull
+        private final List<byte[]> mMasks = new ArrayList<>();
+        @NonNull
+        private final List<UUID> mUUIDs = new ArrayList<>();
+        private boolean mNeedsIndex;
+
+        void emit(@NonNull CBScanPredicate predicate) {
+            switch (predicate.mKind) {
+                case CBScanPredicate.KIND_RSSI_AT_LEAST:
+                    instruction(OP_RSSI_AT_LEAST, predicate.mValue, 0);
+                    break;
+                case CBScanPredicate.KIND_LENGTH_AT_LEAST:
+                    instruction(OP_LENGTH_AT_LEAST, predicate.mValue, 0);
+                    break;
+                case CBScanPredicate.KIND_BYTES_AT:
+                    mPatterns.add(predicate.mPattern);
+                    mMasks.add(predicate.mMask);
+                    instruction(OP_BYTES_AT, predicate.mValue, mPatterns.size() - 1);
+                    break;
+                case CBScanPredicate.KIND_SERVICE_UUID:
+                    mUUIDs.add(predicate.mUUID);
+                    mNeedsIndex = true;
+                    instruction(OP_SERVICE_UUID, mUUIDs.size() - 1, 0);
+                    break;
+                case CBScanPredicate.KIND_MANUFACTURER_ID:
+                    mNeedsIndex = true;
+                    instruction(OP_MANUFACTURER_ID, predicate.mValue, 0);
+                    break;
+                case CBScanPredicate.KIND_NOT:
+                    emit(predicate.mChildren[0]);
+                    instruction(OP_NOT, 0, 0);
+                    break;
+                case CBScanPredicate.KIND_AND:
+                    emitShortCircuit(predicate.mChildren, OP_JUMP_IF_FALSE);
+                    break;
+                case CBScanPredicate.KIND_OR:
+                    emitShortCircuit(predicate.mChildren, OP_JUMP_IF_TRUE);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown kind. " + predicate.mKind);
+            }
+        }
+
+        // The register already holds the deciding value when a jump is taken, so every jump targets the end.
+        private void emitShortCircuit(@NonNull CBScanPredicate[] children, int jumpOpcode) {
+            List<Integer> jumps = new ArrayList<>();
+            for (int i = 0; i < children.length; i++) {
+                emit(children[i]);
+                if (i < children.length - 1) {
+                    jumps.add(mCode.size());
+                    instruction(jumpOpcode, 0, 0);
+                }
+            }
+            for (int jump : jumps) {
+                mCode.set(jump + 1, mCode.size());
+            }
+        }
+
+        private void instruction(int opcode, int operand0, int operand1) {
+            mCode.add(opcode);
+            mCode.add(operand0);
+            mCode.add(operand1);
+        }
+
+        @NonNull
+        int[] code() {
+            int[] ret = new int[mCode.size()];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = mCode.get(i);
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends scan results to a compact binary file through a memory-mapped buffer,
+ * so that recording costs a few stores per result and no allocation.
+ * Read back with {@link CBScanReplaySource}.
+ * <pre>
+ * File:   header, record*
+ * Header: int magic "CBSR", short version, short reserved
+ * Record: long timestampNanos, byte[6] address, byte rssi, short recordLength, byte[recordLength] record
+ * </pre>
+ * All values are little endian. Not thread safe. Used only on the scanner thread.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBScanRecorder implements Closeable {
+
+    static final int MAGIC = 0x52534243; // "CBSR"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8 + 6 + 1 + 2;
+    static final int ADDRESS_SIZE = 6;
+    private static final int MAP_CHUNK_SIZE = 1024 * 1024;
+
+    @NonNull
+    private final RandomAccessFile mFile;
+    @NonNull
+    private final FileChannel mChannel;
+    @NonNull
+    private MappedByteBuffer mBuffer;
+    // File offset of the start of mBuffer.
+    private long mMappedOffset;
+    private long mRecordCount;
+
+    CBScanRecorder(@NonNull File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mBuffer = map(0, MAP_CHUNK_SIZE);
+        mBuffer.putInt(MAGIC);
+        mBuffer.putShort(VERSION);
+        mBuffer.putShort((short) 0);
+    }
+
+    void append(@NonNull CBScanResult result) throws IOException {
+        final int recordLength = result.recordLength();
+        final int size = RECORD_HEADER_SIZE + recordLength;
+        if (mBuffer.remaining() < size) {
+            // Mapping extends the file, so the next chunk starts exactly where this one was filled to.
+            mMappedOffset += mBuffer.position();
+            mBuffer = map(mMappedOffset, Math.max(MAP_CHUNK_SIZE, size));
+        }
+        mBuffer.putLong(result.timestampNanos());
+        putAddress(mBuffer, result.addressBits());
+        mBuffer.put((byte) result.rssi());
+        mBuffer.putShort((short) recordLength);
+        mBuffer.put(result.record(), 0, recordLength);
+        mRecordCount++;
+    }
+
+    long recordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Trims the unused tail of the last mapped chunk.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            mBuffer.force();
+            mChannel.truncate(mMappedOffset + mBuffer.position());
+        } finally {
+            mFile.close();
+        }
+    }
+
+    @NonNull
+    private MappedByteBuffer map(long offset, int size) throws IOException {
+        MappedByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    // A malformed address is written as 00:00:00:00:00:00.
+    private static void putAddress(@NonNull MappedByteBuffer buffer, long address) {
+        if (CBAddress.INVALID == address) {
+            address = 0;
+        }
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            buffer.put((byte) CBAddress.octet(address, i));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a {@link CBScanRecorder} file back into a {@link CBScanner.ScanListener}
+ * at the recorded pace, faster, or as fast as possible.
+ * Runs on the calling thread and does not need a Looper, so the discovery pipeline can be
+ * benchmarked deterministically on a plain JVM.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBScanReplaySource {
+
+    @NonNull
+    private final MappedByteBuffer mBuffer;
+    @NonNull
+    private final CBScanResult mResult = new CBScanResult();
+    @NonNull
+    private byte[] mRecord = new byte[62];
+    // Each address is formatted once per replay source.
+    @NonNull
+    private final CBLongMap<String> mAddresses = new CBLongMap<>();
+
+    CBScanReplaySource(@NonNull File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // The mapping stays valid after the channel is closed.
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (CBScanRecorder.HEADER_SIZE > mBuffer.remaining() || CBScanRecorder.MAGIC != mBuffer.getInt()) {
+            throw new IOException("Not a scan recording. " + file);
+        }
+        final short version = mBuffer.getShort();
+        if (CBScanRecorder.VERSION != version) {
+            throw new IOException("Unsupported recording version. " + version);
+        }
+        mBuffer.getShort();
+    }
+
+    /**
+     * Calls onScanStarted, onScan for every record, and onScanStopped with {@link CBScanner.Reason#StopRequest}.
+     *
+     * @param speed 1.0 for the recorded pace, 2.0 for twice as fast, 0 for no pacing.
+     * @return the number of results replayed.
+     */
+    long replay(@NonNull CBScanner.ScanListener listener, double speed) throws IOException {
+        if (0 > speed) {
+            throw new IllegalArgumentException("speed must not be negative.");
+        }
+        mBuffer.position(CBScanRecorder.HEADER_SIZE);
+        listener.onScanStarted();
+        long count = 0;
+        long firstTimestamp = 0;
+        long startNanos = 0;
+        while (mBuffer.hasRemaining()) {
+            if (CBScanRecorder.RECORD_HEADER_SIZE > mBuffer.remaining()) {
+                throw new IOException("Truncated record at " + mBuffer.position());
+            }
+            final long timestamp = mBuffer.getLong();
+            final long address = readAddress(mBuffer);
+            final int rssi = mBuffer.get();
+            final int length = mBuffer.getShort() & 0xFFFF;
+            if (length > mBuffer.remaining()) {
+                throw new IOException("Truncated record at " + mBuffer.position());
+            }
+            if (mRecord.length < length) {
+                mRecord = new byte[length];
+            }
+            mBuffer.get(mRecord, 0, length);
+
+            if (0 == count) {
+                firstTimestamp = timestamp;
+                startNanos = System.nanoTime();
+            } else if (0 < speed) {
+                final long due = startNanos + (long) ((timestamp - firstTimestamp) / speed);
+                long wait;
+                while (0 < (wait = due - System.nanoTime())) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            mResult.set(null, addressString(address), rssi, mRecord, length, timestamp);
+            listener.onScan(mResult);
+            mResult.clear();
+            count++;
+        }
+        listener.onScanStopped(CBScanner.Reason.StopRequest);
+        return count;
+    }
+
+    private static long readAddress(@NonNull MappedByteBuffer buffer) {
+        long ret = 0;
+        for (int i = 0; i < CBScanRecorder.ADDRESS_SIZE; i++) {
+            ret = (ret << 8) | (buffer.get() & 0xFF);
+        }
+        return ret;
+    }
+
+    @NonNull
+    private String addressString(long address) {
+        String ret = mAddresses.get(address);
+        if (null == ret) {
+            ret = CBAddress.format(address);
+            mAddresses.put(address, ret);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,142 @@
+package jp.co.ssk.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBScanResult {
+
+    // Legacy advertising data + scan response.
+    private static final int DEFAULT_RECORD_CAPACITY = 62;
+    private static final byte[] EMPTY_RECORD = new byte[0];
+
+    @Nullable
+    private BluetoothDevice mDevice;
+    @NonNull
+    private String mAddress = "";
+    private long mAddressBits = CBAddress.INVALID;
+    private int mRssi;
+    @NonNull
+    private byte[] mRecord = new byte[DEFAULT_RECORD_CAPACITY];
+    private int mRecordLength;
+    private long mTimestampNanos;
+    // Extended advertising report. Legacy values unless set by setReport.
+    private int mPrimaryPhy = CBAdvertisementData.PHY_LE_1M;
+    private int mSecondaryPhy = CBAdvertisementData.PHY_UNUSED;
+    private int mAdvertisingSid = CBAdvertisementData.SID_NOT_PRESENT;
+    private int mPeriodicAdvertisingInterval = CBAdvertisementData.PERIODIC_INTERVAL_NOT_PRESENT;
+    private boolean mIsLegacy = true;
+
+    void set(@Nullable BluetoothDevice device, @NonNull String address, int rssi,
+             @Nullable byte[] scanRecord, long timestampNanos) {
+        set(device, address, rssi, scanRecord, null == scanRecord ? 0 : scanRecord.length, timestampNanos);
+    }
+
+    void set(@Nullable BluetoothDevice device, @NonNull String address, int rssi,
+             @Nullable byte[] scanRecord, int recordLength, long timestampNanos) {
+        mDevice = device;
+        if (address != mAddress) {
+            // Packed on the producer thread, so the manager thread looks the peripheral up by a long.
+            mAddressBits = CBAddress.pack(address);
+            mAddress = address;
+        }
+        mRssi = rssi;
+        mTimestampNanos = timestampNanos;
+        mPrimaryPhy = CBAdvertisementData.PHY_LE_1M;
+        mSecondaryPhy = CBAdvertisementData.PHY_UNUSED;
+        mAdvertisingSid = CBAdvertisementData.SID_NOT_PRESENT;
+        mPeriodicAdvertisingInterval = CBAdvertisementData.PERIODIC_INTERVAL_NOT_PRESENT;
+        mIsLegacy = true;
+        if (null == scanRecord) {
+            mRecordLength = 0;
+            return;
+        }
+        if (mRecord.length < recordLength) {
+            // Grows only for payloads larger than any seen before, so the steady state does not allocate.
+            mRecord = new byte[recordLength];
+        }
+        System.arraycopy(scanRecord, 0, mRecord, 0, recordLength);
+        mRecordLength = recordLength;
+    }
+
+    void setReport(int primaryPhy, int secondaryPhy, int advertisingSid, int periodicAdvertisingInterval, boolean isLegacy) {
+        mPrimaryPhy = primaryPhy;
+        mSecondaryPhy = secondaryPhy;
+        mAdvertisingSid = advertisingSid;
+        mPeriodicAdvertisingInterval = periodicAdvertisingInterval;
+        mIsLegacy = isLegacy;
+    }
+
+    int primaryPhy() {
+        return mPrimaryPhy;
+    }
+
+    int secondaryPhy() {
+        return mSecondaryPhy;
+    }
+
+    int advertisingSid() {
+        return mAdvertisingSid;
+    }
+
+    int periodicAdvertisingInterval() {
+        return mPeriodicAdvertisingInterval;
+    }
+
+    boolean isLegacy() {
+        return mIsLegacy;
+    }
+
+    void clear() {
+        mDevice = null;
+    }
+
+    @Nullable
+    BluetoothDevice device() {
+        return mDevice;
+    }
+
+    @NonNull
+    String address() {
+        return mAddress;
+    }
+
+    /**
+     * @see CBAddress#pack(String)
+     */
+    long addressBits() {
+        return mAddressBits;
+    }
+
+    int rssi() {
+        return mRssi;
+    }
+
+    /**
+     * The buffer is owned by the slot and is overwritten when the slot is reused.
+     * Only the first {@link #recordLength()} bytes are valid.
+     */
+    @NonNull
+    byte[] record() {
+        return mRecord;
+    }
+
+    int recordLength() {
+        return mRecordLength;
+    }
+
+    long timestampNanos() {
+        return mTimestampNanos;
+    }
+
+    @NonNull
+    byte[] copyRecord() {
+        if (0 == mRecordLength) {
+            return EMPTY_RECORD;
+        }
+        byte[] ret = new byte[mRecordLength];
+        System.arraycopy(mRecord, 0, ret, 0, mRecordLength);
+        return ret;
+    }
+}
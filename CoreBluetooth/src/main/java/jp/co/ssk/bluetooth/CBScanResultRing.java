@@ -0,0 +1,93 @@
+package jp.co.ssk.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Preallocated ring of scan result slots.
+ * Any thread may offer, only the scanner thread may peek and release.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBScanResultRing {
+
+    @NonNull
+    private final CBScanResult[] mSlots;
+    private final int mMask;
+    @NonNull
+    private final Object mProducerLock = new Object();
+    private volatile long mHead;
+    private volatile long mTail;
+    private volatile long mDroppedCount;
+
+    CBScanResultRing(int capacity) {
+        if (0 >= capacity || 0 != (capacity & (capacity - 1))) {
+            throw new IllegalArgumentException("capacity must be a power of two.");
+        }
+        mSlots = new CBScanResult[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new CBScanResult();
+        }
+        mMask = capacity - 1;
+    }
+
+    /**
+     * @return false if the ring is full and the result was dropped.
+     */
+    boolean offer(@Nullable BluetoothDevice device, @NonNull String address, int rssi,
+                  @Nullable byte[] scanRecord, long timestampNanos) {
+        return offer(device, address, rssi, scanRecord, timestampNanos,
+                CBAdvertisementData.PHY_LE_1M, CBAdvertisementData.PHY_UNUSED,
+                CBAdvertisementData.SID_NOT_PRESENT, CBAdvertisementData.PERIODIC_INTERVAL_NOT_PRESENT, true);
+    }
+
+    boolean offer(@Nullable BluetoothDevice device, @NonNull String address, int rssi,
+                  @Nullable byte[] scanRecord, long timestampNanos,
+                  int primaryPhy, int secondaryPhy, int advertisingSid, int periodicAdvertisingInterval, boolean isLegacy) {
+        synchronized (mProducerLock) {
+            final long tail = mTail;
+            if (tail - mHead >= mSlots.length) {
+                mDroppedCount++;
+                return false;
+            }
+            CBScanResult slot = mSlots[(int) (tail & mMask)];
+            slot.set(device, address, rssi, scanRecord, timestampNanos);
+            slot.setReport(primaryPhy, secondaryPhy, advertisingSid, periodicAdvertisingInterval, isLegacy);
+            mTail = tail + 1;
+        }
+        return true;
+    }
+
+    @Nullable
+    CBScanResult peek() {
+        final long head = mHead;
+        if (head == mTail) {
+            return null;
+        }
+        return mSlots[(int) (head & mMask)];
+    }
+
+    void release() {
+        final long head = mHead;
+        mSlots[(int) (head & mMask)].clear();
+        mHead = head + 1;
+    }
+
+    void clear() {
+        while (null != peek()) {
+            release();
+        }
+    }
+
+    long droppedCount() {
+        return mDroppedCount;
+    }
+
+    boolean isEmpty() {
+        return mHead == mTail;
+    }
+
+    int capacity() {
+        return mSlots.length;
+    }
+}
@@ -0,0 +1,148 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes results of the single physical scan to the subscriptions whose filters match.
+ * The index is keyed by distinct filter, so a filter shared by several subscriptions is evaluated once.
+ * Routing does not allocate. Not thread safe. Used only on the manager thread.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBScanRouter {
+
+    private static final CBScanFilter[] EMPTY_FILTERS = new CBScanFilter[0];
+    private static final CBScanSubscription[] EMPTY_SUBSCRIPTIONS = new CBScanSubscription[0];
+
+    @NonNull
+    private final List<CBScanSubscription> mSubscriptions = new ArrayList<>();
+    @NonNull
+    private CBScanFilter[] mRouteFilters = EMPTY_FILTERS;
+    @NonNull
+    private CBScanSubscription[][] mRouteSubscriptions = new CBScanSubscription[0][];
+    @NonNull
+    private CBScanSubscription[] mMatchAllSubscriptions = EMPTY_SUBSCRIPTIONS;
+    @NonNull
+    private CBScanSubscription[] mMatched = EMPTY_SUBSCRIPTIONS;
+    // One subscription whose filters the OS applies exactly, so every result is its own.
+    private boolean mIsFilteredByPlatform;
+    private int mStamp;
+
+    void add(@NonNull CBScanSubscription subscription) {
+        mSubscriptions.add(subscription);
+        rebuild();
+    }
+
+    boolean remove(@NonNull CBScanSubscription subscription) {
+        if (!mSubscriptions.remove(subscription)) {
+            return false;
+        }
+        rebuild();
+        return true;
+    }
+
+    void clear() {
+        mSubscriptions.clear();
+        rebuild();
+    }
+
+    @NonNull
+    List<CBScanSubscription> subscriptions() {
+        return new ArrayList<>(mSubscriptions);
+    }
+
+    boolean isEmpty() {
+        return mSubscriptions.isEmpty();
+    }
+
+    int size() {
+        return mSubscriptions.size();
+    }
+
+    /**
+     * @return filters for the physical scan. Empty if any subscription matches everything.
+     */
+    @NonNull
+    List<CBScanFilter> unionFilters() {
+        if (0 < mMatchAllSubscriptions.length) {
+            return new ArrayList<>();
+        }
+        List<CBScanFilter> ret = new ArrayList<>();
+        for (CBScanFilter filter : mRouteFilters) {
+            ret.add(filter);
+        }
+        return ret;
+    }
+
+    /**
+     * Collects the subscriptions that the advert matches.
+     *
+     * @return the number of matches, read with {@link #matched(int)}.
+     */
+    int route(@NonNull String address, @NonNull CBAdvertisementData data) {
+        if (mIsFilteredByPlatform) {
+            // The physical scan is filtered by exactly this subscription.
+            mMatched[0] = mSubscriptions.get(0);
+            return 1;
+        }
+        final int stamp = ++mStamp;
+        int count = 0;
+        for (CBScanSubscription subscription : mMatchAllSubscriptions) {
+            subscription.mDispatchStamp = stamp;
+            mMatched[count++] = subscription;
+        }
+        for (int i = 0; i < mRouteFilters.length; i++) {
+            if (!mRouteFilters[i].matches(address, data)) {
+                continue;
+            }
+            for (CBScanSubscription subscription : mRouteSubscriptions[i]) {
+                if (stamp != subscription.mDispatchStamp) {
+                    subscription.mDispatchStamp = stamp;
+                    mMatched[count++] = subscription;
+                }
+            }
+        }
+        return count;
+    }
+
+    @NonNull
+    CBScanSubscription matched(int index) {
+        return mMatched[index];
+    }
+
+    private void rebuild() {
+        LinkedHashMap<CBScanFilter, List<CBScanSubscription>> index = new LinkedHashMap<>();
+        LinkedHashSet<CBScanSubscription> matchAll = new LinkedHashSet<>();
+        mIsFilteredByPlatform = 1 == mSubscriptions.size();
+        for (CBScanSubscription subscription : mSubscriptions) {
+            if (subscription.filters().isEmpty()) {
+                matchAll.add(subscription);
+                continue;
+            }
+            for (CBScanFilter filter : subscription.filters()) {
+                mIsFilteredByPlatform &= filter.isExactOnPlatform();
+                List<CBScanSubscription> subscriptions = index.get(filter);
+                if (null == subscriptions) {
+                    subscriptions = new ArrayList<>();
+                    index.put(filter, subscriptions);
+                }
+                if (!subscriptions.contains(subscription)) {
+                    subscriptions.add(subscription);
+                }
+            }
+        }
+        mRouteFilters = index.keySet().toArray(EMPTY_FILTERS);
+        mRouteSubscriptions = new CBScanSubscription[mRouteFilters.length][];
+        int i = 0;
+        for (Map.Entry<CBScanFilter, List<CBScanSubscription>> entry : index.entrySet()) {
+            mRouteSubscriptions[i++] = entry.getValue().toArray(EMPTY_SUBSCRIPTIONS);
+        }
+        mMatchAllSubscriptions = matchAll.toArray(EMPTY_SUBSCRIPTIONS);
+        mMatched = new CBScanSubscription[mSubscriptions.size()];
+    }
+}
@@ -0,0 +1,64 @@
+package jp.co.ssk.bluetooth;
+
+/**
+ * Sliding window count of OS scan starts.
+ * Since Android 7.0 the stack silently ignores an app's scans once it has started
+ * more than five within 30 seconds, so the scanner must check before every start.
+ * Not thread safe. Used only on the scanner thread.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBScanStartBudget {
+
+    static final int DEFAULT_MAX_STARTS = 5;
+    static final long DEFAULT_WINDOW_MS = 30 * 1000;
+
+    private final long mWindow;
+    // Start times, oldest first, as a ring.
+    private final long[] mStarts;
+    private int mOldest;
+    private int mCount;
+
+    CBScanStartBudget() {
+        this(DEFAULT_MAX_STARTS, DEFAULT_WINDOW_MS);
+    }
+
+    CBScanStartBudget(int maxStarts, long window) {
+        if (0 >= maxStarts || 0 >= window) {
+            throw new IllegalArgumentException("maxStarts and window must be positive.");
+        }
+        mStarts = new long[maxStarts];
+        mWindow = window;
+    }
+
+    /**
+     * Records a start at now if the budget allows it.
+     *
+     * @return false if the start would be refused by the OS.
+     */
+    boolean tryAcquire(long now) {
+        if (0 == available(now)) {
+            return false;
+        }
+        mStarts[(mOldest + mCount) % mStarts.length] = now;
+        mCount++;
+        return true;
+    }
+
+    int available(long now) {
+        while (0 < mCount && mStarts[mOldest] + mWindow <= now) {
+            mOldest = (mOldest + 1) % mStarts.length;
+            mCount--;
+        }
+        return mStarts.length - mCount;
+    }
+
+    /**
+     * @return milliseconds until a start is allowed again, 0 if it is allowed now.
+     */
+    long timeUntilAvailable(long now) {
+        if (0 < available(now)) {
+            return 0;
+        }
+        return mStarts[mOldest] + mWindow - now;
+    }
+}
@@ -0,0 +1,89 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One of several independent consumers of the single physical scan.
+ * Created by {@link CBCentralManager#subscribeScan(List, Subscriber)}.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class CBScanSubscription {
+
+    public interface Subscriber {
+        // Called on the manager thread. The view is reused for the next scan result, so it must not be retained after this call.
+        void didDiscover(@NonNull CBScanSubscription subscription, @NonNull CBPeripheral peripheral,
+                         @NonNull CBAdvertisementData advertisementData, int rssi);
+
+        // Called on the manager thread when the system stops the scan, e.g. Bluetooth is turned off. The subscription is no longer active.
+        default void didStop(@NonNull CBScanSubscription subscription) {
+        }
+
+        // Called on the manager thread when the subscription could not join the scan, e.g. Bluetooth is off.
+        // The subscription never becomes active. Reported as a stop unless overridden.
+        default void didFailToStart(@NonNull CBScanSubscription subscription, @NonNull CBManagerState state) {
+            didStop(subscription);
+        }
+    }
+
+    @NonNull
+    private final CBCentralManager mCentral;
+    @NonNull
+    private final List<CBScanFilter> mFilters;
+    @NonNull
+    private final Subscriber mSubscriber;
+    // Null when the subscription allows duplicates. Each subscription has its own, so one consumer's
+    // repeats do not hide adverts from another, and the manager still sees every advert.
+    @Nullable
+    private final CBScanDuplicateFilter mDuplicateFilter;
+    // Owned by CBScanRouter. Delivers a result at most once even when several filters match.
+    int mDispatchStamp;
+
+    CBScanSubscription(@NonNull CBCentralManager central, @NonNull List<CBScanFilter> filters,
+                       @NonNull CBScanOptions options, @NonNull Subscriber subscriber) {
+        mCentral = central;
+        mFilters = Collections.unmodifiableList(filters);
+        mSubscriber = subscriber;
+        mDuplicateFilter = options.isAllowDuplicates() ? null
+                : new CBScanDuplicateFilter(options.getDuplicatesCacheCapacity(), options.getDuplicatesRssiThreshold());
+    }
+
+    /**
+     * An empty list matches every advert.
+     */
+    @NonNull
+    public List<CBScanFilter> filters() {
+        return mFilters;
+    }
+
+    @NonNull
+    Subscriber subscriber() {
+        return mSubscriber;
+    }
+
+    // Called on the manager thread for each routed result.
+    boolean isDuplicate(@NonNull CBScanResult result) {
+        return null != mDuplicateFilter && mDuplicateFilter.isDuplicate(result);
+    }
+
+    long suppressedCount() {
+        return null == mDuplicateFilter ? 0 : mDuplicateFilter.suppressedCount();
+    }
+
+    /**
+     * The physical scan stops when the last subscription is cancelled.
+     */
+    public void cancel() {
+        mCentral.cancelScanSubscription(this);
+    }
+
+    @Override
+    public String toString() {
+        return "CBScanSubscription{" +
+                "filters=" + mFilters +
+                '}';
+    }
+}
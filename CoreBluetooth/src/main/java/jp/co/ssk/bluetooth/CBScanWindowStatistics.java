@@ -0,0 +1,74 @@
+package jp.co.ssk.bluetooth;
+
+/**
+ * Discovery statistics of one window of a duty-cycled scan.
+ *
+ * @see CBCentralManagerScanOption#ScanWindowKey
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class CBScanWindowStatistics {
+
+    private final int mIndex;
+    private final long mStartedAt;
+    private final long mDuration;
+    private final int mResultCount;
+    private final int mNewPeripheralCount;
+    private final long mNextWindow;
+    private final long mNextRest;
+
+    CBScanWindowStatistics(int index, long startedAt, long duration, int resultCount, int newPeripheralCount,
+                           long nextWindow, long nextRest) {
+        mIndex = index;
+        mStartedAt = startedAt;
+        mDuration = duration;
+        mResultCount = resultCount;
+        mNewPeripheralCount = newPeripheralCount;
+        mNextWindow = nextWindow;
+        mNextRest = nextRest;
+    }
+
+    // 0 for the first window of the scan.
+    public int index() {
+        return mIndex;
+    }
+
+    // elapsedRealtime milliseconds.
+    public long startedAt() {
+        return mStartedAt;
+    }
+
+    public long duration() {
+        return mDuration;
+    }
+
+    // Results after filtering, including duplicates.
+    public int resultCount() {
+        return mResultCount;
+    }
+
+    // Addresses not seen in any earlier window of the scan.
+    public int newPeripheralCount() {
+        return mNewPeripheralCount;
+    }
+
+    public long nextWindow() {
+        return mNextWindow;
+    }
+
+    // Rest before the next window including jitter. 0 when the scan has stopped.
+    public long nextRest() {
+        return mNextRest;
+    }
+
+    @Override
+    public String toString() {
+        return "CBScanWindowStatistics{" +
+                "index=" + mIndex +
+                ", duration=" + mDuration +
+                ", resultCount=" + mResultCount +
+                ", newPeripheralCount=" + mNewPeripheralCount +
+                ", nextWindow=" + mNextWindow +
+                ", nextRest=" + mNextRest +
+                '}';
+    }
+}
@@ -15,21 +15,26 @@ import android.content.IntentFilter;
 import android.os.Build;
 import android.os.HandlerThread;
 import android.os.Looper;
-import android.os.Message;
-import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import jp.co.ssk.utility.Handler;
 import jp.co.ssk.utility.SynchronousCallback;
 
 @SuppressWarnings({"unused", "WeakerAccess"})
 class CBScanner {
-    private static final int MSG_ON_SCAN = 1;
+    private static final int SCAN_RESULT_RING_CAPACITY = 256;
+    // How long the OS scan outlives a stop request, so that an immediate restart can reuse it.
+    private static final long STOP_COALESCING_MS = 1000;
+    // Starts kept back from adaptive mode changes so that the app can still start a scan.
+    private static final int RESERVED_STARTS = 1;
     @NonNull
     private final Handler mHandler;
     @NonNull
@@ -37,35 +42,70 @@ class CBScanner {
     @NonNull
     private final BluetoothAdapter mBluetoothAdapter;
     @NonNull
-    private final BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
-        @Override
-        public void onLeScan(final BluetoothDevice device, final int rssi, final byte[] scanRecord) {
-            CBLog.iOsApi(device.getAddress());
-            mHandler.sendMessage(MSG_ON_SCAN, new Object[]{device, rssi, scanRecord});
-        }
-    };
+    private final CBScanResultRing mScanResultRing = new CBScanResultRing(SCAN_RESULT_RING_CAPACITY);
+    @NonNull
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+    @NonNull
+    private final Runnable mDrainRunnable = this::_drainScanResults;
+    private long mDroppedCountAtStart;
+    @NonNull
+    private final List<CBScanResult> mBatchResultPool = new ArrayList<>();
+    @NonNull
+    private final List<CBScanResult> mBatch = new ArrayList<>();
     private boolean mIsScanning;
     @Nullable
     private ScanCallback mScanCallback;
     @NonNull
     private final Runnable mTimeoutRunnable = () -> _stopScan(Reason.Timeout);
+    @NonNull
+    private final Runnable mEvaluateScanModeRunnable = this::_evaluateScanMode;
+    @NonNull
+    private List<CBScanFilter> mScanFilters = new ArrayList<>();
+    @Nullable
+    private CBScanOptions mScanOptions;
+    @NonNull
+    private final CBAdvertisementData mFilterAdvertisementData = new CBAdvertisementData();
+    @Nullable
+    private CBScanModeScheduler mScanModeScheduler;
+    @Nullable
+    private CBScanRecorder mScanRecorder;
+    @Nullable
+    private CBScanDutyCycle mDutyCycle;
+    private boolean mIsResting;
+    @NonNull
+    private final Runnable mDutyCycleRunnable = this::_onDutyCycle;
+    @NonNull
+    private EnumMap<CBScanMode, Long> mLastTimeInMode = new EnumMap<>(CBScanMode.class);
+    @NonNull
+    private final CBScanStartBudget mStartBudget = new CBScanStartBudget();
+    @NonNull
+    private final CBScanMetrics mMetrics = new CBScanMetrics();
+    @NonNull
+    private final Runnable mDeferredStopRunnable = this::_stopOsScan;
+    // The OS scan may still be running for a while after mIsScanning is cleared.
+    private boolean mIsOsScanning;
+    @NonNull
+    private List<CBScanFilter> mOsScanFilters = new ArrayList<>();
+    @Nullable
+    private CBScanMode mOsScanMode;
+    private long mOsReportDelay;
+    private boolean mOsExtendedAdvertising;
+    @Nullable
+    private CBPhy mOsScanPhy;
 
     public CBScanner(
             @NonNull Context context,
             @NonNull ScanListener scanListener,
             @Nullable Looper looper) {
-        if (null == looper) {
-            HandlerThread thread = new HandlerThread("ScannerThread");
-            thread.start();
-            looper = thread.getLooper();
-        }
-        mHandler = new Handler(looper) {
-            @Override
-            public void handleMessage(@NonNull Message msg) {
-                Object[] objects = (Object[]) msg.obj;
-                _onLeScan((BluetoothDevice) objects[0], (int) objects[1], (byte[]) objects[2]);
-            }
-        };
+        this(context, scanListener, new Handler(null != looper ? looper : newScannerLooper()));
+    }
+
+    // The handler's thread is the scanner thread.
+    CBScanner(
+            @NonNull Context context,
+            @NonNull ScanListener scanListener,
+            @NonNull Handler handler) {
+        mHandler = handler;
 
         mScanListener = scanListener;
         BluetoothManager btm = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
@@ -89,6 +129,13 @@ class CBScanner {
                 new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
     }
 
+    @NonNull
+    private static Looper newScannerLooper() {
+        HandlerThread thread = new HandlerThread("ScannerThread");
+        thread.start();
+        return thread.getLooper();
+    }
+
     public boolean isScanning() {
         boolean ret;
         if (mHandler.isCurrentThread()) {
@@ -105,11 +152,57 @@ class CBScanner {
         return ret;
     }
 
-    public void scanForPeripherals(@NonNull final List<CBUUID> serviceUUIDs, final int timeout) {
+    /**
+     * Counters and latency histograms since this scanner was created.
+     * Lock free. May be called from any thread, including while results are being delivered.
+     */
+    @NonNull
+    public CBScanMetricsSnapshot metricsSnapshot() {
+        return mMetrics.snapshot(mScanResultRing.droppedCount());
+    }
+
+    @NonNull
+    CBScanMetrics metrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Time spent in each scan mode by the current scan, or by the last one if stopped.
+     */
+    @NonNull
+    public EnumMap<CBScanMode, Long> scanModeStatistics() {
+        EnumMap<CBScanMode, Long> ret;
+        if (mHandler.isCurrentThread()) {
+            ret = _scanModeStatistics();
+        } else {
+            final SynchronousCallback<EnumMap<CBScanMode, Long>> callback = new SynchronousCallback<>();
+            mHandler.post(() -> {
+                callback.setResult(_scanModeStatistics());
+                callback.unlock();
+            });
+            callback.lock();
+            ret = callback.getResult();
+        }
+        return ret;
+    }
+
+    public void scanForPeripherals(@NonNull final List<CBScanFilter> filters, @NonNull final CBScanOptions options, final int timeout) {
+        if (mHandler.isCurrentThread()) {
+            _startScan(filters, options, timeout);
+        } else {
+            mHandler.post(() -> _startScan(filters, options, timeout));
+        }
+    }
+
+    /**
+     * Swaps the filters of the running scan. Only the OS scan restarts: the duty cycle, the scan mode
+     * and the timeout carry on. A failure stops the scan with its reason.
+     */
+    void updateFilters(@NonNull final List<CBScanFilter> filters) {
         if (mHandler.isCurrentThread()) {
-            _startScan(serviceUUIDs, timeout);
+            _updateFilters(filters);
         } else {
-            mHandler.post(() -> _startScan(serviceUUIDs, timeout));
+            mHandler.post(() -> _updateFilters(filters));
         }
     }
 
@@ -121,8 +214,8 @@ class CBScanner {
         }
     }
 
-    private void _startScan(@NonNull final List<CBUUID> serviceUUIDs, int timeout) {
-        CBLog.vMethodIn(serviceUUIDs.toString());
+    private void _startScan(@NonNull final List<CBScanFilter> filters, @NonNull CBScanOptions options, int timeout) {
+        CBLog.vMethodIn(filters.toString());
 
         if (BluetoothAdapter.STATE_ON != mBluetoothAdapter.getState()) {
             mScanListener.onScanStartFailure(Reason.PoweredOff);
@@ -134,23 +227,48 @@ class CBScanner {
             return;
         }
 
-        List<UUID> androidUUIDs = new ArrayList<>();
-        for (CBUUID serviceUUID : serviceUUIDs) {
-            androidUUIDs.add(serviceUUID.androidUUID());
+        final long now = SystemClock.elapsedRealtime();
+        CBScanModeScheduler scanModeScheduler = null;
+        if (options.isAdaptiveScanMode()) {
+            scanModeScheduler = new CBScanModeScheduler(options.getTargetPeripherals(), options.getScanMode(), now);
         }
 
-        boolean result;
-        if (Build.VERSION_CODES.LOLLIPOP > Build.VERSION.SDK_INT) {
-            result = startOldScan(androidUUIDs, mLeScanCallback);
-        } else {
-            result = startNewScan(androidUUIDs);
-        }
-        if (!result) {
-            mScanListener.onScanStartFailure(Reason.OSNativeError);
+        Reason failure = _startOsScan(filters, options, options.getScanMode());
+        if (null != failure) {
+            mScanListener.onScanStartFailure(failure);
             return;
         }
 
-        mHandler.removeMessages(MSG_ON_SCAN);
+        mScanFilters = filters;
+        mScanOptions = options;
+        mScanModeScheduler = scanModeScheduler;
+        if (null != mScanModeScheduler) {
+            mHandler.postDelayed(mEvaluateScanModeRunnable, CBScanModeScheduler.EVALUATION_INTERVAL_MS);
+        }
+
+        mScanResultRing.clear();
+        mDroppedCountAtStart = mScanResultRing.droppedCount();
+
+        if (null != options.getScanRecordFile()) {
+            try {
+                mScanRecorder = new CBScanRecorder(options.getScanRecordFile());
+            } catch (IOException e) {
+                CBLog.e("Scan recording disabled. " + e.getMessage());
+            }
+        }
+
+        if (options.isDutyCycled()) {
+            mDutyCycle = new CBScanDutyCycle(options.getScanWindow(), options.getScanRest(),
+                    options.getScanJitter(), options.isAdaptiveScanWindow());
+            mDutyCycle.startWindow(now);
+            mIsResting = false;
+            mHandler.postDelayed(mDutyCycleRunnable, mDutyCycle.window());
+            final long period = options.getScanWindow() + options.getScanRest();
+            final long minPeriod = CBScanStartBudget.DEFAULT_WINDOW_MS / CBScanStartBudget.DEFAULT_MAX_STARTS;
+            if (period < minPeriod) {
+                CBLog.w("Scan period " + period + "ms is below " + minPeriod + "ms. Rests are extended by the start budget.");
+            }
+        }
 
         if (0 < timeout) {
             mHandler.postDelayed(mTimeoutRunnable, timeout);
@@ -164,57 +282,333 @@ class CBScanner {
         CBLog.vMethodIn(reason.name());
 
         if (!mIsScanning) {
+            if (Reason.PoweredOff == reason) {
+                _stopOsScan();
+            }
             return;
         }
 
-        if (Build.VERSION_CODES.LOLLIPOP > Build.VERSION.SDK_INT) {
-            stopOldScan(mLeScanCallback);
+        if (Reason.StopRequest == reason || Reason.Timeout == reason) {
+            mHandler.removeCallbacks(mDeferredStopRunnable);
+            mHandler.postDelayed(mDeferredStopRunnable, STOP_COALESCING_MS);
         } else {
-            stopNewScan();
+            _stopOsScan();
         }
 
         mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.removeCallbacks(mEvaluateScanModeRunnable);
+        mHandler.removeCallbacks(mDutyCycleRunnable);
+        if (null != mDutyCycle) {
+            if (!mIsResting) {
+                mScanListener.onScanWindowFinished(mDutyCycle.finishWindow(SystemClock.elapsedRealtime(), true));
+            } else {
+                mScanListener.onScanRestFinished();
+            }
+            mDutyCycle = null;
+            mIsResting = false;
+        }
+
+        if (null != mScanModeScheduler) {
+            mLastTimeInMode = mScanModeScheduler.finish(SystemClock.elapsedRealtime());
+            CBLog.d("Time in scan mode(ms): " + mLastTimeInMode);
+            mScanModeScheduler = null;
+        }
+        if (null != mScanOptions && null != mScanOptions.getScanProgram()) {
+            CBScanProgram scanProgram = mScanOptions.getScanProgram();
+            CBLog.d("Scan predicate(" + scanProgram.instructionCount() + " instructions)"
+                    + " prefiltered:" + scanProgram.prefilterRejectedCount()
+                    + " evaluated:" + scanProgram.evaluatedCount()
+                    + " matched:" + scanProgram.matchedCount());
+        }
+        mScanOptions = null;
+        if (null != mScanRecorder) {
+            CBLog.d("Recorded " + mScanRecorder.recordCount() + " scan results.");
+            try {
+                mScanRecorder.close();
+            } catch (IOException e) {
+                CBLog.e(e.getMessage());
+            }
+            mScanRecorder = null;
+        }
+
+        long droppedCount = mScanResultRing.droppedCount() - mDroppedCountAtStart;
+        if (0 < droppedCount) {
+            CBLog.w("Dropped " + droppedCount + " scan results because the ring was full.");
+        }
 
         mIsScanning = false;
         mScanListener.onScanStopped(reason);
     }
 
-    private void _onLeScan(final BluetoothDevice device, final int rssi, final byte[] scanRecord) {
-        if (!mIsScanning) {
-            CBLog.w("Already stopped.");
+    // Called on the OS callback thread. Must not allocate.
+    private void onOsScanResult(@NonNull BluetoothDevice device, int rssi, @Nullable byte[] scanRecord) {
+        mMetrics.onOsCallback();
+        if (!mScanResultRing.offer(device, device.getAddress(), rssi, scanRecord, SystemClock.elapsedRealtimeNanos())) {
             return;
         }
-        mScanListener.onScan(device, rssi, scanRecord);
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mHandler.post(mDrainRunnable);
+        }
     }
 
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
-    @SuppressWarnings("deprecation")
-    private boolean startOldScan(@NonNull final List<UUID> serviceUUIDs, @NonNull BluetoothAdapter.LeScanCallback leScanCallback) {
-        boolean ret;
-        CBLog.iOsApi("startLeScan() exec.");
-        if (serviceUUIDs.isEmpty()) {
-            ret = mBluetoothAdapter.startLeScan(leScanCallback);
-        } else {
-            ret = mBluetoothAdapter.startLeScan(serviceUUIDs.toArray(new UUID[0]), leScanCallback);
+    @TargetApi(Build.VERSION_CODES.O)
+    private void onOsExtendedScanResult(@NonNull ScanResult result) {
+        mMetrics.onOsCallback();
+        final BluetoothDevice device = result.getDevice();
+        if (!mScanResultRing.offer(device, device.getAddress(), result.getRssi(),
+                null == result.getScanRecord() ? null : result.getScanRecord().getBytes(),
+                SystemClock.elapsedRealtimeNanos(),
+                result.getPrimaryPhy(), result.getSecondaryPhy(), result.getAdvertisingSid(),
+                result.getPeriodicAdvertisingInterval(), result.isLegacy())) {
+            return;
         }
-        if (ret) {
-            CBLog.d("startLeScan() called. ret=true");
-        } else {
-            CBLog.e("startLeScan() called. ret=false");
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mHandler.post(mDrainRunnable);
         }
-        return ret;
     }
 
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
-    @SuppressWarnings("deprecation")
-    private void stopOldScan(@NonNull BluetoothAdapter.LeScanCallback leScanCallback) {
-        CBLog.iOsApi("stopLeScan() exec.");
-        mBluetoothAdapter.stopLeScan(leScanCallback);
-        CBLog.d("stopLeScan() called.");
+    private void _drainScanResults() {
+        mDrainScheduled.set(false);
+        CBScanResult result;
+        while (null != (result = mScanResultRing.peek())) {
+            _onLeScan(result);
+            mScanResultRing.release();
+        }
+    }
+
+    private void _evaluateScanMode() {
+        if (!mIsScanning || null == mScanModeScheduler || null == mScanOptions) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        CBScanMode currentMode = mScanModeScheduler.getMode();
+        CBScanMode nextMode = mScanModeScheduler.evaluate(now);
+        if (currentMode != nextMode && RESERVED_STARTS >= mStartBudget.available(now)) {
+            // Deferred to a later evaluation rather than risking a scan the OS silently ignores.
+            CBLog.d("Scan mode change deferred by the start budget. " + currentMode.name() + " -> " + nextMode.name());
+            mScanModeScheduler.setMode(currentMode, now);
+        } else if (currentMode != nextMode) {
+            CBLog.i("Scan mode changed. " + currentMode.name() + " -> " + nextMode.name());
+            // While resting the mode is applied when the next window starts.
+            final Reason failure = mIsResting ? null : _restartScan(nextMode);
+            if (null != failure) {
+                _stopScan(failure);
+                return;
+            }
+        }
+        mHandler.postDelayed(mEvaluateScanModeRunnable, CBScanModeScheduler.EVALUATION_INTERVAL_MS);
+    }
+
+    private void _updateFilters(@NonNull List<CBScanFilter> filters) {
+        if (!mIsScanning || null == mScanOptions) {
+            return;
+        }
+        mScanFilters = filters;
+        if (mIsResting) {
+            // Applied when the next window starts.
+            return;
+        }
+        final CBScanMode scanMode = null != mScanModeScheduler ? mScanModeScheduler.getMode() : mScanOptions.getScanMode();
+        final Reason failure = _startOsScan(filters, mScanOptions, scanMode);
+        if (null != failure) {
+            _stopScan(failure);
+        }
+    }
+
+    // Restarts the OS scan with new settings without notifying the listener.
+    @Nullable
+    private Reason _restartScan(@NonNull CBScanMode scanMode) {
+        if (null == mScanOptions) {
+            return Reason.OSNativeError;
+        }
+        return _startOsScan(mScanFilters, mScanOptions, scanMode);
+    }
+
+    /**
+     * Resumes the OS scan if one with the same settings is still running after a stop request.
+     * Otherwise starts a new one, within the start budget.
+     *
+     * @return null on success, or the reason of the failure.
+     */
+    @Nullable
+    private Reason _startOsScan(@NonNull List<CBScanFilter> filters, @NonNull CBScanOptions options, @NonNull CBScanMode scanMode) {
+        if (mIsOsScanning) {
+            if (scanMode == mOsScanMode && options.getReportDelay() == mOsReportDelay && filters.equals(mOsScanFilters)
+                    && options.isExtendedAdvertising() == mOsExtendedAdvertising && options.getScanPhy() == mOsScanPhy) {
+                mHandler.removeCallbacks(mDeferredStopRunnable);
+                CBLog.d("Resumed the running OS scan.");
+                return null;
+            }
+            _stopOsScan();
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        if (!mStartBudget.tryAcquire(now)) {
+            CBLog.e("Scan start budget exhausted. Available in " + mStartBudget.timeUntilAvailable(now) + "ms.");
+            return Reason.StartBudgetExhausted;
+        }
+
+        if (!startNewScan(filters, options, scanMode)) {
+            return Reason.OSNativeError;
+        }
+        mIsOsScanning = true;
+        mOsScanFilters = filters;
+        mOsScanMode = scanMode;
+        mOsReportDelay = options.getReportDelay();
+        mOsExtendedAdvertising = options.isExtendedAdvertising();
+        mOsScanPhy = options.getScanPhy();
+        return null;
+    }
+
+    private void _stopOsScan() {
+        mHandler.removeCallbacks(mDeferredStopRunnable);
+        if (!mIsOsScanning) {
+            return;
+        }
+        stopNewScan();
+        mIsOsScanning = false;
+        mOsScanMode = null;
+        mOsScanPhy = null;
+    }
+
+    private void _onDutyCycle() {
+        if (!mIsScanning || null == mDutyCycle || null == mScanOptions) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        if (!mIsResting) {
+            _stopOsScan();
+            mIsResting = true;
+            CBScanWindowStatistics statistics = mDutyCycle.finishWindow(now, false);
+            CBLog.d(statistics.toString());
+            mHandler.postDelayed(mDutyCycleRunnable, statistics.nextRest());
+            mScanListener.onScanWindowFinished(statistics);
+            mScanListener.onScanRestStarted();
+            return;
+        }
+        final long wait = mStartBudget.timeUntilAvailable(now);
+        if (0 < wait) {
+            CBLog.d("Next scan window deferred " + wait + "ms by the start budget.");
+            mHandler.postDelayed(mDutyCycleRunnable, wait);
+            return;
+        }
+        final CBScanMode scanMode = null != mScanModeScheduler ? mScanModeScheduler.getMode() : mScanOptions.getScanMode();
+        Reason failure = _startOsScan(mScanFilters, mScanOptions, scanMode);
+        if (null != failure) {
+            _stopScan(failure);
+            return;
+        }
+        mIsResting = false;
+        mDutyCycle.startWindow(now);
+        mHandler.postDelayed(mDutyCycleRunnable, mDutyCycle.window());
+        mScanListener.onScanRestFinished();
+    }
+
+    private void _record(@NonNull CBScanResult result) {
+        if (null == mScanRecorder) {
+            return;
+        }
+        try {
+            mScanRecorder.append(result);
+        } catch (IOException e) {
+            CBLog.e("Scan recording stopped. " + e.getMessage());
+            try {
+                mScanRecorder.close();
+            } catch (IOException ignored) {
+            }
+            mScanRecorder = null;
+        }
+    }
+
+    // Conditions the platform ScanFilter cannot express. The scan filters themselves are applied by the OS. Must not allocate.
+    private boolean _passesSoftwareFilters(@NonNull CBScanResult result) {
+        final CBScanProgram scanProgram = null == mScanOptions ? null : mScanOptions.getScanProgram();
+        return null == scanProgram || scanProgram.evaluate(result, mFilterAdvertisementData);
+    }
+
+    @NonNull
+    private EnumMap<CBScanMode, Long> _scanModeStatistics() {
+        if (null != mScanModeScheduler) {
+            return mScanModeScheduler.timeInMode(SystemClock.elapsedRealtime());
+        }
+        return new EnumMap<>(mLastTimeInMode);
+    }
+
+    // Stamped with the callback time like single results. getTimestampNanos() is when the controller saw the advert,
+    // which for a batch can be up to the report delay earlier and would skew every time-based stage downstream.
+    private void _onBatchScan(@NonNull List<ScanResult> scanResults, long receivedAtNanos) {
+        if (!mIsScanning) {
+            for (int i = 0; i < scanResults.size(); i++) {
+                mMetrics.onDroppedAfterStop();
+            }
+            if (!mIsOsScanning) {
+                CBLog.w("Already stopped.");
+            }
+            return;
+        }
+        while (mBatchResultPool.size() < scanResults.size()) {
+            mBatchResultPool.add(new CBScanResult());
+        }
+        mBatch.clear();
+        for (int i = 0; i < scanResults.size(); i++) {
+            ScanResult scanResult = scanResults.get(i);
+            CBScanResult result = mBatchResultPool.get(i);
+            BluetoothDevice device = scanResult.getDevice();
+            result.set(device, device.getAddress(), scanResult.getRssi(),
+                    null == scanResult.getScanRecord() ? null : scanResult.getScanRecord().getBytes(),
+                    receivedAtNanos);
+            if (Build.VERSION_CODES.O <= Build.VERSION.SDK_INT) {
+                setReport(result, scanResult);
+            }
+            _record(result);
+            if (!_passesSoftwareFilters(result)) {
+                mMetrics.onFiltered();
+                continue;
+            }
+            if (null != mScanModeScheduler) {
+                mScanModeScheduler.onResult(result.address());
+            }
+            if (null != mDutyCycle) {
+                mDutyCycle.onResult(result.address());
+            }
+            mMetrics.onDelivered(result.timestampNanos());
+            mBatch.add(result);
+        }
+        if (!mBatch.isEmpty()) {
+            mScanListener.onBatchScan(mBatch);
+        }
+        for (CBScanResult result : mBatch) {
+            result.clear();
+        }
+        mBatch.clear();
+    }
+
+    private void _onLeScan(@NonNull CBScanResult result) {
+        if (!mIsScanning) {
+            mMetrics.onDroppedAfterStop();
+            if (!mIsOsScanning) {
+                CBLog.w("Already stopped.");
+            }
+            return;
+        }
+        _record(result);
+        if (!_passesSoftwareFilters(result)) {
+            mMetrics.onFiltered();
+            return;
+        }
+        if (null != mScanModeScheduler) {
+            mScanModeScheduler.onResult(result.address());
+        }
+        if (null != mDutyCycle) {
+            mDutyCycle.onResult(result.address());
+        }
+        mMetrics.onDelivered(result.timestampNanos());
+        mScanListener.onScan(result);
     }
 
+    // Starts the platform scan. The only place, with stopNewScan, that calls BluetoothLeScanner.
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private boolean startNewScan(@NonNull final List<UUID> serviceUUIDs) {
+    boolean startNewScan(@NonNull final List<CBScanFilter> scanFilters, @NonNull CBScanOptions options, @NonNull CBScanMode scanMode) {
         if (null != mScanCallback) {
             CBLog.e("null != mScanCallback");
             return false;
@@ -225,30 +619,42 @@ class CBScanner {
         }
         boolean ret;
         List<ScanFilter> filters = new ArrayList<>();
-        for (UUID serviceUuid : serviceUUIDs) {
-            ParcelUuid parcelUuid = new ParcelUuid(serviceUuid);
-            ScanFilter filter = new ScanFilter.Builder()
-                    .setServiceUuid(parcelUuid)
-                    .build();
-            filters.add(filter);
-        }
-        ScanSettings settings = new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                .build();
+        for (CBScanFilter scanFilter : scanFilters) {
+            filters.add(scanFilter.toScanFilter());
+        }
+        ScanSettings.Builder settingsBuilder = new ScanSettings.Builder()
+                .setScanMode(scanMode.value());
+        if (0 < options.getReportDelay()) {
+            if (mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                settingsBuilder.setReportDelay(options.getReportDelay());
+            } else {
+                CBLog.w("Scan batching is not supported. Results are reported immediately.");
+            }
+        }
+        if (options.isExtendedAdvertising()) {
+            setExtendedAdvertising(settingsBuilder, options.getScanPhy());
+        }
+        ScanSettings settings = settingsBuilder.build();
         ScanCallback scanCallback = new ScanCallback() {
             @Override
-            public void onBatchScanResults(List<ScanResult> results) {
+            public void onBatchScanResults(final List<ScanResult> results) {
                 super.onBatchScanResults(results);
+                // One handler hop for the whole batch.
+                mMetrics.onOsBatch(results.size());
+                final long receivedAtNanos = SystemClock.elapsedRealtimeNanos();
+                mHandler.post(() -> _onBatchScan(results, receivedAtNanos));
             }
 
             @TargetApi(Build.VERSION_CODES.LOLLIPOP)
             @Override
             public void onScanResult(int callbackType, ScanResult result) {
                 super.onScanResult(callbackType, result);
-                if (null == result.getScanRecord()) {
-                    mLeScanCallback.onLeScan(result.getDevice(), result.getRssi(), null);
+                if (Build.VERSION_CODES.O <= Build.VERSION.SDK_INT) {
+                    onOsExtendedScanResult(result);
+                } else if (null == result.getScanRecord()) {
+                    onOsScanResult(result.getDevice(), result.getRssi(), null);
                 } else {
-                    mLeScanCallback.onLeScan(result.getDevice(), result.getRssi(), result.getScanRecord().getBytes());
+                    onOsScanResult(result.getDevice(), result.getRssi(), result.getScanRecord().getBytes());
                 }
             }
 
@@ -271,8 +677,28 @@ class CBScanner {
         return ret;
     }
 
+    @TargetApi(Build.VERSION_CODES.O)
+    private void setExtendedAdvertising(@NonNull ScanSettings.Builder settingsBuilder, @NonNull CBPhy scanPhy) {
+        if (Build.VERSION_CODES.O > Build.VERSION.SDK_INT || !mBluetoothAdapter.isLeExtendedAdvertisingSupported()) {
+            CBLog.w("Extended advertising is not supported. Scanning for legacy adverts only.");
+            return;
+        }
+        settingsBuilder.setLegacy(false);
+        if (CBPhy.LECoded == scanPhy && !mBluetoothAdapter.isLeCodedPhySupported()) {
+            CBLog.w("LE Coded PHY is not supported. Scanning on LE 1M.");
+            scanPhy = CBPhy.LE1M;
+        }
+        settingsBuilder.setPhy(scanPhy.value());
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private static void setReport(@NonNull CBScanResult result, @NonNull ScanResult scanResult) {
+        result.setReport(scanResult.getPrimaryPhy(), scanResult.getSecondaryPhy(), scanResult.getAdvertisingSid(),
+                scanResult.getPeriodicAdvertisingInterval(), scanResult.isLegacy());
+    }
+
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private void stopNewScan() {
+    void stopNewScan() {
         if (null == mScanCallback) {
             CBLog.e("null == mScanCallback");
             return;
@@ -292,7 +718,9 @@ class CBScanner {
         AlreadyScanning,
         OSNativeError,
         StopRequest,
-        Timeout
+        Timeout,
+        // Starting would exceed the OS limit of scan starts per 30 seconds.
+        StartBudgetExhausted
     }
 
     abstract static class ScanListener {
@@ -303,19 +731,47 @@ class CBScanner {
          * @see Reason#PoweredOff
          * @see Reason#AlreadyScanning
          * @see Reason#OSNativeError
+         * @see Reason#StartBudgetExhausted
          */
         void onScanStartFailure(@NonNull Reason reason) {
         }
 
         /**
          * @see Reason#PoweredOff
+         * @see Reason#OSNativeError
          * @see Reason#StopRequest
          * @see Reason#Timeout
+         * @see Reason#StartBudgetExhausted
          */
         void onScanStopped(@NonNull Reason reason) {
         }
 
-        void onScan(@NonNull BluetoothDevice device, int rssi, @NonNull byte[] scanRecord) {
+        /**
+         * The result is a recycled slot and is valid only during this call.
+         * Repeats are not suppressed here, so that presence, RSSI and admission see every advert.
+         */
+        void onScan(@NonNull CBScanResult result) {
+        }
+
+        /**
+         * The results are recycled slots and are valid only during this call.
+         */
+        void onBatchScan(@NonNull List<CBScanResult> results) {
+        }
+
+        void onScanWindowFinished(@NonNull CBScanWindowStatistics statistics) {
+        }
+
+        /**
+         * The OS scan is stopped for a duty-cycle rest. Nothing is seen until {@link #onScanRestFinished()}.
+         */
+        void onScanRestStarted() {
+        }
+
+        /**
+         * The next window started, or the scan stopped while resting.
+         */
+        void onScanRestFinished() {
         }
     }
 }
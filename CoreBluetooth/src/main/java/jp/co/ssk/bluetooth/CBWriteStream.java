@@ -0,0 +1,376 @@
+package jp.co.ssk.bluetooth;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+
+import jp.co.ssk.utility.Handler;
+
+/**
+ * Streaming lane for writes without response.
+ * Packets are issued back to back instead of one per operation queue round trip.
+ * How many writes the stack accepts before the first callback is learned: a refusal with writes in flight lowers the limit,
+ * and a run of completions at the limit raises it by one.
+ * A refusal with nothing in flight means the stack buffer is full, and the packet is retried with a doubling delay.
+ * The lane yields to the serial operation queue between packets, so reads and notification changes are not starved.
+ * {@link #offer} may be called from any thread. Everything else runs on the peripheral thread.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+final class CBWriteStream {
+
+    interface Transport {
+        // false if the stack did not take the packet, e.g. its buffer is full or another operation is in flight.
+        boolean write(@NonNull CBCharacteristic characteristic, @NonNull byte[] value);
+
+        // true while the serial operation queue has an event running or waiting. The lane does not issue meanwhile.
+        boolean isBusy();
+
+        // Nothing is in flight on the lane, so the serial operation queue may start.
+        void onIdle();
+
+        // There is room again after offer returned false.
+        void onReady();
+
+        // The lane has been emptied. Later packets are not written.
+        void onFailed(@NonNull CBCharacteristic characteristic, int status);
+    }
+
+    // The peripheral thread's handler and clock. Tests drive the lane with a simulated one.
+    interface Scheduler {
+        long uptimeMillis();
+
+        void post(@NonNull Runnable r);
+
+        void postDelayed(@NonNull Runnable r, long delayMillis);
+
+        void removeCallbacks(@NonNull Runnable r);
+    }
+
+    static final int DEF_CAPACITY = 64;
+    private static final int MAX_IN_FLIGHT = 16;
+    // Completions at the limit before it is raised again.
+    private static final int PROBE_INTERVAL = 64;
+    private static final long MIN_RETRY_DELAY = 1;
+    private static final long MAX_RETRY_DELAY = 32;
+    // Refusals with nothing in flight for this long fail the lane.
+    private static final long STALL_TIMEOUT = 2 * 1000;
+    private static final long CALLBACK_TIMEOUT = 30 * 1000;
+
+    @NonNull
+    private final Scheduler mScheduler;
+    @NonNull
+    private final Transport mTransport;
+    private final int mCapacity;
+    @NonNull
+    private final Object mLock = new Object();
+    // Guarded by mLock.
+    @NonNull
+    private final ArrayDeque<Packet> mQueue = new ArrayDeque<>();
+    private boolean mDrainPosted;
+    private boolean mReadyPending;
+    // Peripheral thread.
+    private int mInFlight;
+    // Last packet issued, until nothing is in flight. A failure is reported for it when the lane is empty.
+    @Nullable
+    private Packet mLastIssued;
+    private int mInFlightLimit = MAX_IN_FLIGHT;
+    private int mCompletionsAtLimit;
+    private long mRetryDelay = MIN_RETRY_DELAY;
+    private long mStalledSince = -1;
+    private boolean mRetryScheduled;
+    private long mBurstStartedAt = -1;
+    private long mBurstPackets;
+    private long mBurstBytes;
+    private long mSentPacketCount;
+    private long mSentByteCount;
+    private long mRefusedCount;
+    @NonNull
+    private final Runnable mDrainRunnable = () -> {
+        synchronized (mLock) {
+            mDrainPosted = false;
+        }
+        drain();
+    };
+    @NonNull
+    private final Runnable mRetryRunnable = () -> {
+        mRetryScheduled = false;
+        drain();
+    };
+    @NonNull
+    private final Runnable mCallbackTimeoutRunnable = () -> {
+        CBLog.e("Write stream callback timeout.");
+        mInFlight = 0;
+        fail(CBStatusCode.GATT_INTERNAL_ERROR);
+    };
+
+    CBWriteStream(@NonNull Looper looper, int capacity, @NonNull Transport transport) {
+        this(new HandlerScheduler(looper), capacity, transport);
+    }
+
+    CBWriteStream(@NonNull Scheduler scheduler, int capacity, @NonNull Transport transport) {
+        if (0 >= capacity) {
+            throw new IllegalArgumentException("capacity must be positive.");
+        }
+        mScheduler = scheduler;
+        mCapacity = capacity;
+        mTransport = transport;
+    }
+
+    /**
+     * Any thread. The value is copied.
+     *
+     * @return false if the lane is full. {@link Transport#onReady()} follows once half of it has drained.
+     */
+    boolean offer(@NonNull CBCharacteristic characteristic, @NonNull byte[] value) {
+        synchronized (mLock) {
+            if (mQueue.size() >= mCapacity) {
+                mReadyPending = true;
+                return false;
+            }
+            mQueue.add(new Packet(characteristic, value.clone()));
+            if (!mDrainPosted) {
+                mDrainPosted = true;
+                mScheduler.post(mDrainRunnable);
+            }
+        }
+        return true;
+    }
+
+    // Any thread.
+    boolean hasRoom() {
+        synchronized (mLock) {
+            return mQueue.size() < mCapacity;
+        }
+    }
+
+    boolean isInFlight() {
+        return 0 < mInFlight;
+    }
+
+    /**
+     * Issues queued packets until the stack refuses one, the serial queue wants the link, or the lane is empty.
+     */
+    void drain() {
+        if (mRetryScheduled) {
+            return;
+        }
+        while (mInFlight < mInFlightLimit && !mTransport.isBusy()) {
+            final Packet packet;
+            synchronized (mLock) {
+                packet = mQueue.peek();
+            }
+            if (null == packet) {
+                break;
+            }
+            if (!mTransport.write(packet.characteristic, packet.value)) {
+                _onRefused();
+                return;
+            }
+            synchronized (mLock) {
+                mQueue.poll();
+            }
+            if (0 == mInFlight) {
+                mScheduler.postDelayed(mCallbackTimeoutRunnable, CALLBACK_TIMEOUT);
+            }
+            mInFlight++;
+            mLastIssued = packet;
+            mRetryDelay = MIN_RETRY_DELAY;
+            mStalledSince = -1;
+            if (0 > mBurstStartedAt) {
+                mBurstStartedAt = mScheduler.uptimeMillis();
+            }
+            mBurstPackets++;
+            mBurstBytes += packet.value.length;
+            mSentPacketCount++;
+            mSentByteCount += packet.value.length;
+        }
+        _notifyReadyIfDrained();
+    }
+
+    /**
+     * Called for every write callback.
+     *
+     * @return false if nothing was in flight on the lane, i.e. the callback belongs to the serial queue.
+     */
+    boolean onWritten(int status) {
+        if (0 == mInFlight) {
+            return false;
+        }
+        if (mInFlight == mInFlightLimit && MAX_IN_FLIGHT > mInFlightLimit && PROBE_INTERVAL <= ++mCompletionsAtLimit) {
+            mInFlightLimit++;
+            mCompletionsAtLimit = 0;
+        }
+        mInFlight--;
+        mScheduler.removeCallbacks(mCallbackTimeoutRunnable);
+        if (0 < mInFlight) {
+            mScheduler.postDelayed(mCallbackTimeoutRunnable, CALLBACK_TIMEOUT);
+        }
+        if (CBStatusCode.GATT_SUCCESS != status) {
+            fail(status);
+            return true;
+        }
+        if (0 == mInFlight) {
+            mLastIssued = null;
+        }
+        drain();
+        if (0 == mInFlight) {
+            _logBurst();
+            mTransport.onIdle();
+        }
+        return true;
+    }
+
+    /**
+     * Drops queued packets and reports the failure once, also when only writes in flight were lost.
+     * Writes still in flight are left to complete.
+     */
+    void fail(int status) {
+        final Packet head;
+        synchronized (mLock) {
+            head = mQueue.peek();
+            mQueue.clear();
+        }
+        _reset();
+        final Packet lost = null != head ? head : mLastIssued;
+        mLastIssued = null;
+        if (null != lost) {
+            CBLog.e("Write stream failed. status:" + status);
+            mTransport.onFailed(lost.characteristic, status);
+        }
+        if (0 == mInFlight) {
+            mTransport.onIdle();
+        }
+    }
+
+    // Peripheral thread. Connection changes leave no write in flight.
+    void clear() {
+        synchronized (mLock) {
+            mQueue.clear();
+            mReadyPending = false;
+        }
+        mInFlight = 0;
+        mLastIssued = null;
+        mInFlightLimit = MAX_IN_FLIGHT;
+        mCompletionsAtLimit = 0;
+        _reset();
+        mScheduler.removeCallbacks(mCallbackTimeoutRunnable);
+    }
+
+    long sentPacketCount() {
+        return mSentPacketCount;
+    }
+
+    long sentByteCount() {
+        return mSentByteCount;
+    }
+
+    long refusedCount() {
+        return mRefusedCount;
+    }
+
+    int inFlightLimit() {
+        return mInFlightLimit;
+    }
+
+    private void _onRefused() {
+        mRefusedCount++;
+        if (0 < mInFlight) {
+            // The stack holds writes until it calls back. Its depth is what it took so far.
+            mInFlightLimit = mInFlight;
+            mCompletionsAtLimit = 0;
+            return;
+        }
+        final long now = mScheduler.uptimeMillis();
+        if (0 > mStalledSince) {
+            mStalledSince = now;
+        } else if (STALL_TIMEOUT <= now - mStalledSince) {
+            fail(CBStatusCode.GATT_INTERNAL_ERROR);
+            return;
+        }
+        mRetryScheduled = true;
+        mScheduler.postDelayed(mRetryRunnable, mRetryDelay);
+        mRetryDelay = Math.min(MAX_RETRY_DELAY, mRetryDelay * 2);
+    }
+
+    private void _notifyReadyIfDrained() {
+        synchronized (mLock) {
+            if (!mReadyPending || mQueue.size() > mCapacity / 2) {
+                return;
+            }
+            mReadyPending = false;
+        }
+        mTransport.onReady();
+    }
+
+    private void _reset() {
+        mScheduler.removeCallbacks(mRetryRunnable);
+        mRetryScheduled = false;
+        mRetryDelay = MIN_RETRY_DELAY;
+        mStalledSince = -1;
+        mBurstStartedAt = -1;
+        mBurstPackets = 0;
+        mBurstBytes = 0;
+    }
+
+    private void _logBurst() {
+        synchronized (mLock) {
+            if (!mQueue.isEmpty()) {
+                return;
+            }
+        }
+        if (0 > mBurstStartedAt) {
+            return;
+        }
+        final long elapsed = Math.max(1, mScheduler.uptimeMillis() - mBurstStartedAt);
+        CBLog.d("Write stream drained. packets:" + mBurstPackets + " bytes:" + mBurstBytes
+                + " elapsed:" + elapsed + "ms goodput:" + mBurstBytes * 1000 / elapsed + "B/s"
+                + " inFlightLimit:" + mInFlightLimit);
+        mBurstStartedAt = -1;
+        mBurstPackets = 0;
+        mBurstBytes = 0;
+    }
+
+    private static final class HandlerScheduler implements Scheduler {
+        @NonNull
+        private final Handler mHandler;
+
+        HandlerScheduler(@NonNull Looper looper) {
+            mHandler = new Handler(looper);
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void post(@NonNull Runnable r) {
+            mHandler.post(r);
+        }
+
+        @Override
+        public void postDelayed(@NonNull Runnable r, long delayMillis) {
+            mHandler.postDelayed(r, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(@NonNull Runnable r) {
+            mHandler.removeCallbacks(r);
+        }
+    }
+
+    private static final class Packet {
+        @NonNull
+        final CBCharacteristic characteristic;
+        @NonNull
+        final byte[] value;
+
+        Packet(@NonNull CBCharacteristic characteristic, @NonNull byte[] value) {
+            this.characteristic = characteristic;
+            this.value = value;
+        }
+    }
+}
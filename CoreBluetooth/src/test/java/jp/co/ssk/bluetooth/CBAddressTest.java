@@ -0,0 +1,66 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CBAddressTest {
+
+    @Test
+    public void packsMostSignificantOctetFirst() {
+        assertEquals(0x001122334455L, CBAddress.pack("00:11:22:33:44:55"));
+        assertEquals(0xFFFFFFFFFFFFL, CBAddress.pack("FF:FF:FF:FF:FF:FF"));
+        assertEquals(0xAABBCCDDEEFFL, CBAddress.pack("aa:bb:cc:dd:ee:ff"));
+    }
+
+    @Test
+    public void formatsInUpperCase() {
+        assertEquals("AA:BB:CC:DD:EE:FF", CBAddress.format(0xAABBCCDDEEFFL));
+        assertEquals("00:00:00:00:00:01", CBAddress.format(1L));
+    }
+
+    @Test
+    public void roundTrips() {
+        Random random = new Random(22);
+        for (int i = 0; i < 10000; i++) {
+            long address = random.nextLong() & 0xFFFFFFFFFFFFL;
+            String formatted = CBAddress.format(address);
+            assertEquals(String.format("%02X:%02X:%02X:%02X:%02X:%02X",
+                    address >>> 40 & 0xFF, address >>> 32 & 0xFF, address >>> 24 & 0xFF,
+                    address >>> 16 & 0xFF, address >>> 8 & 0xFF, address & 0xFF), formatted);
+            assertEquals(address, CBAddress.pack(formatted));
+            assertEquals(address, CBAddress.pack(formatted.toLowerCase()));
+        }
+    }
+
+    @Test
+    public void octetIndexesFromTheMostSignificant() {
+        long address = CBAddress.pack("00:11:22:33:44:55");
+        for (int i = 0; i < CBAddress.OCTETS; i++) {
+            assertEquals(0x11 * i, CBAddress.octet(address, i));
+        }
+    }
+
+    @Test
+    public void rejectsMalformedAddresses() {
+        String[] malformed = {
+                "",
+                "00:11:22:33:44",
+                "00:11:22:33:44:5",
+                "00:11:22:33:44:555",
+                "00-11-22-33-44-55",
+                "00:11:22:33:44:5G",
+                "0G:11:22:33:44:55",
+                "00:11:22:33:44 55",
+                "001:1:22:33:44:55",
+                " 00:11:22:33:44:5",
+                // Full-width digits, which Character.digit would accept.
+                "00:11:22:33:44:\uFF15\uFF15",
+        };
+        for (String address : malformed) {
+            assertEquals(address, CBAddress.INVALID, CBAddress.pack(address));
+        }
+    }
+}
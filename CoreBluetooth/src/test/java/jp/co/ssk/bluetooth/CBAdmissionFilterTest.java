@@ -0,0 +1,63 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CBAdmissionFilterTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final byte[] RECORD = {0x02, 0x01, 0x06, 0x03, 0x03, 0x0D, 0x18};
+
+    @Test
+    public void admitsAfterSightings() {
+        CBAdmissionFilter filter = new CBAdmissionFilter(3, 10000, 100);
+        long address = CBAddress.pack(ADDRESS);
+        assertFalse(filter.admit(address, 0));
+        assertFalse(filter.admit(address, 100));
+        assertTrue(filter.admit(address, 200));
+        assertTrue(filter.admit(address, 300));
+        assertEquals(2, filter.admittedCount());
+        assertEquals(2, filter.rejectedCount());
+    }
+
+    @Test
+    public void forgetsSightingsOlderThanTheWindow() {
+        CBAdmissionFilter filter = new CBAdmissionFilter(2, 1000, 100);
+        long address = CBAddress.pack(ADDRESS);
+        assertFalse(filter.admit(address, 0));
+        // Silent for a whole window, so the first sighting is gone.
+        assertFalse(filter.admit(address, 1100));
+        assertTrue(filter.admit(address, 1200));
+        assertFalse(filter.admit(CBAddress.pack("00:11:22:33:44:56"), 3000));
+    }
+
+    @Test
+    public void admitsUnchangedAdvertsThatTheDuplicateFilterSuppresses() {
+        // The manager counts every advert before the subscriptions suppress repeats, as in CBCentralManager#_onScan.
+        CBAdmissionFilter admission = new CBAdmissionFilter(3, 10000, 100);
+        CBScanDuplicateFilter duplicates = new CBScanDuplicateFilter(16, 0);
+        CBScanResult result = new CBScanResult();
+        int delivered = 0;
+        for (int i = 0; i < 3; i++) {
+            result.set(null, ADDRESS, -60, RECORD, i * 100000000L);
+            if (admission.admit(result.addressBits(), result.timestampNanos() / 1000000) && !duplicates.isDuplicate(result)) {
+                delivered++;
+            }
+        }
+        assertEquals(1, delivered);
+        assertEquals(0, duplicates.suppressedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSingleSighting() {
+        new CBAdmissionFilter(1, 1000, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManySightings() {
+        new CBAdmissionFilter(CBAdmissionFilter.MAX_SIGHTINGS + 1, 1000, 100);
+    }
+}
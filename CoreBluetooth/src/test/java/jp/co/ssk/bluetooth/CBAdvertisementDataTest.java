@@ -0,0 +1,45 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CBAdvertisementDataTest {
+
+    private static final byte[] RECORD = {0x02, 0x01, 0x06, 0x03, 0x03, 0x0D, 0x18};
+
+    @Test
+    public void legacyByDefault() {
+        CBAdvertisementData data = new CBAdvertisementData(RECORD);
+        assertTrue(data.isLegacy());
+        assertEquals(CBPhy.LE1M, data.primaryPhy());
+        assertEquals(CBPhy.Unused, data.secondaryPhy());
+        assertEquals(-1, data.advertisingSid());
+        assertEquals(0, data.periodicAdvertisingInterval());
+    }
+
+    @Test
+    public void reportsTheExtendedReport() {
+        CBAdvertisementData data = new CBAdvertisementData(RECORD);
+        data.setReport(3, 2, 7, 80, false);
+        assertFalse(data.isLegacy());
+        assertEquals(CBPhy.LECoded, data.primaryPhy());
+        assertEquals(CBPhy.LE2M, data.secondaryPhy());
+        assertEquals(7, data.advertisingSid());
+        assertEquals(80, data.periodicAdvertisingInterval());
+    }
+
+    @Test
+    public void wrapResetsTheReport() {
+        CBAdvertisementData data = new CBAdvertisementData(RECORD);
+        data.setReport(3, 2, 7, 80, false);
+        data.wrap(RECORD);
+        assertTrue(data.isLegacy());
+        assertEquals(CBPhy.LE1M, data.primaryPhy());
+        assertEquals(CBPhy.Unused, data.secondaryPhy());
+        assertEquals(-1, data.advertisingSid());
+        assertEquals(0, data.periodicAdvertisingInterval());
+    }
+}
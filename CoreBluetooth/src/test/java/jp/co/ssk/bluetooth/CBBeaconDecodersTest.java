@@ -0,0 +1,171 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CBBeaconDecodersTest {
+
+    private static final String FLAGS = "020106";
+    // Apple, 0x02 0x15, UUID, major 1, minor 2, measured power -59.
+    private static final byte[] IBEACON = hex(FLAGS + "1AFF4C000215"
+            + "F7826DA64FA24E988024BC5B71E0893E" + "0001" + "0002" + "C5");
+    // Radius Networks, 0xBE 0xAC, beacon ID, reference RSSI -66, reserved 0x55.
+    private static final byte[] ALT_BEACON = hex(FLAGS + "1BFF1801BEAC"
+            + "2F234454CF6D4A0FADF2F4911BA9FFA6" + "0003" + "0004" + "BE" + "55");
+    private static final String EDDYSTONE = FLAGS + "0303AAFE";
+    // TX power -18, namespace, instance, RFU.
+    private static final byte[] EDDYSTONE_UID = hex(EDDYSTONE + "1716AAFE" + "00EE"
+            + "EDD1EBEAC04E5DEFA017" + "0BDB87539B67" + "0000");
+    // TX power -21, "http://www." + "example" + ".com/".
+    private static final byte[] EDDYSTONE_URL = hex(EDDYSTONE + "0E16AAFE" + "10EB" + "00" + "6578616D706C65" + "00");
+    // Version 0, 3000 mV, 24.5 C, 4660 frames, 120 s.
+    private static final byte[] EDDYSTONE_TLM = hex(EDDYSTONE + "1116AAFE" + "2000" + "0BB8" + "1880" + "00001234" + "000004B0");
+
+    private CBAdvertisementData mData;
+    private CBBeacon mBeacon;
+
+    private static byte[] hex(String s) {
+        byte[] ret = new byte[s.length() / 2];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return ret;
+    }
+
+    private boolean decode(CBBeaconDecoder decoder, byte[] record) {
+        mData.wrap(record);
+        mBeacon.clear();
+        return decoder.decode(mData, mBeacon);
+    }
+
+    @Before
+    public void setUp() {
+        mData = new CBAdvertisementData();
+        mBeacon = new CBBeacon();
+    }
+
+    @Test
+    public void decodesIBeacon() {
+        assertTrue(decode(CBBeaconDecoder.iBeacon(), IBEACON));
+        assertEquals(CBBeaconType.IBeacon, mBeacon.type());
+        assertEquals(UUID.fromString("f7826da6-4fa2-4e98-8024-bc5b71e0893e"), mBeacon.proximityUUID());
+        assertEquals(1, mBeacon.major());
+        assertEquals(2, mBeacon.minor());
+        assertEquals(-59, mBeacon.txPower());
+        assertEquals(0x004C, mBeacon.manufacturerId());
+        assertEquals(20, mBeacon.idLength());
+    }
+
+    @Test
+    public void decodesAltBeacon() {
+        assertTrue(decode(CBBeaconDecoder.altBeacon(), ALT_BEACON));
+        assertEquals(CBBeaconType.AltBeacon, mBeacon.type());
+        assertEquals(UUID.fromString("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6"), mBeacon.proximityUUID());
+        assertEquals(3, mBeacon.major());
+        assertEquals(4, mBeacon.minor());
+        assertEquals(-66, mBeacon.txPower());
+        assertEquals(0x0118, mBeacon.manufacturerId());
+        assertEquals(0x55, mBeacon.manufacturerReserved());
+    }
+
+    @Test
+    public void decodesEddystoneUid() {
+        assertTrue(decode(CBBeaconDecoder.eddystone(), EDDYSTONE_UID));
+        assertEquals(CBBeaconType.EddystoneUid, mBeacon.type());
+        assertEquals(-18, mBeacon.txPower());
+        assertEquals(16, mBeacon.idLength());
+        assertEquals(0xED, mBeacon.idByte(0));
+        assertEquals(0x17, mBeacon.idByte(9));
+        assertEquals(0x0B, mBeacon.idByte(10));
+        assertEquals(0x67, mBeacon.idByte(15));
+        assertNull(mBeacon.proximityUUID());
+        assertEquals(-1, mBeacon.major());
+    }
+
+    @Test
+    public void decodesEddystoneUrl() {
+        assertTrue(decode(CBBeaconDecoder.eddystone(), EDDYSTONE_URL));
+        assertEquals(CBBeaconType.EddystoneUrl, mBeacon.type());
+        assertEquals(-21, mBeacon.txPower());
+        assertEquals("http://www.example.com/", mBeacon.url());
+    }
+
+    @Test
+    public void decodesEddystoneTlm() {
+        assertTrue(decode(CBBeaconDecoder.eddystone(), EDDYSTONE_TLM));
+        assertEquals(CBBeaconType.EddystoneTlm, mBeacon.type());
+        assertEquals(3000, mBeacon.batteryMillivolts());
+        assertEquals(24.5f, mBeacon.temperature(), 0.0);
+        assertEquals(0x1234, mBeacon.advertisingCount());
+        assertEquals(1200, mBeacon.uptimeDeciseconds());
+    }
+
+    @Test
+    public void rejectsOtherFormats() {
+        assertFalse(decode(CBBeaconDecoder.iBeacon(), ALT_BEACON));
+        assertFalse(decode(CBBeaconDecoder.altBeacon(), IBEACON));
+        assertFalse(decode(CBBeaconDecoder.eddystone(), IBEACON));
+        assertFalse(decode(CBBeaconDecoder.iBeacon(), EDDYSTONE_UID));
+        assertFalse(decode(CBBeaconDecoder.iBeacon(), hex(FLAGS)));
+    }
+
+    @Test
+    public void rejectsTruncatedFrames() {
+        // The same frames one byte short.
+        assertFalse(decode(CBBeaconDecoder.iBeacon(), hex(FLAGS + "19FF4C000215"
+                + "F7826DA64FA24E988024BC5B71E0893E" + "0001" + "0002")));
+        assertFalse(decode(CBBeaconDecoder.eddystone(), hex(EDDYSTONE + "1616AAFE" + "00EE"
+                + "EDD1EBEAC04E5DEFA017" + "0BDB87539B")));
+        assertFalse(decode(CBBeaconDecoder.eddystone(), hex(EDDYSTONE + "1016AAFE" + "2000" + "0BB8" + "1880" + "00001234" + "000004")));
+        // Encrypted TLM.
+        assertFalse(decode(CBBeaconDecoder.eddystone(), hex(EDDYSTONE + "1116AAFE" + "2001" + "0BB8" + "1880" + "00001234" + "000004B0")));
+    }
+
+    @Test
+    public void decodingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        final byte[][] records = {IBEACON, ALT_BEACON, EDDYSTONE_UID, EDDYSTONE_URL, EDDYSTONE_TLM};
+        final CBBeaconDecoder[] decoders = {CBBeaconDecoder.iBeacon(), CBBeaconDecoder.altBeacon(), CBBeaconDecoder.eddystone()};
+        // Warm up, so that class loading and compilation are not counted.
+        int decoded = run(records, decoders, 20000);
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        decoded += run(records, decoders, 100000);
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertEquals(120000 * records.length, decoded);
+        // Even one object per frame would be megabytes. The slack covers the measurement itself.
+        assertTrue("allocated " + allocated + " bytes", 4096 > allocated);
+    }
+
+    private int run(byte[][] records, CBBeaconDecoder[] decoders, int rounds) {
+        int ret = 0;
+        for (int i = 0; i < rounds; i++) {
+            for (byte[] record : records) {
+                mData.wrap(record);
+                for (CBBeaconDecoder decoder : decoders) {
+                    mBeacon.clear();
+                    if (decoder.decode(mData, mBeacon)) {
+                        ret++;
+                        break;
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+}
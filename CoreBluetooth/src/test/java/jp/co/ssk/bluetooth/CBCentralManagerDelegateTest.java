@@ -0,0 +1,113 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CBCentralManagerDelegateTest {
+
+    private static final byte[] RECORD = {0x02, 0x01, 0x06, 0x03, 0x03, 0x0D, 0x18};
+    private static final byte[] OTHER_RECORD = {0x02, 0x01, 0x04};
+
+    private List<CBDiscovery> mDiscoveries;
+
+    // The defaults never look at the central or the peripheral, so the tests pass none.
+    @Before
+    public void setUp() {
+        mDiscoveries = Arrays.asList(
+                new CBDiscovery(null, RECORD, -60, 1L, 3, 2, 5, 80, false),
+                new CBDiscovery(null, OTHER_RECORD, -70, 2L));
+    }
+
+    private abstract static class Delegate implements CBCentralManagerDelegate {
+        @Override
+        public void didConnect(@NonNull CBCentralManager central, @NonNull CBPeripheral peripheral) {
+        }
+
+        @Override
+        public void didDisconnectPeripheral(@NonNull CBCentralManager central, @NonNull CBPeripheral peripheral) {
+        }
+
+        @Override
+        public void didFailToConnect(@NonNull CBCentralManager central, @NonNull CBPeripheral peripheral) {
+        }
+
+        @Override
+        public void centralManagerDidUpdateState(@NonNull CBCentralManager central, @NonNull CBManagerState newState) {
+        }
+    }
+
+    // Overrides only the view overload, as an app that wants the extended report does.
+    private static final class ViewDelegate extends Delegate {
+        final List<byte[]> records = new ArrayList<>();
+        final List<Boolean> legacy = new ArrayList<>();
+        final List<CBPhy> primaryPhys = new ArrayList<>();
+        final List<Integer> rssis = new ArrayList<>();
+
+        @Override
+        public void didDiscover(@NonNull CBCentralManager central, @NonNull CBPeripheral peripheral, @NonNull byte[] advertisementData, int rssi) {
+            throw new AssertionError("Not forwarded through the view.");
+        }
+
+        @Override
+        public void didDiscover(@NonNull CBCentralManager central, @NonNull CBPeripheral peripheral, @NonNull CBAdvertisementData advertisementData, int rssi) {
+            records.add(advertisementData.copyBytes());
+            legacy.add(advertisementData.isLegacy());
+            primaryPhys.add(advertisementData.primaryPhy());
+            rssis.add(rssi);
+        }
+    }
+
+    private static void assertForwarded(ViewDelegate delegate) {
+        assertEquals(2, delegate.records.size());
+        assertArrayEquals(RECORD, delegate.records.get(0));
+        assertFalse(delegate.legacy.get(0));
+        assertEquals(CBPhy.LECoded, delegate.primaryPhys.get(0));
+        assertEquals(-60, (int) delegate.rssis.get(0));
+        // The reused view does not carry the report over to the next discovery.
+        assertArrayEquals(OTHER_RECORD, delegate.records.get(1));
+        assertTrue(delegate.legacy.get(1));
+        assertEquals(CBPhy.LE1M, delegate.primaryPhys.get(1));
+        assertEquals(-70, (int) delegate.rssis.get(1));
+    }
+
+    @Test
+    public void batchGoesThroughTheView() {
+        ViewDelegate delegate = new ViewDelegate();
+        delegate.didDiscoverBatch(null, mDiscoveries);
+        assertForwarded(delegate);
+    }
+
+    @Test
+    public void coalescedGoesThroughTheView() {
+        ViewDelegate delegate = new ViewDelegate();
+        delegate.didDiscover(null, mDiscoveries);
+        assertForwarded(delegate);
+    }
+
+    @Test
+    public void byteArrayDelegateStillSeesEveryDiscovery() {
+        final List<byte[]> records = new ArrayList<>();
+        Delegate delegate = new Delegate() {
+            @Override
+            public void didDiscover(@NonNull CBCentralManager central, @NonNull CBPeripheral peripheral, @NonNull byte[] advertisementData, int rssi) {
+                records.add(advertisementData);
+            }
+        };
+        delegate.didDiscoverBatch(null, mDiscoveries);
+        delegate.didDiscover(null, mDiscoveries);
+        assertEquals(4, records.size());
+        assertArrayEquals(RECORD, records.get(0));
+        assertArrayEquals(OTHER_RECORD, records.get(3));
+    }
+}
@@ -0,0 +1,162 @@
+package jp.co.ssk.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import jp.co.ssk.utility.Handler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CBDiscoveryCoalescerTest {
+
+    private static final long WINDOW = 200;
+    private static final int PERIPHERALS = 100;
+    private static final byte[] FIRST = {0x02, 0x01, 0x06};
+    private static final byte[] SECOND = {0x02, 0x01, 0x06, 0x03, 0x03, 0x0D, 0x18};
+
+    private Handler mHandler;
+    private final List<List<CBDiscovery>> mFlushes = new ArrayList<>();
+    private CBDiscoveryCoalescer mCoalescer;
+    private final CBAdvertisementData mAdvertisementData = new CBAdvertisementData();
+    private final List<CBPeripheral> mPeripherals = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mHandler = mock(Handler.class);
+        mCoalescer = new CBDiscoveryCoalescer(mHandler, WINDOW, mFlushes::add);
+        Context context = mock(Context.class);
+        when(context.getSystemService(Context.BLUETOOTH_SERVICE)).thenReturn(mock(BluetoothManager.class));
+        for (int i = 0; i < PERIPHERALS; i++) {
+            BluetoothDevice device = mock(BluetoothDevice.class);
+            when(device.getAddress()).thenReturn(String.format(Locale.US, "00:11:22:33:44:%02X", i));
+            mPeripherals.add(new CBPeripheral(context, device, mock(CBPeripheral.PeripheralEventListenerForManager.class), mock(Looper.class)));
+        }
+    }
+
+    private void offer(int peripheral, byte[] record, int rssi) {
+        mCoalescer.offer(mPeripherals.get(peripheral), mAdvertisementData.wrap(record), rssi, 0);
+    }
+
+    @Test
+    public void keepsTheLatestDiscoveryPerAddress() {
+        offer(0, FIRST, -50);
+        offer(1, FIRST, -60);
+        offer(0, SECOND, -40);
+        mCoalescer.flush();
+        assertEquals(1, mFlushes.size());
+        List<CBDiscovery> discoveries = mFlushes.get(0);
+        assertEquals(2, discoveries.size());
+        // In order of first sighting, with the latest advert.
+        assertSame(mPeripherals.get(0), discoveries.get(0).peripheral());
+        assertEquals(-40, discoveries.get(0).rssi());
+        assertArrayEquals(SECOND, discoveries.get(0).advertisementData());
+        assertSame(mPeripherals.get(1), discoveries.get(1).peripheral());
+        assertEquals(-60, discoveries.get(1).rssi());
+        assertArrayEquals(FIRST, discoveries.get(1).advertisementData());
+        assertEquals(3, mCoalescer.offeredCount());
+        assertEquals(1, mCoalescer.flushCount());
+    }
+
+    @Test
+    public void aReusedEntryHoldsOnlyItsNewAdvert() {
+        offer(0, SECOND, -40);
+        mCoalescer.flush();
+        // The pooled entry keeps its longer buffer, but not its length or contents.
+        offer(1, FIRST, -70);
+        mCoalescer.flush();
+        CBDiscovery discovery = mFlushes.get(1).get(0);
+        assertSame(mPeripherals.get(1), discovery.peripheral());
+        assertEquals(-70, discovery.rssi());
+        assertArrayEquals(FIRST, discovery.advertisementData());
+        // The first flush handed out a copy, which the reuse must not touch.
+        assertArrayEquals(SECOND, mFlushes.get(0).get(0).advertisementData());
+    }
+
+    @Test
+    public void windowOpensWithTheFirstDiscovery() {
+        // Idle: nothing posted, and a flush delivers nothing.
+        mCoalescer.flush();
+        assertTrue(mFlushes.isEmpty());
+        verify(mHandler, times(0)).postDelayed(any(Runnable.class), anyLong());
+
+        for (int i = 0; i < 10; i++) {
+            offer(i % 3, FIRST, -50);
+        }
+        verify(mHandler, times(1)).postDelayed(any(Runnable.class), eq(WINDOW));
+        mCoalescer.flush();
+        offer(0, FIRST, -50);
+        verify(mHandler, times(2)).postDelayed(any(Runnable.class), eq(WINDOW));
+    }
+
+    @Test
+    public void repeatSightingsAndPooledEntriesDoNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        final long threadId = Thread.currentThread().getId();
+        // Warm up, so that class loading, compilation and the pool's growth are not counted.
+        for (int round = 0; round < 200; round++) {
+            offerAll();
+            mCoalescer.flush();
+        }
+        mFlushes.clear();
+
+        // Within a window: every address is pending, so offers only overwrite entries.
+        offerAll();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int round = 0; round < 100; round++) {
+            offerAll();
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("repeats allocated " + allocated + " bytes", 4096 > allocated);
+        mCoalescer.flush();
+
+        // Across windows: each address takes a pooled entry. Only the map node is new, a fraction
+        // of an entry and its record buffer. The first offer opens the window, whose post the mock
+        // records, so it is left out.
+        allocated = 0;
+        for (int round = 0; round < 100; round++) {
+            offer(0, SECOND, -50);
+            before = threads.getThreadAllocatedBytes(threadId);
+            offerFrom(1);
+            allocated += threads.getThreadAllocatedBytes(threadId) - before;
+            mCoalescer.flush();
+        }
+        assertTrue("first sightings allocated " + allocated + " bytes", 100L * (PERIPHERALS - 1) * 100 > allocated);
+    }
+
+    private void offerAll() {
+        offerFrom(0);
+    }
+
+    private void offerFrom(int first) {
+        for (int i = first; i < PERIPHERALS; i++) {
+            offer(i, SECOND, -50 - i % 30);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package jp.co.ssk.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jp.co.ssk.utility.Handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CBDiscoveryPublisherTest {
+
+    private static final String A = "00:11:22:33:44:01";
+    private static final String B = "00:11:22:33:44:02";
+    private static final String C = "00:11:22:33:44:03";
+
+    private Context mContext;
+    private CBCentralManager mCentral;
+    private CBScanSubscription mScanSubscription;
+    private Handler mHandler;
+    // Posted to the subscriber thread and not yet run.
+    private final List<Runnable> mPosted = new ArrayList<>();
+    private final List<String> mEvents = new ArrayList<>();
+    private final CBAdvertisementData mAdvertisementData = new CBAdvertisementData();
+    private CBScanSubscription.Subscriber mStream;
+    private CBDiscoveryPublisher.Subscription mSubscription;
+
+    @Before
+    public void setUp() {
+        mContext = mock(Context.class);
+        when(mContext.getSystemService(Context.BLUETOOTH_SERVICE)).thenReturn(mock(BluetoothManager.class));
+        mCentral = mock(CBCentralManager.class);
+        mScanSubscription = mock(CBScanSubscription.class);
+        doAnswer(invocation -> {
+            mStream = invocation.getArgument(1);
+            return mScanSubscription;
+        }).when(mCentral).subscribeScan(anyList(), any(CBScanSubscription.Subscriber.class));
+        mHandler = mock(Handler.class);
+        doAnswer(invocation -> mPosted.add(invocation.getArgument(0))).when(mHandler).post(any(Runnable.class));
+    }
+
+    private void subscribe(CBOverflowStrategy strategy, int capacity) {
+        CBDiscoveryPublisher publisher = new CBDiscoveryPublisher(mCentral, Collections.emptyList(), strategy, capacity);
+        publisher.subscribeOn(new CBDiscoveryPublisher.Subscriber() {
+            @Override
+            public void onSubscribe(CBDiscoveryPublisher.Subscription subscription) {
+                mSubscription = subscription;
+            }
+
+            @Override
+            public void onNext(CBDiscovery discovery) {
+                mEvents.add(discovery.peripheral().getAddress() + " " + discovery.rssi());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                mEvents.add("error " + throwable.getClass().getSimpleName());
+            }
+
+            @Override
+            public void onComplete() {
+                mEvents.add("complete");
+            }
+        }, mHandler);
+        runSubscriberThread();
+    }
+
+    private CBPeripheral peripheral(String address) {
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        when(device.getAddress()).thenReturn(address);
+        return new CBPeripheral(mContext, device, mock(CBPeripheral.PeripheralEventListenerForManager.class), mock(Looper.class));
+    }
+
+    // As the manager thread does for a routed advert.
+    private void discover(CBPeripheral peripheral, int rssi) {
+        mStream.didDiscover(mScanSubscription, peripheral, mAdvertisementData, rssi);
+    }
+
+    private void runSubscriberThread() {
+        while (!mPosted.isEmpty()) {
+            mPosted.remove(0).run();
+        }
+    }
+
+    private void request(long n) {
+        mSubscription.request(n);
+        runSubscriberThread();
+    }
+
+    @Test
+    public void deliversOnlyWhatIsRequested() {
+        subscribe(CBOverflowStrategy.DropOldest, 8);
+        CBPeripheral a = peripheral(A);
+        discover(a, -50);
+        discover(a, -51);
+        discover(a, -52);
+        runSubscriberThread();
+        assertTrue(mEvents.isEmpty());
+        request(2);
+        assertEquals(Arrays.asList(A + " -50", A + " -51"), mEvents);
+        request(5);
+        assertEquals(Arrays.asList(A + " -50", A + " -51", A + " -52"), mEvents);
+        // The remaining demand carries over to later discoveries.
+        discover(a, -53);
+        runSubscriberThread();
+        assertEquals(4, mEvents.size());
+    }
+
+    @Test
+    public void unboundedDemandDeliversEverything() {
+        subscribe(CBOverflowStrategy.DropOldest, 2);
+        request(Long.MAX_VALUE);
+        request(Long.MAX_VALUE);
+        CBPeripheral a = peripheral(A);
+        for (int i = 0; i < 10; i++) {
+            discover(a, -50 - i);
+            runSubscriberThread();
+        }
+        assertEquals(10, mEvents.size());
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewest() {
+        subscribe(CBOverflowStrategy.DropOldest, 2);
+        CBPeripheral a = peripheral(A);
+        discover(a, -50);
+        discover(a, -51);
+        discover(a, -52);
+        request(10);
+        assertEquals(Arrays.asList(A + " -51", A + " -52"), mEvents);
+    }
+
+    @Test
+    public void keepLatestPerAddressReplacesInPlace() {
+        subscribe(CBOverflowStrategy.KeepLatestPerAddress, 2);
+        CBPeripheral a = peripheral(A);
+        CBPeripheral b = peripheral(B);
+        discover(a, -50);
+        discover(b, -60);
+        discover(a, -40);
+        request(10);
+        // A keeps its place in the queue with its latest advert.
+        assertEquals(Arrays.asList(A + " -40", B + " -60"), mEvents);
+    }
+
+    @Test
+    public void keepLatestPerAddressBoundsTheAddresses() {
+        subscribe(CBOverflowStrategy.KeepLatestPerAddress, 2);
+        discover(peripheral(A), -50);
+        discover(peripheral(B), -60);
+        discover(peripheral(C), -70);
+        request(10);
+        assertEquals(Arrays.asList(B + " -60", C + " -70"), mEvents);
+    }
+
+    @Test
+    public void bufferOverflowIsAnError() {
+        subscribe(CBOverflowStrategy.Buffer, 2);
+        CBPeripheral a = peripheral(A);
+        discover(a, -50);
+        discover(a, -51);
+        discover(a, -52);
+        verify(mScanSubscription).cancel();
+        request(10);
+        // Queued discoveries are discarded, not delivered after the error.
+        assertEquals(Collections.singletonList("error IllegalStateException"), mEvents);
+        discover(a, -53);
+        mStream.didStop(mScanSubscription);
+        runSubscriberThread();
+        assertEquals(1, mEvents.size());
+    }
+
+    @Test
+    public void completeFollowsTheQueuedDiscoveries() {
+        subscribe(CBOverflowStrategy.DropOldest, 8);
+        CBPeripheral a = peripheral(A);
+        discover(a, -50);
+        discover(a, -51);
+        mStream.didStop(mScanSubscription);
+        runSubscriberThread();
+        assertTrue(mEvents.isEmpty());
+        request(1);
+        assertEquals(Collections.singletonList(A + " -50"), mEvents);
+        request(1);
+        assertEquals(Arrays.asList(A + " -50", A + " -51", "complete"), mEvents);
+        // Completion needs no demand, and comes only once.
+        request(1);
+        assertEquals(3, mEvents.size());
+    }
+
+    @Test
+    public void failureToStartIsAnError() {
+        subscribe(CBOverflowStrategy.DropOldest, 8);
+        request(1);
+        mStream.didFailToStart(mScanSubscription, CBManagerState.PoweredOff);
+        runSubscriberThread();
+        assertEquals(Collections.singletonList("error IllegalStateException"), mEvents);
+        mStream.didStop(mScanSubscription);
+        runSubscriberThread();
+        assertEquals(1, mEvents.size());
+    }
+
+    @Test
+    public void nonPositiveRequestIsAnError() {
+        subscribe(CBOverflowStrategy.DropOldest, 8);
+        request(0);
+        assertEquals(Collections.singletonList("error IllegalArgumentException"), mEvents);
+        verify(mScanSubscription).cancel();
+    }
+
+    @Test
+    public void cancelStopsDeliveryWithoutCompleting() {
+        subscribe(CBOverflowStrategy.DropOldest, 8);
+        CBPeripheral a = peripheral(A);
+        discover(a, -50);
+        mSubscription.cancel();
+        verify(mScanSubscription).cancel();
+        request(10);
+        mStream.didStop(mScanSubscription);
+        runSubscriberThread();
+        assertTrue(mEvents.isEmpty());
+    }
+
+    @Test
+    public void cancelFromOnSubscribeNeverJoinsTheScan() {
+        CBDiscoveryPublisher publisher = new CBDiscoveryPublisher(mCentral, Collections.emptyList(), CBOverflowStrategy.DropOldest, 8);
+        // onSubscribe is posted, so it runs after subscribeScan returned. Cancelling there cancels the scan subscription.
+        publisher.subscribeOn(new CBDiscoveryPublisher.Subscriber() {
+            @Override
+            public void onSubscribe(CBDiscoveryPublisher.Subscription subscription) {
+                subscription.cancel();
+            }
+
+            @Override
+            public void onNext(CBDiscovery discovery) {
+                mEvents.add("next");
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                mEvents.add("error");
+            }
+
+            @Override
+            public void onComplete() {
+                mEvents.add("complete");
+            }
+        }, mHandler);
+        verify(mScanSubscription, never()).cancel();
+        runSubscriberThread();
+        verify(mScanSubscription).cancel();
+        assertTrue(mEvents.isEmpty());
+    }
+}
@@ -0,0 +1,176 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CBLongMapTest {
+
+    @Test
+    public void putGetRemove() {
+        CBLongMap<String> map = new CBLongMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1L, "a"));
+        assertEquals("a", map.put(1L, "b"));
+        assertEquals("b", map.get(1L));
+        assertTrue(map.containsKey(1L));
+        assertFalse(map.containsKey(2L));
+        assertEquals(1, map.size());
+        assertEquals("b", map.remove(1L));
+        assertNull(map.remove(1L));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeKeys() {
+        new CBLongMap<String>().put(-1L, "a");
+    }
+
+    @Test
+    public void clearEmptiesTheMap() {
+        CBLongMap<String> map = new CBLongMap<>();
+        for (long key = 0; key < 100; key++) {
+            map.put(key, "v");
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        for (long key = 0; key < 100; key++) {
+            assertNull(map.get(key));
+        }
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        // A small key space makes collisions, probe chains across the wrap and backward shifts frequent.
+        for (int seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            final int keySpace = 8 << (seed % 8);
+            CBLongMap<Integer> map = new CBLongMap<>(seed % 3 == 0 ? 0 : keySpace / 4);
+            Map<Long, Integer> expected = new HashMap<>();
+            for (int op = 0; op < 20000; op++) {
+                final long key = random.nextInt(keySpace) + (seed % 2 == 0 ? 0 : 0xFFFF00000000L);
+                final int action = random.nextInt(10);
+                if (action < 5) {
+                    assertEquals(expected.put(key, op), map.put(key, op));
+                } else if (action < 8) {
+                    assertEquals(expected.remove(key), map.remove(key));
+                } else if (action < 9) {
+                    assertEquals(expected.get(key), map.get(key));
+                } else if (0 == random.nextInt(200)) {
+                    expected.clear();
+                    map.clear();
+                }
+                assertEquals(expected.size(), map.size());
+            }
+            for (long key = 0; key < keySpace; key++) {
+                final long k = key + (seed % 2 == 0 ? 0 : 0xFFFF00000000L);
+                assertEquals(expected.get(k), map.get(k));
+            }
+        }
+    }
+
+    // Benchmark: a peripheral lookup per advert, as the registry did with String keys and does now with packed ones.
+    // Each advert brings a fresh address String, so its hash is computed every time, as with BluetoothDevice#getAddress().
+    @Test
+    public void packedLookupOutrunsStringKeys() {
+        final int peripherals = 20000;
+        final int lookups = 1 << 16;
+        final Random random = new Random(1);
+        final long[] addresses = new long[peripherals];
+        final Map<String, Integer> stringMap = new HashMap<>();
+        final CBLongMap<Integer> longMap = new CBLongMap<>();
+        for (int i = 0; i < peripherals; i++) {
+            addresses[i] = random.nextLong() & 0xFFFFFFFFFFFFL;
+            stringMap.put(CBAddress.format(addresses[i]), i);
+            longMap.put(addresses[i], i);
+        }
+        final int[] order = new int[lookups];
+        for (int i = 0; i < lookups; i++) {
+            order[i] = random.nextInt(peripherals);
+        }
+        final long[] packed = new long[lookups];
+        for (int i = 0; i < lookups; i++) {
+            packed[i] = addresses[order[i]];
+        }
+
+        long stringNanos = 0;
+        long packNanos = 0;
+        long longNanos = 0;
+        long longAllocated = 0;
+        final long threadId = Thread.currentThread().getId();
+        // The first rounds warm up, so that class loading and compilation are not counted.
+        for (int round = 0; round < 8; round++) {
+            final String[] fresh = freshAddresses(addresses, order);
+            long start = System.nanoTime();
+            long sum = 0;
+            for (String address : fresh) {
+                sum += stringMap.get(address);
+            }
+            final long string = System.nanoTime() - start;
+
+            final String[] freshForPack = freshAddresses(addresses, order);
+            start = System.nanoTime();
+            long packSum = 0;
+            for (String address : freshForPack) {
+                packSum += longMap.get(CBAddress.pack(address));
+            }
+            final long pack = System.nanoTime() - start;
+
+            final long allocatedBefore = allocatedBytes(threadId);
+            start = System.nanoTime();
+            long longSum = 0;
+            for (long address : packed) {
+                longSum += longMap.get(address);
+            }
+            final long prepacked = System.nanoTime() - start;
+            final long allocated = allocatedBytes(threadId) - allocatedBefore;
+
+            assertEquals(sum, packSum);
+            assertEquals(sum, longSum);
+            if (4 <= round) {
+                stringNanos += string;
+                packNanos += pack;
+                longNanos += prepacked;
+                longAllocated += allocated;
+            }
+        }
+        final long measured = 4L * lookups;
+        System.out.println("Peripheral lookup: HashMap<String> " + stringNanos / measured + " ns,"
+                + " pack and CBLongMap " + packNanos / measured + " ns,"
+                + " prepacked CBLongMap " + longNanos / measured + " ns.");
+        assertTrue("string " + stringNanos + "ns, prepacked " + longNanos + "ns", longNanos < stringNanos);
+        if (0 <= allocatedBytes(threadId)) {
+            // The map hands back the stored values, so a lookup by a packed key allocates nothing. The slack covers the measurement itself.
+            assertTrue("allocated " + longAllocated + " bytes", 4096 > longAllocated);
+        }
+    }
+
+    private static String[] freshAddresses(long[] addresses, int[] order) {
+        String[] ret = new String[order.length];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = new String(CBAddress.format(addresses[order[i]]).toCharArray());
+        }
+        return ret;
+    }
+
+    // -1 where the JVM does not count allocations per thread.
+    private static long allocatedBytes(long threadId) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return threads.getThreadAllocatedBytes(threadId);
+    }
+}
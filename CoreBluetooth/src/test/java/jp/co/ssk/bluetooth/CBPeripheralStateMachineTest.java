@@ -0,0 +1,112 @@
+package jp.co.ssk.bluetooth;
+
+import android.os.Looper;
+import android.os.Message;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.Invocation;
+
+import jp.co.ssk.sm.StateMachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CBPeripheralStateMachineTest {
+
+    private static final int MTU = 247;
+
+    private AndroidPeripheral mPeripheral;
+    private CBPeripheralStateMachine.EventListener mListener;
+    private CBPeripheralStateMachine mStateMachine;
+    private CBPeripheralStateMachine.MtuRequestingState mState;
+
+    @Before
+    public void setUp() {
+        mPeripheral = mock(AndroidPeripheral.class);
+        mListener = mock(CBPeripheralStateMachine.EventListener.class);
+        // Local tests have no looper to run the state machine on, so the state is driven by hand
+        // and the messages it sends are recorded rather than delivered.
+        mStateMachine = spy(new CBPeripheralStateMachine(mPeripheral, mListener, mock(Looper.class)));
+        doNothing().when(mStateMachine).sendMessage(anyInt(), any());
+        doNothing().when(mStateMachine).sendMessageDelayed(anyInt(), anyLong());
+        doNothing().when(mStateMachine).removeMessages(anyInt());
+        mState = new CBPeripheralStateMachine.MtuRequestingState();
+    }
+
+    private static Message message(CBPeripheralStateMachine.Event event, Object obj) {
+        Message msg = new Message();
+        msg.what = event.ordinal();
+        msg.obj = obj;
+        return msg;
+    }
+
+    // Simple name of the state the last transitionTo went to, or null.
+    private String transitionedTo() {
+        String ret = null;
+        for (Invocation invocation : mockingDetails(mStateMachine).getInvocations()) {
+            if ("transitionTo".equals(invocation.getMethod().getName())) {
+                ret = invocation.getArgument(0).getClass().getSimpleName();
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void enterRequestsTheMtuAndArmsTheTimeout() {
+        when(mPeripheral.requestMtu(anyInt())).thenReturn(true);
+        mState.enter(mStateMachine);
+        verify(mListener).onDetailedStateChanged(CBPeripheralDetailedState.MtuRequesting);
+        verify(mPeripheral).requestMtu(anyInt());
+        verify(mStateMachine).sendMessageDelayed(CBPeripheralStateMachine.Event.MtuRequestingTimeout.ordinal(), 5000L);
+        assertEquals(5000L, CBPeripheralStateMachine.MtuRequestingState.MTU_REQUESTING_TIMEOUT_MS);
+    }
+
+    @Test
+    public void refusedRequestFailsWithoutWaiting() {
+        when(mPeripheral.requestMtu(anyInt())).thenReturn(false);
+        mState.enter(mStateMachine);
+        verify(mStateMachine).sendMessage(CBPeripheralStateMachine.Event.MtuChangeFailure.ordinal(), CBStatusCode.GATT_INTERNAL_ERROR);
+        verify(mStateMachine, never()).sendMessageDelayed(anyInt(), anyLong());
+    }
+
+    @Test
+    public void successfulReplyConnects() {
+        assertEquals(StateMachine.HANDLED, mState.processMessage(mStateMachine, message(CBPeripheralStateMachine.Event.MtuChangeSuccess, MTU)));
+        assertEquals("ConnectedState", transitionedTo());
+    }
+
+    @Test
+    public void failedReplyStillConnects() {
+        assertEquals(StateMachine.HANDLED, mState.processMessage(mStateMachine, message(CBPeripheralStateMachine.Event.MtuChangeFailure, CBStatusCode.GATT_INTERNAL_ERROR)));
+        assertEquals("ConnectedState", transitionedTo());
+    }
+
+    @Test
+    public void timeoutStillConnects() {
+        assertEquals(StateMachine.HANDLED, mState.processMessage(mStateMachine, message(CBPeripheralStateMachine.Event.MtuRequestingTimeout, null)));
+        assertEquals("ConnectedState", transitionedTo());
+    }
+
+    @Test
+    public void exitDisarmsTheTimeout() {
+        mState.exit(mStateMachine);
+        verify(mStateMachine).removeMessages(CBPeripheralStateMachine.Event.MtuRequestingTimeout.ordinal());
+    }
+
+    @Test
+    public void disconnectIsLeftToTheConnectingState() {
+        assertEquals(StateMachine.NOT_HANDLED, mState.processMessage(mStateMachine, message(CBPeripheralStateMachine.Event.GattDisconnected, null)));
+        assertNull(transitionedTo());
+    }
+}
@@ -0,0 +1,152 @@
+package jp.co.ssk.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CBPeripheralTest {
+
+    private static final int PERIPHERALS = 1000;
+
+    private Context mContext;
+    private Looper mLooper;
+    private CBPeripheral.PeripheralEventListenerForManager mListener;
+
+    @Before
+    public void setUp() {
+        mContext = mock(Context.class);
+        when(mContext.getSystemService(Context.BLUETOOTH_SERVICE)).thenReturn(mock(BluetoothManager.class));
+        mLooper = mock(Looper.class);
+        mListener = mock(CBPeripheral.PeripheralEventListenerForManager.class);
+    }
+
+    private CBPeripheral peripheral(long address) {
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        when(device.getAddress()).thenReturn(CBAddress.format(address));
+        when(device.getBondState()).thenReturn(BluetoothDevice.BOND_NONE);
+        return new CBPeripheral(mContext, device, mListener, mLooper);
+    }
+
+    // Materializing is what starts the peripheral thread, so it stands in for counting threads.
+    private List<CBPeripheral> discover() {
+        List<CBPeripheral> ret = new ArrayList<>();
+        for (int i = 0; i < PERIPHERALS; i++) {
+            CBPeripheral peripheral = peripheral(0x001122000000L + i);
+            // What the manager does for every advert, as in CBCentralManager#_onScan.
+            peripheral.rssiFilter().update(-60 - i % 30, CBRssiFilter.UNKNOWN_TX_POWER);
+            peripheral.setDiscoveredAt(i * 1000000L);
+            ret.add(peripheral);
+        }
+        return ret;
+    }
+
+    @Test
+    public void discoveryDoesNotMaterialize() {
+        List<CBPeripheral> peripherals = discover();
+        for (CBPeripheral peripheral : peripherals) {
+            // What an app typically reads from a discovered peripheral.
+            peripheral.getAddress();
+            peripheral.smoothedRssi();
+            assertEquals(CBPeripheralState.Disconnected, peripheral.state());
+            assertEquals(CBPeripheralDetailedState.Unconnected, peripheral.detailedState());
+            assertTrue(peripheral.isIdle());
+            assertFalse(peripheral.isMaterialized());
+        }
+    }
+
+    @Test
+    public void delegateMaterializesOnlyThatPeripheral() {
+        List<CBPeripheral> peripherals = discover();
+        CBPeripheral used = peripherals.get(PERIPHERALS / 2);
+        used.delegate(mock(CBPeripheralDelegate.class));
+        assertTrue(used.isMaterialized());
+        int materialized = 0;
+        for (CBPeripheral peripheral : peripherals) {
+            if (peripheral.isMaterialized()) {
+                materialized++;
+            }
+        }
+        assertEquals(1, materialized);
+    }
+
+    @Test
+    public void connectOnAConnectedPeripheralKeepsItConnected() {
+        CBPeripheral peripheral = peripheral(0x001122000000L);
+        peripheral.delegate(mock(CBPeripheralDelegate.class));
+        // What the state machine reports once the link is up.
+        peripheral.onStateMachineStateChanged(CBPeripheralState.Connected);
+        assertTrue(peripheral.canSendWriteWithoutResponse());
+
+        // The state machine ignores Connect while connected and reports nothing.
+        peripheral.connect(new CBConnectOptions(null));
+        peripheral.connect(new CBConnectOptions(null));
+        assertTrue(peripheral.canSendWriteWithoutResponse());
+        assertFalse(peripheral.isIdle());
+    }
+
+    @Test
+    public void connectHoldsADisconnectedPeripheralUntilTheStateMachineReports() {
+        CBPeripheral peripheral = peripheral(0x001122000000L);
+        peripheral.delegate(mock(CBPeripheralDelegate.class));
+        assertTrue(peripheral.isIdle());
+
+        peripheral.connect(new CBConnectOptions(null));
+        assertFalse(peripheral.isIdle());
+        assertFalse(peripheral.canSendWriteWithoutResponse());
+
+        peripheral.onStateMachineStateChanged(CBPeripheralState.Disconnected);
+        assertTrue(peripheral.isIdle());
+    }
+
+    @Test
+    public void successfulMtuReplyWidensTheWrites() {
+        CBPeripheral peripheral = peripheral(0x001122000000L);
+        peripheral.delegate(mock(CBPeripheralDelegate.class));
+        assertEquals(20, peripheral.maximumWriteValueLength(CBCharacteristicWriteType.WithoutResponse));
+        assertEquals(512, peripheral.maximumWriteValueLength(CBCharacteristicWriteType.WithResponse));
+
+        peripheral.onMtuChanged(247, CBStatusCode.GATT_SUCCESS);
+        // MTU - 3, which is also the chunk length of writeValueInChunks.
+        assertEquals(244, peripheral.maximumWriteValueLength(CBCharacteristicWriteType.WithoutResponse));
+        // Longer values are sent by the stack as prepared writes, so the MTU does not bound them.
+        assertEquals(512, peripheral.maximumWriteValueLength(CBCharacteristicWriteType.WithResponse));
+    }
+
+    @Test
+    public void failedMtuReplyKeepsTheDefault() {
+        CBPeripheral peripheral = peripheral(0x001122000000L);
+        peripheral.delegate(mock(CBPeripheralDelegate.class));
+        peripheral.onMtuChanged(247, CBStatusCode.GATT_INTERNAL_ERROR);
+        assertEquals(20, peripheral.maximumWriteValueLength(CBCharacteristicWriteType.WithoutResponse));
+    }
+
+    @Test
+    public void disconnectResetsTheMtu() {
+        CBPeripheral peripheral = peripheral(0x001122000000L);
+        peripheral.delegate(mock(CBPeripheralDelegate.class));
+        peripheral.onMtuChanged(185, CBStatusCode.GATT_SUCCESS);
+        assertEquals(182, peripheral.maximumWriteValueLength(CBCharacteristicWriteType.WithoutResponse));
+
+        // A connection that is still up keeps it.
+        peripheral.onGattConnectionStateChanged(CBPeripheral.GattConnectionState.Connected, CBStatusCode.GATT_SUCCESS);
+        assertEquals(182, peripheral.maximumWriteValueLength(CBCharacteristicWriteType.WithoutResponse));
+
+        // The next connection starts at the default until it negotiates again.
+        peripheral.onGattConnectionStateChanged(CBPeripheral.GattConnectionState.Disconnected, CBStatusCode.GATT_SUCCESS);
+        assertEquals(20, peripheral.maximumWriteValueLength(CBCharacteristicWriteType.WithoutResponse));
+        assertEquals(512, peripheral.maximumWriteValueLength(CBCharacteristicWriteType.WithResponse));
+    }
+}
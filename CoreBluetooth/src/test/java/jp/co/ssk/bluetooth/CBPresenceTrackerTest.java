@@ -0,0 +1,150 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CBPresenceTrackerTest {
+
+    private static final long TIMEOUT = 1000;
+    // TIMEOUT / 8, as chosen by the tracker.
+    private static final long TICK = 125;
+
+    private final List<String> mLost = new ArrayList<>();
+    private final List<Long> mLostAt = new ArrayList<>();
+    private CBPresenceTracker mTracker;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mTracker = new CBPresenceTracker(null, address -> {
+            mLost.add(address);
+            mLostAt.add(mNow);
+        });
+        mTracker.start(TIMEOUT, mNow);
+    }
+
+    @Test
+    public void reportsSilenceWithinOneTick() {
+        mTracker.onSeen("00:00:00:00:00:01", mNow);
+        advance(TIMEOUT - TICK);
+        assertTrue(mLost.isEmpty());
+        advance(2 * TICK);
+        assertEquals(1, mLost.size());
+        assertTrue(TIMEOUT + TICK >= mLostAt.get(0));
+        assertEquals(0, mTracker.size());
+    }
+
+    @Test
+    public void keepsAddressesThatAreSeen() {
+        for (int i = 0; i < 100; i++) {
+            mTracker.onSeen("00:00:00:00:00:01", mNow);
+            advance(TIMEOUT / 2);
+        }
+        assertTrue(mLost.isEmpty());
+        assertEquals(mNow - TIMEOUT / 2, mTracker.lastSeen("00:00:00:00:00:01"));
+    }
+
+    @Test
+    public void keepsUnchangedAdvertsThatTheDuplicateFilterSuppresses() {
+        // The manager feeds every advert before the subscriptions suppress repeats, as in CBCentralManager#_onScan.
+        CBScanDuplicateFilter duplicates = new CBScanDuplicateFilter(16, 0);
+        CBScanResult result = new CBScanResult();
+        byte[] record = {0x02, 0x01, 0x06};
+        for (int i = 0; i < 50; i++) {
+            result.set(null, "00:00:00:00:00:01", -60, record, mNow * 1000000);
+            mTracker.onSeen(result.address(), mNow);
+            duplicates.isDuplicate(result);
+            advance(200);
+        }
+        assertEquals(49, duplicates.suppressedCount());
+        assertTrue(mLost.isEmpty());
+    }
+
+    @Test
+    public void reportsOnlyTheSilentAddresses() {
+        for (int i = 0; i < 1000; i++) {
+            mTracker.onSeen(address(i), mNow);
+        }
+        for (int step = 0; step < 20; step++) {
+            advance(TIMEOUT / 4);
+            for (int i = 0; i < 1000; i += 2) {
+                mTracker.onSeen(address(i), mNow);
+            }
+        }
+        assertEquals(500, mLost.size());
+        for (String address : mLost) {
+            assertEquals(1, Integer.parseInt(address.substring(15), 16) & 1);
+        }
+        assertEquals(500, mTracker.size());
+    }
+
+    @Test
+    public void expiresAfterAStallLongerThanTheWheel() {
+        mTracker.onSeen("00:00:00:00:00:01", mNow);
+        // More than one lap of 512 ticks without a tick.
+        mNow += 600 * TICK;
+        mTracker.tick(mNow);
+        assertEquals(1, mLost.size());
+    }
+
+    @Test
+    public void pauseDoesNotCountTowardTheTimeout() {
+        // Duty cycle: 500ms windows and 2000ms rests, longer than the timeout.
+        for (int cycle = 0; cycle < 10; cycle++) {
+            mTracker.onSeen("00:00:00:00:00:01", mNow);
+            advance(500);
+            mTracker.pause(mNow);
+            advance(2000);
+            mTracker.resume(mNow);
+        }
+        assertTrue(mLost.isEmpty());
+        // Silent through a whole window after the last rest.
+        advance(TIMEOUT + TICK);
+        assertEquals(1, mLost.size());
+    }
+
+    @Test
+    public void resumeGivesTheRemainingWindow() {
+        mTracker.onSeen("00:00:00:00:00:01", mNow);
+        advance(600);
+        mTracker.pause(mNow);
+        advance(5000);
+        mTracker.resume(mNow);
+        advance(TIMEOUT - 600 - TICK);
+        assertTrue(mLost.isEmpty());
+        advance(2 * TICK);
+        assertEquals(1, mLost.size());
+    }
+
+    @Test
+    public void stopForgetsWithoutReporting() {
+        mTracker.onSeen("00:00:00:00:00:01", mNow);
+        mTracker.stop();
+        assertFalse(mTracker.isRunning());
+        advance(2 * TIMEOUT);
+        assertTrue(mLost.isEmpty());
+        assertEquals(-1, mTracker.lastSeen("00:00:00:00:00:01"));
+    }
+
+    // Ticks as the handler would.
+    private void advance(long duration) {
+        final long end = mNow + duration;
+        while (mNow + TICK <= end) {
+            mNow += TICK;
+            mTracker.tick(mNow);
+        }
+        mNow = end;
+    }
+
+    private static String address(int i) {
+        return String.format(Locale.US, "00:00:00:00:%02X:%02X", (i >> 8) & 0xFF, i & 0xFF);
+    }
+}
@@ -0,0 +1,44 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CBRssiFilterTest {
+
+    @Test
+    public void noSampleIsNaN() {
+        CBRssiFilter filter = new CBRssiFilter();
+        CBRssiSnapshot snapshot = filter.snapshot();
+        assertTrue(Float.isNaN(snapshot.mean()));
+        assertTrue(Float.isNaN(snapshot.variance()));
+        assertTrue(Double.isNaN(filter.estimatedDistance()));
+    }
+
+    @Test
+    public void snapshotPairsMeanAndVariance() {
+        CBRssiFilter filter = new CBRssiFilter();
+        filter.update(-60, CBRssiFilter.UNKNOWN_TX_POWER);
+        assertEquals(-60.0f, filter.snapshot().mean(), 0.0);
+        assertEquals(0.0f, filter.snapshot().variance(), 0.0);
+        filter.update(-70, CBRssiFilter.UNKNOWN_TX_POWER);
+        // mean += 0.25 * -10, variance = 0.75 * (0 + -10 * -2.5)
+        CBRssiSnapshot snapshot = filter.snapshot();
+        assertEquals(-62.5f, snapshot.mean(), 1e-6);
+        assertEquals(18.75f, snapshot.variance(), 1e-6);
+        assertEquals(filter.mean(), snapshot.mean(), 0.0);
+        assertEquals(filter.variance(), snapshot.variance(), 0.0);
+    }
+
+    @Test
+    public void resetForgetsTheSamples() {
+        CBRssiFilter filter = new CBRssiFilter();
+        filter.update(-60, 0);
+        filter.reset();
+        assertTrue(Float.isNaN(filter.snapshot().mean()));
+        filter.update(-80, CBRssiFilter.UNKNOWN_TX_POWER);
+        assertEquals(-80.0f, filter.snapshot().mean(), 0.0);
+        assertTrue(Double.isNaN(filter.estimatedDistance()));
+    }
+}
@@ -0,0 +1,118 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CBScanDuplicateFilterTest {
+
+    private static final String A = "00:11:22:33:44:01";
+    private static final String B = "00:11:22:33:44:02";
+    private static final String C = "00:11:22:33:44:03";
+    // Flags, heart rate service.
+    private static final byte[] RECORD = {0x02, 0x01, 0x06, 0x03, 0x03, 0x0D, 0x18};
+
+    private CBScanResult mResult;
+
+    @Before
+    public void setUp() {
+        mResult = new CBScanResult();
+    }
+
+    private boolean isDuplicate(CBScanDuplicateFilter filter, String address, int rssi, byte[] record) {
+        mResult.set(null, address, rssi, record, 0);
+        return filter.isDuplicate(mResult);
+    }
+
+    private boolean isDuplicate(CBScanDuplicateFilter filter, String address) {
+        return isDuplicate(filter, address, -60, RECORD);
+    }
+
+    @Test
+    public void repeatsOfAnAdvertAreDropped() {
+        CBScanDuplicateFilter filter = new CBScanDuplicateFilter(16, 0);
+        assertFalse(isDuplicate(filter, A));
+        assertTrue(isDuplicate(filter, A));
+        assertTrue(isDuplicate(filter, A));
+        assertFalse(isDuplicate(filter, B));
+        assertEquals(2, filter.suppressedCount());
+    }
+
+    @Test
+    public void changedPayloadPassesOnce() {
+        CBScanDuplicateFilter filter = new CBScanDuplicateFilter(16, 0);
+        assertFalse(isDuplicate(filter, A));
+        byte[] changed = RECORD.clone();
+        changed[5] = 0x0F;
+        assertFalse(isDuplicate(filter, A, -60, changed));
+        assertTrue(isDuplicate(filter, A, -60, changed));
+        // Back to the first payload is a change too.
+        assertFalse(isDuplicate(filter, A));
+    }
+
+    @Test
+    public void payloadWithTheSameBytesAndAnotherLengthIsAChange() {
+        CBScanDuplicateFilter filter = new CBScanDuplicateFilter(16, 0);
+        byte[] padded = new byte[RECORD.length + 2];
+        System.arraycopy(RECORD, 0, padded, 0, RECORD.length);
+        assertFalse(isDuplicate(filter, A));
+        assertFalse(isDuplicate(filter, A, -60, padded));
+        assertTrue(isDuplicate(filter, A, -60, padded));
+    }
+
+    @Test
+    public void rssiMovingByTheThresholdPasses() {
+        CBScanDuplicateFilter filter = new CBScanDuplicateFilter(16, 5);
+        assertFalse(isDuplicate(filter, A, -60, RECORD));
+        assertTrue(isDuplicate(filter, A, -64, RECORD));
+        assertFalse(isDuplicate(filter, A, -65, RECORD));
+        // Measured from the last delivered advert, -65, not from the first.
+        assertTrue(isDuplicate(filter, A, -61, RECORD));
+        assertFalse(isDuplicate(filter, A, -70, RECORD));
+    }
+
+    @Test
+    public void zeroThresholdIgnoresRssi() {
+        CBScanDuplicateFilter filter = new CBScanDuplicateFilter(16, 0);
+        assertFalse(isDuplicate(filter, A, -40, RECORD));
+        assertTrue(isDuplicate(filter, A, -90, RECORD));
+    }
+
+    @Test
+    public void cacheEvictsTheLeastRecentlySeenAddress() {
+        CBScanDuplicateFilter filter = new CBScanDuplicateFilter(2, 0);
+        assertFalse(isDuplicate(filter, A));
+        assertFalse(isDuplicate(filter, B));
+        // Seeing A again makes B the eldest.
+        assertTrue(isDuplicate(filter, A));
+        assertFalse(isDuplicate(filter, C));
+        assertTrue(isDuplicate(filter, A));
+        // B was evicted, so it is new again and evicts C.
+        assertFalse(isDuplicate(filter, B));
+        assertFalse(isDuplicate(filter, C));
+    }
+
+    @Test
+    public void evictedEntryStartsFromTheNewAdvert() {
+        CBScanDuplicateFilter filter = new CBScanDuplicateFilter(1, 5);
+        assertFalse(isDuplicate(filter, A, -40, RECORD));
+        // B reuses A's entry, which must not keep A's RSSI or payload.
+        byte[] other = RECORD.clone();
+        other[6] = 0x19;
+        assertFalse(isDuplicate(filter, B, -80, other));
+        assertTrue(isDuplicate(filter, B, -82, other));
+    }
+
+    @Test
+    public void clearForgetsEveryAddress() {
+        CBScanDuplicateFilter filter = new CBScanDuplicateFilter(16, 0);
+        assertFalse(isDuplicate(filter, A));
+        assertTrue(isDuplicate(filter, A));
+        filter.clear();
+        assertEquals(0, filter.suppressedCount());
+        assertFalse(isDuplicate(filter, A));
+    }
+}
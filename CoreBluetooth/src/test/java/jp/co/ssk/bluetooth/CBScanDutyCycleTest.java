@@ -0,0 +1,85 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CBScanDutyCycleTest {
+
+    @Test
+    public void windowIsFollowedByTheRest() {
+        CBScanDutyCycle dutyCycle = new CBScanDutyCycle(2000, 8000, 0, false);
+        assertEquals(2000, dutyCycle.window());
+        dutyCycle.startWindow(1000);
+        dutyCycle.onResult("00:00:00:00:00:01");
+        dutyCycle.onResult("00:00:00:00:00:01");
+        dutyCycle.onResult("00:00:00:00:00:02");
+        CBScanWindowStatistics statistics = dutyCycle.finishWindow(3000, false);
+        assertEquals(0, statistics.index());
+        assertEquals(1000, statistics.startedAt());
+        assertEquals(2000, statistics.duration());
+        assertEquals(3, statistics.resultCount());
+        assertEquals(2, statistics.newPeripheralCount());
+        assertEquals(2000, statistics.nextWindow());
+        assertEquals(8000, statistics.nextRest());
+    }
+
+    @Test
+    public void onlyFirstSightingsAreNewAcrossWindows() {
+        CBScanDutyCycle dutyCycle = new CBScanDutyCycle(2000, 8000, 0, false);
+        dutyCycle.startWindow(0);
+        dutyCycle.onResult("00:00:00:00:00:01");
+        dutyCycle.finishWindow(2000, false);
+        dutyCycle.startWindow(10000);
+        dutyCycle.onResult("00:00:00:00:00:01");
+        dutyCycle.onResult("00:00:00:00:00:02");
+        CBScanWindowStatistics statistics = dutyCycle.finishWindow(12000, false);
+        assertEquals(1, statistics.index());
+        assertEquals(2, statistics.resultCount());
+        assertEquals(1, statistics.newPeripheralCount());
+    }
+
+    @Test
+    public void jitterLengthensTheRestWithinItsBound() {
+        CBScanDutyCycle dutyCycle = new CBScanDutyCycle(2000, 8000, 500, false);
+        for (int i = 0; i < 1000; i++) {
+            dutyCycle.startWindow(0);
+            long rest = dutyCycle.finishWindow(2000, false).nextRest();
+            assertTrue(8000 <= rest && 8500 > rest);
+        }
+    }
+
+    @Test
+    public void lastWindowHasNoRest() {
+        CBScanDutyCycle dutyCycle = new CBScanDutyCycle(2000, 8000, 500, false);
+        dutyCycle.startWindow(0);
+        assertEquals(0, dutyCycle.finishWindow(1200, true).nextRest());
+    }
+
+    @Test
+    public void adaptiveWindowGrowsWhileFindingAndShrinksBack() {
+        CBScanDutyCycle dutyCycle = new CBScanDutyCycle(1000, 8000, 0, true);
+        for (int i = 0; i < 10; i++) {
+            dutyCycle.startWindow(0);
+            dutyCycle.onResult("00:00:00:00:00:" + (10 + i));
+            dutyCycle.finishWindow(dutyCycle.window(), false);
+        }
+        // 1000 * 1.5^n, capped at 4 times the configured window.
+        assertEquals(4000, dutyCycle.window());
+        for (int i = 0; i < 10; i++) {
+            dutyCycle.startWindow(0);
+            dutyCycle.onResult("00:00:00:00:00:10");
+            dutyCycle.finishWindow(dutyCycle.window(), false);
+        }
+        assertEquals(1000, dutyCycle.window());
+    }
+
+    @Test
+    public void fixedWindowIgnoresDiscoveries() {
+        CBScanDutyCycle dutyCycle = new CBScanDutyCycle(1000, 8000, 0, false);
+        dutyCycle.startWindow(0);
+        dutyCycle.onResult("00:00:00:00:00:01");
+        assertEquals(1000, dutyCycle.finishWindow(1000, false).nextWindow());
+    }
+}
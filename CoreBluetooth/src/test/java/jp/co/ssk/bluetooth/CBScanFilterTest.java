@@ -0,0 +1,101 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CBScanFilterTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private static byte[] record(int type, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] ret = new byte[3 + 2 + bytes.length];
+        ret[0] = 0x02;
+        ret[1] = 0x01;
+        ret[2] = 0x06;
+        ret[3] = (byte) (1 + bytes.length);
+        ret[4] = (byte) type;
+        System.arraycopy(bytes, 0, ret, 5, bytes.length);
+        return ret;
+    }
+
+    private static boolean matches(String filterName, byte[] record) {
+        CBScanFilter filter = new CBScanFilter.Builder().setDeviceName(filterName).build();
+        return filter.matches(ADDRESS, new CBAdvertisementData(record));
+    }
+
+    @Test
+    public void matchesTheCompleteName() {
+        assertTrue(matches("Thermometer", record(CBAdvertisementData.TYPE_COMPLETE_LOCAL_NAME, "Thermometer")));
+        assertFalse(matches("Thermometer", record(CBAdvertisementData.TYPE_COMPLETE_LOCAL_NAME, "Thermometes")));
+        assertFalse(matches("Thermometer", record(CBAdvertisementData.TYPE_COMPLETE_LOCAL_NAME, "Thermomete")));
+        assertFalse(matches("Thermometer", record(CBAdvertisementData.TYPE_COMPLETE_LOCAL_NAME, "Thermometer2")));
+    }
+
+    @Test
+    public void matchesTheShortenedNameWithoutACompleteOne() {
+        assertTrue(matches("Thermo", record(CBAdvertisementData.TYPE_SHORTENED_LOCAL_NAME, "Thermo")));
+    }
+
+    @Test
+    public void matchesNonAsciiNames() {
+        assertTrue(matches("\u4F53\u6E29\u8A08", record(CBAdvertisementData.TYPE_COMPLETE_LOCAL_NAME, "\u4F53\u6E29\u8A08")));
+        assertFalse(matches("\u4F53\u6E29\u8A08", record(CBAdvertisementData.TYPE_COMPLETE_LOCAL_NAME, "\u4F53\u6E29")));
+    }
+
+    @Test
+    public void doesNotMatchWithoutAName() {
+        assertFalse(matches("Thermometer", new byte[]{0x02, 0x01, 0x06}));
+    }
+
+    // Flags, then one 16-bit UUID in a structure of the given type.
+    private static byte[] uuid16Record(int type, int uuid) {
+        return new byte[]{0x02, 0x01, 0x06, 0x03, (byte) type, (byte) uuid, (byte) (uuid >>> 8)};
+    }
+
+    @Test
+    public void matchesTheSolicitedServiceOnly() {
+        CBScanFilter filter = CBScanFilter.withSolicitationUUID(new CBUUID("1812"));
+        assertTrue(filter.matches(ADDRESS, new CBAdvertisementData(uuid16Record(CBAdvertisementData.TYPE_SOLICITED_SERVICE_UUIDS_16, 0x1812))));
+        // Offering the service is not soliciting it.
+        assertFalse(filter.matches(ADDRESS, new CBAdvertisementData(uuid16Record(CBAdvertisementData.TYPE_COMPLETE_SERVICE_UUIDS_16, 0x1812))));
+        assertFalse(filter.matches(ADDRESS, new CBAdvertisementData(uuid16Record(CBAdvertisementData.TYPE_SOLICITED_SERVICE_UUIDS_16, 0x180D))));
+    }
+
+    @Test
+    public void solicitationFiltersWidenTheServiceFilters() {
+        // As CBCentralManager builds the subscription for scanForPeripherals with SolicitedServiceUUIDsKey.
+        CBScanSubscription subscription = new CBScanSubscription(null, new ArrayList<>(Arrays.asList(
+                CBScanFilter.withServiceUUID(new CBUUID("180D")),
+                CBScanFilter.withSolicitationUUID(new CBUUID("1812")))),
+                new CBScanOptions(null), (s, peripheral, advertisementData, rssi) -> {
+        });
+        CBScanRouter router = new CBScanRouter();
+        router.add(subscription);
+        assertEquals(1, router.route(ADDRESS, new CBAdvertisementData(uuid16Record(CBAdvertisementData.TYPE_COMPLETE_SERVICE_UUIDS_16, 0x180D))));
+        assertEquals(1, router.route(ADDRESS, new CBAdvertisementData(uuid16Record(CBAdvertisementData.TYPE_SOLICITED_SERVICE_UUIDS_16, 0x1812))));
+        // The OS cannot filter solicitations before API 29, so the router matches the lone subscription in software.
+        assertEquals(0, router.route(ADDRESS, new CBAdvertisementData(uuid16Record(CBAdvertisementData.TYPE_COMPLETE_SERVICE_UUIDS_16, 0x1809))));
+    }
+
+    @Test
+    public void matchesAnyManufacturerStructureOfTheCompany() {
+        // Apple (0x004C), then Nordic (0x0059) with 0x01 0x02.
+        byte[] record = {0x02, 0x01, 0x06, 0x04, (byte) 0xFF, 0x4C, 0x00, 0x10, 0x05, (byte) 0xFF, 0x59, 0x00, 0x01, 0x02};
+        CBAdvertisementData data = new CBAdvertisementData(record);
+        assertTrue(new CBScanFilter.Builder().setManufacturerData(0x0059, new byte[]{0x01, 0x02}).build().matches(ADDRESS, data));
+        assertTrue(new CBScanFilter.Builder().setManufacturerData(0x004C, new byte[]{0x10}).build().matches(ADDRESS, data));
+        assertFalse(new CBScanFilter.Builder().setManufacturerData(0x0059, new byte[]{0x01, 0x03}).build().matches(ADDRESS, data));
+        assertTrue(new CBScanFilter.Builder().setManufacturerData(0x0059, new byte[]{0x01, 0x03}, new byte[]{(byte) 0xFF, 0x00}).build()
+                .matches(ADDRESS, data));
+        assertFalse(new CBScanFilter.Builder().setManufacturerData(0x0006, new byte[0]).build().matches(ADDRESS, data));
+    }
+}
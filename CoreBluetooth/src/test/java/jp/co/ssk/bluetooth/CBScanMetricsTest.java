@@ -0,0 +1,49 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CBScanMetricsTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void connectLatencyIsSplitAtTheRequest() {
+        CBScanMetrics metrics = new CBScanMetrics();
+        // Advert at 1 s, request 3 ms later, connected 20 ms after that.
+        metrics.onConnected(1000 * MS, 1003 * MS, 1023 * MS);
+        CBScanMetricsSnapshot snapshot = metrics.snapshot(0);
+        assertEquals(1, snapshot.connectedCount());
+        // 3000us falls in [2048, 4096), 20000us and 23000us in [16384, 32768).
+        assertEquals(4096, snapshot.connectRequestLatencyMicros(0.5));
+        assertEquals(32768, snapshot.connectLatencyMicros(0.5));
+        assertEquals(32768, snapshot.advertToConnectedLatencyMicros(0.5));
+    }
+
+    @Test
+    public void connectWithoutAnAdvertOnlyCountsTheLink() {
+        CBScanMetrics metrics = new CBScanMetrics();
+        metrics.onConnected(0, 1000 * MS, 1020 * MS);
+        // Seen by a later scan than the one that preceded the request.
+        metrics.onConnected(1010 * MS, 1000 * MS, 1020 * MS);
+        CBScanMetricsSnapshot snapshot = metrics.snapshot(0);
+        assertEquals(2, snapshot.connectedCount());
+        assertEquals(32768, snapshot.connectLatencyMicros(1.0));
+        assertEquals(0, snapshot.connectRequestLatencyMicros(1.0));
+        assertEquals(0, snapshot.advertToConnectedLatencyMicros(1.0));
+    }
+
+    @Test
+    public void quantilesSeparateSlowConnects() {
+        CBScanMetrics metrics = new CBScanMetrics();
+        for (int i = 0; i < 99; i++) {
+            metrics.onConnected(0, 0, 20 * MS);
+        }
+        metrics.onConnected(0, 0, 2000 * MS);
+        CBScanMetricsSnapshot snapshot = metrics.snapshot(0);
+        assertEquals(32768, snapshot.connectLatencyMicros(0.99));
+        // 2,000,000us falls in [2^20, 2^21).
+        assertEquals(1L << 21, snapshot.connectLatencyMicros(1.0));
+    }
+}
@@ -0,0 +1,101 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CBScanModeSchedulerTest {
+
+    private static final long INTERVAL = CBScanModeScheduler.EVALUATION_INTERVAL_MS;
+    private static final String TARGET = "00:11:22:33:44:55";
+    private static final List<String> NO_TARGETS = Collections.emptyList();
+
+    private static String address(int i) {
+        return "00:00:00:00:00:" + (10 + i);
+    }
+
+    @Test
+    public void newPeripheralsWhileATargetIsMissingGoLowLatency() {
+        CBScanModeScheduler scheduler = new CBScanModeScheduler(Collections.singletonList(TARGET), CBScanMode.LowPower, 0);
+        scheduler.onResult(address(0));
+        assertEquals(CBScanMode.LowLatency, scheduler.evaluate(INTERVAL));
+    }
+
+    @Test
+    public void allTargetsFoundGoOpportunistic() {
+        // Targets are matched case-insensitively, results carry upper-case addresses.
+        CBScanModeScheduler scheduler = new CBScanModeScheduler(Collections.singletonList("aa:bb:cc:dd:ee:ff"), CBScanMode.LowLatency, 0);
+        scheduler.onResult("AA:BB:CC:DD:EE:FF");
+        assertEquals(CBScanMode.Opportunistic, scheduler.evaluate(INTERVAL));
+        // And stay there, even when idle.
+        assertEquals(CBScanMode.Opportunistic, scheduler.evaluate(2 * INTERVAL));
+        assertEquals(CBScanMode.Opportunistic, scheduler.evaluate(3 * INTERVAL));
+    }
+
+    @Test
+    public void discoveryRateChoosesBetweenBalancedAndLowLatency() {
+        CBScanModeScheduler scheduler = new CBScanModeScheduler(NO_TARGETS, CBScanMode.LowPower, 0);
+        // 1 new peripheral in 5 s is below the 1/s threshold.
+        scheduler.onResult(address(0));
+        assertEquals(CBScanMode.Balanced, scheduler.evaluate(INTERVAL));
+        for (int i = 1; i <= 5; i++) {
+            scheduler.onResult(address(i));
+        }
+        assertEquals(CBScanMode.LowLatency, scheduler.evaluate(2 * INTERVAL));
+    }
+
+    @Test
+    public void repeatsAreNotNewDiscoveries() {
+        CBScanModeScheduler scheduler = new CBScanModeScheduler(NO_TARGETS, CBScanMode.Balanced, 0);
+        scheduler.onResult(address(0));
+        scheduler.evaluate(INTERVAL);
+        for (int i = 0; i < 100; i++) {
+            scheduler.onResult(address(0));
+        }
+        assertEquals(CBScanMode.Balanced, scheduler.evaluate(2 * INTERVAL));
+        assertEquals(CBScanMode.LowPower, scheduler.evaluate(3 * INTERVAL));
+    }
+
+    @Test
+    public void idleStepsDownEveryTwoIntervals() {
+        CBScanModeScheduler scheduler = new CBScanModeScheduler(NO_TARGETS, CBScanMode.LowLatency, 0);
+        assertEquals(CBScanMode.LowLatency, scheduler.evaluate(INTERVAL));
+        assertEquals(CBScanMode.Balanced, scheduler.evaluate(2 * INTERVAL));
+        assertEquals(CBScanMode.Balanced, scheduler.evaluate(3 * INTERVAL));
+        assertEquals(CBScanMode.LowPower, scheduler.evaluate(4 * INTERVAL));
+        // LowPower is the floor.
+        assertEquals(CBScanMode.LowPower, scheduler.evaluate(5 * INTERVAL));
+        assertEquals(CBScanMode.LowPower, scheduler.evaluate(6 * INTERVAL));
+    }
+
+    @Test
+    public void discoveryResetsTheIdleCount() {
+        CBScanModeScheduler scheduler = new CBScanModeScheduler(NO_TARGETS, CBScanMode.Balanced, 0);
+        assertEquals(CBScanMode.Balanced, scheduler.evaluate(INTERVAL));
+        scheduler.onResult(address(0));
+        assertEquals(CBScanMode.Balanced, scheduler.evaluate(2 * INTERVAL));
+        // Two more idle intervals are needed, not one.
+        assertEquals(CBScanMode.Balanced, scheduler.evaluate(3 * INTERVAL));
+        assertEquals(CBScanMode.LowPower, scheduler.evaluate(4 * INTERVAL));
+    }
+
+    @Test
+    public void timeIsAccountedPerMode() {
+        CBScanModeScheduler scheduler = new CBScanModeScheduler(NO_TARGETS, CBScanMode.Balanced, 0);
+        for (int i = 0; i < 5; i++) {
+            scheduler.onResult(address(i));
+        }
+        scheduler.evaluate(5000);
+        // A change the scanner deferred keeps the current mode and its time.
+        scheduler.setMode(CBScanMode.LowLatency, 8000);
+        EnumMap<CBScanMode, Long> timeInMode = scheduler.finish(12000);
+        assertEquals(Long.valueOf(5000), timeInMode.get(CBScanMode.Balanced));
+        assertEquals(Long.valueOf(7000), timeInMode.get(CBScanMode.LowLatency));
+        assertEquals(Long.valueOf(0), timeInMode.get(CBScanMode.LowPower));
+        assertEquals(Long.valueOf(0), timeInMode.get(CBScanMode.Opportunistic));
+    }
+}
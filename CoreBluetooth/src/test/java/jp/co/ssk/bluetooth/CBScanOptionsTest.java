@@ -0,0 +1,49 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class CBScanOptionsTest {
+
+    private static CBScanOptions options(CBPhy phy, boolean extendedAdvertising) {
+        Map<CBCentralManagerScanOption, Object> options = new HashMap<>();
+        options.put(CBCentralManagerScanOption.ScanPhyKey, phy);
+        options.put(CBCentralManagerScanOption.ExtendedAdvertisingKey, extendedAdvertising);
+        return new CBScanOptions(options);
+    }
+
+    @Test
+    public void scansOnLE1MByDefault() {
+        assertEquals(CBPhy.LE1M, new CBScanOptions(null).getScanPhy());
+    }
+
+    @Test
+    public void acceptsLE1MWithoutExtendedAdvertising() {
+        assertEquals(CBPhy.LE1M, options(CBPhy.LE1M, false).getScanPhy());
+    }
+
+    @Test
+    public void acceptsCodedAndAllSupportedWithExtendedAdvertising() {
+        assertEquals(CBPhy.LECoded, options(CBPhy.LECoded, true).getScanPhy());
+        assertEquals(CBPhy.AllSupported, options(CBPhy.AllSupported, true).getScanPhy());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCodedWithoutExtendedAdvertising() {
+        options(CBPhy.LECoded, false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLE2M() {
+        options(CBPhy.LE2M, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnused() {
+        options(CBPhy.Unused, true);
+    }
+}
@@ -0,0 +1,346 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CBScanProgramTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    // Flags, heart rate service, Nordic manufacturer data 0x01 0x02.
+    private static final byte[] HEART_RATE = {
+            0x02, 0x01, 0x06,
+            0x03, 0x03, 0x0D, 0x18,
+            0x05, (byte) 0xFF, 0x59, 0x00, 0x01, 0x02};
+    // Flags, iBeacon prefix.
+    private static final byte[] BEACON = {
+            0x02, 0x01, 0x06,
+            0x06, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15, 0x00};
+    // The service UUID list claims 16 bytes, but the record ends after 2.
+    private static final byte[] TRUNCATED = {0x02, 0x01, 0x06, 0x11, 0x07, 0x0D, 0x18};
+
+    private CBScanResult mResult;
+    private CBAdvertisementData mData;
+
+    @Before
+    public void setUp() {
+        mResult = new CBScanResult();
+        mData = new CBAdvertisementData();
+    }
+
+    private boolean evaluate(CBScanProgram program, byte[] record, int rssi) {
+        mResult.set(null, ADDRESS, rssi, record, 0);
+        return program.evaluate(mResult, mData);
+    }
+
+    private boolean evaluate(CBScanPredicate predicate, byte[] record) {
+        return evaluate(new CBScanProgram(predicate), record, -60);
+    }
+
+    @Test
+    public void evaluatesNestedAndOrNot() {
+        // (heart rate and strong) or not(manufacturer data)
+        CBScanPredicate predicate = CBScanPredicate.or(
+                CBScanPredicate.and(CBScanPredicate.serviceUUID(new CBUUID("180D")), CBScanPredicate.rssiAtLeast(-70)),
+                CBScanPredicate.not(CBScanPredicate.lengthAtLeast(8)));
+        CBScanProgram program = new CBScanProgram(predicate);
+        assertTrue(evaluate(program, HEART_RATE, -60));
+        assertFalse(evaluate(program, HEART_RATE, -80));
+        assertFalse(evaluate(program, BEACON, -60));
+        assertTrue(evaluate(program, new byte[]{0x02, 0x01, 0x06}, -90));
+    }
+
+    @Test
+    public void aTakenJumpLandsAfterItsOwnGroup() {
+        // The OR decides on its first child. The AND must still evaluate the RSSI after it.
+        CBScanPredicate orFirst = CBScanPredicate.and(
+                CBScanPredicate.or(CBScanPredicate.manufacturerId(0x0059), CBScanPredicate.manufacturerId(0x004C)),
+                CBScanPredicate.rssiAtLeast(-70));
+        assertTrue(evaluate(new CBScanProgram(orFirst), HEART_RATE, -60));
+        assertFalse(evaluate(new CBScanProgram(orFirst), HEART_RATE, -80));
+
+        // The AND fails on its first child. The OR must still evaluate its second child after it.
+        CBScanPredicate andFirst = CBScanPredicate.or(
+                CBScanPredicate.and(CBScanPredicate.manufacturerId(0x004C), CBScanPredicate.rssiAtLeast(-70)),
+                CBScanPredicate.serviceUUID(new CBUUID("180D")));
+        assertTrue(evaluate(new CBScanProgram(andFirst), HEART_RATE, -80));
+        assertFalse(evaluate(new CBScanProgram(andFirst), BEACON, -80));
+
+        // A NOT right after a group applies to the group's result, whichever child decided it.
+        CBScanPredicate notAfterJump = CBScanPredicate.not(
+                CBScanPredicate.and(CBScanPredicate.manufacturerId(0x004C), CBScanPredicate.rssiAtLeast(-70)));
+        assertTrue(evaluate(new CBScanProgram(notAfterJump), HEART_RATE, -60));
+        assertFalse(evaluate(new CBScanProgram(notAfterJump), BEACON, -60));
+    }
+
+    @Test
+    public void matchesTheTreeOnRandomPredicates() {
+        final Random random = new Random(1);
+        final byte[][] records = {HEART_RATE, BEACON, TRUNCATED, new byte[0], {0x02, 0x01, 0x06},
+                {0x03, 0x14, 0x12, 0x18, 0x03, (byte) 0xFF, 0x59, 0x00}};
+        final int[] rssis = {-90, -70, -50};
+        for (int i = 0; i < 2000; i++) {
+            CBScanPredicate predicate = randomPredicate(random, 4);
+            CBScanProgram program = new CBScanProgram(predicate);
+            for (byte[] record : records) {
+                for (int rssi : rssis) {
+                    mResult.set(null, ADDRESS, rssi, record, 0);
+                    mData.wrap(record, 0, record.length);
+                    boolean expected = reference(predicate, mResult, mData);
+                    assertEquals(describe(predicate) + " on " + record.length + " bytes", expected, program.evaluate(mResult, mData));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void prefilterRejectsShortRecords() {
+        CBScanProgram program = new CBScanProgram(CBScanPredicate.and(
+                CBScanPredicate.lengthAtLeast(4), CBScanPredicate.bytesAt(7, new byte[]{0x02, 0x15})));
+        assertFalse(evaluate(program, new byte[]{0x02, 0x01, 0x06}, -60));
+        assertFalse(evaluate(program, new byte[8], -60));
+        assertEquals(2, program.prefilterRejectedCount());
+        assertEquals(0, program.evaluatedCount());
+        assertTrue(evaluate(program, BEACON, -60));
+        assertEquals(1, program.evaluatedCount());
+        assertEquals(1, program.matchedCount());
+    }
+
+    @Test
+    public void prefilterRejectsOnTheAnchorByte() {
+        CBScanProgram program = new CBScanProgram(CBScanPredicate.and(
+                CBScanPredicate.rssiAtLeast(-100), CBScanPredicate.bytesAt(5, new byte[]{0x4C, 0x00})));
+        assertFalse(evaluate(program, HEART_RATE, -60));
+        assertEquals(1, program.prefilterRejectedCount());
+        assertTrue(evaluate(program, BEACON, -60));
+
+        // A masked first byte says nothing on its own, and neither does one side of an OR.
+        CBScanProgram masked = new CBScanProgram(CBScanPredicate.bytesAt(5, new byte[]{0x40, 0x00}, new byte[]{(byte) 0xF0, (byte) 0xFF}));
+        assertTrue(evaluate(masked, BEACON, -60));
+        assertEquals(0, masked.prefilterRejectedCount());
+        CBScanProgram either = new CBScanProgram(CBScanPredicate.or(
+                CBScanPredicate.bytesAt(5, new byte[]{0x4C}), CBScanPredicate.bytesAt(5, new byte[]{0x0D})));
+        assertTrue(evaluate(either, HEART_RATE, -60));
+        assertTrue(evaluate(either, BEACON, -60));
+        assertEquals(0, either.prefilterRejectedCount());
+    }
+
+    @Test
+    public void truncatedStructuresDoNotMatch() {
+        assertFalse(evaluate(CBScanPredicate.serviceUUID(new CBUUID("180D")), TRUNCATED));
+        assertFalse(evaluate(CBScanPredicate.manufacturerId(0x0059), new byte[]{0x02, 0x01, 0x06, 0x05, (byte) 0xFF, 0x59}));
+        assertFalse(evaluate(CBScanPredicate.bytesAt(6, new byte[]{0x18, 0x00}), TRUNCATED));
+        // Bytes beyond the record in a larger, reused buffer are not part of it.
+        mResult.set(null, ADDRESS, -60, HEART_RATE, 0);
+        mResult.set(null, ADDRESS, -60, TRUNCATED, 0);
+        assertEquals(TRUNCATED.length, mResult.recordLength());
+        assertFalse(new CBScanProgram(CBScanPredicate.bytesAt(7, new byte[]{0x05})).evaluate(mResult, mData));
+    }
+
+    @Test
+    public void aTrivialProgramMatchesEverything() {
+        CBScanProgram program = new CBScanProgram(CBScanPredicate.lengthAtLeast(0));
+        assertEquals(1, program.instructionCount());
+        assertTrue(evaluate(program, new byte[0], -127));
+        assertTrue(evaluate(program, HEART_RATE, -60));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anEmptyAndIsRejected() {
+        CBScanPredicate.and();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anEmptyOrIsRejected() {
+        CBScanPredicate.or();
+    }
+
+    // Benchmark: an iBeacon predicate over a crowd of other adverts, as the scanner thread runs it,
+    // against the same check written in a delegate over the decoded advertisement data.
+    // Only the predicate is measured. In the app the delegate path also pays the handler hop and the peripheral lookup.
+    @Test
+    public void outrunsFilteringInTheDelegate() {
+        final byte[][] records = new byte[64][];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = 0 == i % 16 ? BEACON : HEART_RATE;
+        }
+        final CBScanProgram program = new CBScanProgram(CBScanPredicate.and(
+                CBScanPredicate.bytesAt(5, new byte[]{0x4C, 0x00, 0x02, 0x15}), CBScanPredicate.rssiAtLeast(-80)));
+        final CBScanResult[] results = new CBScanResult[records.length];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = new CBScanResult();
+            results[i].set(null, ADDRESS, -60, records[i], 0);
+        }
+        // Warm up, so that class loading and compilation are not counted.
+        assertEquals(runProgram(program, results, 2000), runDelegate(results, 2000));
+
+        final long threadId = Thread.currentThread().getId();
+        final long programAllocatedBefore = allocatedBytes(threadId);
+        long start = System.nanoTime();
+        final int programMatches = runProgram(program, results, 20000);
+        final long programNanos = System.nanoTime() - start;
+        final long programAllocated = allocatedBytes(threadId) - programAllocatedBefore;
+
+        final long delegateAllocatedBefore = allocatedBytes(threadId);
+        start = System.nanoTime();
+        final int delegateMatches = runDelegate(results, 20000);
+        final long delegateNanos = System.nanoTime() - start;
+        final long delegateAllocated = allocatedBytes(threadId) - delegateAllocatedBefore;
+
+        assertEquals(delegateMatches, programMatches);
+        final long adverts = 20000L * results.length;
+        System.out.println("CBScanProgram: " + programNanos / adverts + " ns/advert, " + programAllocated / adverts + " B/advert."
+                + " Delegate: " + delegateNanos / adverts + " ns/advert, " + delegateAllocated / adverts + " B/advert.");
+        assertTrue("program " + programNanos + "ns, delegate " + delegateNanos + "ns", programNanos < delegateNanos);
+        if (0 <= programAllocatedBefore) {
+            // Even one object per advert would be megabytes. The slack covers the measurement itself.
+            assertTrue("allocated " + programAllocated + " bytes", 4096 > programAllocated);
+        }
+    }
+
+    private int runProgram(CBScanProgram program, CBScanResult[] results, int rounds) {
+        int matches = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (CBScanResult result : results) {
+                if (program.evaluate(result, mData)) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    // What an app writes in didDiscover: decode the advert, then look at the manufacturer data.
+    private static int runDelegate(CBScanResult[] results, int rounds) {
+        int matches = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (CBScanResult result : results) {
+                CBAdvertisementData data = new CBAdvertisementData().wrap(result.record(), 0, result.recordLength());
+                byte[] manufacturerData = data.manufacturerData();
+                if (0x004C == data.manufacturerId() && null != manufacturerData && 2 <= manufacturerData.length
+                        && 0x02 == manufacturerData[0] && 0x15 == manufacturerData[1] && -80 <= result.rssi()) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    // -1 where the JVM does not count allocations per thread.
+    private static long allocatedBytes(long threadId) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return threads.getThreadAllocatedBytes(threadId);
+    }
+
+    // Tree walk with the semantics the program must keep.
+    private static boolean reference(CBScanPredicate predicate, CBScanResult result, CBAdvertisementData data) {
+        switch (predicate.mKind) {
+            case CBScanPredicate.KIND_RSSI_AT_LEAST:
+                return result.rssi() >= predicate.mValue;
+            case CBScanPredicate.KIND_LENGTH_AT_LEAST:
+                return result.recordLength() >= predicate.mValue;
+            case CBScanPredicate.KIND_BYTES_AT: {
+                if (result.recordLength() - predicate.mValue < predicate.mPattern.length) {
+                    return false;
+                }
+                for (int i = 0; i < predicate.mPattern.length; i++) {
+                    int m = null == predicate.mMask ? 0xFF : predicate.mMask[i];
+                    if ((result.record()[predicate.mValue + i] & m) != (predicate.mPattern[i] & m)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            case CBScanPredicate.KIND_SERVICE_UUID:
+                return data.containsServiceUUID(predicate.mUUID);
+            case CBScanPredicate.KIND_MANUFACTURER_ID:
+                return data.manufacturerId() == predicate.mValue;
+            case CBScanPredicate.KIND_NOT:
+                return !reference(predicate.mChildren[0], result, data);
+            case CBScanPredicate.KIND_AND:
+                for (CBScanPredicate child : predicate.mChildren) {
+                    if (!reference(child, result, data)) {
+                        return false;
+                    }
+                }
+                return true;
+            case CBScanPredicate.KIND_OR:
+                for (CBScanPredicate child : predicate.mChildren) {
+                    if (reference(child, result, data)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                throw new IllegalStateException("Unknown kind. " + predicate.mKind);
+        }
+    }
+
+    private static CBScanPredicate randomPredicate(Random random, int depth) {
+        final int kind = random.nextInt(0 < depth ? 8 : 5);
+        switch (kind) {
+            case 0:
+                return CBScanPredicate.rssiAtLeast(-100 + random.nextInt(60));
+            case 1:
+                return CBScanPredicate.lengthAtLeast(random.nextInt(16));
+            case 2: {
+                final byte[] alphabet = {0x00, 0x01, 0x02, 0x03, 0x06, 0x0D, 0x18, 0x4C, 0x59, (byte) 0xFF};
+                byte[] pattern = new byte[1 + random.nextInt(2)];
+                for (int i = 0; i < pattern.length; i++) {
+                    pattern[i] = alphabet[random.nextInt(alphabet.length)];
+                }
+                byte[] mask = null;
+                if (random.nextBoolean()) {
+                    mask = new byte[pattern.length];
+                    for (int i = 0; i < mask.length; i++) {
+                        mask[i] = random.nextBoolean() ? (byte) 0xFF : (byte) 0x0F;
+                    }
+                }
+                return CBScanPredicate.bytesAt(random.nextInt(12), pattern, mask);
+            }
+            case 3:
+                return CBScanPredicate.serviceUUID(new CBUUID(random.nextBoolean() ? "180D" : "1812"));
+            case 4:
+                return CBScanPredicate.manufacturerId(random.nextBoolean() ? 0x0059 : 0x004C);
+            case 5:
+                return CBScanPredicate.not(randomPredicate(random, depth - 1));
+            default: {
+                CBScanPredicate[] children = new CBScanPredicate[1 + random.nextInt(3)];
+                for (int i = 0; i < children.length; i++) {
+                    children[i] = randomPredicate(random, depth - 1);
+                }
+                return 6 == kind ? CBScanPredicate.and(children) : CBScanPredicate.or(children);
+            }
+        }
+    }
+
+    private static String describe(CBScanPredicate predicate) {
+        switch (predicate.mKind) {
+            case CBScanPredicate.KIND_NOT:
+                return "not(" + describe(predicate.mChildren[0]) + ")";
+            case CBScanPredicate.KIND_AND:
+            case CBScanPredicate.KIND_OR: {
+                StringBuilder sb = new StringBuilder(CBScanPredicate.KIND_AND == predicate.mKind ? "and(" : "or(");
+                for (int i = 0; i < predicate.mChildren.length; i++) {
+                    sb.append(0 == i ? "" : ", ").append(describe(predicate.mChildren[i]));
+                }
+                return sb.append(")").toString();
+            }
+            default:
+                return "kind" + predicate.mKind + "(" + predicate.mValue + ")";
+        }
+    }
+}
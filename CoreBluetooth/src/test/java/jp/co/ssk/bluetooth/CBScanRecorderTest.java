@@ -0,0 +1,161 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CBScanRecorderTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("scan", ".cbsr");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    private static final class Sighting {
+        final String address;
+        final int rssi;
+        final byte[] record;
+        final long timestampNanos;
+
+        Sighting(String address, int rssi, byte[] record, long timestampNanos) {
+            this.address = address;
+            this.rssi = rssi;
+            this.record = record;
+            this.timestampNanos = timestampNanos;
+        }
+    }
+
+    private static final class Collector extends CBScanner.ScanListener {
+        final List<Sighting> sightings = new ArrayList<>();
+        int started;
+        CBScanner.Reason stopped;
+
+        @Override
+        void onScanStarted() {
+            started++;
+        }
+
+        @Override
+        void onScan(@NonNull CBScanResult result) {
+            // The result is reused, so it is copied out.
+            sightings.add(new Sighting(result.address(), result.rssi(), result.copyRecord(), result.timestampNanos()));
+        }
+
+        @Override
+        void onScanStopped(@NonNull CBScanner.Reason reason) {
+            stopped = reason;
+        }
+    }
+
+    private List<Sighting> record(int count, long seed) throws IOException {
+        Random random = new Random(seed);
+        List<Sighting> ret = new ArrayList<>();
+        CBScanResult result = new CBScanResult();
+        try (CBScanRecorder recorder = new CBScanRecorder(mFile)) {
+            long timestamp = 1000000000L;
+            for (int i = 0; i < count; i++) {
+                String address = CBAddress.format(random.nextLong() & 0xFFFFFFFFFFFFL);
+                int rssi = -127 + random.nextInt(148);
+                // Includes empty records and extended adverts longer than a legacy one.
+                byte[] record = new byte[0 == i % 50 ? 0 : random.nextInt(255)];
+                random.nextBytes(record);
+                timestamp += random.nextInt(10000000);
+                result.set(null, address, rssi, record, timestamp);
+                recorder.append(result);
+                ret.add(new Sighting(address, rssi, record, timestamp));
+            }
+            assertEquals(count, recorder.recordCount());
+        }
+        return ret;
+    }
+
+    private static void assertSameSightings(List<Sighting> expected, List<Sighting> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Sighting e = expected.get(i);
+            Sighting a = actual.get(i);
+            assertEquals(e.address, a.address);
+            assertEquals(e.rssi, a.rssi);
+            assertArrayEquals(e.record, a.record);
+            assertEquals(e.timestampNanos, a.timestampNanos);
+        }
+    }
+
+    @Test
+    public void replaysWhatWasRecorded() throws IOException {
+        List<Sighting> expected = record(500, 13);
+        Collector collector = new Collector();
+        assertEquals(500, new CBScanReplaySource(mFile).replay(collector, 0));
+        assertEquals(1, collector.started);
+        assertEquals(CBScanner.Reason.StopRequest, collector.stopped);
+        assertSameSightings(expected, collector.sightings);
+    }
+
+    @Test
+    public void replaysAcrossMappedChunks() throws IOException {
+        // About 2.5 MB, so the recorder maps more than one chunk.
+        List<Sighting> expected = record(20000, 14);
+        assertTrue(mFile.length() > 2 * 1024 * 1024);
+        Collector collector = new Collector();
+        assertEquals(20000, new CBScanReplaySource(mFile).replay(collector, 0));
+        assertSameSightings(expected, collector.sightings);
+    }
+
+    @Test
+    public void closeTrimsTheFile() throws IOException {
+        List<Sighting> expected = record(3, 15);
+        long size = CBScanRecorder.HEADER_SIZE;
+        for (Sighting sighting : expected) {
+            size += CBScanRecorder.RECORD_HEADER_SIZE + sighting.record.length;
+        }
+        assertEquals(size, mFile.length());
+    }
+
+    @Test
+    public void replaysAnEmptyRecording() throws IOException {
+        record(0, 16);
+        Collector collector = new Collector();
+        assertEquals(0, new CBScanReplaySource(mFile).replay(collector, 1.0));
+        assertEquals(1, collector.started);
+        assertEquals(CBScanner.Reason.StopRequest, collector.stopped);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsATruncatedRecording() throws IOException {
+        record(10, 17);
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        new CBScanReplaySource(mFile).replay(new Collector(), 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnotherFile() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.writeInt(0x12345678);
+            raf.writeInt(0);
+        }
+        new CBScanReplaySource(mFile);
+    }
+}
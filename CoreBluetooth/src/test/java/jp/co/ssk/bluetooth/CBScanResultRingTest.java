@@ -0,0 +1,109 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CBScanResultRingTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final byte[] RECORD = {0x02, 0x01, 0x06, 0x03, 0x03, 0x0D, 0x18};
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityThatIsNotAPowerOfTwo() {
+        new CBScanResultRing(3);
+    }
+
+    @Test
+    public void carriesTheExtendedReport() {
+        CBScanResultRing ring = new CBScanResultRing(4);
+        assertTrue(ring.offer(null, ADDRESS, -60, RECORD, 1000L, 3, 2, 5, 80, false));
+        CBScanResult result = ring.peek();
+        assertEquals(ADDRESS, result.address());
+        assertEquals(-60, result.rssi());
+        assertEquals(1000L, result.timestampNanos());
+        assertArrayEquals(RECORD, result.copyRecord());
+        assertEquals(3, result.primaryPhy());
+        assertEquals(2, result.secondaryPhy());
+        assertEquals(5, result.advertisingSid());
+        assertEquals(80, result.periodicAdvertisingInterval());
+        assertFalse(result.isLegacy());
+        ring.release();
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void plainOfferResetsTheReportOfARecycledSlot() {
+        CBScanResultRing ring = new CBScanResultRing(1);
+        assertTrue(ring.offer(null, ADDRESS, -60, RECORD, 1000L, 3, 2, 5, 80, false));
+        CBScanResult extended = ring.peek();
+        ring.release();
+        assertTrue(ring.offer(null, ADDRESS, -61, RECORD, 2000L));
+        CBScanResult legacy = ring.peek();
+        assertSame(extended, legacy);
+        assertEquals(CBAdvertisementData.PHY_LE_1M, legacy.primaryPhy());
+        assertEquals(CBAdvertisementData.PHY_UNUSED, legacy.secondaryPhy());
+        assertEquals(CBAdvertisementData.SID_NOT_PRESENT, legacy.advertisingSid());
+        assertEquals(CBAdvertisementData.PERIODIC_INTERVAL_NOT_PRESENT, legacy.periodicAdvertisingInterval());
+        assertTrue(legacy.isLegacy());
+    }
+
+    @Test
+    public void dropsWhenFull() {
+        CBScanResultRing ring = new CBScanResultRing(2);
+        assertTrue(ring.offer(null, ADDRESS, -60, RECORD, 1L));
+        assertTrue(ring.offer(null, ADDRESS, -60, RECORD, 2L));
+        assertFalse(ring.offer(null, ADDRESS, -60, RECORD, 3L));
+        assertEquals(1, ring.droppedCount());
+        assertEquals(1L, ring.peek().timestampNanos());
+        ring.clear();
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void offerDrainAndRecycleDoNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        final CBScanResultRing ring = new CBScanResultRing(256);
+        // Several peripherals, so the slots also re-pack addresses.
+        final String[] addresses = {ADDRESS, "00:11:22:33:44:56", "00:11:22:33:44:57"};
+        // Warm up, so that class loading and compilation are not counted.
+        long drained = run(ring, addresses, 2000);
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        drained += run(ring, addresses, 20000);
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertEquals(22000L * 200, drained);
+        assertEquals(0, ring.droppedCount());
+        // Even one object per result would be megabytes. The slack covers the measurement itself.
+        assertTrue("allocated " + allocated + " bytes", 4096 > allocated);
+    }
+
+    // As the OS callback thread offers and the scanner thread drains, one burst at a time.
+    private static long run(CBScanResultRing ring, String[] addresses, int bursts) {
+        long drained = 0;
+        for (int burst = 0; burst < bursts; burst++) {
+            for (int i = 0; i < 200; i++) {
+                ring.offer(null, addresses[i % addresses.length], -60 - i % 30, RECORD, i);
+            }
+            for (CBScanResult result = ring.peek(); null != result; result = ring.peek()) {
+                drained += result.recordLength() == RECORD.length ? 1 : 0;
+                ring.release();
+            }
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,63 @@
+package jp.co.ssk.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CBScanStartBudgetTest {
+
+    @Test
+    public void allowsFiveStartsPerThirtySeconds() {
+        CBScanStartBudget budget = new CBScanStartBudget();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(5 - i, budget.available(i * 1000));
+            assertTrue(budget.tryAcquire(i * 1000));
+        }
+        assertEquals(0, budget.available(5000));
+        assertFalse(budget.tryAcquire(5000));
+        // A refused start is not counted, so it does not push the window out.
+        assertEquals(25000, budget.timeUntilAvailable(5000));
+    }
+
+    @Test
+    public void windowSlidesOneStartAtATime() {
+        CBScanStartBudget budget = new CBScanStartBudget();
+        for (int i = 0; i < 5; i++) {
+            budget.tryAcquire(i * 1000);
+        }
+        assertFalse(budget.tryAcquire(29999));
+        assertEquals(1, budget.timeUntilAvailable(29999));
+        // The start at 0 leaves the window, the one at 1000 is still in it.
+        assertTrue(budget.tryAcquire(30000));
+        assertFalse(budget.tryAcquire(30000));
+        assertEquals(1000, budget.timeUntilAvailable(30000));
+        assertEquals(0, budget.timeUntilAvailable(31000));
+        // Long after the last start, the whole budget is back.
+        assertEquals(5, budget.available(60000));
+    }
+
+    @Test
+    public void ringWrapsAround() {
+        CBScanStartBudget budget = new CBScanStartBudget(2, 100);
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            assertTrue(budget.tryAcquire(now));
+            assertTrue(budget.tryAcquire(now + 10));
+            assertFalse(budget.tryAcquire(now + 20));
+            assertEquals(80, budget.timeUntilAvailable(now + 20));
+            now += 110;
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyBudget() {
+        new CBScanStartBudget(0, 30000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyWindow() {
+        new CBScanStartBudget(5, 0);
+    }
+}
@@ -0,0 +1,310 @@
+package jp.co.ssk.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.co.ssk.utility.Handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CBScannerTest {
+
+    private static final long TIMEOUT = 1000;
+    // TIMEOUT / 8, as chosen by the tracker.
+    private static final long TICK = 125;
+
+    private Handler mHandler;
+    // Runnables posted with a delay and not yet removed, in posting order.
+    private final List<Runnable> mPosted = new ArrayList<>();
+    private final List<Long> mDelays = new ArrayList<>();
+    private List<String> mEvents;
+    private boolean mOsStartResult = true;
+    private int mOsStarts;
+    private int mOsStops;
+    private CBPresenceTracker mTracker;
+    private long mNow;
+    private CBScanner mScanner;
+
+    @Before
+    public void setUp() {
+        BluetoothAdapter adapter = mock(BluetoothAdapter.class);
+        when(adapter.getState()).thenReturn(BluetoothAdapter.STATE_ON);
+        BluetoothManager manager = mock(BluetoothManager.class);
+        when(manager.getAdapter()).thenReturn(adapter);
+        Context context = mock(Context.class);
+        when(context.getSystemService(Context.BLUETOOTH_SERVICE)).thenReturn(manager);
+        // Runs every call on the calling thread. Posted runnables are not run unless a test runs them.
+        mHandler = mock(Handler.class);
+        when(mHandler.isCurrentThread()).thenReturn(true);
+        doAnswer(invocation -> {
+            mPosted.add(invocation.getArgument(0));
+            mDelays.add(invocation.getArgument(1));
+            return true;
+        }).when(mHandler).postDelayed(any(Runnable.class), anyLong());
+        doAnswer(invocation -> {
+            int i;
+            while (-1 != (i = mPosted.indexOf(invocation.<Runnable>getArgument(0)))) {
+                mPosted.remove(i);
+                mDelays.remove(i);
+            }
+            return null;
+        }).when(mHandler).removeCallbacks(any(Runnable.class));
+        mEvents = new ArrayList<>();
+        CBScanner.ScanListener listener = new CBScanner.ScanListener() {
+            @Override
+            void onScanStarted() {
+                mEvents.add("started");
+            }
+
+            @Override
+            void onScanStartFailure(CBScanner.Reason reason) {
+                mEvents.add("startFailure " + reason);
+            }
+
+            @Override
+            void onScanStopped(CBScanner.Reason reason) {
+                mEvents.add("stopped " + reason);
+            }
+
+            @Override
+            void onScanWindowFinished(CBScanWindowStatistics statistics) {
+                mEvents.add("windowFinished");
+            }
+
+            // What the manager does with the rest, as in CBCentralManager.
+            @Override
+            void onScanRestStarted() {
+                mEvents.add("restStarted");
+                mTracker.pause(mNow);
+            }
+
+            @Override
+            void onScanRestFinished() {
+                mEvents.add("restFinished");
+                mTracker.resume(mNow);
+            }
+        };
+        mTracker = new CBPresenceTracker(null, address -> mEvents.add("lost " + address));
+        mScanner = new CBScanner(context, listener, mHandler) {
+            @Override
+            boolean startNewScan(List<CBScanFilter> scanFilters, CBScanOptions options, CBScanMode scanMode) {
+                mOsStarts++;
+                return mOsStartResult;
+            }
+
+            @Override
+            void stopNewScan() {
+                mOsStops++;
+            }
+        };
+    }
+
+    private static List<CBScanFilter> filters(String uuid) {
+        return Collections.singletonList(CBScanFilter.withServiceUUID(new CBUUID(uuid)));
+    }
+
+    private void scan(List<CBScanFilter> filters) {
+        mScanner.scanForPeripherals(filters, new CBScanOptions(null), 0);
+    }
+
+    private void scanDutyCycled(long window, long rest) {
+        Map<CBCentralManagerScanOption, Object> options = new EnumMap<>(CBCentralManagerScanOption.class);
+        options.put(CBCentralManagerScanOption.ScanWindowKey, window);
+        options.put(CBCentralManagerScanOption.ScanRestKey, rest);
+        mScanner.scanForPeripherals(filters("180D"), new CBScanOptions(options), 0);
+    }
+
+    // Runs the only pending runnable, which is the duty cycle's, and returns the delay it was posted with.
+    private long runPosted() {
+        assertEquals(1, mPosted.size());
+        Runnable runnable = mPosted.remove(0);
+        long delay = mDelays.remove(0);
+        runnable.run();
+        return delay;
+    }
+
+    private String lastEvent() {
+        return mEvents.get(mEvents.size() - 1);
+    }
+
+    @Test
+    public void sixthStartWithinTheWindowIsRefused() {
+        // Different filters each time, so every start is a new OS scan. The clock does not move.
+        for (int i = 0; i < 5; i++) {
+            scan(filters("180" + i));
+            assertEquals("started", lastEvent());
+            mScanner.stopScan();
+            assertEquals("stopped StopRequest", lastEvent());
+        }
+        assertEquals(5, mOsStarts);
+
+        scan(filters("1805"));
+        assertEquals("startFailure StartBudgetExhausted", lastEvent());
+        assertEquals(5, mOsStarts);
+        assertFalse(mScanner.isScanning());
+    }
+
+    @Test
+    public void startSoonAfterAStopResumesTheOsScan() {
+        scan(filters("180D"));
+        mScanner.stopScan();
+        // The OS scan outlives the stop by a second.
+        verify(mHandler).postDelayed(any(Runnable.class), eq(1000L));
+        assertEquals(0, mOsStops);
+
+        scan(filters("180D"));
+        assertEquals("started", lastEvent());
+        assertEquals(1, mOsStarts);
+        assertEquals(0, mOsStops);
+    }
+
+    @Test
+    public void resumingSpendsNoBudget() {
+        for (int i = 0; i < 20; i++) {
+            scan(filters("180D"));
+            assertEquals("started", lastEvent());
+            mScanner.stopScan();
+        }
+        assertEquals(1, mOsStarts);
+    }
+
+    @Test
+    public void startWithOtherFiltersDoesNotResume() {
+        scan(filters("180D"));
+        mScanner.stopScan();
+        scan(filters("180F"));
+        assertEquals("started", lastEvent());
+        assertEquals(2, mOsStarts);
+        assertEquals(1, mOsStops);
+    }
+
+    @Test
+    public void startAfterTheDeferredStopIsANewOsScan() {
+        scan(filters("180D"));
+        mScanner.stopScan();
+        ArgumentCaptor<Runnable> deferredStop = ArgumentCaptor.forClass(Runnable.class);
+        verify(mHandler).postDelayed(deferredStop.capture(), eq(1000L));
+        deferredStop.getValue().run();
+        assertEquals(1, mOsStops);
+
+        scan(filters("180D"));
+        assertEquals("started", lastEvent());
+        assertEquals(2, mOsStarts);
+    }
+
+    @Test
+    public void windowsAndRestsAlternate() {
+        scanDutyCycled(2000, 8000);
+        assertEquals(1, mOsStarts);
+        assertEquals(Collections.singletonList(2000L), mDelays);
+
+        assertEquals(2000, runPosted());
+        assertEquals(1, mOsStops);
+        assertEquals(Arrays.asList("started", "windowFinished", "restStarted"), mEvents);
+        assertEquals(Collections.singletonList(8000L), mDelays);
+
+        assertEquals(8000, runPosted());
+        assertEquals(2, mOsStarts);
+        assertEquals("restFinished", lastEvent());
+        assertEquals(Collections.singletonList(2000L), mDelays);
+        assertTrue(mScanner.isScanning());
+    }
+
+    @Test
+    public void restIsExtendedByTheStartBudget() {
+        scanDutyCycled(2000, 8000);
+        // The clock does not move, so the five starts of the budget are the first five windows.
+        for (int i = 0; i < 4; i++) {
+            runPosted();
+            runPosted();
+        }
+        assertEquals(5, mOsStarts);
+        runPosted();
+        assertEquals("restStarted", lastEvent());
+        runPosted();
+        // Deferred until the first start leaves the 30 s window, rather than starting a scan the OS would ignore.
+        assertEquals(Collections.singletonList(30000L), mDelays);
+        assertEquals(5, mOsStarts);
+        assertEquals("restStarted", lastEvent());
+        assertTrue(mScanner.isScanning());
+    }
+
+    @Test
+    public void failedWindowStartStopsWithItsReason() {
+        scanDutyCycled(2000, 8000);
+        runPosted();
+        mOsStartResult = false;
+        runPosted();
+        assertEquals(Arrays.asList("started", "windowFinished", "restStarted", "restFinished", "stopped OSNativeError"), mEvents);
+        assertFalse(mScanner.isScanning());
+        assertTrue(mPosted.isEmpty());
+    }
+
+    @Test
+    public void stopDuringARestEndsTheRest() {
+        scanDutyCycled(2000, 8000);
+        runPosted();
+        mScanner.stopScan();
+        assertEquals(Arrays.asList("started", "windowFinished", "restStarted", "restFinished", "stopped StopRequest"), mEvents);
+        // The OS scan already stopped for the rest, so the deferred stop has nothing left to stop.
+        assertEquals(1, mOsStops);
+        assertEquals(Collections.singletonList(1000L), mDelays);
+        runPosted();
+        assertEquals(1, mOsStops);
+    }
+
+    @Test
+    public void presenceIsPausedForTheRest() {
+        // Rests longer than the silence window, so every rest would report the peripheral lost if counted.
+        mTracker.start(TIMEOUT, mNow);
+        scanDutyCycled(500, 2000);
+        // Four rests, since the scanner's clock does not move and the fifth would wait for the start budget.
+        for (int cycle = 0; cycle < 4; cycle++) {
+            mTracker.onSeen("00:00:00:00:00:01", mNow);
+            // Through the window, then the rest.
+            advance(mDelays.get(0));
+            runPosted();
+            assertTrue(mTracker.isPaused());
+            advance(mDelays.get(0));
+            runPosted();
+            assertFalse(mTracker.isPaused());
+        }
+        assertFalse(mEvents.contains("lost 00:00:00:00:00:01"));
+        // Silence through a window does count.
+        advance(TIMEOUT + TICK);
+        assertTrue(mEvents.contains("lost 00:00:00:00:00:01"));
+    }
+
+    // Ticks the tracker as its handler would, while not paused.
+    private void advance(long duration) {
+        final long end = mNow + duration;
+        while (mNow + TICK <= end) {
+            mNow += TICK;
+            if (!mTracker.isPaused()) {
+                mTracker.tick(mNow);
+            }
+        }
+        mNow = end;
+    }
+}
@@ -0,0 +1,447 @@
+package jp.co.ssk.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CBWriteStreamTest {
+
+    // Simulated link: 7.5 ms connection interval, up to 6 packets per event, 8-slot controller buffer.
+    private static final long INTERVAL_US = 7500;
+    private static final int PER_EVENT = 6;
+    private static final int BUFFER = 8;
+    // From the stack taking a packet, or sending it, to the write callback.
+    private static final long CALLBACK_US = 300;
+    // One hop through the peripheral thread's queue.
+    private static final long HOP_US = 50;
+    private static final int PACKETS = 2000;
+    // The lane never looks at the characteristic, so the tests pass none.
+    private static final CBCharacteristic CHARACTERISTIC = null;
+
+    private Sim mSim;
+    private CBWriteStream mStream;
+    // Link state.
+    private boolean mCallbackOnAir;
+    private int mBuffered;
+    private int mOutstanding;
+    private int mDelivered;
+    private long mLastDeliveredAt;
+    private int mOffered;
+    // What a write callback runs on the peripheral thread.
+    private Runnable mOnWritten;
+    // Transport state.
+    private boolean mBusy;
+    private int mIdleCount;
+    private int mReadyCount;
+    private int mFailedStatus;
+    private long mFailedAt = -1;
+
+    @Before
+    public void setUp() {
+        mSim = new Sim();
+    }
+
+    // Discrete-event clock in microseconds, standing in for the peripheral thread's handler.
+    private static final class Sim implements CBWriteStream.Scheduler {
+        private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+        private long mNow;
+        private long mSequence;
+
+        private static final class Event implements Comparable<Event> {
+            final long at;
+            final long sequence;
+            final Runnable runnable;
+
+            Event(long at, long sequence, Runnable runnable) {
+                this.at = at;
+                this.sequence = sequence;
+                this.runnable = runnable;
+            }
+
+            @Override
+            public int compareTo(@NonNull Event other) {
+                return at != other.at ? Long.compare(at, other.at) : Long.compare(sequence, other.sequence);
+            }
+        }
+
+        long now() {
+            return mNow;
+        }
+
+        void at(long at, Runnable runnable) {
+            mEvents.add(new Event(at, mSequence++, runnable));
+        }
+
+        void run() {
+            while (!mEvents.isEmpty()) {
+                Event event = mEvents.poll();
+                mNow = event.at;
+                event.runnable.run();
+            }
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return mNow / 1000;
+        }
+
+        @Override
+        public void post(@NonNull Runnable r) {
+            at(mNow + HOP_US, r);
+        }
+
+        @Override
+        public void postDelayed(@NonNull Runnable r, long delayMillis) {
+            at(mNow + HOP_US + delayMillis * 1000, r);
+        }
+
+        @Override
+        public void removeCallbacks(@NonNull Runnable r) {
+            mEvents.removeIf(event -> event.runnable == r);
+        }
+    }
+
+    private abstract class TestTransport implements CBWriteStream.Transport {
+        @Override
+        public boolean isBusy() {
+            return mBusy;
+        }
+
+        @Override
+        public void onIdle() {
+            mIdleCount++;
+        }
+
+        @Override
+        public void onReady() {
+            mReadyCount++;
+        }
+
+        @Override
+        public void onFailed(@NonNull CBCharacteristic characteristic, int status) {
+            mFailedStatus = status;
+            mFailedAt = mSim.now();
+        }
+    }
+
+    // Writes go into the controller buffer, which connection events empty.
+    private CBWriteStream linkStream(boolean callbackOnAir) {
+        mCallbackOnAir = callbackOnAir;
+        mSim.at(INTERVAL_US, this::connectionEvent);
+        mOnWritten = () -> assertTrue(mStream.onWritten(CBStatusCode.GATT_SUCCESS));
+        return new CBWriteStream(mSim, CBWriteStream.DEF_CAPACITY, new TestTransport() {
+            @Override
+            public boolean write(@NonNull CBCharacteristic characteristic, @NonNull byte[] value) {
+                return linkWrite(value);
+            }
+
+            @Override
+            public void onReady() {
+                super.onReady();
+                fill();
+            }
+        });
+    }
+
+    private boolean linkWrite(byte[] value) {
+        if (BUFFER <= mBuffered) {
+            return false;
+        }
+        assertEquals("out of order", mDelivered + mBuffered, readSequence(value));
+        mBuffered++;
+        mOutstanding++;
+        if (!mCallbackOnAir) {
+            mSim.at(mSim.now() + CALLBACK_US, this::callback);
+        }
+        return true;
+    }
+
+    // The serial queue on the same link: the next write waits for the callback of the previous one.
+    private void serialLink(boolean callbackOnAir) {
+        mCallbackOnAir = callbackOnAir;
+        mSim.at(INTERVAL_US, this::connectionEvent);
+        mOnWritten = this::issueSerially;
+        issueSerially();
+    }
+
+    private void issueSerially() {
+        if (PACKETS <= mOffered) {
+            return;
+        }
+        if (linkWrite(sequence(mOffered))) {
+            mOffered++;
+        } else {
+            mSim.at(mSim.now() + 1000, this::issueSerially);
+        }
+    }
+
+    private void connectionEvent() {
+        final int n = Math.min(PER_EVENT, mBuffered);
+        for (int i = 0; i < n; i++) {
+            mBuffered--;
+            mDelivered++;
+            mLastDeliveredAt = mSim.now();
+            if (mCallbackOnAir) {
+                mSim.at(mSim.now() + CALLBACK_US, this::callback);
+            }
+        }
+        if (PACKETS > mDelivered) {
+            mSim.at(mSim.now() + INTERVAL_US, this::connectionEvent);
+        }
+    }
+
+    private void callback() {
+        mOutstanding--;
+        mSim.post(mOnWritten);
+    }
+
+    private void fill() {
+        while (PACKETS > mOffered && mStream.offer(CHARACTERISTIC, sequence(mOffered))) {
+            mOffered++;
+        }
+    }
+
+    private static byte[] sequence(int n) {
+        byte[] ret = new byte[20];
+        ret[0] = (byte) (n >>> 8);
+        ret[1] = (byte) n;
+        return ret;
+    }
+
+    private static int readSequence(byte[] value) {
+        return ((value[0] & 0xFF) << 8) | (value[1] & 0xFF);
+    }
+
+    // Packets per second the link can carry.
+    private static double linkCapacity() {
+        return PER_EVENT * 1e6 / INTERVAL_US;
+    }
+
+    private double goodput() {
+        return mDelivered * 1e6 / mLastDeliveredAt;
+    }
+
+    @Test
+    public void keepsTheLinkBusyWhenCallbacksComeOnEnqueue() {
+        mStream = linkStream(false);
+        fill();
+        mSim.run();
+        assertEquals(PACKETS, mDelivered);
+        assertEquals(PACKETS, mStream.sentPacketCount());
+        assertTrue("goodput " + goodput(), 0.95 * linkCapacity() <= goodput());
+        assertEquals(-1, mFailedAt);
+        assertFalse(mStream.isInFlight());
+    }
+
+    @Test
+    public void learnsTheStackDepthWhenCallbacksComeOnAir() {
+        mStream = linkStream(true);
+        fill();
+        mSim.run();
+        assertEquals(PACKETS, mDelivered);
+        assertTrue("goodput " + goodput(), 0.95 * linkCapacity() <= goodput());
+        // The stack holds as many writes as the controller buffer. Probing raises the limit by one now and then.
+        assertTrue("inFlightLimit " + mStream.inFlightLimit(), BUFFER <= mStream.inFlightLimit() && BUFFER + 1 >= mStream.inFlightLimit());
+        // Once learned, a refusal costs a probe, not a packet.
+        assertTrue("refused " + mStream.refusedCount(), PACKETS / 32 > mStream.refusedCount());
+        assertEquals(-1, mFailedAt);
+    }
+
+    @Test
+    public void outrunsTheSerialQueue() {
+        final double[] serial = new double[2];
+        final double[] lane = new double[2];
+        for (int onAir = 0; onAir < 2; onAir++) {
+            setUp();
+            resetLink();
+            serialLink(1 == onAir);
+            mSim.run();
+            assertEquals(PACKETS, mDelivered);
+            serial[onAir] = goodput();
+
+            setUp();
+            resetLink();
+            mStream = linkStream(1 == onAir);
+            fill();
+            mSim.run();
+            assertEquals(PACKETS, mDelivered);
+            lane[onAir] = goodput();
+        }
+        System.out.println(String.format(Locale.US, "Goodput of %.0f pkt/s: callbacks on enqueue serial %.0f lane %.0f,"
+                + " callbacks on air serial %.0f lane %.0f.", linkCapacity(), serial[0], lane[0], serial[1], lane[1]));
+        // A stack that calls back on enqueue keeps the buffer full either way.
+        assertTrue(0.95 * serial[0] <= lane[0]);
+        // One that calls back on air leaves the serial queue one packet per connection event.
+        assertTrue(PER_EVENT * 0.9 * serial[1] <= lane[1]);
+    }
+
+    private void resetLink() {
+        mBuffered = 0;
+        mOutstanding = 0;
+        mDelivered = 0;
+        mLastDeliveredAt = 0;
+        mOffered = 0;
+    }
+
+    @Test
+    public void backsOffWhileTheStackBufferIsFull() {
+        final long[] refuseUntil = {50 * 1000};
+        final List<Long> attempts = new ArrayList<>();
+        mStream = new CBWriteStream(mSim, CBWriteStream.DEF_CAPACITY, new TestTransport() {
+            @Override
+            public boolean write(@NonNull CBCharacteristic characteristic, @NonNull byte[] value) {
+                attempts.add(mSim.now());
+                if (mSim.now() < refuseUntil[0]) {
+                    return false;
+                }
+                mSim.at(mSim.now() + CALLBACK_US, () -> mStream.onWritten(CBStatusCode.GATT_SUCCESS));
+                return true;
+            }
+        });
+        assertTrue(mStream.offer(CHARACTERISTIC, sequence(0)));
+        mSim.run();
+        // Refused with nothing in flight, so the retry delay doubles: 1, 2, 4, 8, 16 and 32 ms.
+        assertEquals(7, attempts.size());
+        for (int i = 1; i < attempts.size(); i++) {
+            assertEquals((1000L << (i - 1)) + HOP_US, attempts.get(i) - attempts.get(i - 1));
+        }
+        assertEquals(6, mStream.refusedCount());
+        assertEquals(BUFFER * 2, mStream.inFlightLimit());
+
+        // A write that went through resets the delay.
+        attempts.clear();
+        refuseUntil[0] = mSim.now() + 2000;
+        assertTrue(mStream.offer(CHARACTERISTIC, sequence(1)));
+        mSim.run();
+        assertEquals(3, attempts.size());
+        assertEquals(1000 + HOP_US, attempts.get(1) - attempts.get(0));
+        assertEquals(2000 + HOP_US, attempts.get(2) - attempts.get(1));
+        assertEquals(-1, mFailedAt);
+        assertEquals(2, mStream.sentPacketCount());
+    }
+
+    @Test
+    public void failsAStalledStack() {
+        final int[] attempts = {0};
+        mStream = new CBWriteStream(mSim, CBWriteStream.DEF_CAPACITY, new TestTransport() {
+            @Override
+            public boolean write(@NonNull CBCharacteristic characteristic, @NonNull byte[] value) {
+                attempts[0]++;
+                return false;
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            assertTrue(mStream.offer(CHARACTERISTIC, sequence(i)));
+        }
+        mSim.run();
+        assertEquals(CBStatusCode.GATT_INTERNAL_ERROR, mFailedStatus);
+        // The first refusal that comes 2 s after the stall began, with retries at most 32 ms apart.
+        final long stalledFor = mFailedAt - HOP_US;
+        assertTrue("failed after " + stalledFor + "us", 2000 * 1000 <= stalledFor && (2000 + 32) * 1000 + attempts[0] * HOP_US >= stalledFor);
+        assertEquals(1, mIdleCount);
+        assertEquals(0, mStream.sentPacketCount());
+        assertEquals(attempts[0], mStream.refusedCount());
+
+        // The queued packets were dropped. The lane takes new ones.
+        assertTrue(mStream.hasRoom());
+        final int failedAttempts = attempts[0];
+        mSim.run();
+        assertEquals(failedAttempts, attempts[0]);
+    }
+
+    @Test
+    public void reportsWritesLostToACallbackTimeout() {
+        mStream = new CBWriteStream(mSim, CBWriteStream.DEF_CAPACITY, new TestTransport() {
+            @Override
+            public boolean write(@NonNull CBCharacteristic characteristic, @NonNull byte[] value) {
+                // Taken, but the callback never comes.
+                return true;
+            }
+        });
+        assertTrue(mStream.offer(CHARACTERISTIC, sequence(0)));
+        mSim.run();
+        // Nothing was queued any more, yet the lost write is reported.
+        assertEquals(CBStatusCode.GATT_INTERNAL_ERROR, mFailedStatus);
+        assertEquals(2 * HOP_US + 30 * 1000 * 1000, mFailedAt);
+        assertEquals(1, mIdleCount);
+        assertFalse(mStream.isInFlight());
+    }
+
+    @Test
+    public void failingAnIdleLaneReportsNothing() {
+        mStream = new CBWriteStream(mSim, CBWriteStream.DEF_CAPACITY, new TestTransport() {
+            @Override
+            public boolean write(@NonNull CBCharacteristic characteristic, @NonNull byte[] value) {
+                mSim.at(mSim.now() + CALLBACK_US, () -> mStream.onWritten(CBStatusCode.GATT_SUCCESS));
+                return true;
+            }
+        });
+        assertTrue(mStream.offer(CHARACTERISTIC, sequence(0)));
+        mSim.run();
+        assertEquals(1, mStream.sentPacketCount());
+        // As on a disconnect after the last write completed.
+        mStream.fail(CBStatusCode.GATT_INTERNAL_ERROR);
+        assertEquals(-1, mFailedAt);
+    }
+
+    @Test
+    public void reportsReadyOnceHalfOfTheLaneHasDrained() {
+        final int capacity = 8;
+        final int stackDepth = 3;
+        mStream = new CBWriteStream(mSim, capacity, new TestTransport() {
+            @Override
+            public boolean write(@NonNull CBCharacteristic characteristic, @NonNull byte[] value) {
+                if (stackDepth <= mOutstanding) {
+                    return false;
+                }
+                mOutstanding++;
+                return true;
+            }
+        });
+        // The serial queue holds the link, so the lane fills up.
+        mBusy = true;
+        for (int i = 0; i < capacity; i++) {
+            assertTrue(mStream.offer(CHARACTERISTIC, sequence(i)));
+        }
+        assertFalse(mStream.offer(CHARACTERISTIC, sequence(capacity)));
+        assertFalse(mStream.hasRoom());
+
+        mBusy = false;
+        mStream.drain();
+        // 3 in flight and 5 queued: room again, but not yet half empty.
+        assertTrue(mStream.hasRoom());
+        assertEquals(stackDepth, mStream.inFlightLimit());
+        assertEquals(0, mReadyCount);
+
+        mOutstanding--;
+        assertTrue(mStream.onWritten(CBStatusCode.GATT_SUCCESS));
+        // 4 queued.
+        assertEquals(1, mReadyCount);
+
+        mOutstanding--;
+        assertTrue(mStream.onWritten(CBStatusCode.GATT_SUCCESS));
+        assertEquals(1, mReadyCount);
+
+        // Without a refused offer, draining does not report ready.
+        while (mStream.isInFlight()) {
+            mOutstanding--;
+            assertTrue(mStream.onWritten(CBStatusCode.GATT_SUCCESS));
+        }
+        assertTrue(mStream.offer(CHARACTERISTIC, sequence(0)));
+        mStream.drain();
+        assertEquals(1, mReadyCount);
+        assertTrue(mStream.onWritten(CBStatusCode.GATT_SUCCESS));
+        // Nothing in flight on the lane, so the callback belongs to the serial queue.
+        assertFalse(mStream.onWritten(CBStatusCode.GATT_SUCCESS));
+    }
+}